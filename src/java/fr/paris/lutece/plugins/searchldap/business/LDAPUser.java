@@ -36,6 +36,9 @@ package fr.paris.lutece.plugins.searchldap.business;
 import fr.paris.lutece.portal.service.security.LuteceAuthentication;
 import fr.paris.lutece.portal.service.security.LuteceUser;
 
+import java.util.Collections;
+import java.util.List;
+
 
 /**
  * LDAP user
@@ -44,6 +47,7 @@ public class LDAPUser extends LuteceUser
 {
     private static final long serialVersionUID = -8595919488586634326L;
     private String _strEmail;
+    private List<String> _listMemberOf = Collections.emptyList(  );
 
     /**
      * Constructor
@@ -72,4 +76,22 @@ public class LDAPUser extends LuteceUser
     {
         return _strEmail;
     }
+
+    /**
+     * Set the DN of the LDAP groups the user is a direct member of
+     * @param listMemberOf The DN of the groups
+     */
+    public void setMemberOf( List<String> listMemberOf )
+    {
+        _listMemberOf = ( listMemberOf == null ) ? Collections.<String>emptyList(  ) : listMemberOf;
+    }
+
+    /**
+     * Get the DN of the LDAP groups the user is a direct member of
+     * @return The DN of the groups, an empty list if the groups are not read
+     */
+    public List<String> getMemberOf(  )
+    {
+        return _listMemberOf;
+    }
 }
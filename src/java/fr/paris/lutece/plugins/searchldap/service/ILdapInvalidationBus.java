@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+
+/**
+ * Bus carrying the invalidations of users to every node of a cluster, so that
+ * a user created or changed on one node is evicted from the caches of all the
+ * nodes. An implementation is enabled by declaring it as a bean of the Spring
+ * context of the plugin.<br>
+ * Invalidations are delivered to the listeners of every node, the publishing
+ * node included. Delivery is asynchronous for most implementations : the
+ * publishing node also evicts its own caches before publishing.
+ */
+public interface ILdapInvalidationBus
+{
+    /**
+     * Publish the invalidation of a user
+     * @param strGuid The guid of the user
+     */
+    void publishUserInvalidated( String strGuid );
+
+    /**
+     * Publish the invalidation of every user
+     */
+    void publishAllUsersInvalidated(  );
+
+    /**
+     * Register a listener of the invalidations
+     * @param listener The listener
+     */
+    void addListener( ILdapInvalidationListener listener );
+
+    /**
+     * Unregister a listener of the invalidations
+     * @param listener The listener
+     */
+    void removeListener( ILdapInvalidationListener listener );
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+
+
+/**
+ * Cache of users shared by the nodes of a cluster, searched when a user is
+ * not in the caches of the node and before the LDAP. An implementation is
+ * enabled by declaring it as a bean of the Spring context of the plugin.<br>
+ * Implementations are called on the lookup path and must be thread safe and
+ * fast : a lookup of a distant store should be bounded by a short timeout.
+ * Errors should be reported as runtime exceptions, which are logged and
+ * handled as misses.
+ */
+public interface ILdapUserCacheTier
+{
+    /**
+     * Get a user
+     * @param strGuid The guid of the user
+     * @return The user, or null if the user is not in the cache
+     */
+    LDAPUser getUser( String strGuid );
+
+    /**
+     * Store a user found in the LDAP
+     * @param user The user
+     */
+    void putUser( LDAPUser user );
+
+    /**
+     * Check if a guid is known as not found in the LDAP
+     * @param strGuid The guid
+     * @return True if the guid was not found in the LDAP
+     */
+    boolean isUserNotFound( String strGuid );
+
+    /**
+     * Store a guid that was not found in the LDAP
+     * @param strGuid The guid
+     */
+    void putUserNotFound( String strGuid );
+
+    /**
+     * Remove a user, found or not found, from the cache
+     * @param strGuid The guid of the user
+     */
+    void removeUser( String strGuid );
+
+    /**
+     * Remove every user from the cache
+     */
+    void removeAllUsers(  );
+}
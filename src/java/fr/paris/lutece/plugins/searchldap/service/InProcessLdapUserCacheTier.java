@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Shared cache tier held in the memory of the process. Entries never expire
+ * and are only removed by invalidations : this tier is meant for tests, where
+ * several nodes are simulated in a process by sharing one instance, not for
+ * production.
+ */
+public class InProcessLdapUserCacheTier implements ILdapUserCacheTier
+{
+    private final Map<String, LDAPUser> _mapUsers = new ConcurrentHashMap<String, LDAPUser>(  );
+    private final Map<String, Boolean> _mapUsersNotFound = new ConcurrentHashMap<String, Boolean>(  );
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LDAPUser getUser( String strGuid )
+    {
+        return _mapUsers.get( strGuid );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putUser( LDAPUser user )
+    {
+        _mapUsersNotFound.remove( user.getName(  ) );
+        _mapUsers.put( user.getName(  ), user );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isUserNotFound( String strGuid )
+    {
+        return _mapUsersNotFound.containsKey( strGuid );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putUserNotFound( String strGuid )
+    {
+        _mapUsers.remove( strGuid );
+        _mapUsersNotFound.put( strGuid, Boolean.TRUE );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeUser( String strGuid )
+    {
+        _mapUsers.remove( strGuid );
+        _mapUsersNotFound.remove( strGuid );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeAllUsers(  )
+    {
+        _mapUsers.clear(  );
+        _mapUsersNotFound.clear(  );
+    }
+
+    /**
+     * Get the number of users found and not found in the cache
+     * @return The number of entries
+     */
+    public int getSize(  )
+    {
+        return _mapUsers.size(  ) + _mapUsersNotFound.size(  );
+    }
+}
@@ -33,14 +33,20 @@
  */
 package fr.paris.lutece.plugins.searchldap.service;
 
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
 import fr.paris.lutece.portal.service.security.ILuteceUserProviderService;
 import fr.paris.lutece.portal.service.security.LuteceUser;
 import fr.paris.lutece.portal.service.spring.SpringContextService;
 import fr.paris.lutece.portal.service.util.AppPropertiesService;
 
-import org.apache.commons.lang.StringUtils;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
-import java.util.regex.Pattern;
+import javax.naming.NamingException;
 
 
 /**
@@ -48,8 +54,14 @@ import java.util.regex.Pattern;
  */
 public class LDAPLuteceUserProviderService implements ILuteceUserProviderService
 {
-    private static final String PROPERTY_GUID_REGEX = "searchldap.guid.regularexpression";
+    /**
+     * Name of the bean of the service
+     */
+    public static final String BEAN_NAME = "searchldap.ldapLuteceUserProviderService";
     private static final String PROPERTY_STORE_USERS_FOUND_IN_CACHE = "searchldap.cache.storeUsersNotFoundInCache";
+    private static final String PROPERTY_COALESCING_TIMEOUT = "searchldap.lookup.coalescingTimeout";
+    private static final int DEFAULT_COALESCING_TIMEOUT = 10000;
+    private final LdapUserLookupCoalescer _lookupCoalescer = new LdapUserLookupCoalescer(  );
     private volatile LdapBrowser _ldapBrowser;
     private Boolean _bStoreUsersNotFoundInCache;
 
@@ -59,33 +71,205 @@ public class LDAPLuteceUserProviderService implements ILuteceUserProviderService
     @Override
     public LuteceUser getLuteceUserFromName( String strName )
     {
-        String strRegEx = AppPropertiesService.getProperty( PROPERTY_GUID_REGEX );
+        LdapMetrics.getInstance(  ).increment( LdapMetrics.Counter.LOOKUP_REQUEST );
 
-        if ( StringUtils.isEmpty( strRegEx ) || Pattern.matches( strRegEx, strName ) )
+        if ( isValidGuid( getLDAPBrowser(  ).getLookupPlan(  ), strName ) )
         {
             if ( getStoreUsersNotFoundInCache(  ) &&
-                    ( LDAPUserNotFoundCacheService.getService(  )
-                                                      .getFromCache( LDAPUserNotFoundCacheService.getCacheKeyFromUserName( 
-                            strName ) ) != null ) )
+                    LDAPUserNotFoundCacheService.getService(  ).isUserNotFound( strName ) )
             {
                 return null;
             }
 
-            LuteceUser user = getLDAPBrowser(  ).getUserPublicData( strName );
+            LDAPUser cachedUser = LDAPUserCacheService.getService(  ).getUser( strName );
 
-            if ( ( user == null ) && getStoreUsersNotFoundInCache(  ) )
+            if ( cachedUser != null )
             {
-                LDAPUserNotFoundCacheService.getService(  )
-                                            .putInCache( LDAPUserNotFoundCacheService.getCacheKeyFromUserName( strName ),
-                    strName );
+                return cachedUser;
             }
 
-            return user;
+            try
+            {
+                return _lookupCoalescer.lookup( strName, new UserLookup( strName ),
+                    AppPropertiesService.getPropertyInt( PROPERTY_COALESCING_TIMEOUT, DEFAULT_COALESCING_TIMEOUT ) );
+            }
+            catch ( NamingException e )
+            {
+                LdapUtil.logError( "Error while searching for user '" + strName + "' in ldap", e );
+
+                // Serve the last known version of the user only when no server could answer
+                return LdapUtil.isUnavailabilityError( e ) ? getLDAPBrowser(  ).getStaleUser( strName ) : null;
+            }
         }
 
         return null;
     }
 
+    /**
+     * Search a user in the shared cache tier, then in the LDAP, and store the
+     * result in the caches
+     * @param strName The name of the user
+     * @return The user, or null if the user was not found
+     * @throws NamingException If the search fails
+     */
+    private LuteceUser searchUser( String strName ) throws NamingException
+    {
+        LdapCacheCoherenceService coherenceService = LdapCacheCoherenceService.getInstance(  );
+        LDAPUser sharedUser = coherenceService.getSharedUser( strName );
+
+        if ( sharedUser != null )
+        {
+            LDAPUserCacheService.getService(  ).putUser( sharedUser );
+
+            return sharedUser;
+        }
+
+        if ( getStoreUsersNotFoundInCache(  ) && coherenceService.isSharedUserNotFound( strName ) )
+        {
+            LDAPUserNotFoundCacheService.getService(  ).putUserNotFound( strName );
+
+            return null;
+        }
+
+        LuteceUser user = getLDAPBrowser(  ).findUserPublicData( strName );
+
+        if ( ( user == null ) && getStoreUsersNotFoundInCache(  ) )
+        {
+            LDAPUserNotFoundCacheService.getService(  ).putUserNotFound( strName );
+            coherenceService.putSharedUserNotFound( strName );
+        }
+        else if ( user instanceof LDAPUser )
+        {
+            LDAPUserCacheService.getService(  ).putUser( (LDAPUser) user );
+            coherenceService.putSharedUser( (LDAPUser) user );
+        }
+
+        return user;
+    }
+
+    /**
+     * Get the users associated with a collection of names. Names are resolved
+     * with as few LDAP searches as possible.
+     * @param collectionNames The names of the users
+     * @return A map associating names with the corresponding user. Names of
+     *         users that do not exist are not in the map.
+     */
+    public Map<String, LuteceUser> getLuteceUsersFromNames( Collection<String> collectionNames )
+    {
+        LdapLookupPlan plan = getLDAPBrowser(  ).getLookupPlan(  );
+        LdapCacheCoherenceService coherenceService = LdapCacheCoherenceService.getInstance(  );
+        List<String> listNamesToSearch = new ArrayList<String>( collectionNames.size(  ) );
+        Map<String, LuteceUser> mapUsers = new HashMap<String, LuteceUser>(  );
+        LdapMetrics.getInstance(  ).add( LdapMetrics.Counter.LOOKUP_REQUEST, collectionNames.size(  ) );
+
+        for ( String strName : collectionNames )
+        {
+            if ( isValidGuid( plan, strName ) &&
+                    ( !getStoreUsersNotFoundInCache(  ) ||
+                    !LDAPUserNotFoundCacheService.getService(  ).isUserNotFound( strName ) ) )
+            {
+                LDAPUser cachedUser = LDAPUserCacheService.getService(  ).getUser( strName );
+
+                if ( cachedUser == null )
+                {
+                    cachedUser = coherenceService.getSharedUser( strName );
+
+                    if ( cachedUser != null )
+                    {
+                        LDAPUserCacheService.getService(  ).putUser( cachedUser );
+                    }
+                }
+
+                if ( cachedUser != null )
+                {
+                    mapUsers.put( strName, cachedUser );
+                }
+                else if ( getStoreUsersNotFoundInCache(  ) && coherenceService.isSharedUserNotFound( strName ) )
+                {
+                    LDAPUserNotFoundCacheService.getService(  ).putUserNotFound( strName );
+                }
+                else
+                {
+                    listNamesToSearch.add( strName );
+                }
+            }
+        }
+
+        if ( listNamesToSearch.isEmpty(  ) )
+        {
+            return mapUsers;
+        }
+
+        Map<String, LuteceUser> mapFoundUsers = new HashMap<String, LuteceUser>(  );
+
+        try
+        {
+            getLDAPBrowser(  ).findUsersPublicData( listNamesToSearch, mapFoundUsers );
+        }
+        catch ( NamingException e )
+        {
+            // Users that were not searched must not be considered as not found
+            LdapUtil.logError( "Error while searching for users in ldap", e );
+            mapUsers.putAll( mapFoundUsers );
+
+            if ( LdapUtil.isUnavailabilityError( e ) )
+            {
+                getLDAPBrowser(  ).addStaleUsers( listNamesToSearch, mapUsers );
+            }
+
+            return mapUsers;
+        }
+
+        for ( String strName : listNamesToSearch )
+        {
+            LuteceUser user = mapFoundUsers.get( strName );
+
+            if ( user instanceof LDAPUser )
+            {
+                LDAPUserCacheService.getService(  ).putUser( (LDAPUser) user );
+                coherenceService.putSharedUser( (LDAPUser) user );
+                mapUsers.put( strName, user );
+            }
+            else if ( ( user == null ) && getStoreUsersNotFoundInCache(  ) )
+            {
+                LDAPUserNotFoundCacheService.getService(  ).putUserNotFound( strName );
+                coherenceService.putSharedUserNotFound( strName );
+            }
+        }
+
+        return mapUsers;
+    }
+
+    /**
+     * Remove a user from the caches of this service, on every node of the
+     * cluster, so that the next lookup of this user searches the LDAP. To be
+     * called when a user is created or changed.
+     * @param strName The name of the user
+     */
+    public void invalidateUser( String strName )
+    {
+        LdapCacheCoherenceService.getInstance(  ).invalidateUser( strName );
+    }
+
+    /**
+     * Remove every user from the caches of this service, on every node of the
+     * cluster
+     */
+    public void invalidateAllUsers(  )
+    {
+        LdapCacheCoherenceService.getInstance(  ).invalidateAllUsers(  );
+    }
+
+    /**
+     * Get the coalescer of concurrent lookups, which holds the counters of
+     * lookups and coalesced calls
+     * @return The coalescer
+     */
+    public LdapUserLookupCoalescer getLookupCoalescer(  )
+    {
+        return _lookupCoalescer;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -95,6 +279,34 @@ public class LDAPLuteceUserProviderService implements ILuteceUserProviderService
         return true;
     }
 
+    /**
+     * Check if a name matches the guid regular expression, counting the
+     * rejected names
+     * @param plan The lookup plan
+     * @param strName The name
+     * @return True if the name is a valid guid
+     */
+    private boolean isValidGuid( LdapLookupPlan plan, String strName )
+    {
+        if ( plan.isValidGuid( strName ) )
+        {
+            return true;
+        }
+
+        LdapMetrics.getInstance(  ).increment( LdapMetrics.Counter.INVALID_GUID );
+
+        return false;
+    }
+
+    /**
+     * Set the LDAP browser, instead of the bean of the Spring context
+     * @param ldapBrowser The LDAP browser
+     */
+    void setLDAPBrowser( LdapBrowser ldapBrowser )
+    {
+        _ldapBrowser = ldapBrowser;
+    }
+
     /**
      * Get the LDAP browser
      * @return The LDAP browser
@@ -124,4 +336,30 @@ public class LDAPLuteceUserProviderService implements ILuteceUserProviderService
 
         return _bStoreUsersNotFoundInCache;
     }
+
+    /**
+     * Lookup of a single user, run by the first of the concurrent callers
+     */
+    private final class UserLookup implements Callable<LuteceUser>
+    {
+        private final String _strName;
+
+        /**
+         * Creates a new lookup
+         * @param strName The name of the user
+         */
+        UserLookup( String strName )
+        {
+            _strName = strName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public LuteceUser call(  ) throws NamingException
+        {
+            return searchUser( _strName );
+        }
+    }
 }
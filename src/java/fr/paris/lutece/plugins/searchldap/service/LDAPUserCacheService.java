@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+import fr.paris.lutece.portal.service.cache.AbstractCacheableService;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Cache service to save users found in the LDAP. Users are held in the
+ * compact form of {@link LdapUserRecord} and built again at each read.
+ */
+public final class LDAPUserCacheService extends AbstractCacheableService
+{
+    private static final String SERVICE_NAME = "LdapUserCacheService";
+    private static final String USER_CACHE_KEY_PREFIXE = "searchldap.user.";
+    private static LDAPUserCacheService _instance = new LDAPUserCacheService(  );
+    private volatile LdapBrowser _ldapBrowser;
+
+    /**
+     * Private constructor
+     */
+    private LDAPUserCacheService(  )
+    {
+        initCache(  );
+    }
+
+    /**
+     * Get the instance of this service
+     * @return The instance of this service
+     */
+    public static LDAPUserCacheService getService(  )
+    {
+        return _instance;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName(  )
+    {
+        return SERVICE_NAME;
+    }
+
+    /**
+     * Get a user from the cache
+     * @param strUserName The name of the user
+     * @return The user, or null if the user is not in the cache
+     */
+    public LDAPUser getUser( String strUserName )
+    {
+        Object record = getFromCache( getCacheKeyFromUserName( strUserName ) );
+        LDAPUser user = ( record instanceof LdapUserRecord ) ? ( (LdapUserRecord) record ).toUser(  ) : null;
+        LdapMetrics.getInstance(  )
+                   .increment( ( user != null ) ? LdapMetrics.Counter.USER_CACHE_HIT
+                                                : LdapMetrics.Counter.USER_CACHE_MISS );
+
+        return user;
+    }
+
+    /**
+     * Put a user in the cache
+     * @param user The user
+     */
+    public void putUser( LDAPUser user )
+    {
+        putInCache( getCacheKeyFromUserName( user.getName(  ) ),
+            LdapUserRecord.create( getLDAPBrowser(  ).getLookupPlan(  ), user ) );
+    }
+
+    /**
+     * Get the users of the cache
+     * @return The users
+     */
+    public List<LDAPUser> getUsers(  )
+    {
+        List<LDAPUser> listUsers = new ArrayList<LDAPUser>(  );
+
+        for ( String strKey : getKeys(  ) )
+        {
+            Object record = getFromCache( strKey );
+
+            if ( record instanceof LdapUserRecord )
+            {
+                listUsers.add( ( (LdapUserRecord) record ).toUser(  ) );
+            }
+        }
+
+        return listUsers;
+    }
+
+    /**
+     * Remove a user from the cache
+     * @param strUserName The name of the user
+     */
+    public void removeUser( String strUserName )
+    {
+        removeKey( getCacheKeyFromUserName( strUserName ) );
+    }
+
+    /**
+     * Set the LDAP browser, instead of the bean of the Spring context
+     * @param ldapBrowser The LDAP browser
+     */
+    void setLDAPBrowser( LdapBrowser ldapBrowser )
+    {
+        _ldapBrowser = ldapBrowser;
+    }
+
+    /**
+     * Get the LDAP browser
+     * @return The LDAP browser
+     */
+    private LdapBrowser getLDAPBrowser(  )
+    {
+        if ( _ldapBrowser == null )
+        {
+            _ldapBrowser = SpringContextService.getBean( LdapBrowser.BEAN_NAME );
+        }
+
+        return _ldapBrowser;
+    }
+
+    /**
+     * Get the cache key for a given user name
+     * @param strUserName The name of the user
+     * @return The cache key of the user
+     */
+    public static String getCacheKeyFromUserName( String strUserName )
+    {
+        return USER_CACHE_KEY_PREFIXE + strUserName;
+    }
+}
@@ -34,6 +34,12 @@
 package fr.paris.lutece.plugins.searchldap.service;
 
 import fr.paris.lutece.portal.service.cache.AbstractCacheableService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -43,7 +49,14 @@ public final class LDAPUserNotFoundCacheService extends AbstractCacheableService
 {
     private static final String SERVICE_NAME = "LdapUserNotFoundCacheService";
     private static final String USER_CACHE_KEY_PREFIXE = "searchldap.userNotFound.";
+    private static final String PROPERTY_GUID_STORE_ENABLED = "searchldap.cache.notFoundGuids.enabled";
+    private static final String PROPERTY_GUID_STORE_CAPACITY = "searchldap.cache.notFoundGuids.capacity";
+    private static final String PROPERTY_GUID_STORE_TIME_TO_LIVE = "searchldap.cache.notFoundGuids.timeToLiveSeconds";
+    private static final int DEFAULT_GUID_STORE_CAPACITY = 65536;
+    private static final int DEFAULT_GUID_STORE_TIME_TO_LIVE = 43200;
+    private static final long MILLISECONDS_PER_SECOND = 1000L;
     private static LDAPUserNotFoundCacheService _instance = new LDAPUserNotFoundCacheService(  );
+    private final LdapGuidMissStore _guidMissStore;
 
     /**
      * Private constructor
@@ -51,6 +64,18 @@ public final class LDAPUserNotFoundCacheService extends AbstractCacheableService
     private LDAPUserNotFoundCacheService(  )
     {
         initCache(  );
+
+        if ( AppPropertiesService.getPropertyBoolean( PROPERTY_GUID_STORE_ENABLED, true ) )
+        {
+            _guidMissStore = new LdapGuidMissStore( AppPropertiesService.getPropertyInt( 
+                        PROPERTY_GUID_STORE_CAPACITY, DEFAULT_GUID_STORE_CAPACITY ),
+                    AppPropertiesService.getPropertyInt( PROPERTY_GUID_STORE_TIME_TO_LIVE,
+                        DEFAULT_GUID_STORE_TIME_TO_LIVE ) * MILLISECONDS_PER_SECOND );
+        }
+        else
+        {
+            _guidMissStore = null;
+        }
     }
 
     /**
@@ -71,6 +96,172 @@ public final class LDAPUserNotFoundCacheService extends AbstractCacheableService
         return SERVICE_NAME;
     }
 
+    /**
+     * Check if a user was stored as not found in the LDAP. Guids of the
+     * fixed form are looked up in the compact store, other names in the cache.
+     * @param strUserName The name of the user
+     * @return True if the user was not found in the LDAP
+     */
+    public boolean isUserNotFound( String strUserName )
+    {
+        if ( !isCacheEnable(  ) )
+        {
+            return false;
+        }
+
+        boolean bNotFound;
+
+        if ( useGuidMissStore( strUserName ) )
+        {
+            bNotFound = _guidMissStore.contains( strUserName );
+        }
+        else
+        {
+            bNotFound = getFromCache( getCacheKeyFromUserName( strUserName ) ) != null;
+        }
+
+        LdapMetrics.getInstance(  )
+                   .increment( bNotFound ? LdapMetrics.Counter.NOT_FOUND_CACHE_HIT
+                                         : LdapMetrics.Counter.NOT_FOUND_CACHE_MISS );
+
+        return bNotFound;
+    }
+
+    /**
+     * Store a user as not found in the LDAP
+     * @param strUserName The name of the user
+     */
+    public void putUserNotFound( String strUserName )
+    {
+        if ( !isCacheEnable(  ) )
+        {
+            return;
+        }
+
+        if ( useGuidMissStore( strUserName ) )
+        {
+            _guidMissStore.add( strUserName );
+        }
+        else
+        {
+            putInCache( getCacheKeyFromUserName( strUserName ), strUserName );
+        }
+    }
+
+    /**
+     * Store a user as not found in the LDAP until a given time at the latest,
+     * such as a user read from a snapshot
+     * @param strUserName The name of the user
+     * @param lExpiry The time in milliseconds before which the user must be
+     *            forgotten
+     * @return True if the user was stored, false if the user could not be
+     *         stored without outliving the expiry
+     */
+    public boolean putUserNotFound( String strUserName, long lExpiry )
+    {
+        if ( !isCacheEnable(  ) || !useGuidMissStore( strUserName ) )
+        {
+            // The time to live of the cache is the same for every element
+            return false;
+        }
+
+        return _guidMissStore.add( strUserName, lExpiry );
+    }
+
+    /**
+     * Remove a user from the users not found in the LDAP
+     * @param strUserName The name of the user
+     */
+    public void removeUserNotFound( String strUserName )
+    {
+        if ( useGuidMissStore( strUserName ) )
+        {
+            _guidMissStore.remove( strUserName );
+        }
+        else
+        {
+            removeKey( getCacheKeyFromUserName( strUserName ) );
+        }
+    }
+
+    /**
+     * Get the names of the users stored as not found in the LDAP
+     * @return The names of the users
+     */
+    public List<String> getUserNamesNotFound(  )
+    {
+        List<String> listUserNames = ( _guidMissStore != null ) ? _guidMissStore.getGuids(  ) : new ArrayList<String>(  );
+
+        for ( String strKey : getKeys(  ) )
+        {
+            Object userName = getFromCache( strKey );
+
+            if ( userName instanceof String )
+            {
+                listUserNames.add( (String) userName );
+            }
+        }
+
+        return listUserNames;
+    }
+
+    /**
+     * Get the names of the users stored as not found in the LDAP with the time
+     * at which each one is forgotten at the latest
+     * @return The expiry times in milliseconds by user name, 0 for the names
+     *         whose expiry is not known
+     */
+    public Map<String, Long> getUserNamesNotFoundExpiries(  )
+    {
+        Map<String, Long> mapExpiries = ( _guidMissStore != null ) ? _guidMissStore.getGuidExpiries(  )
+                                                                   : new LinkedHashMap<String, Long>(  );
+
+        for ( String strKey : getKeys(  ) )
+        {
+            Object userName = getFromCache( strKey );
+
+            if ( userName instanceof String )
+            {
+                mapExpiries.put( (String) userName, 0L );
+            }
+        }
+
+        return mapExpiries;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetCache(  )
+    {
+        super.resetCache(  );
+
+        if ( _guidMissStore != null )
+        {
+            _guidMissStore.clear(  );
+        }
+    }
+
+    /**
+     * Get the compact store of guids not found in the LDAP
+     * @return The store, or null if it is disabled
+     */
+    public LdapGuidMissStore getGuidMissStore(  )
+    {
+        return _guidMissStore;
+    }
+
+    /**
+     * Check if a user name must be stored in the compact store
+     * @param strUserName The name of the user
+     * @return True if the compact store is enabled and can hold the name
+     */
+    private boolean useGuidMissStore( String strUserName )
+    {
+        return ( _guidMissStore != null ) && LdapGuidMissStore.isStorable( strUserName );
+    }
+
     /**
      * Get the cache key for a given user name
      * @param strUserName The name of the user
@@ -37,19 +37,30 @@ import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
 import fr.paris.lutece.portal.service.security.LuteceUser;
 import fr.paris.lutece.portal.service.security.SecurityService;
 import fr.paris.lutece.portal.service.util.AppLogService;
-import fr.paris.lutece.portal.service.util.AppPropertiesService;
 
 import org.apache.commons.lang.StringUtils;
 
-import java.text.MessageFormat;
-
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
-import javax.naming.CommunicationException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
@@ -65,28 +76,12 @@ public class LdapBrowser
      * Name of the bean of this service
      */
     public static final String BEAN_NAME = "searchldap.ldapBrowser";
-
-    // ldap
-    private static final String PROPERTY_INITIAL_CONTEXT_PROVIDER = "searchldap.ldap.initialContextProvider";
-    private static final String PROPERTY_PROVIDER_URL = "searchldap.ldap.connectionUrl";
-    private static final String PROPERTY_BIND_DN = "searchldap.ldap.connectionName";
-    private static final String PROPERTY_BIND_PASSWORD = "searchldap.ldap.connectionPassword";
-    private static final String PROPERTY_USER_DN_SEARCH_BASE = "searchldap.ldap.userBase";
-    private static final String PROPERTY_USER_DN_SEARCH_FILTER_BY_GUID = "searchldap.ldap.userSearch.guid";
-    private static final String PROPERTY_USER_SUBTREE = "searchldap.ldap.userSubtree";
-    private static final String PROPERTY_DN_ATTRIBUTE_GUID = "searchldap.ldap.dn.attributeName.guid";
-    private static final String PROPERTY_DN_ATTRIBUTE_LIST = "searchldap.ldap.dn.attributeName.list";
-    private static final String PROPERTY_DN_ATTRIBUTE_EMAIL = "searchldap.ldap.dn.attributeName.email";
-    private static final String PROPERTY_DN_ATTRIBUTE_PREFIXE = "searchldap.ldap.dn.attributeName.";
-    private static final String PROPERTY_LUTECE_USER_ATTRIBUTE_PROFIXE = "searchldap.luteceuser.attribute.";
-
-    // Attributes
-    private static final String ATTRIBUTE_GUID = AppPropertiesService.getProperty( PROPERTY_DN_ATTRIBUTE_GUID );
-    private static final String ATTRIBUTE_EMAIL = AppPropertiesService.getProperty( PROPERTY_DN_ATTRIBUTE_EMAIL );
-    private static final String ATTRIBUTE_EMAIL_LUTECE_USER = AppPropertiesService.getProperty( 
-            "searchldap.luteceuser.attribute.email" );
-    private static final String CONSTANT_COMMA = ",";
-    private volatile Map<String, String> _mapLdapLuteceUser;
+    private static final long NO_DEADLINE = LdapServerRouter.NO_DEADLINE;
+    private final LdapUserReplica _replica = new LdapUserReplica(  );
+    private final LdapStaleUserStore _staleUsers = new LdapStaleUserStore(  );
+    private volatile LdapLookupPlan _lookupPlan;
+    private volatile LdapServerRouter _router;
+    private volatile LdapUserPrefixIndex _userIndex;
 
     /**
      * Creates a new LDAP browser
@@ -98,217 +93,1266 @@ public class LdapBrowser
     /**
      * Return a user given its guid
      * @param strId the guid
-     * @return the corresponding user
+     * @return the corresponding user, or null if the user was not found. If
+     *         no LDAP server could answer, the last known version of the user
+     *         is returned if any. Null is returned after any other error.
      */
     public LuteceUser getUserPublicData( String strId )
     {
-        LDAPUser user = null;
-        SearchResult sr = null;
-        Object[] messageFormatParam = new Object[1];
+        try
+        {
+            return findUserPublicData( strId );
+        }
+        catch ( NamingException e )
+        {
+            LdapUtil.logError( "Error while searching for user '" + strId + "' in ldap", e );
+
+            return LdapUtil.isUnavailabilityError( e ) ? getStaleUser( strId ) : null;
+        }
+    }
+
+    /**
+     * Search a user given its guid
+     * @param strId the guid
+     * @return the corresponding user, or null if the user was not found
+     * @throws NamingException If the search fails
+     */
+    public LuteceUser findUserPublicData( String strId )
+        throws NamingException
+    {
+        return findUserPublicData( strId, NO_DEADLINE );
+    }
+
+    /**
+     * Search a user given its guid in the background. The search is
+     * interrupted if it does not complete before the timeout or if the
+     * returned future is cancelled.
+     * @param strId the guid
+     * @param lTimeout The maximum duration of the search, in milliseconds
+     * @return A future completed with the user, with null if the user was not
+     *         found, or exceptionally with a {@link TimeoutException} or the
+     *         error of the search
+     */
+    public CompletableFuture<LuteceUser> getUserPublicDataAsync( final String strId, long lTimeout )
+    {
+        final CompletableFuture<LuteceUser> futureUser = new CompletableFuture<LuteceUser>(  );
+        final long lDeadline = System.currentTimeMillis(  ) + lTimeout;
+        final Future<?> search;
+
+        try
+        {
+            search = LdapTaskExecutor.getInstance(  ).getExecutor(  ).submit( new Runnable(  )
+                    {
+                        @Override
+                        public void run(  )
+                        {
+                            try
+                            {
+                                futureUser.complete( findUserPublicData( strId, lDeadline ) );
+                            }
+                            catch ( NamingException e )
+                            {
+                                futureUser.completeExceptionally( e );
+                            }
+                            catch ( RuntimeException e )
+                            {
+                                futureUser.completeExceptionally( e );
+                            }
+                        }
+                    } );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            futureUser.completeExceptionally( e );
+
+            return futureUser;
+        }
+
+        final ScheduledFuture<?> timeout = LdapTaskExecutor.getInstance(  ).getScheduler(  ).schedule( new Runnable(  )
+                {
+                    @Override
+                    public void run(  )
+                    {
+                        futureUser.completeExceptionally( new TimeoutException( "Search for user '" + strId +
+                                "' in ldap timed out" ) );
+                    }
+                }, lTimeout, TimeUnit.MILLISECONDS );
+
+        futureUser.whenComplete( new BiConsumer<LuteceUser, Throwable>(  )
+            {
+                @Override
+                public void accept( LuteceUser user, Throwable throwable )
+                {
+                    timeout.cancel( false );
+
+                    if ( throwable != null )
+                    {
+                        // Timed out or cancelled by the caller : stop the search
+                        search.cancel( true );
+                    }
+                }
+            } );
+
+        return futureUser;
+    }
+
+    /**
+     * Search a user given its guid before a deadline
+     * @param strId the guid
+     * @param lDeadline The time in milliseconds at which the search must be
+     *            abandoned, or {@link #NO_DEADLINE}
+     * @return the corresponding user, or null if the user was not found
+     * @throws NamingException If the search fails or if the deadline is
+     *             reached
+     */
+    private LuteceUser findUserPublicData( String strId, long lDeadline )
+        throws NamingException
+    {
+        long lStart = LdapMetrics.getInstance(  ).startTimer(  );
+
+        try
+        {
+            return lookupUserPublicData( strId, lDeadline );
+        }
+        finally
+        {
+            LdapMetrics.getInstance(  ).recordStage( LdapMetrics.Stage.LOOKUP, lStart );
+        }
+    }
+
+    /**
+     * Search a user given its guid in the replica, then in the LDAP. The LDAP
+     * search is hedged if hedging is enabled.
+     * @param strId the guid
+     * @param lDeadline The time in milliseconds at which the search must be
+     *            abandoned, or {@link #NO_DEADLINE}
+     * @return the corresponding user, or null if the user was not found
+     * @throws NamingException If the search fails or if the deadline is
+     *             reached
+     */
+    private LuteceUser lookupUserPublicData( String strId, long lDeadline )
+        throws NamingException
+    {
+        LdapLookupPlan plan = getLookupPlan(  );
+
+        if ( plan.isReplicaEnabled(  ) && isReplicaReady(  ) )
+        {
+            LDAPUser user = _replica.getUser( strId );
+
+            if ( ( user != null ) || !plan.isReplicaFallbackEnabled(  ) )
+            {
+                return user;
+            }
+        }
+
+        SearchControls searchControls = plan.getUserSearchControls(  );
+        long lMaxWait = Long.MAX_VALUE;
+
+        if ( lDeadline != NO_DEADLINE )
+        {
+            lMaxWait = lDeadline - System.currentTimeMillis(  );
+
+            if ( lMaxWait <= 0 )
+            {
+                throw new TimeLimitExceededException( "Deadline reached before searching for user '" + strId + "'" );
+            }
+
+            searchControls = plan.getUserSearchControls( (int) Math.min( lMaxWait, Integer.MAX_VALUE ) );
+        }
+
+        final LdapLookupPlan searchPlan = plan;
+        final SearchControls userSearchControls = searchControls;
+        final String strUserSearchFilter = plan.getGuidFilter( strId );
+
+        LuteceUser user;
+
+        try
+        {
+            user = getRouter(  ).executeHedged( new LdapOperation<LuteceUser>(  )
+                {
+                    @Override
+                    public LuteceUser execute( DirContext context )
+                        throws NamingException
+                    {
+                        LdapMetrics metrics = LdapMetrics.getInstance(  );
+                        LuteceUser user = null;
+                        long lStart = metrics.startTimer(  );
+                        NamingEnumeration<SearchResult> userResults = LdapUtil.searchUsers( context,
+                                strUserSearchFilter, searchPlan.getUserSearchBase(  ), StringUtils.EMPTY,
+                                userSearchControls );
+                        lStart = metrics.recordStage( LdapMetrics.Stage.SEARCH, lStart );
+
+                        try
+                        {
+                            while ( ( userResults != null ) && userResults.hasMore(  ) )
+                            {
+                                user = createUser( searchPlan, userResults.next(  ).getAttributes(  ) );
+                            }
+                        }
+                        finally
+                        {
+                            closeResults( userResults );
+                            metrics.recordStage( LdapMetrics.Stage.ITERATION, lStart );
+                        }
+
+                        return user;
+                    }
+                }, lDeadline );
+        }
+        catch ( NamingException e )
+        {
+            if ( LdapUtil.isCommunicationError( e ) )
+            {
+                AppLogService.error( "Error while searching for user '" + strId + "' in ldap with search filter : " +
+                    getDebugInfo( plan, strUserSearchFilter ) );
+            }
 
-        DirContext context = null;
+            throw e;
+        }
 
-        messageFormatParam[0] = strId;
+        if ( user != null )
+        {
+            _staleUsers.putUser( user );
+            indexUser( (LDAPUser) user );
+        }
+        else
+        {
+            _staleUsers.removeUser( strId );
+            unindexUser( strId );
+        }
 
-        String strUserSearchFilter = MessageFormat.format( getUserDnSearchFilterByGUID(  ), messageFormatParam );
+        return user;
+    }
+
+    /**
+     * Return the users matching a collection of guids. Guids are searched by
+     * chunks, each chunk being resolved with a single search that combines
+     * the guid search filter of each guid of the chunk.
+     * @param collectionIds The guids
+     * @return A map associating guids with the corresponding user. Guids that
+     *         were not found in the LDAP are not in the map. If an error
+     *         occurs, the users found before the error are returned, along
+     *         with the last known version of the other users if no LDAP
+     *         server could answer.
+     */
+    public Map<String, LuteceUser> getUsersPublicData( Collection<String> collectionIds )
+    {
+        Map<String, LuteceUser> mapUsers = new HashMap<String, LuteceUser>(  );
 
         try
         {
-            SearchControls scUserSearchControls = new SearchControls(  );
-            scUserSearchControls.setSearchScope( getUserDnSearchScope(  ) );
-            scUserSearchControls.setReturningObjFlag( true );
-            scUserSearchControls.setCountLimit( 1 );
+            findUsersPublicData( collectionIds, mapUsers );
+        }
+        catch ( NamingException e )
+        {
+            LdapUtil.logError( "Error while searching for users in ldap", e );
 
-            context = LdapUtil.getContext( getInitialContextProvider(  ), getProviderUrl(  ), getBindDn(  ),
-                    getBindPassword(  ) );
+            if ( LdapUtil.isUnavailabilityError( e ) )
+            {
+                addStaleUsers( collectionIds, mapUsers );
+            }
+        }
+
+        return mapUsers;
+    }
+
+    /**
+     * Get the last known version of a user, to serve it when no LDAP server
+     * can answer. The user returned is a copy, which the caller may modify.
+     * @param strId the guid
+     * @return The user, or null if the user is not known
+     */
+    public LuteceUser getStaleUser( String strId )
+    {
+        LuteceUser user = _staleUsers.getUser( strId );
 
-            NamingEnumeration<SearchResult> userResults = LdapUtil.searchUsers( context, strUserSearchFilter,
-                    getUserDnSearchBase(  ), StringUtils.EMPTY, scUserSearchControls );
+        if ( user instanceof LDAPUser )
+        {
+            return LdapUserRecord.create( getLookupPlan(  ), (LDAPUser) user ).toUser(  );
+        }
+
+        return user;
+    }
 
-            while ( ( userResults != null ) && userResults.hasMore(  ) )
+    /**
+     * Add the last known version of users missing from a map
+     * @param collectionIds The guids of the users
+     * @param mapUsers The map of the users, associated with their guid
+     */
+    public void addStaleUsers( Collection<String> collectionIds, Map<String, LuteceUser> mapUsers )
+    {
+        for ( String strId : collectionIds )
+        {
+            if ( !mapUsers.containsKey( strId ) )
             {
-                sr = userResults.next(  );
+                LuteceUser user = getStaleUser( strId );
 
-                Attributes attributes = sr.getAttributes(  );
-                String strWssoId = StringUtils.EMPTY;
+                if ( user != null )
+                {
+                    mapUsers.put( strId, user );
+                }
+            }
+        }
+    }
 
-                if ( attributes.get( ATTRIBUTE_GUID ) != null )
+    /**
+     * Get the store of the last known version of the users
+     * @return The store
+     */
+    public LdapStaleUserStore getStaleUserStore(  )
+    {
+        return _staleUsers;
+    }
+
+    /**
+     * Search the users matching a collection of guids, chunk by chunk
+     * @param collectionIds The guids
+     * @param mapUsers The map to add found users to, associated with their
+     *            guid
+     * @throws NamingException If a search fails. Users of previous chunks
+     *             are already in the map.
+     */
+    public void findUsersPublicData( Collection<String> collectionIds, Map<String, LuteceUser> mapUsers )
+        throws NamingException
+    {
+        LdapLookupPlan plan = getLookupPlan(  );
+        List<String> listIds = new ArrayList<String>( new LinkedHashSet<String>( collectionIds ) );
+        int nChunkSize = plan.getBatchChunkSize(  );
+
+        if ( plan.isReplicaEnabled(  ) && isReplicaReady(  ) )
+        {
+            List<String> listMissingIds = new ArrayList<String>(  );
+
+            for ( String strId : listIds )
+            {
+                LDAPUser user = _replica.getUser( strId );
+
+                if ( user != null )
                 {
-                    strWssoId = attributes.get( ATTRIBUTE_GUID ).get(  ).toString(  );
+                    mapUsers.put( strId, user );
                 }
+                else
+                {
+                    listMissingIds.add( strId );
+                }
+            }
+
+            if ( !plan.isReplicaFallbackEnabled(  ) )
+            {
+                return;
+            }
+
+            listIds = listMissingIds;
+        }
+
+        for ( int nIndex = 0; nIndex < listIds.size(  ); nIndex += nChunkSize )
+        {
+            searchUsersChunk( plan, listIds.subList( nIndex, Math.min( nIndex + nChunkSize, listIds.size(  ) ) ),
+                mapUsers );
+        }
+    }
+
+    /**
+     * Search the users by the values of their mapped attributes, for instance
+     * to let a user pick another one by name. The users are read page by page
+     * with a single context and given to the consumer one page at a time,
+     * without cookie since a search is not resumed. The context is given back
+     * to its pool and the search abandoned on the server before this method
+     * returns, whether the consumer stops early, fails or reads every user.
+     * @param mapCriteria The values searched, associated with the name of the
+     *            Lutece user attribute they are compared to, such as
+     *            user.name.family
+     * @param bPrefixMatch True to find the users whose attributes start with
+     *            the values, false to find the users whose attributes are
+     *            equal to the values
+     * @param nMaxResults The maximum number of users, capped by the maximum
+     *            of the properties. 0 means the maximum of the properties.
+     * @param consumer The consumer of the batches of users
+     * @return The number of users given to the consumer
+     * @throws NamingException If an attribute is not mapped or if a page can
+     *             not be read
+     */
+    public int searchUsers( Map<String, String> mapCriteria, boolean bPrefixMatch, int nMaxResults,
+        ILdapUserBatchConsumer consumer ) throws NamingException
+    {
+        LdapLookupPlan plan = getLookupPlan(  );
+        String strFilter = plan.getAttributesFilter( mapCriteria, bPrefixMatch );
+        int nLimit = ( nMaxResults > 0 ) ? Math.min( nMaxResults, plan.getSearchMaxResults(  ) )
+                                         : plan.getSearchMaxResults(  );
+        LdapContextLease lease = getRouter(  ).lease( NO_DEADLINE );
+        LdapPagedSearch pagedSearch;
+
+        try
+        {
+            pagedSearch = new LdapPagedSearch( lease.getContext(  ), plan.getUserSearchBase(  ), strFilter,
+                    plan.getAttributeSearchControls( nLimit ), Math.min( nLimit, plan.getSearchPageSize(  ) ), null );
+        }
+        catch ( NamingException e )
+        {
+            lease.fail( e );
+            throw e;
+        }
+
+        return (int) readPages( plan, lease, pagedSearch, false, nLimit, false, consumer );
+    }
+
+    /**
+     * Export every user of the user base. The users are read page by page
+     * with a single context and given to the consumer one page at a time, so
+     * that the memory used does not depend on the number of users. Each batch
+     * comes with the cookie of its page, which a later export can start from.
+     * A cookie is only valid on the connection that returned it, as long as
+     * the server keeps it, and the new export may lease another connection,
+     * possibly to another server : if the server refuses the cookie, the export
+     * restarts from the first user, and the consumer receives again the users
+     * it received before the cookie. An export stopped by the consumer is not
+     * abandoned on the server, so that its last cookie stays valid. The export
+     * runs in the background lane of the bulkhead, and each page takes a slot
+     * of the background rate.
+     * @param consumer The consumer of the batches of users
+     * @param resumeCookie The cookie given with a batch of a previous export,
+     *            to resume after this batch on the same connection if
+     *            possible, or null to start from the first user
+     * @return The number of users given to the consumer
+     * @throws NamingException If a page can not be read
+     */
+    public long exportUsers( ILdapUserBatchConsumer consumer, byte[] resumeCookie )
+        throws NamingException
+    {
+        LdapLookupPlan plan = getLookupPlan(  );
+        LdapBulkhead.Lane previousLane = LdapBulkhead.enterLane( LdapBulkhead.Lane.BACKGROUND );
+
+        try
+        {
+            LdapContextLease lease = getRouter(  ).lease( NO_DEADLINE );
+            LdapPagedSearch pagedSearch;
+
+            try
+            {
+                pagedSearch = new LdapPagedSearch( lease.getContext(  ), plan.getUserSearchBase(  ),
+                        plan.getAllUsersFilter(  ), plan.getPagedSearchControls(  ), plan.getExportPageSize(  ),
+                        resumeCookie );
+            }
+            catch ( NamingException e )
+            {
+                lease.fail( e );
+                throw e;
+            }
+
+            return readPages( plan, lease, pagedSearch, resumeCookie != null, Long.MAX_VALUE, true, consumer );
+        }
+        finally
+        {
+            LdapBulkhead.restoreLane( previousLane );
+        }
+    }
 
-                String strEmail = StringUtils.EMPTY;
+    /**
+     * Read the pages of a search and give their users to a consumer, until
+     * the last page, the maximum number of users or the consumer stops. The
+     * lease is released or failed, and the search ended, before this method
+     * returns.
+     * @param plan The lookup plan
+     * @param lease The lease of the context of the search
+     * @param pagedSearch The paged search
+     * @param bResuming True if the search starts from the cookie of a
+     *            previous search, so that it restarts from the first page if
+     *            the server refuses the cookie
+     * @param lMaxResults The maximum number of users given to the consumer
+     * @param bCookies True to give the cookies of the pages to the consumer,
+     *            false to abandon the search on the server when pages are left
+     * @param consumer The consumer of the batches of users
+     * @return The number of users given to the consumer
+     * @throws NamingException If a page can not be read
+     */
+    private long readPages( LdapLookupPlan plan, LdapContextLease lease, LdapPagedSearch pagedSearch,
+        boolean bResuming, long lMaxResults, boolean bCookies, ILdapUserBatchConsumer consumer )
+        throws NamingException
+    {
+        long lCount = 0;
+        boolean bFirstPage = bResuming;
+        boolean bContinue = true;
+        RuntimeException consumerException = null;
+
+        try
+        {
+            while ( bContinue && ( lCount < lMaxResults ) && pagedSearch.hasMorePages(  ) )
+            {
+                List<SearchResult> listResults;
 
-                if ( attributes.get( ATTRIBUTE_EMAIL ) != null )
+                try
                 {
-                    strEmail = attributes.get( ATTRIBUTE_EMAIL ).get(  ).toString(  );
+                    listResults = pagedSearch.nextPage(  );
                 }
+                catch ( NamingException e )
+                {
+                    // Servers refuse a cookie with various errors, protocol errors included, that JNDI reports
+                    // as communication errors : a broken connection fails again when the search restarts
+                    if ( !bFirstPage )
+                    {
+                        throw e;
+                    }
 
-                user = new LDAPUser( strWssoId, SecurityService.getInstance(  ).getAuthenticationService(  ) );
-                user.setEmail( strEmail );
-                user.setUserInfo( ATTRIBUTE_EMAIL_LUTECE_USER, strEmail );
+                    AppLogService.info( "The ldap server refused the cookie of the export, it restarts from the first user : " +
+                        e.getMessage(  ) );
+                    pagedSearch.restart(  );
+                    listResults = pagedSearch.nextPage(  );
+                }
 
-                Map<String, String> mapLdapLuteceUserAttributes = getMapLdapLuteceUser(  );
+                bFirstPage = false;
 
-                for ( Entry<String, String> entry : mapLdapLuteceUserAttributes.entrySet(  ) )
+                List<LDAPUser> listUsers = new ArrayList<LDAPUser>( listResults.size(  ) );
+
+                for ( SearchResult result : listResults )
                 {
-                    if ( attributes.get( entry.getKey(  ) ) != null )
+                    if ( ( lCount + listUsers.size(  ) ) >= lMaxResults )
+                    {
+                        break;
+                    }
+
+                    LDAPUser user = createUser( plan, result.getAttributes(  ) );
+
+                    if ( StringUtils.isNotEmpty( user.getName(  ) ) )
                     {
-                        user.setUserInfo( entry.getValue(  ), attributes.get( entry.getKey(  ) ).get(  ).toString(  ) );
+                        listUsers.add( user );
                     }
                 }
-            }
 
-            return user;
+                byte[] cookie = bCookies ? pagedSearch.getCookie(  ) : null;
+
+                try
+                {
+                    bContinue = consumer.accept( listUsers,
+                            ( ( cookie != null ) && ( cookie.length > 0 ) ) ? cookie : null );
+                    lCount += listUsers.size(  );
+                }
+                catch ( RuntimeException e )
+                {
+                    // An error of the consumer says nothing about the server : the context is released
+                    consumerException = e;
+                    bContinue = false;
+                }
+            }
+        }
+        catch ( NamingException e )
+        {
+            lease.fail( e );
+            throw e;
         }
-        catch ( CommunicationException e )
+        catch ( RuntimeException e )
         {
-            AppLogService.error( "Error while searching for user '" + strId + "' in ldap with search filter : " +
-                getDebugInfo( strUserSearchFilter ), e );
+            lease.fail( e );
+            throw e;
+        }
 
-            return null;
+        endSearch( lease, pagedSearch, !bCookies );
+
+        if ( consumerException != null )
+        {
+            throw consumerException;
+        }
+
+        return lCount;
+    }
+
+    /**
+     * End a paged search and release the lease of its context. An error while
+     * ending the search fails the lease but is not thrown, since the consumer
+     * already received the users it asked for.
+     * @param lease The lease of the context of the search
+     * @param pagedSearch The paged search
+     * @param bAbandon True to abandon the search on the server if pages are
+     *            left
+     */
+    private void endSearch( LdapContextLease lease, LdapPagedSearch pagedSearch, boolean bAbandon )
+    {
+        try
+        {
+            if ( bAbandon )
+            {
+                pagedSearch.abandon(  );
+            }
+            else
+            {
+                pagedSearch.close(  );
+            }
         }
         catch ( NamingException e )
         {
-            AppLogService.error( "Error while searching for user in ldap ", e );
+            AppLogService.error( "Unable to end a paged search in ldap : " + e.getMessage(  ), e );
+            lease.fail( e );
+
+            return;
+        }
+        catch ( RuntimeException e )
+        {
+            AppLogService.error( "Unable to end a paged search in ldap : " + e.getMessage(  ), e );
+            lease.fail( e );
+
+            return;
+        }
+
+        lease.release(  );
+    }
+
+    /**
+     * Get the local replica of the users
+     * @return The replica
+     */
+    public LdapUserReplica getReplica(  )
+    {
+        return _replica;
+    }
+
+    /**
+     * Load every user of the user base into the replica. The users are read
+     * page by page and the index of the replica is replaced once every page
+     * was read. Nothing is done if a synchronization is already running.
+     * @return True if the replica was synchronized, false if a
+     *         synchronization was already running
+     * @throws NamingException If the synchronization fails. The replica keeps
+     *             its previous index.
+     */
+    public boolean synchronizeReplica(  ) throws NamingException
+    {
+        if ( !_replica.startSynchronization(  ) )
+        {
+            return false;
+        }
+
+        long lStart = System.currentTimeMillis(  );
+        ConcurrentMap<String, LDAPUser> mapUsers = null;
+        String strHighWaterMark = null;
+
+        try
+        {
+            LdapLookupPlan plan = getLookupPlan(  );
+            ConcurrentMap<String, LDAPUser> mapLoadedUsers = new ConcurrentHashMap<String, LDAPUser>(  );
+            strHighWaterMark = loadUsers( plan, plan.getAllUsersFilter(  ), mapLoadedUsers );
+            mapUsers = mapLoadedUsers;
+
+            if ( plan.isIndexEnabled(  ) )
+            {
+                getUserIndex(  ).rebuild( mapLoadedUsers.values(  ) );
+            }
+
+            return true;
+        }
+        finally
+        {
+            _replica.endSynchronization( mapUsers, strHighWaterMark, lStart );
+        }
+    }
+
+    /**
+     * Apply to the replica the users modified since its high water mark. A
+     * full synchronization is run instead if the replica was never loaded,
+     * if its high water mark is unknown or if the last full synchronization is
+     * older than the full synchronization interval. Changed users are removed
+     * from the user and not found caches.
+     * @return The number of users loaded or changed, or -1 if a
+     *         synchronization was already running
+     * @throws NamingException If the synchronization fails
+     */
+    public int synchronizeReplicaChanges(  ) throws NamingException
+    {
+        LdapLookupPlan plan = getLookupPlan(  );
+        String strHighWaterMark = _replica.getHighWaterMark(  );
+
+        if ( !_replica.isLoaded(  ) || ( strHighWaterMark == null ) ||
+                ( ( System.currentTimeMillis(  ) - _replica.getLastFullSynchronization(  ) ) > plan.getReplicaFullSynchronizationInterval(  ) ) )
+        {
+            return synchronizeReplica(  ) ? _replica.getSize(  ) : ( -1 );
+        }
+
+        if ( !_replica.startSynchronization(  ) )
+        {
+            return -1;
+        }
+
+        long lStart = System.currentTimeMillis(  );
+        Map<String, LDAPUser> mapChangedUsers = null;
+        String strNewHighWaterMark = null;
 
-            return null;
+        try
+        {
+            Map<String, LDAPUser> mapLoadedUsers = new HashMap<String, LDAPUser>(  );
+            strNewHighWaterMark = loadUsers( plan, plan.getUsersModifiedSinceFilter( strHighWaterMark ),
+                    mapLoadedUsers );
+            mapChangedUsers = mapLoadedUsers;
         }
         finally
+        {
+            _replica.endIncrementalSynchronization( mapChangedUsers, strNewHighWaterMark, lStart );
+        }
+
+        for ( LDAPUser user : mapChangedUsers.values(  ) )
+        {
+            LDAPUserCacheService.getService(  ).removeUser( user.getName(  ) );
+            LDAPUserNotFoundCacheService.getService(  ).removeUserNotFound( user.getName(  ) );
+            indexUser( user );
+        }
+
+        return mapChangedUsers.size(  );
+    }
+
+    /**
+     * Check if the replica can answer lookups. The first synchronization is
+     * started in the background if the replica was never loaded.
+     * @return True if the replica is loaded
+     */
+    private boolean isReplicaReady(  )
+    {
+        if ( _replica.isLoaded(  ) )
+        {
+            return true;
+        }
+
+        if ( !_replica.isSynchronizing(  ) )
         {
             try
             {
-                LdapUtil.freeContext( context );
+                LdapTaskExecutor.getInstance(  ).getExecutor(  ).execute( new Runnable(  )
+                    {
+                        @Override
+                        public void run(  )
+                        {
+                            try
+                            {
+                                synchronizeReplica(  );
+                            }
+                            catch ( NamingException e )
+                            {
+                                AppLogService.error( "Error while synchronizing the ldap replica ", e );
+                            }
+                        }
+                    } );
             }
-            catch ( NamingException naming )
+            catch ( RejectedExecutionException e )
             {
-                AppLogService.error( naming.getMessage(  ), naming );
+                AppLogService.error( "Unable to start the synchronization of the ldap replica : " + e.getMessage(  ) );
             }
         }
+
+        return false;
     }
 
     /**
-     * Return info for debugging
-     * @param strUserSearchFilter User search filter
-     * @return The debug info
+     * Read the users matching a filter with a paged search, in the background
+     * lane of the bulkhead
+     * @param plan The lookup plan
+     * @param strFilter The search filter
+     * @param mapUsers The map to add the users to, indexed by guid
+     * @return The greatest modification timestamp of the users, or null if
+     *         no user has one
+     * @throws NamingException If the search fails
      */
-    private String getDebugInfo( String strUserSearchFilter )
+    private String loadUsers( LdapLookupPlan plan, String strFilter, Map<String, LDAPUser> mapUsers )
+        throws NamingException
     {
-        StringBuffer sb = new StringBuffer(  );
-        sb.append( "userBase : " );
-        sb.append( getUserDnSearchBase(  ) );
-        sb.append( "\nuserSearch : " );
-        sb.append( strUserSearchFilter );
+        final LdapLookupPlan searchPlan = plan;
+        final String strSearchFilter = strFilter;
+        final Map<String, LDAPUser> mapLoadedUsers = mapUsers;
+        LdapBulkhead.Lane previousLane = LdapBulkhead.enterLane( LdapBulkhead.Lane.BACKGROUND );
 
-        return sb.toString(  );
+        try
+        {
+            return getRouter(  ).execute( new LdapOperation<String>(  )
+                {
+                    @Override
+                    public String execute( DirContext context ) throws NamingException
+                    {
+                        String strHighWaterMark = null;
+                        LdapPagedSearch pagedSearch = new LdapPagedSearch( context, searchPlan.getUserSearchBase(  ),
+                                strSearchFilter, searchPlan.getPagedSearchControls(  ), searchPlan.getReplicaPageSize(  ),
+                                null );
+
+                        while ( pagedSearch.hasMorePages(  ) )
+                        {
+                            for ( SearchResult result : pagedSearch.nextPage(  ) )
+                            {
+                                Attributes attributes = result.getAttributes(  );
+                                LDAPUser user = createUser( searchPlan, attributes );
+
+                                if ( StringUtils.isNotEmpty( user.getName(  ) ) )
+                                {
+                                    mapLoadedUsers.put( user.getName(  ), user );
+                                }
+
+                                String strTimestamp = getAttributeValue( attributes,
+                                        searchPlan.getModifyTimestampAttribute(  ) );
+
+                                if ( StringUtils.isNotEmpty( strTimestamp ) &&
+                                        ( ( strHighWaterMark == null ) ||
+                                        ( strTimestamp.compareTo( strHighWaterMark ) > 0 ) ) )
+                                {
+                                    strHighWaterMark = strTimestamp;
+                                }
+                            }
+                        }
+
+                        pagedSearch.close(  );
+
+                        return strHighWaterMark;
+                    }
+                } );
+        }
+        finally
+        {
+            LdapBulkhead.restoreLane( previousLane );
+        }
+    }
+
+    /**
+     * Get the lookup plan built from the properties
+     * @return The lookup plan
+     */
+    public LdapLookupPlan getLookupPlan(  )
+    {
+        LdapLookupPlan plan = _lookupPlan;
+
+        if ( plan == null )
+        {
+            synchronized ( this )
+            {
+                plan = _lookupPlan;
+
+                if ( plan == null )
+                {
+                    plan = LdapLookupPlan.load(  );
+                    _lookupPlan = plan;
+                }
+            }
+        }
+
+        return plan;
+    }
+
+    /**
+     * Build the lookup plan again from the properties, once they were
+     * reloaded. Contexts pools are closed so that new contexts use the new
+     * connection parameters. If the attribute mapping or the user base
+     * changed, every user of this node, built with the previous mapping, is
+     * evicted : the caches, the replica, the stale users and the index.
+     * @return True if the attribute mapping or the user base changed
+     */
+    public synchronized boolean reloadLookupPlan(  )
+    {
+        LdapLookupPlan previousPlan = _lookupPlan;
+        LdapLookupPlan plan = LdapLookupPlan.load(  );
+        boolean bMappingChanged = ( previousPlan != null ) &&
+            ( previousPlan.getMappingHash(  ) != plan.getMappingHash(  ) );
+        _lookupPlan = plan;
+        _router = null;
+
+        if ( bMappingChanged )
+        {
+            evictAllUsers(  );
+        }
+        else
+        {
+            // The index may have other attributes or another capacity
+            _userIndex = null;
+            _staleUsers.clear(  );
+
+            if ( plan.isIndexEnabled(  ) && _replica.isLoaded(  ) )
+            {
+                getUserIndex(  ).rebuild( _replica.getUsers(  ).values(  ) );
+            }
+        }
+
+        LdapUtil.closeContextPools(  );
+
+        return bMappingChanged;
+    }
+
+    /**
+     * Remove a user from every store of this node : the caches, the replica,
+     * the stale users and the index of the known users, so that the next
+     * lookup of the user reads it from the LDAP
+     * @param strGuid The guid of the user
+     */
+    public void evictUser( String strGuid )
+    {
+        LDAPUserCacheService.getService(  ).removeUser( strGuid );
+        LDAPUserNotFoundCacheService.getService(  ).removeUserNotFound( strGuid );
+        _replica.removeUser( strGuid );
+        _staleUsers.removeUser( strGuid );
+        unindexUser( strGuid );
+    }
+
+    /**
+     * Remove every user from every store of this node. The replica and the
+     * index of the known users are loaded again by the next full
+     * synchronization of the replica.
+     */
+    public synchronized void evictAllUsers(  )
+    {
+        LDAPUserCacheService.getService(  ).resetCache(  );
+        LDAPUserNotFoundCacheService.getService(  ).resetCache(  );
+        _replica.clear(  );
+        _staleUsers.clear(  );
+        _userIndex = null;
+    }
+
+    /**
+     * Get the router of the operations between the LDAP servers
+     * @return The router
+     */
+    public LdapServerRouter getRouter(  )
+    {
+        LdapServerRouter router = _router;
+
+        if ( router == null )
+        {
+            LdapLookupPlan plan = getLookupPlan(  );
+
+            synchronized ( this )
+            {
+                router = _router;
+
+                if ( router == null )
+                {
+                    router = new LdapServerRouter( plan );
+                    _router = router;
+                }
+            }
+        }
+
+        return router;
+    }
+
+    /**
+     * Get the index of the known users by the start of their names and email
+     * @return The index
+     */
+    public LdapUserPrefixIndex getUserIndex(  )
+    {
+        LdapUserPrefixIndex index = _userIndex;
+
+        if ( index == null )
+        {
+            LdapLookupPlan plan = getLookupPlan(  );
+
+            synchronized ( this )
+            {
+                index = _userIndex;
+
+                if ( index == null )
+                {
+                    index = new LdapUserPrefixIndex( plan );
+                    _userIndex = index;
+                }
+            }
+        }
+
+        return index;
     }
 
     /**
-     * Get the initial context provider from the properties
-     * @return The initial context provider
+     * Find the known users having names or email starting with the words of
+     * a query, without searching the LDAP. Users known are the users of the
+     * replica and the users found by previous searches.
+     * @param strQuery The query, such as the start of a family name
+     * @param nMaxResults The maximum number of users
+     * @return The users, or an empty list if the index is disabled
      */
-    private String getInitialContextProvider(  )
+    public List<LDAPUser> findUsersByPrefix( String strQuery, int nMaxResults )
     {
-        return AppPropertiesService.getProperty( PROPERTY_INITIAL_CONTEXT_PROVIDER );
+        if ( !getLookupPlan(  ).isIndexEnabled(  ) )
+        {
+            return new ArrayList<LDAPUser>(  );
+        }
+
+        return getUserIndex(  ).findUsers( strQuery, nMaxResults );
     }
 
     /**
-     * Get the provider url from the properties
-     * @return The provider URL
+     * Add a user to the index of the known users, if enabled
+     * @param user The user
      */
-    private String getProviderUrl(  )
+    public void indexUser( LDAPUser user )
     {
-        return AppPropertiesService.getProperty( PROPERTY_PROVIDER_URL );
+        if ( getLookupPlan(  ).isIndexEnabled(  ) )
+        {
+            getUserIndex(  ).addUser( user );
+        }
     }
 
     /**
-     * Get the base user dn from the properties
-     * @return The DN search base
+     * Remove a user from the index of the known users, if enabled
+     * @param strId The guid of the user
      */
-    private String getUserDnSearchBase(  )
+    private void unindexUser( String strId )
     {
-        return AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_BASE );
+        if ( getLookupPlan(  ).isIndexEnabled(  ) )
+        {
+            getUserIndex(  ).removeUser( strId );
+        }
     }
 
     /**
-     * Get the filter for search by guid
-     * @return The guid search filter
+     * Search a chunk of guids with a single search
+     * @param plan The lookup plan
+     * @param listIds The guids of the chunk
+     * @param mapUsers The map to add found users to
+     * @throws NamingException If the search fails
      */
-    private String getUserDnSearchFilterByGUID(  )
+    private void searchUsersChunk( LdapLookupPlan plan, List<String> listIds, Map<String, LuteceUser> mapUsers )
+        throws NamingException
     {
-        return AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_FILTER_BY_GUID );
+        final LdapLookupPlan searchPlan = plan;
+        final Map<String, LuteceUser> mapFoundUsers = mapUsers;
+        final String strUserSearchFilter = plan.getGuidsFilter( listIds );
+
+        try
+        {
+            getRouter(  ).execute( new LdapOperation<Void>(  )
+                {
+                    @Override
+                    public Void execute( DirContext context ) throws NamingException
+                    {
+                        LdapMetrics metrics = LdapMetrics.getInstance(  );
+                        long lStart = metrics.startTimer(  );
+                        NamingEnumeration<SearchResult> userResults = LdapUtil.searchUsers( context,
+                                strUserSearchFilter, searchPlan.getUserSearchBase(  ), StringUtils.EMPTY,
+                                searchPlan.getBatchSearchControls(  ) );
+                        lStart = metrics.recordStage( LdapMetrics.Stage.SEARCH, lStart );
+
+                        try
+                        {
+                            while ( ( userResults != null ) && userResults.hasMore(  ) )
+                            {
+                                LuteceUser user = createUser( searchPlan, userResults.next(  ).getAttributes(  ) );
+                                mapFoundUsers.put( user.getName(  ), user );
+                                _staleUsers.putUser( user );
+                                indexUser( (LDAPUser) user );
+                            }
+                        }
+                        finally
+                        {
+                            closeResults( userResults );
+                            metrics.recordStage( LdapMetrics.Stage.ITERATION, lStart );
+                        }
+
+                        return null;
+                    }
+                } );
+        }
+        catch ( NamingException e )
+        {
+            if ( LdapUtil.isCommunicationError( e ) )
+            {
+                AppLogService.error( "Error while searching for " + listIds.size(  ) +
+                    " users in ldap with search filter : " + getDebugInfo( plan, strUserSearchFilter ) );
+            }
+
+            throw e;
+        }
+
+        for ( String strId : listIds )
+        {
+            if ( !mapUsers.containsKey( strId ) )
+            {
+                _staleUsers.removeUser( strId );
+                unindexUser( strId );
+            }
+        }
     }
 
     /**
-     * Get the user dn search scope
-     * @return The search scope
+     * Create a user from its guid, its email and the values of the mapped
+     * attributes
+     * @param strGuid The guid
+     * @param strEmail The email
+     * @param values The values of the mapped attributes, in the order of the
+     *            lookup plan. A null value is not set.
+     * @return The user
      */
-    private int getUserDnSearchScope(  )
+    public LDAPUser createUser( String strGuid, String strEmail, String[] values )
     {
-        String strSearchScope = AppPropertiesService.getProperty( PROPERTY_USER_SUBTREE );
+        LdapLookupPlan plan = getLookupPlan(  );
+        LDAPUser user = new LDAPUser( strGuid, SecurityService.getInstance(  ).getAuthenticationService(  ) );
+        user.setEmail( strEmail );
+        user.setUserInfo( plan.getEmailLuteceUserAttribute(  ), strEmail );
 
-        if ( Boolean.parseBoolean( strSearchScope ) )
+        for ( int i = 0; i < Math.min( values.length, plan.getMappedAttributeCount(  ) ); i++ )
         {
-            return SearchControls.SUBTREE_SCOPE;
+            if ( values[i] != null )
+            {
+                user.setUserInfo( plan.getLuteceUserAttribute( i ), values[i] );
+            }
         }
 
-        return SearchControls.ONELEVEL_SCOPE;
+        return user;
     }
 
     /**
-     * get the bind dn
-     * @return the user name to access the LDAP
+     * Create a user from the attributes of its LDAP entry
+     * @param plan The lookup plan
+     * @param attributes The attributes of the entry
+     * @return The user
+     * @throws NamingException If an attribute can not be read
      */
-    private String getBindDn(  )
+    LDAPUser createUser( LdapLookupPlan plan, Attributes attributes )
+        throws NamingException
     {
-        return AppPropertiesService.getProperty( PROPERTY_BIND_DN );
+        long lStart = LdapMetrics.getInstance(  ).startTimer(  );
+        String[] values = new String[plan.getMappedAttributeCount(  )];
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            Attribute attribute = attributes.get( plan.getLdapAttribute( i ) );
+
+            if ( attribute != null )
+            {
+                values[i] = attribute.get(  ).toString(  );
+            }
+        }
+
+        LDAPUser user = createUser( getAttributeValue( attributes, plan.getGuidAttribute(  ) ),
+                getAttributeValue( attributes, plan.getEmailAttribute(  ) ), values );
+
+        if ( plan.isGroupsEnabled(  ) )
+        {
+            user.setMemberOf( getAttributeValues( attributes, plan.getMemberOfAttribute(  ) ) );
+            LdapGroupService.getInstance(  ).assignGroups( user );
+        }
+
+        LdapMetrics.getInstance(  ).recordStage( LdapMetrics.Stage.MAPPING, lStart );
+
+        return user;
     }
 
     /**
-     * Get the bind password
-     * @return The password to access the LDAP
+     * Get the value of an attribute
+     * @param attributes The attributes of an entry
+     * @param strAttributeName The name of the attribute
+     * @return The value of the attribute, or an empty string if the entry has
+     *         no such attribute
+     * @throws NamingException If the attribute can not be read
      */
-    private String getBindPassword(  )
+    private String getAttributeValue( Attributes attributes, String strAttributeName )
+        throws NamingException
     {
-        return AppPropertiesService.getProperty( PROPERTY_BIND_PASSWORD );
+        Attribute attribute = ( strAttributeName == null ) ? null : attributes.get( strAttributeName );
+
+        return ( attribute == null ) ? StringUtils.EMPTY : attribute.get(  ).toString(  );
     }
 
     /**
-     * Get a map containing an association between MDAP attributes and lutece
-     * user attributes. Each attribute of the map should be queried to the LDAP.
-     * @return The map
+     * Get the values of a multi-valued attribute. Values are interned, since
+     * values such as the DN of groups are shared by many entries.
+     * @param attributes The attributes of an entry
+     * @param strAttributeName The name of the attribute
+     * @return The values, an empty list if the entry has no such attribute
+     * @throws NamingException If the attribute can not be read
      */
-    private synchronized Map<String, String> getMapLdapLuteceUser(  )
+    private List<String> getAttributeValues( Attributes attributes, String strAttributeName )
+        throws NamingException
     {
-        if ( _mapLdapLuteceUser == null )
+        Attribute attribute = ( strAttributeName == null ) ? null : attributes.get( strAttributeName );
+
+        if ( ( attribute == null ) || ( attribute.size(  ) == 0 ) )
         {
-            String strListAttributes = AppPropertiesService.getProperty( PROPERTY_DN_ATTRIBUTE_LIST );
+            return Collections.emptyList(  );
+        }
 
-            if ( StringUtils.isNotEmpty( strListAttributes ) )
+        List<String> listValues = new ArrayList<String>( attribute.size(  ) );
+        NamingEnumeration<?> values = attribute.getAll(  );
+
+        try
+        {
+            while ( values.hasMore(  ) )
             {
-                String[] strArrayListAttributes = strListAttributes.split( CONSTANT_COMMA );
-                _mapLdapLuteceUser = new HashMap<String, String>( strArrayListAttributes.length );
+                listValues.add( LdapStringInterner.getInstance(  ).intern( values.next(  ).toString(  ) ) );
+            }
+        }
+        finally
+        {
+            values.close(  );
+        }
+
+        return listValues;
+    }
+
+    /**
+     * Read the graph of the groups with a paged search of the groups
+     * @return The graph
+     * @throws NamingException If the search fails
+     */
+    public LdapGroupGraph searchGroupGraph(  ) throws NamingException
+    {
+        final LdapLookupPlan searchPlan = getLookupPlan(  );
+        final long lStart = System.currentTimeMillis(  );
 
-                for ( String strAttribute : strArrayListAttributes )
+        return getRouter(  ).execute( new LdapOperation<LdapGroupGraph>(  )
+            {
+                @Override
+                public LdapGroupGraph execute( DirContext context ) throws NamingException
                 {
-                    String strLdapAttribute = AppPropertiesService.getProperty( PROPERTY_DN_ATTRIBUTE_PREFIXE +
-                            strAttribute );
-                    String strLuteceUserAttribute = AppPropertiesService.getProperty( PROPERTY_LUTECE_USER_ATTRIBUTE_PROFIXE +
-                            strAttribute );
+                    Map<String, LdapGroupGraph.Group> mapGroups = new HashMap<String, LdapGroupGraph.Group>(  );
+                    LdapPagedSearch pagedSearch = new LdapPagedSearch( context, searchPlan.getGroupSearchBase(  ),
+                            searchPlan.getGroupSearchFilter(  ), searchPlan.getGroupSearchControls(  ),
+                            searchPlan.getReplicaPageSize(  ), null );
 
-                    if ( StringUtils.isNotEmpty( strLdapAttribute ) &&
-                            StringUtils.isNotEmpty( strLuteceUserAttribute ) )
+                    while ( pagedSearch.hasMorePages(  ) )
                     {
-                        _mapLdapLuteceUser.put( strLdapAttribute, strLuteceUserAttribute );
+                        for ( SearchResult result : pagedSearch.nextPage(  ) )
+                        {
+                            Attributes attributes = result.getAttributes(  );
+                            String strDn = result.getNameInNamespace(  );
+                            String strName = getAttributeValue( attributes, searchPlan.getGroupNameAttribute(  ) );
+                            List<String> listParentDns = getAttributeValues( attributes,
+                                    searchPlan.getMemberOfAttribute(  ) );
+                            String[] parentDns = listParentDns.toArray( new String[listParentDns.size(  )] );
+                            mapGroups.put( LdapGroupGraph.normalize( strDn ),
+                                new LdapGroupGraph.Group( StringUtils.isNotEmpty( strName ) ? strName
+                                                                                          : LdapGroupGraph.getFirstRdnValue( 
+                                        strDn ), parentDns ) );
+                        }
                     }
+
+                    pagedSearch.close(  );
+
+                    return new LdapGroupGraph( mapGroups, lStart );
                 }
+            } );
+    }
+
+    /**
+     * Close a search result
+     * @param results The search result to close, may be null
+     */
+    private void closeResults( NamingEnumeration<SearchResult> results )
+    {
+        if ( results != null )
+        {
+            try
+            {
+                results.close(  );
             }
-            else
+            catch ( NamingException naming )
             {
-                _mapLdapLuteceUser = new HashMap<String, String>(  );
+                AppLogService.error( naming.getMessage(  ), naming );
             }
         }
+    }
+
+    /**
+     * Return info for debugging
+     * @param plan The lookup plan
+     * @param strUserSearchFilter User search filter
+     * @return The debug info
+     */
+    private String getDebugInfo( LdapLookupPlan plan, String strUserSearchFilter )
+    {
+        StringBuffer sb = new StringBuffer(  );
+        sb.append( "userBase : " );
+        sb.append( plan.getUserSearchBase(  ) );
+        sb.append( "\nuserSearch : " );
+        sb.append( strUserSearchFilter );
 
-        return _mapLdapLuteceUser;
+        return sb.toString(  );
     }
 }
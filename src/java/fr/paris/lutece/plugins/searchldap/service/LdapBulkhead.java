@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+
+/**
+ * Limiter of the concurrent LDAP operations, with a lane for the lookups of
+ * the pages and a lane for the background work such as the warm-up, the
+ * synchronization of the replica or the export. Each lane has its own
+ * permits, so that background work can not take the contexts needed by the
+ * pages. Interactive operations may also take a free permit of the background
+ * lane, wait a short time for a permit and are rejected afterwards, so that a
+ * saturated directory is answered from the caches instead of piling up
+ * threads. Background operations are also limited to a rate.
+ * <br>
+ * The lane is the one of the current thread, interactive unless the thread
+ * entered the background lane with {@link #enterLane(Lane)}.
+ * <br>
+ * The bulkhead is built from the properties when the plugin starts, by
+ * {@link #init()}.
+ */
+public final class LdapBulkhead
+{
+    /**
+     * Lane of an LDAP operation
+     */
+    public enum Lane
+    {
+        /** Lookups of the pages */
+        INTERACTIVE,
+        /** Background work */
+        BACKGROUND;
+    }
+
+    private static final String PROPERTY_ENABLED = "searchldap.bulkhead.enabled";
+    private static final String PROPERTY_INTERACTIVE_MAX_CONCURRENT = "searchldap.bulkhead.interactive.maxConcurrent";
+    private static final String PROPERTY_INTERACTIVE_MAX_WAIT = "searchldap.bulkhead.interactive.maxWait";
+    private static final String PROPERTY_BACKGROUND_MAX_CONCURRENT = "searchldap.bulkhead.background.maxConcurrent";
+    private static final String PROPERTY_BACKGROUND_MAX_WAIT = "searchldap.bulkhead.background.maxWait";
+    private static final String PROPERTY_BACKGROUND_RATE = "searchldap.bulkhead.background.rate";
+    private static final int DEFAULT_INTERACTIVE_MAX_CONCURRENT = 8;
+    private static final int DEFAULT_INTERACTIVE_MAX_WAIT = 500;
+    private static final int DEFAULT_BACKGROUND_MAX_CONCURRENT = 2;
+    private static final int DEFAULT_BACKGROUND_MAX_WAIT = 60000;
+    private static final int DEFAULT_BACKGROUND_RATE = 50;
+    private static final ThreadLocal<Lane> _currentLane = new ThreadLocal<Lane>(  );
+    private static volatile LdapBulkhead _singleton;
+    private final boolean _bEnabled;
+    private final LaneLimiter _interactive;
+    private final LaneLimiter _background;
+    private final LdapRateLimiter _backgroundRateLimiter;
+
+    /**
+     * Creates the bulkhead from the properties
+     */
+    private LdapBulkhead(  )
+    {
+        _bEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false );
+        _interactive = new LaneLimiter( AppPropertiesService.getPropertyInt( PROPERTY_INTERACTIVE_MAX_CONCURRENT,
+                    DEFAULT_INTERACTIVE_MAX_CONCURRENT ),
+                AppPropertiesService.getPropertyInt( PROPERTY_INTERACTIVE_MAX_WAIT, DEFAULT_INTERACTIVE_MAX_WAIT ),
+                LdapMetrics.Counter.INTERACTIVE_REJECTED );
+        _background = new LaneLimiter( AppPropertiesService.getPropertyInt( PROPERTY_BACKGROUND_MAX_CONCURRENT,
+                    DEFAULT_BACKGROUND_MAX_CONCURRENT ),
+                AppPropertiesService.getPropertyInt( PROPERTY_BACKGROUND_MAX_WAIT, DEFAULT_BACKGROUND_MAX_WAIT ),
+                LdapMetrics.Counter.BACKGROUND_REJECTED );
+
+        int nRate = AppPropertiesService.getPropertyInt( PROPERTY_BACKGROUND_RATE, DEFAULT_BACKGROUND_RATE );
+        _backgroundRateLimiter = ( nRate > 0 ) ? new LdapRateLimiter( nRate ) : null;
+    }
+
+    /**
+     * Build the bulkhead from the properties, replacing the current one. The
+     * operations holding a permit of the previous bulkhead give it back to the
+     * previous bulkhead.
+     */
+    public static synchronized void init(  )
+    {
+        _singleton = new LdapBulkhead(  );
+    }
+
+    /**
+     * Get the bulkhead of the LDAP operations. It is built from the
+     * properties if the plugin did not build it yet.
+     * @return The bulkhead
+     */
+    public static LdapBulkhead getInstance(  )
+    {
+        LdapBulkhead bulkhead = _singleton;
+
+        return ( bulkhead != null ) ? bulkhead : createInstance(  );
+    }
+
+    /**
+     * Build the bulkhead unless it was built by another thread
+     * @return The bulkhead
+     */
+    private static synchronized LdapBulkhead createInstance(  )
+    {
+        if ( _singleton == null )
+        {
+            _singleton = new LdapBulkhead(  );
+        }
+
+        return _singleton;
+    }
+
+    /**
+     * Get the lane of the current thread
+     * @return The lane
+     */
+    public static Lane getCurrentLane(  )
+    {
+        Lane lane = _currentLane.get(  );
+
+        return ( lane != null ) ? lane : Lane.INTERACTIVE;
+    }
+
+    /**
+     * Set the lane of the current thread. The previous lane must be restored
+     * in a finally block, since the threads of the server are reused.
+     * @param lane The lane
+     * @return The previous lane, to give to {@link #restoreLane(Lane)}
+     */
+    public static Lane enterLane( Lane lane )
+    {
+        Lane previousLane = _currentLane.get(  );
+        _currentLane.set( lane );
+
+        return previousLane;
+    }
+
+    /**
+     * Restore the lane of the current thread
+     * @param previousLane The lane returned by {@link #enterLane(Lane)}
+     */
+    public static void restoreLane( Lane previousLane )
+    {
+        if ( previousLane == null )
+        {
+            _currentLane.remove(  );
+        }
+        else
+        {
+            _currentLane.set( previousLane );
+        }
+    }
+
+    /**
+     * Acquire a permit in the lane of the current thread
+     * @param lDeadline The time in milliseconds after which the operation is
+     *            given up, or {@link LdapServerRouter#NO_DEADLINE}. The wait
+     *            is also bounded by the maximum wait of the lane.
+     * @return The permit, which must be released once the operation is over
+     * @throws NamingException A {@link ServiceUnavailableException} if no
+     *             permit could be acquired in time, or an
+     *             {@link InterruptedNamingException} if the thread is
+     *             interrupted while waiting
+     */
+    public Permit acquire( long lDeadline ) throws NamingException
+    {
+        if ( !_bEnabled )
+        {
+            return new Permit( null, null );
+        }
+
+        Lane lane = getCurrentLane(  );
+        LaneLimiter limiter = getLimiter( lane );
+        long lMaxWait = limiter._lMaxWait;
+
+        if ( lDeadline != LdapServerRouter.NO_DEADLINE )
+        {
+            lMaxWait = Math.max( 0L, Math.min( lMaxWait, lDeadline - System.currentTimeMillis(  ) ) );
+        }
+
+        Permit permit = acquire( lane, limiter, lMaxWait );
+
+        if ( permit == null )
+        {
+            throw reject( lane, limiter );
+        }
+
+        return permit;
+    }
+
+    /**
+     * Acquire a permit in the lane of the current thread only if one is free
+     * right away, for optional operations such as the hedges. No rejection is
+     * counted when no permit is free.
+     * @return The permit, which must be released once the operation is over,
+     *         or null if no permit is free
+     * @throws InterruptedNamingException If the thread is interrupted
+     */
+    public Permit tryAcquire(  ) throws InterruptedNamingException
+    {
+        if ( !_bEnabled )
+        {
+            return new Permit( null, null );
+        }
+
+        Lane lane = getCurrentLane(  );
+
+        return acquire( lane, getLimiter( lane ), 0L );
+    }
+
+    /**
+     * Wait for a slot of the background rate before each further request of
+     * an operation that already holds a permit, such as the pages of a paged
+     * search after the first one, so that long operations are limited to the
+     * rate as a whole. Nothing is done outside the background lane.
+     * @throws NamingException A {@link ServiceUnavailableException} if no
+     *             slot is free within the maximum wait of the background
+     *             lane, or an {@link InterruptedNamingException} if the thread
+     *             is interrupted while waiting
+     */
+    public void throttle(  ) throws NamingException
+    {
+        if ( !_bEnabled || ( _backgroundRateLimiter == null ) || ( getCurrentLane(  ) != Lane.BACKGROUND ) )
+        {
+            return;
+        }
+
+        long lWait;
+
+        try
+        {
+            lWait = _backgroundRateLimiter.acquire( _background._lMaxWait );
+        }
+        catch ( InterruptedException e )
+        {
+            throw interrupted( e );
+        }
+
+        if ( lWait < 0 )
+        {
+            throw reject( Lane.BACKGROUND, _background );
+        }
+
+        if ( lWait > 0 )
+        {
+            LdapMetrics.getInstance(  ).increment( LdapMetrics.Counter.BACKGROUND_THROTTLED );
+        }
+    }
+
+    /**
+     * Acquire a permit in a lane
+     * @param lane The lane
+     * @param limiter The limiter of the lane
+     * @param lMaxWait The maximum wait in milliseconds
+     * @return The permit, or null if no permit could be acquired in time
+     * @throws InterruptedNamingException If the thread is interrupted while
+     *             waiting
+     */
+    private Permit acquire( Lane lane, LaneLimiter limiter, long lMaxWait )
+        throws InterruptedNamingException
+    {
+        long lRemainingWait = lMaxWait;
+
+        try
+        {
+            if ( ( lane == Lane.BACKGROUND ) && ( _backgroundRateLimiter != null ) )
+            {
+                long lWait = _backgroundRateLimiter.acquire( lRemainingWait );
+
+                if ( lWait < 0 )
+                {
+                    return null;
+                }
+
+                if ( lWait > 0 )
+                {
+                    LdapMetrics.getInstance(  ).increment( LdapMetrics.Counter.BACKGROUND_THROTTLED );
+                    lRemainingWait = Math.max( 0L, lRemainingWait - lWait );
+                }
+            }
+
+            Semaphore semaphore = null;
+
+            if ( limiter._semaphore.tryAcquire(  ) )
+            {
+                semaphore = limiter._semaphore;
+            }
+            else if ( ( lane == Lane.INTERACTIVE ) && _background._semaphore.tryAcquire(  ) )
+            {
+                // Interactive operations have priority on the idle background permits
+                semaphore = _background._semaphore;
+            }
+            else
+            {
+                limiter._nWaiting.incrementAndGet(  );
+
+                try
+                {
+                    if ( limiter._semaphore.tryAcquire( lRemainingWait, TimeUnit.MILLISECONDS ) )
+                    {
+                        semaphore = limiter._semaphore;
+                    }
+                }
+                finally
+                {
+                    limiter._nWaiting.decrementAndGet(  );
+                }
+            }
+
+            if ( semaphore == null )
+            {
+                return null;
+            }
+
+            limiter._nActive.incrementAndGet(  );
+
+            return new Permit( limiter, semaphore );
+        }
+        catch ( InterruptedException e )
+        {
+            throw interrupted( e );
+        }
+    }
+
+    /**
+     * Restore the interrupt status of the current thread interrupted while
+     * waiting
+     * @param e The interruption
+     * @return The error to throw
+     */
+    private static InterruptedNamingException interrupted( InterruptedException e )
+    {
+        Thread.currentThread(  ).interrupt(  );
+
+        InterruptedNamingException ex = new InterruptedNamingException( "Interrupted while waiting for an LDAP permit" );
+        ex.setRootCause( e );
+
+        return ex;
+    }
+
+    /**
+     * Get the number of operations in progress in a lane
+     * @param lane The lane
+     * @return The number of operations
+     */
+    public int getActiveCount( Lane lane )
+    {
+        return getLimiter( lane )._nActive.get(  );
+    }
+
+    /**
+     * Get the number of operations waiting for a permit in a lane
+     * @param lane The lane
+     * @return The number of operations
+     */
+    public int getWaitingCount( Lane lane )
+    {
+        return getLimiter( lane )._nWaiting.get(  );
+    }
+
+    /**
+     * Get the limiter of a lane
+     * @param lane The lane
+     * @return The limiter
+     */
+    private LaneLimiter getLimiter( Lane lane )
+    {
+        return ( lane == Lane.INTERACTIVE ) ? _interactive : _background;
+    }
+
+    /**
+     * Count the rejection of an operation
+     * @param lane The lane of the operation
+     * @param limiter The limiter of the lane
+     * @return The error to throw
+     */
+    private static ServiceUnavailableException reject( Lane lane, LaneLimiter limiter )
+    {
+        LdapMetrics.getInstance(  ).increment( limiter._rejectedCounter );
+
+        return new ServiceUnavailableException( "No LDAP permit available in the " + lane.name(  ) +
+            " lane within " + limiter._lMaxWait + " ms" );
+    }
+
+    /**
+     * Permits and gauges of a lane
+     */
+    private static final class LaneLimiter
+    {
+        private final Semaphore _semaphore;
+        private final long _lMaxWait;
+        private final LdapMetrics.Counter _rejectedCounter;
+        private final AtomicInteger _nActive = new AtomicInteger(  );
+        private final AtomicInteger _nWaiting = new AtomicInteger(  );
+
+        /**
+         * Creates the limiter of a lane
+         * @param nMaxConcurrent The number of permits
+         * @param lMaxWait The maximum wait for a permit in milliseconds
+         * @param rejectedCounter The counter of the rejected operations
+         */
+        private LaneLimiter( int nMaxConcurrent, long lMaxWait, LdapMetrics.Counter rejectedCounter )
+        {
+            _semaphore = new Semaphore( Math.max( 1, nMaxConcurrent ), true );
+            _lMaxWait = Math.max( 0L, lMaxWait );
+            _rejectedCounter = rejectedCounter;
+        }
+    }
+
+    /**
+     * Permit of an LDAP operation. Releasing it more than once has no effect.
+     */
+    public static final class Permit
+    {
+        private final LaneLimiter _limiter;
+        private final Semaphore _semaphore;
+        private final AtomicInteger _nReleased = new AtomicInteger(  );
+
+        /**
+         * Creates a permit
+         * @param limiter The limiter of the lane of the operation, or null if
+         *            the bulkhead is disabled
+         * @param semaphore The semaphore the permit was taken from
+         */
+        private Permit( LaneLimiter limiter, Semaphore semaphore )
+        {
+            _limiter = limiter;
+            _semaphore = semaphore;
+        }
+
+        /**
+         * Release the permit
+         */
+        public void release(  )
+        {
+            if ( ( _limiter == null ) || ( _nReleased.getAndIncrement(  ) > 0 ) )
+            {
+                return;
+            }
+
+            _limiter._nActive.decrementAndGet(  );
+            _semaphore.release(  );
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import java.util.List;
+
+
+/**
+ * Coherence of the caches of the users between the nodes of a cluster. The
+ * shared cache tier and the invalidation bus are the first beans of the
+ * Spring context implementing {@link ILdapUserCacheTier} and
+ * {@link ILdapInvalidationBus}. Without a shared tier, the nodes only share
+ * invalidations. Without a bus, invalidations are delivered to this node
+ * only.<br>
+ * Errors of the shared tier are logged and handled as misses, so that a
+ * failure of the shared store falls back to the LDAP.
+ */
+public final class LdapCacheCoherenceService implements ILdapInvalidationListener
+{
+    private static final LdapCacheCoherenceService _singleton = new LdapCacheCoherenceService(  );
+    private volatile boolean _bInitialized;
+    private ILdapUserCacheTier _userCacheTier;
+    private ILdapInvalidationBus _invalidationBus;
+    private volatile LdapBrowser _ldapBrowser;
+
+    /**
+     * Private constructor
+     */
+    private LdapCacheCoherenceService(  )
+    {
+    }
+
+    /**
+     * Get the instance of the service
+     * @return The instance of the service
+     */
+    public static LdapCacheCoherenceService getInstance(  )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Look up the shared tier and the bus in the Spring context and listen to
+     * the invalidations. Called at plugin initialization, and at the first use
+     * of the service otherwise.
+     */
+    public void init(  )
+    {
+        if ( !_bInitialized )
+        {
+            initialize(  );
+        }
+    }
+
+    /**
+     * Get the shared cache tier
+     * @return The shared cache tier, or null if no tier is configured
+     */
+    public ILdapUserCacheTier getUserCacheTier(  )
+    {
+        init(  );
+
+        return _userCacheTier;
+    }
+
+    /**
+     * Get the invalidation bus
+     * @return The invalidation bus
+     */
+    public ILdapInvalidationBus getInvalidationBus(  )
+    {
+        init(  );
+
+        return _invalidationBus;
+    }
+
+    /**
+     * Get a user from the shared tier
+     * @param strGuid The guid of the user
+     * @return The user, or null if the user is not in the shared tier
+     */
+    public LDAPUser getSharedUser( String strGuid )
+    {
+        ILdapUserCacheTier tier = getUserCacheTier(  );
+
+        if ( tier == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            LDAPUser user = tier.getUser( strGuid );
+            LdapMetrics.getInstance(  ).increment( ( user != null ) ? LdapMetrics.Counter.SHARED_CACHE_HIT
+                                                                     : LdapMetrics.Counter.SHARED_CACHE_MISS );
+
+            return user;
+        }
+        catch ( RuntimeException e )
+        {
+            AppLogService.error( "Error while reading ldap user '" + strGuid + "' from the shared cache", e );
+
+            return null;
+        }
+    }
+
+    /**
+     * Check if a guid is known as not found by the shared tier
+     * @param strGuid The guid
+     * @return True if the shared tier holds the guid as not found
+     */
+    public boolean isSharedUserNotFound( String strGuid )
+    {
+        ILdapUserCacheTier tier = getUserCacheTier(  );
+
+        if ( tier == null )
+        {
+            return false;
+        }
+
+        try
+        {
+            return tier.isUserNotFound( strGuid );
+        }
+        catch ( RuntimeException e )
+        {
+            AppLogService.error( "Error while reading ldap user '" + strGuid + "' from the shared cache", e );
+
+            return false;
+        }
+    }
+
+    /**
+     * Store a user found in the LDAP in the shared tier
+     * @param user The user
+     */
+    public void putSharedUser( LDAPUser user )
+    {
+        ILdapUserCacheTier tier = getUserCacheTier(  );
+
+        if ( tier != null )
+        {
+            try
+            {
+                tier.putUser( user );
+            }
+            catch ( RuntimeException e )
+            {
+                AppLogService.error( "Error while writing ldap user '" + user.getName(  ) + "' to the shared cache", e );
+            }
+        }
+    }
+
+    /**
+     * Store a guid not found in the LDAP in the shared tier
+     * @param strGuid The guid
+     */
+    public void putSharedUserNotFound( String strGuid )
+    {
+        ILdapUserCacheTier tier = getUserCacheTier(  );
+
+        if ( tier != null )
+        {
+            try
+            {
+                tier.putUserNotFound( strGuid );
+            }
+            catch ( RuntimeException e )
+            {
+                AppLogService.error( "Error while writing ldap user '" + strGuid + "' to the shared cache", e );
+            }
+        }
+    }
+
+    /**
+     * Evict a user created or changed from the caches of every node
+     * @param strGuid The guid of the user
+     */
+    public void invalidateUser( String strGuid )
+    {
+        evictUser( strGuid );
+
+        ILdapUserCacheTier tier = getUserCacheTier(  );
+
+        try
+        {
+            if ( tier != null )
+            {
+                tier.removeUser( strGuid );
+            }
+
+            getInvalidationBus(  ).publishUserInvalidated( strGuid );
+        }
+        catch ( RuntimeException e )
+        {
+            AppLogService.error( "Error while publishing the invalidation of ldap user '" + strGuid + "'", e );
+        }
+    }
+
+    /**
+     * Evict every user from the caches of every node
+     */
+    public void invalidateAllUsers(  )
+    {
+        evictAllUsers(  );
+
+        ILdapUserCacheTier tier = getUserCacheTier(  );
+
+        try
+        {
+            if ( tier != null )
+            {
+                tier.removeAllUsers(  );
+            }
+
+            getInvalidationBus(  ).publishAllUsersInvalidated(  );
+        }
+        catch ( RuntimeException e )
+        {
+            AppLogService.error( "Error while publishing the invalidation of every ldap user", e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void userInvalidated( String strGuid )
+    {
+        LdapMetrics.getInstance(  ).increment( LdapMetrics.Counter.INVALIDATION_RECEIVED );
+        evictUser( strGuid );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void allUsersInvalidated(  )
+    {
+        LdapMetrics.getInstance(  ).increment( LdapMetrics.Counter.INVALIDATION_RECEIVED );
+        evictAllUsers(  );
+    }
+
+    /**
+     * Look up the shared tier and the bus
+     */
+    private synchronized void initialize(  )
+    {
+        if ( _bInitialized )
+        {
+            return;
+        }
+
+        List<ILdapUserCacheTier> listTiers = SpringContextService.getBeansOfType( ILdapUserCacheTier.class );
+        List<ILdapInvalidationBus> listBuses = SpringContextService.getBeansOfType( ILdapInvalidationBus.class );
+        initialize( ( ( listTiers == null ) || listTiers.isEmpty(  ) ) ? null : listTiers.get( 0 ),
+            ( ( listBuses == null ) || listBuses.isEmpty(  ) ) ? null : listBuses.get( 0 ) );
+    }
+
+    /**
+     * Set the shared tier and the bus, instead of the beans of the Spring
+     * context
+     * @param userCacheTier The shared tier, or null
+     * @param invalidationBus The bus, or null to deliver the invalidations
+     *            to this node only
+     */
+    synchronized void initialize( ILdapUserCacheTier userCacheTier, ILdapInvalidationBus invalidationBus )
+    {
+        if ( _bInitialized )
+        {
+            return;
+        }
+
+        _userCacheTier = userCacheTier;
+        _invalidationBus = ( invalidationBus == null ) ? new LoopbackLdapInvalidationBus(  ) : invalidationBus;
+        _invalidationBus.addListener( this );
+        _bInitialized = true;
+    }
+
+    /**
+     * Set the LDAP browser, instead of the bean of the Spring context
+     * @param ldapBrowser The LDAP browser
+     */
+    void setLDAPBrowser( LdapBrowser ldapBrowser )
+    {
+        _ldapBrowser = ldapBrowser;
+    }
+
+    /**
+     * Get the LDAP browser
+     * @return The LDAP browser
+     */
+    private LdapBrowser getLDAPBrowser(  )
+    {
+        if ( _ldapBrowser == null )
+        {
+            _ldapBrowser = SpringContextService.getBean( LdapBrowser.BEAN_NAME );
+        }
+
+        return _ldapBrowser;
+    }
+
+    /**
+     * Remove a user from the stores of this node
+     * @param strGuid The guid of the user
+     */
+    private void evictUser( String strGuid )
+    {
+        getLDAPBrowser(  ).evictUser( strGuid );
+    }
+
+    /**
+     * Remove every user from the stores of this node
+     */
+    private void evictAllUsers(  )
+    {
+        getLDAPBrowser(  ).evictAllUsers(  );
+    }
+}
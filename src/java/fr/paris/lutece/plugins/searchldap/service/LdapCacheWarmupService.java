@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+import fr.paris.lutece.portal.service.security.LuteceUser;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+
+
+/**
+ * Warm-up of the user cache and of the not found cache. The users listed in
+ * a file, and the users loaded from the snapshot, are searched in the LDAP
+ * before the first lookups arrive.<br>
+ * Guids are searched by batches of the size of the batch lookups. At most
+ * <code>searchldap.warmup.concurrency</code> batches are searched at the same
+ * time, so that a large warm-up does not flood the directory.
+ */
+public final class LdapCacheWarmupService
+{
+    private static final String PROPERTY_ENABLED = "searchldap.warmup.enabled";
+    private static final String PROPERTY_FILE = "searchldap.warmup.file";
+    private static final String PROPERTY_CONCURRENCY = "searchldap.warmup.concurrency";
+    private static final String PROPERTY_STARTUP_TIMEOUT = "searchldap.warmup.startupTimeout";
+    private static final String PROPERTY_STORE_USERS_NOT_FOUND_IN_CACHE = "searchldap.cache.storeUsersNotFoundInCache";
+    private static final String DEFAULT_FILE = "/WEB-INF/plugins/searchldap/searchldap_warmup.txt";
+    private static final int DEFAULT_CONCURRENCY = 2;
+    private static final int DEFAULT_STARTUP_TIMEOUT = 60;
+    private static final String COMMENT_PREFIX = "#";
+    private static final Charset CHARSET = Charset.forName( "UTF-8" );
+    private static final LdapCacheWarmupService _singleton = new LdapCacheWarmupService(  );
+
+    /**
+     * Private constructor
+     */
+    private LdapCacheWarmupService(  )
+    {
+    }
+
+    /**
+     * Get the instance of the service
+     * @return The instance of the service
+     */
+    public static LdapCacheWarmupService getInstance(  )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Check if the warm-up is enabled
+     * @return True if the warm-up is enabled
+     */
+    public boolean isEnabled(  )
+    {
+        return AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false );
+    }
+
+    /**
+     * Get the maximum time the plugin initialization waits for the warm-up
+     * @return The timeout in seconds
+     */
+    public int getStartupTimeout(  )
+    {
+        return Math.max( 0, AppPropertiesService.getPropertyInt( PROPERTY_STARTUP_TIMEOUT, DEFAULT_STARTUP_TIMEOUT ) );
+    }
+
+    /**
+     * Read the guids of the warm-up file. The file holds one guid per line.
+     * Empty lines and lines starting with # are ignored, as well as guids that
+     * do not match the guid pattern.
+     * @return The guids, without duplicates. The list is empty if the file does
+     *         not exist.
+     */
+    public List<String> getConfiguredGuids(  )
+    {
+        String strFile = AppPropertiesService.getProperty( PROPERTY_FILE, DEFAULT_FILE );
+        List<String> listGuids = new ArrayList<String>(  );
+
+        if ( ( strFile == null ) || strFile.trim(  ).isEmpty(  ) )
+        {
+            return listGuids;
+        }
+
+        File file = new File( AppPathService.getAbsolutePathFromRelativePath( strFile.trim(  ) ) );
+
+        if ( !file.isFile(  ) )
+        {
+            return listGuids;
+        }
+
+        LdapLookupPlan plan = getLDAPBrowser(  ).getLookupPlan(  );
+        Collection<String> collectionGuids = new LinkedHashSet<String>(  );
+
+        try
+        {
+            for ( String strLine : Files.readAllLines( file.toPath(  ), CHARSET ) )
+            {
+                String strGuid = strLine.trim(  );
+
+                if ( !strGuid.isEmpty(  ) && !strGuid.startsWith( COMMENT_PREFIX ) && plan.isValidGuid( strGuid ) )
+                {
+                    collectionGuids.add( strGuid );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Unable to read the ldap warm-up file " + file.getPath(  ) + " : " + e.getMessage(  ) );
+        }
+
+        listGuids.addAll( collectionGuids );
+
+        return listGuids;
+    }
+
+    /**
+     * Search the users in the LDAP and store the result in the caches. The
+     * calling thread searches batches too, and stops taking new batches once
+     * the timeout is elapsed : the remaining batches are then searched in the
+     * background.
+     * @param collectionGuids The guids of the users
+     * @param lTimeout The maximum time to wait, in milliseconds. 0 to wait for
+     *            every batch.
+     * @return The number of users found in the LDAP before the method returned
+     */
+    public int warmUp( Collection<String> collectionGuids, long lTimeout )
+    {
+        WarmUp warmUp = new WarmUp( collectionGuids );
+
+        if ( warmUp.getBatchCount(  ) == 0 )
+        {
+            return 0;
+        }
+
+        long lDeadline = ( lTimeout > 0 ) ? ( System.currentTimeMillis(  ) + lTimeout ) : 0L;
+        int nWorkers = warmUp.start( warmUp.getWorkerCount(  ) - 1 );
+        warmUp.work( lDeadline );
+
+        if ( ( nWorkers == 0 ) && warmUp.hasPendingBatches(  ) )
+        {
+            warmUp.start( 1 );
+        }
+
+        try
+        {
+            if ( lDeadline == 0L )
+            {
+                warmUp.await(  );
+            }
+            else if ( !warmUp.await( Math.max( 0L, lDeadline - System.currentTimeMillis(  ) ) ) )
+            {
+                AppLogService.info( "Ldap warm-up : timeout elapsed, the remaining users are searched in the background" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+        }
+
+        return warmUp.getFoundCount(  );
+    }
+
+    /**
+     * Search the users in the LDAP in the background and store the result in
+     * the caches
+     * @param collectionGuids The guids of the users
+     */
+    public void warmUpInBackground( Collection<String> collectionGuids )
+    {
+        WarmUp warmUp = new WarmUp( collectionGuids );
+
+        if ( warmUp.getBatchCount(  ) > 0 )
+        {
+            warmUp.start( warmUp.getWorkerCount(  ) );
+        }
+    }
+
+    /**
+     * Get the LDAP browser
+     * @return The LDAP browser
+     */
+    private static LdapBrowser getLDAPBrowser(  )
+    {
+        return SpringContextService.getBean( LdapBrowser.BEAN_NAME );
+    }
+
+    /**
+     * A warm-up in progress. Its batches are taken from a queue by a bounded
+     * number of workers.
+     */
+    private static final class WarmUp
+    {
+        private final LdapBrowser _ldapBrowser = getLDAPBrowser(  );
+        private final Queue<List<String>> _queueBatches = new ConcurrentLinkedQueue<List<String>>(  );
+        private final boolean _bStoreUsersNotFound = Boolean.parseBoolean( AppPropertiesService.getProperty(
+                    PROPERTY_STORE_USERS_NOT_FOUND_IN_CACHE ) );
+        private final AtomicInteger _nFound = new AtomicInteger(  );
+        private final AtomicInteger _nNotFound = new AtomicInteger(  );
+        private final AtomicInteger _nFailed = new AtomicInteger(  );
+        private final long _lStart = System.currentTimeMillis(  );
+        private final int _nBatchCount;
+        private final CountDownLatch _latch;
+
+        /**
+         * Split the guids into batches
+         * @param collectionGuids The guids of the users
+         */
+        WarmUp( Collection<String> collectionGuids )
+        {
+            List<String> listGuids = new ArrayList<String>( new LinkedHashSet<String>( collectionGuids ) );
+            int nBatchSize = _ldapBrowser.getLookupPlan(  ).getBatchChunkSize(  );
+
+            for ( int nIndex = 0; nIndex < listGuids.size(  ); nIndex += nBatchSize )
+            {
+                _queueBatches.add( listGuids.subList( nIndex, Math.min( nIndex + nBatchSize, listGuids.size(  ) ) ) );
+            }
+
+            _nBatchCount = _queueBatches.size(  );
+            _latch = new CountDownLatch( _nBatchCount );
+        }
+
+        /**
+         * Get the number of batches
+         * @return The number of batches
+         */
+        int getBatchCount(  )
+        {
+            return _nBatchCount;
+        }
+
+        /**
+         * Get the number of workers, bounded by the configured concurrency
+         * @return The number of workers
+         */
+        int getWorkerCount(  )
+        {
+            return Math.min( _nBatchCount,
+                Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_CONCURRENCY, DEFAULT_CONCURRENCY ) ) );
+        }
+
+        /**
+         * Get the number of users found so far
+         * @return The number of users found
+         */
+        int getFoundCount(  )
+        {
+            return _nFound.get(  );
+        }
+
+        /**
+         * Check if some batches have not been taken by a worker
+         * @return True if batches are waiting
+         */
+        boolean hasPendingBatches(  )
+        {
+            return !_queueBatches.isEmpty(  );
+        }
+
+        /**
+         * Start workers on the executor of the plugin
+         * @param nWorkers The number of workers
+         * @return The number of workers started
+         */
+        int start( int nWorkers )
+        {
+            for ( int i = 0; i < nWorkers; i++ )
+            {
+                try
+                {
+                    LdapTaskExecutor.getInstance(  ).getExecutor(  ).execute( new Runnable(  )
+                        {
+                            @Override
+                            public void run(  )
+                            {
+                                work( 0L );
+                            }
+                        } );
+                }
+                catch ( RejectedExecutionException e )
+                {
+                    AppLogService.error( "Ldap warm-up : unable to start a worker : " + e.getMessage(  ) );
+
+                    return i;
+                }
+            }
+
+            return nWorkers;
+        }
+
+        /**
+         * Search batches until the queue is empty or the deadline is reached
+         * @param lDeadline The time after which no batch is taken, 0 for no
+         *            deadline
+         */
+        void work( long lDeadline )
+        {
+            LdapBulkhead.Lane previousLane = LdapBulkhead.enterLane( LdapBulkhead.Lane.BACKGROUND );
+
+            try
+            {
+                workInLane( lDeadline );
+            }
+            finally
+            {
+                LdapBulkhead.restoreLane( previousLane );
+            }
+        }
+
+        /**
+         * Search batches in the background lane of the bulkhead
+         * @param lDeadline The time after which no batch is taken, 0 for no
+         *            deadline
+         */
+        private void workInLane( long lDeadline )
+        {
+            List<String> listBatch;
+
+            while ( ( ( lDeadline == 0L ) || ( System.currentTimeMillis(  ) < lDeadline ) ) &&
+                    ( ( listBatch = _queueBatches.poll(  ) ) != null ) )
+            {
+                try
+                {
+                    searchBatch( listBatch );
+                }
+                finally
+                {
+                    _latch.countDown(  );
+
+                    if ( _latch.getCount(  ) == 0 )
+                    {
+                        AppLogService.info( "Ldap warm-up : " + _nFound.get(  ) + " users found, " + _nNotFound.get(  ) +
+                            " not found, " + _nFailed.get(  ) + " not searched because of errors, in " +
+                            ( System.currentTimeMillis(  ) - _lStart ) + " ms" );
+                    }
+                }
+            }
+        }
+
+        /**
+         * Wait for every batch
+         * @throws InterruptedException If the thread is interrupted
+         */
+        void await(  ) throws InterruptedException
+        {
+            _latch.await(  );
+        }
+
+        /**
+         * Wait for every batch
+         * @param lTimeout The maximum time to wait in milliseconds
+         * @return True if every batch was searched
+         * @throws InterruptedException If the thread is interrupted
+         */
+        boolean await( long lTimeout ) throws InterruptedException
+        {
+            return _latch.await( lTimeout, TimeUnit.MILLISECONDS );
+        }
+
+        /**
+         * Search a batch and store the result in the caches. The caches are
+         * left unchanged if the search fails.
+         * @param listGuids The guids of the batch
+         */
+        private void searchBatch( List<String> listGuids )
+        {
+            Map<String, LuteceUser> mapUsers = new HashMap<String, LuteceUser>(  );
+
+            try
+            {
+                _ldapBrowser.findUsersPublicData( listGuids, mapUsers );
+            }
+            catch ( NamingException e )
+            {
+                LdapUtil.logError( "Ldap warm-up : error while searching for users in ldap", e );
+                _nFailed.addAndGet( listGuids.size(  ) );
+
+                return;
+            }
+            catch ( RuntimeException e )
+            {
+                AppLogService.error( "Ldap warm-up : error while searching for users in ldap", e );
+                _nFailed.addAndGet( listGuids.size(  ) );
+
+                return;
+            }
+
+            for ( String strGuid : listGuids )
+            {
+                LuteceUser user = mapUsers.get( strGuid );
+
+                if ( user instanceof LDAPUser )
+                {
+                    LDAPUserCacheService.getService(  ).putUser( (LDAPUser) user );
+                    LDAPUserNotFoundCacheService.getService(  ).removeUserNotFound( strGuid );
+                    _nFound.incrementAndGet(  );
+                }
+                else
+                {
+                    LDAPUserCacheService.getService(  ).removeUser( strGuid );
+
+                    if ( _bStoreUsersNotFound )
+                    {
+                        LDAPUserNotFoundCacheService.getService(  ).putUserNotFound( strGuid );
+                    }
+
+                    _nNotFound.incrementAndGet(  );
+                }
+            }
+        }
+    }
+}
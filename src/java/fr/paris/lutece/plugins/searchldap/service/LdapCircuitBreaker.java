@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+
+/**
+ * Circuit breaker of an LDAP server. The circuit opens after a number of
+ * consecutive communication errors, so that requests fail immediately instead
+ * of waiting for the timeouts of an unreachable server. Once the open duration
+ * elapsed, a single request is let through to probe the server : the circuit
+ * closes if it succeeds and opens again otherwise.
+ */
+public class LdapCircuitBreaker
+{
+    /**
+     * State of a circuit breaker
+     */
+    public enum State
+    {
+        /** Requests are allowed */
+        CLOSED,
+        /** Requests are rejected */
+        OPEN,
+        /** A single request probes the server */
+        HALF_OPEN;
+    }
+
+    private final int _nFailureThreshold;
+    private final long _lOpenDuration;
+    private State _state = State.CLOSED;
+    private int _nConsecutiveFailures;
+    private long _lOpenedAt;
+    private long _lOpenCount;
+    private long _lRejectedCount;
+
+    /**
+     * Creates a new circuit breaker
+     * @param nFailureThreshold The number of consecutive failures that opens
+     *            the circuit
+     * @param lOpenDuration The time during which requests are rejected before
+     *            the server is probed, in milliseconds
+     */
+    public LdapCircuitBreaker( int nFailureThreshold, long lOpenDuration )
+    {
+        _nFailureThreshold = Math.max( 1, nFailureThreshold );
+        _lOpenDuration = lOpenDuration;
+    }
+
+    /**
+     * Check if a request would be allowed, without reserving the probe of a
+     * half open circuit
+     * @param lNow The current time in milliseconds
+     * @return True if a request would be allowed
+     */
+    public synchronized boolean isRequestAllowed( long lNow )
+    {
+        switch ( _state )
+        {
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                return lNow >= ( _lOpenedAt + _lOpenDuration );
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Ask the permission to send a request. A circuit whose open duration
+     * elapsed becomes half open and the caller becomes its probe.
+     * @return True if the request may be sent. The caller must then report
+     *         its outcome with {@link #onSuccess()}, {@link #onFailure()} or
+     *         {@link #onAbort()}.
+     */
+    public synchronized boolean tryAcquirePermission(  )
+    {
+        if ( _state == State.CLOSED )
+        {
+            return true;
+        }
+
+        if ( ( _state == State.OPEN ) && ( System.currentTimeMillis(  ) >= ( _lOpenedAt + _lOpenDuration ) ) )
+        {
+            _state = State.HALF_OPEN;
+
+            return true;
+        }
+
+        _lRejectedCount++;
+
+        return false;
+    }
+
+    /**
+     * Report that the server answered a request
+     */
+    public synchronized void onSuccess(  )
+    {
+        _nConsecutiveFailures = 0;
+        _state = State.CLOSED;
+    }
+
+    /**
+     * Report that the server could not be reached
+     */
+    public synchronized void onFailure(  )
+    {
+        _nConsecutiveFailures++;
+
+        if ( ( _state == State.HALF_OPEN ) ||
+                ( ( _state == State.CLOSED ) && ( _nConsecutiveFailures >= _nFailureThreshold ) ) )
+        {
+            _state = State.OPEN;
+            _lOpenedAt = System.currentTimeMillis(  );
+            _lOpenCount++;
+        }
+    }
+
+    /**
+     * Report that a request ended without telling anything about the server,
+     * for instance because it was interrupted. The probe of a half open
+     * circuit is given back so that the next request probes the server.
+     */
+    public synchronized void onAbort(  )
+    {
+        if ( _state == State.HALF_OPEN )
+        {
+            _state = State.OPEN;
+        }
+    }
+
+    /**
+     * Get the state of the circuit
+     * @return The state
+     */
+    public synchronized State getState(  )
+    {
+        return _state;
+    }
+
+    /**
+     * Get the number of consecutive communication errors
+     * @return The number of errors
+     */
+    public synchronized int getConsecutiveFailureCount(  )
+    {
+        return _nConsecutiveFailures;
+    }
+
+    /**
+     * Get the number of times the circuit opened
+     * @return The number of openings
+     */
+    public synchronized long getOpenCount(  )
+    {
+        return _lOpenCount;
+    }
+
+    /**
+     * Get the number of requests rejected because the circuit was open
+     * @return The number of rejected requests
+     */
+    public synchronized long getRejectedCount(  )
+    {
+        return _lRejectedCount;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+
+/**
+ * Context borrowed from the pool of a server by the router. The lease must be
+ * ended exactly once, with {@link #release()} if the server answered or with
+ * {@link #fail(Exception)} otherwise, so that the context goes back to its
+ * pool and the health of the server is updated.
+ */
+public class LdapContextLease
+{
+    private final LdapServer _server;
+    private final DirContext _context;
+    private final long _lStart;
+    private final boolean _bTimed;
+    private LdapBulkhead.Permit _permit;
+    private boolean _bEnded;
+
+    /**
+     * Creates a new lease
+     * @param server The server
+     * @param context The context borrowed from the pool of the server
+     * @param bTimed True if the duration of the lease is the latency of the
+     *            server, false if the lease is held while the caller does
+     *            other work
+     */
+    LdapContextLease( LdapServer server, DirContext context, boolean bTimed )
+    {
+        _server = server;
+        _context = context;
+        _bTimed = bTimed;
+        _lStart = System.currentTimeMillis(  );
+    }
+
+    /**
+     * Get the context
+     * @return The context
+     */
+    public DirContext getContext(  )
+    {
+        return _context;
+    }
+
+    /**
+     * Get the server of the context
+     * @return The server
+     */
+    public LdapServer getServer(  )
+    {
+        return _server;
+    }
+
+    /**
+     * Attach the permit of the bulkhead to the lease, so that it is released
+     * when the lease ends
+     * @param permit The permit
+     */
+    void setPermit( LdapBulkhead.Permit permit )
+    {
+        _permit = permit;
+    }
+
+    /**
+     * End the lease after the server answered. Request controls left on the
+     * context, such as the paged results control, are removed before it goes
+     * back to its pool.
+     */
+    public void release(  )
+    {
+        if ( _bEnded )
+        {
+            return;
+        }
+
+        _bEnded = true;
+        _server.endRequest( _bTimed ? ( System.currentTimeMillis(  ) - _lStart ) : LdapServer.UNKNOWN_LATENCY );
+        giveBack(  );
+        releasePermit(  );
+    }
+
+    /**
+     * End the lease after an error. Communication errors, including read
+     * timeouts, count against the health of the server and the context is
+     * closed. Errors returned by the
+     * server mean that it is reachable, and the context is reused.
+     * @param e The error
+     */
+    public void fail( Exception e )
+    {
+        if ( _bEnded )
+        {
+            return;
+        }
+
+        _bEnded = true;
+        releasePermit(  );
+        LdapMetrics.getInstance(  ).recordError( e );
+
+        if ( LdapUtil.isCommunicationError( e ) )
+        {
+            _server.failRequest(  );
+            _server.getPool(  ).invalidate( _context );
+            AppLogService.error( "LDAP server " + _server.getUrl(  ) + " failed : " + e.getMessage(  ) );
+        }
+        else if ( e instanceof ServiceUnavailableException )
+        {
+            _server.failRequest(  );
+            giveBack(  );
+            AppLogService.error( "LDAP server " + _server.getUrl(  ) + " is unavailable : " + e.getMessage(  ) );
+        }
+        else if ( ( e instanceof NamingException ) && !( e instanceof InterruptedNamingException ) )
+        {
+            _server.endRequest( _bTimed ? ( System.currentTimeMillis(  ) - _lStart ) : LdapServer.UNKNOWN_LATENCY );
+            giveBack(  );
+        }
+        else
+        {
+            // The reply of an abandoned request may still arrive on this connection
+            _server.abortRequest(  );
+            _server.getPool(  ).invalidate( _context );
+        }
+    }
+
+    /**
+     * End the lease of an operation abandoned by the caller, such as the
+     * losing attempt of a hedged operation. The context is closed, since the
+     * reply of the abandoned request may still arrive on its connection, and
+     * the health of the server is not changed.
+     */
+    void abort(  )
+    {
+        if ( _bEnded )
+        {
+            return;
+        }
+
+        _bEnded = true;
+        releasePermit(  );
+        _server.abortRequest(  );
+        _server.getPool(  ).invalidate( _context );
+    }
+
+    /**
+     * End the lease of an operation that was never sent to the server, such
+     * as a hedge that no thread could run. The context goes back to its pool
+     * and the health of the server is not changed.
+     */
+    void cancel(  )
+    {
+        if ( _bEnded )
+        {
+            return;
+        }
+
+        _bEnded = true;
+        releasePermit(  );
+        _server.abortRequest(  );
+        giveBack(  );
+    }
+
+    /**
+     * Release the permit of the bulkhead, if any
+     */
+    private void releasePermit(  )
+    {
+        if ( _permit != null )
+        {
+            _permit.release(  );
+        }
+    }
+
+    /**
+     * Give the context back to the pool of the server
+     */
+    private void giveBack(  )
+    {
+        if ( _context instanceof LdapContext )
+        {
+            try
+            {
+                ( (LdapContext) _context ).setRequestControls( null );
+            }
+            catch ( NamingException e )
+            {
+                _server.getPool(  ).invalidate( _context );
+
+                return;
+            }
+        }
+
+        _server.getPool(  ).release( _context );
+    }
+}
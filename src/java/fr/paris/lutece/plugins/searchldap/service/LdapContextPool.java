@@ -0,0 +1,530 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.InitialLdapContext;
+
+
+/**
+ * Bounded pool of bound LDAP contexts. Contexts are validated on borrow, idle
+ * contexts above the minimum size are evicted and the remaining ones are kept
+ * alive by a background task. The contexts taken out of the pool by the
+ * background task hold a slot of the pool, so that the number of open
+ * contexts never exceeds the maximum size.
+ */
+public class LdapContextPool
+{
+    private static final String VALIDATION_DN = "";
+    private static final String[] VALIDATION_ATTRIBUTES = new String[] { "objectClass" };
+    private static final String THREAD_NAME_MAINTENANCE = "searchldap-pool-maintenance";
+    private static ScheduledExecutorService _maintenanceExecutor;
+    private final String _strName;
+    private final Hashtable<String, String> _env;
+    private final LdapContextPoolConfig _config;
+    private final LinkedBlockingDeque<PooledContext> _idleContexts = new LinkedBlockingDeque<PooledContext>(  );
+    private final Semaphore _permits;
+    private final AtomicInteger _nOpenCount = new AtomicInteger(  );
+    private final AtomicLong _lCreatedCount = new AtomicLong(  );
+    private final AtomicLong _lDestroyedCount = new AtomicLong(  );
+    private final AtomicLong _lBorrowedCount = new AtomicLong(  );
+    private final AtomicLong _lValidationFailureCount = new AtomicLong(  );
+    private final AtomicLong _lWaitTimeoutCount = new AtomicLong(  );
+    private final ScheduledFuture<?> _maintenanceTask;
+    private volatile boolean _bClosed;
+
+    /**
+     * Creates a new pool
+     * @param strName The name of the pool, used in logs
+     * @param env The environment used to create the contexts
+     * @param config The configuration of the pool
+     */
+    public LdapContextPool( String strName, Hashtable<String, String> env, LdapContextPoolConfig config )
+    {
+        _strName = strName;
+        _env = env;
+        _config = config;
+        _permits = new Semaphore( config.getMaxSize(  ), true );
+
+        long lPeriod = config.getMaintenancePeriod(  );
+        _maintenanceTask = getMaintenanceExecutor(  ).scheduleWithFixedDelay( new Runnable(  )
+                {
+                    @Override
+                    public void run(  )
+                    {
+                        maintain(  );
+                    }
+                }, lPeriod, lPeriod, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Borrow a context from the pool. The context must be given back with
+     * {@link #release(DirContext)} or {@link #invalidate(DirContext)}
+     * @return A bound context
+     * @throws NamingException If no context is available before the maximum
+     *             wait time, or if a new context can not be created
+     */
+    public DirContext borrow(  ) throws NamingException
+    {
+        return borrow( _config.getMaxWait(  ) );
+    }
+
+    /**
+     * Borrow a context from the pool, waiting at most the given time. The
+     * context must be given back with {@link #release(DirContext)} or
+     * {@link #invalidate(DirContext)}
+     * @param lMaxWait The maximum time to wait for a context, in milliseconds.
+     *            It is capped by the maximum wait time of the pool.
+     * @return A bound context
+     * @throws NamingException If no context is available in time, or if a
+     *             new context can not be created
+     */
+    public DirContext borrow( long lMaxWait ) throws NamingException
+    {
+        long lWait = Math.min( lMaxWait, _config.getMaxWait(  ) );
+
+        if ( _bClosed )
+        {
+            throw new ServiceUnavailableException( "LDAP context pool " + _strName + " is closed" );
+        }
+
+        boolean bAcquired;
+
+        try
+        {
+            bAcquired = _permits.tryAcquire( lWait, TimeUnit.MILLISECONDS );
+        }
+        catch ( InterruptedException e )
+        {
+            // The caller gave up the operation : the server is not to blame
+            Thread.currentThread(  ).interrupt(  );
+
+            InterruptedNamingException ex = new InterruptedNamingException( 
+                    "Interrupted while waiting for an LDAP context of pool " + _strName );
+            ex.setRootCause( e );
+            throw ex;
+        }
+
+        if ( !bAcquired )
+        {
+            _lWaitTimeoutCount.incrementAndGet(  );
+            throw new ServiceUnavailableException( "No LDAP context available in pool " + _strName + " after " +
+                lWait + " ms" );
+        }
+
+        try
+        {
+            PooledContext pooled;
+
+            while ( ( pooled = _idleContexts.pollFirst(  ) ) != null )
+            {
+                if ( _config.isValidateOnBorrow(  ) && !validate( pooled._context ) )
+                {
+                    _lValidationFailureCount.incrementAndGet(  );
+                    destroy( pooled._context );
+                }
+                else
+                {
+                    _lBorrowedCount.incrementAndGet(  );
+
+                    return pooled._context;
+                }
+            }
+
+            DirContext context = create(  );
+            _lBorrowedCount.incrementAndGet(  );
+
+            return context;
+        }
+        catch ( NamingException e )
+        {
+            _permits.release(  );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            _permits.release(  );
+            throw e;
+        }
+    }
+
+    /**
+     * Give a healthy context back to the pool
+     * @param context The context
+     */
+    public void release( DirContext context )
+    {
+        if ( context == null )
+        {
+            return;
+        }
+
+        if ( _bClosed )
+        {
+            destroy( context );
+        }
+        else
+        {
+            _idleContexts.offerFirst( new PooledContext( context ) );
+        }
+
+        _permits.release(  );
+    }
+
+    /**
+     * Close a context that must not be reused, for instance after a
+     * communication error, and free its slot in the pool
+     * @param context The context
+     */
+    public void invalidate( DirContext context )
+    {
+        if ( context == null )
+        {
+            return;
+        }
+
+        destroy( context );
+        _permits.release(  );
+    }
+
+    /**
+     * Close every idle context and refuse further borrows. Contexts currently
+     * borrowed are closed when they are released.
+     */
+    public void close(  )
+    {
+        _bClosed = true;
+        _maintenanceTask.cancel( false );
+
+        PooledContext pooled;
+
+        while ( ( pooled = _idleContexts.pollFirst(  ) ) != null )
+        {
+            destroy( pooled._context );
+        }
+    }
+
+    /**
+     * Stop the background task of every pool. The pools must be closed first,
+     * for instance with {@link LdapUtil#closeContextPools()}. The task is
+     * started again by the next pool created.
+     */
+    public static synchronized void shutdownMaintenance(  )
+    {
+        if ( _maintenanceExecutor != null )
+        {
+            _maintenanceExecutor.shutdownNow(  );
+            _maintenanceExecutor = null;
+        }
+    }
+
+    /**
+     * Get the executor of the background task of the pools, created on first
+     * use
+     * @return The executor
+     */
+    private static synchronized ScheduledExecutorService getMaintenanceExecutor(  )
+    {
+        if ( _maintenanceExecutor == null )
+        {
+            _maintenanceExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory(  )
+                    {
+                        @Override
+                        public Thread newThread( Runnable runnable )
+                        {
+                            Thread thread = new Thread( runnable, THREAD_NAME_MAINTENANCE );
+                            thread.setDaemon( true );
+
+                            return thread;
+                        }
+                    } );
+        }
+
+        return _maintenanceExecutor;
+    }
+
+    /**
+     * Evict idle contexts that exceeded the idle timeout, validate the others
+     * to keep the connections alive and create contexts up to the minimum
+     * size. A context is validated or created only with a free slot of the
+     * pool, so that it is not counted twice while borrowers create contexts of
+     * their own.
+     */
+    void maintain(  )
+    {
+        if ( _bClosed )
+        {
+            return;
+        }
+
+        long lNow = System.currentTimeMillis(  );
+
+        // Least recently used contexts are at the end of the deque
+        Iterator<PooledContext> iterator = _idleContexts.descendingIterator(  );
+
+        while ( iterator.hasNext(  ) )
+        {
+            PooledContext pooled = iterator.next(  );
+            boolean bExpired = ( lNow - pooled._lLastUsed ) > _config.getIdleTimeout(  );
+            boolean bCheck = ( lNow - pooled._lLastValidated ) > _config.getKeepAliveInterval(  );
+
+            if ( bExpired && ( _nOpenCount.get(  ) > _config.getMinSize(  ) ) )
+            {
+                if ( _idleContexts.remove( pooled ) )
+                {
+                    destroy( pooled._context );
+                }
+            }
+            else if ( bCheck )
+            {
+                if ( !_permits.tryAcquire(  ) )
+                {
+                    // Every slot is in use : the busy contexts need no keep alive
+                    break;
+                }
+
+                try
+                {
+                    // Take the context out of the pool before using it so that it can not be borrowed meanwhile
+                    if ( _idleContexts.remove( pooled ) )
+                    {
+                        if ( validate( pooled._context ) )
+                        {
+                            pooled._lLastValidated = lNow;
+                            _idleContexts.offerLast( pooled );
+                        }
+                        else
+                        {
+                            _lValidationFailureCount.incrementAndGet(  );
+                            destroy( pooled._context );
+                        }
+                    }
+                }
+                finally
+                {
+                    _permits.release(  );
+                }
+            }
+        }
+
+        while ( ( _nOpenCount.get(  ) < _config.getMinSize(  ) ) && _permits.tryAcquire(  ) )
+        {
+            try
+            {
+                _idleContexts.offerLast( new PooledContext( create(  ) ) );
+            }
+            catch ( NamingException e )
+            {
+                AppLogService.error( "Unable to fill LDAP context pool " + _strName + " : " + e.getMessage(  ) );
+
+                break;
+            }
+            finally
+            {
+                _permits.release(  );
+            }
+        }
+    }
+
+    /**
+     * Get the name of the pool
+     * @return The name of the pool
+     */
+    public String getName(  )
+    {
+        return _strName;
+    }
+
+    /**
+     * Get the number of contexts currently opened, borrowed or idle
+     * @return The number of opened contexts
+     */
+    public int getOpenCount(  )
+    {
+        return _nOpenCount.get(  );
+    }
+
+    /**
+     * Get the number of idle contexts
+     * @return The number of idle contexts
+     */
+    public int getIdleCount(  )
+    {
+        return _idleContexts.size(  );
+    }
+
+    /**
+     * Get the number of contexts currently borrowed
+     * @return The number of borrowed contexts
+     */
+    public int getActiveCount(  )
+    {
+        return _config.getMaxSize(  ) - _permits.availablePermits(  );
+    }
+
+    /**
+     * Get the total number of contexts created by this pool
+     * @return The number of created contexts
+     */
+    public long getCreatedCount(  )
+    {
+        return _lCreatedCount.get(  );
+    }
+
+    /**
+     * Get the total number of contexts closed by this pool
+     * @return The number of destroyed contexts
+     */
+    public long getDestroyedCount(  )
+    {
+        return _lDestroyedCount.get(  );
+    }
+
+    /**
+     * Get the total number of borrows
+     * @return The number of borrows
+     */
+    public long getBorrowedCount(  )
+    {
+        return _lBorrowedCount.get(  );
+    }
+
+    /**
+     * Get the number of idle contexts that failed validation
+     * @return The number of validation failures
+     */
+    public long getValidationFailureCount(  )
+    {
+        return _lValidationFailureCount.get(  );
+    }
+
+    /**
+     * Get the number of borrows that timed out because the pool was exhausted
+     * @return The number of wait timeouts
+     */
+    public long getWaitTimeoutCount(  )
+    {
+        return _lWaitTimeoutCount.get(  );
+    }
+
+    /**
+     * Create and bind a new context
+     * @return The context
+     * @throws NamingException If the context can not be created
+     */
+    private DirContext create(  ) throws NamingException
+    {
+        DirContext context = new InitialLdapContext( _env, null );
+        _nOpenCount.incrementAndGet(  );
+        _lCreatedCount.incrementAndGet(  );
+
+        return context;
+    }
+
+    /**
+     * Close a context
+     * @param context The context
+     */
+    private void destroy( DirContext context )
+    {
+        _nOpenCount.decrementAndGet(  );
+        _lDestroyedCount.incrementAndGet(  );
+
+        try
+        {
+            LdapUtil.freeContext( context );
+        }
+        catch ( NamingException e )
+        {
+            AppLogService.debug( "Error while closing LDAP context of pool " + _strName + " : " + e.getMessage(  ) );
+        }
+    }
+
+    /**
+     * Check that a context is still usable by reading the root DSE
+     * @param context The context
+     * @return True if the context is usable, false otherwise
+     */
+    private boolean validate( DirContext context )
+    {
+        try
+        {
+            context.getAttributes( VALIDATION_DN, VALIDATION_ATTRIBUTES );
+
+            return true;
+        }
+        catch ( NamingException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Idle context with its usage timestamps
+     */
+    private static final class PooledContext
+    {
+        private final DirContext _context;
+        private final long _lLastUsed;
+        private long _lLastValidated;
+
+        /**
+         * Creates a new pooled context
+         * @param context The context
+         */
+        PooledContext( DirContext context )
+        {
+            _context = context;
+            _lLastUsed = System.currentTimeMillis(  );
+            _lLastValidated = _lLastUsed;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+
+/**
+ * Configuration of a LDAP context pool
+ */
+public final class LdapContextPoolConfig
+{
+    private static final String PROPERTY_MIN_SIZE = "searchldap.ldap.pool.minSize";
+    private static final String PROPERTY_MAX_SIZE = "searchldap.ldap.pool.maxSize";
+    private static final String PROPERTY_MAX_WAIT = "searchldap.ldap.pool.maxWait";
+    private static final String PROPERTY_IDLE_TIMEOUT = "searchldap.ldap.pool.idleTimeout";
+    private static final String PROPERTY_KEEP_ALIVE_INTERVAL = "searchldap.ldap.pool.keepAliveInterval";
+    private static final String PROPERTY_MAINTENANCE_PERIOD = "searchldap.ldap.pool.maintenancePeriod";
+    private static final String PROPERTY_VALIDATE_ON_BORROW = "searchldap.ldap.pool.validateOnBorrow";
+    private static final int DEFAULT_MIN_SIZE = 1;
+    private static final int DEFAULT_MAX_SIZE = 10;
+    private static final int DEFAULT_MAX_WAIT = 5000;
+    private static final int DEFAULT_IDLE_TIMEOUT = 300000;
+    private static final int DEFAULT_KEEP_ALIVE_INTERVAL = 60000;
+    private static final int DEFAULT_MAINTENANCE_PERIOD = 30000;
+    private final int _nMinSize;
+    private final int _nMaxSize;
+    private final long _lMaxWait;
+    private final long _lIdleTimeout;
+    private final long _lKeepAliveInterval;
+    private final long _lMaintenancePeriod;
+    private final boolean _bValidateOnBorrow;
+
+    /**
+     * Creates a new configuration
+     * @param nMinSize The number of contexts to keep opened
+     * @param nMaxSize The maximum number of opened contexts
+     * @param lMaxWait The maximum time to wait for a context, in milliseconds
+     * @param lIdleTimeout The time after which an idle context above the
+     *            minimum size is closed, in milliseconds
+     * @param lKeepAliveInterval The time after which an idle context is
+     *            validated to keep its connection alive, in milliseconds
+     * @param lMaintenancePeriod The period of the eviction and keep alive
+     *            task, in milliseconds
+     * @param bValidateOnBorrow True to validate idle contexts before lending
+     *            them
+     */
+    public LdapContextPoolConfig( int nMinSize, int nMaxSize, long lMaxWait, long lIdleTimeout,
+        long lKeepAliveInterval, long lMaintenancePeriod, boolean bValidateOnBorrow )
+    {
+        _nMaxSize = Math.max( 1, nMaxSize );
+        _nMinSize = Math.min( Math.max( 0, nMinSize ), _nMaxSize );
+        _lMaxWait = lMaxWait;
+        _lIdleTimeout = lIdleTimeout;
+        _lKeepAliveInterval = lKeepAliveInterval;
+        _lMaintenancePeriod = Math.max( 1000L, lMaintenancePeriod );
+        _bValidateOnBorrow = bValidateOnBorrow;
+    }
+
+    /**
+     * Load the configuration from the properties
+     * @return The configuration
+     */
+    public static LdapContextPoolConfig load(  )
+    {
+        return new LdapContextPoolConfig( AppPropertiesService.getPropertyInt( PROPERTY_MIN_SIZE, DEFAULT_MIN_SIZE ),
+            AppPropertiesService.getPropertyInt( PROPERTY_MAX_SIZE, DEFAULT_MAX_SIZE ),
+            AppPropertiesService.getPropertyInt( PROPERTY_MAX_WAIT, DEFAULT_MAX_WAIT ),
+            AppPropertiesService.getPropertyInt( PROPERTY_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT ),
+            AppPropertiesService.getPropertyInt( PROPERTY_KEEP_ALIVE_INTERVAL, DEFAULT_KEEP_ALIVE_INTERVAL ),
+            AppPropertiesService.getPropertyInt( PROPERTY_MAINTENANCE_PERIOD, DEFAULT_MAINTENANCE_PERIOD ),
+            AppPropertiesService.getPropertyBoolean( PROPERTY_VALIDATE_ON_BORROW, true ) );
+    }
+
+    /**
+     * Get the number of contexts to keep opened
+     * @return The minimum size
+     */
+    public int getMinSize(  )
+    {
+        return _nMinSize;
+    }
+
+    /**
+     * Get the maximum number of opened contexts
+     * @return The maximum size
+     */
+    public int getMaxSize(  )
+    {
+        return _nMaxSize;
+    }
+
+    /**
+     * Get the maximum time to wait for a context
+     * @return The maximum wait time in milliseconds
+     */
+    public long getMaxWait(  )
+    {
+        return _lMaxWait;
+    }
+
+    /**
+     * Get the time after which an idle context above the minimum size is
+     * closed
+     * @return The idle timeout in milliseconds
+     */
+    public long getIdleTimeout(  )
+    {
+        return _lIdleTimeout;
+    }
+
+    /**
+     * Get the time after which an idle context is validated
+     * @return The keep alive interval in milliseconds
+     */
+    public long getKeepAliveInterval(  )
+    {
+        return _lKeepAliveInterval;
+    }
+
+    /**
+     * Get the period of the maintenance task
+     * @return The period in milliseconds
+     */
+    public long getMaintenancePeriod(  )
+    {
+        return _lMaintenancePeriod;
+    }
+
+    /**
+     * Check if idle contexts are validated before being lent
+     * @return True if contexts are validated on borrow
+     */
+    public boolean isValidateOnBorrow(  )
+    {
+        return _bValidateOnBorrow;
+    }
+}
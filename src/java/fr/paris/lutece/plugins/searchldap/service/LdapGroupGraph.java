@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+
+/**
+ * Immutable graph of the LDAP groups, indexed by DN, each group knowing the
+ * groups it is a direct member of. The groups of a user are the groups of its
+ * memberOf attribute and all the groups these groups are nested in.<br>
+ * The closure of each group is computed once and kept, so that resolving the
+ * groups of a user only reads memory. Cycles between groups are tolerated.
+ */
+public class LdapGroupGraph
+{
+    private static final String SEPARATOR_RDN = ",";
+    private static final String SEPARATOR_TYPE_VALUE = "=";
+    private static final LdapGroupGraph EMPTY = new LdapGroupGraph( Collections.<String, Group>emptyMap(  ), 0L );
+    private final Map<String, Group> _mapGroups;
+    private final ConcurrentMap<String, Set<String>> _mapClosures = new ConcurrentHashMap<String, Set<String>>(  );
+    private final long _lLoadTime;
+
+    /**
+     * Creates a new graph
+     * @param mapGroups The groups indexed by normalized DN
+     * @param lLoadTime The time at which the groups were read
+     */
+    LdapGroupGraph( Map<String, Group> mapGroups, long lLoadTime )
+    {
+        _mapGroups = mapGroups;
+        _lLoadTime = lLoadTime;
+    }
+
+    /**
+     * Get a graph without groups, in which each DN stands for a group named by
+     * its first RDN
+     * @return The empty graph
+     */
+    public static LdapGroupGraph empty(  )
+    {
+        return EMPTY;
+    }
+
+    /**
+     * Check if the graph was read from the LDAP
+     * @return True if the graph was read
+     */
+    public boolean isLoaded(  )
+    {
+        return _lLoadTime != 0L;
+    }
+
+    /**
+     * Get the time at which the groups were read
+     * @return The time in milliseconds, 0 if the graph was not read
+     */
+    public long getLoadTime(  )
+    {
+        return _lLoadTime;
+    }
+
+    /**
+     * Get the number of groups
+     * @return The number of groups
+     */
+    public int getSize(  )
+    {
+        return _mapGroups.size(  );
+    }
+
+    /**
+     * Get the names of the groups of a user, nested groups included
+     * @param collectionMemberOf The DN of the groups the user is a direct
+     *            member of
+     * @return The names of the groups, sorted
+     */
+    public Set<String> getGroupNames( Collection<String> collectionMemberOf )
+    {
+        if ( collectionMemberOf.isEmpty(  ) )
+        {
+            return Collections.emptySet(  );
+        }
+
+        Set<String> setNames = new TreeSet<String>(  );
+
+        for ( String strDn : collectionMemberOf )
+        {
+            setNames.addAll( getClosure( strDn ) );
+        }
+
+        return setNames;
+    }
+
+    /**
+     * Get the names of a group and of the groups it is nested in
+     * @param strGroupDn The DN of the group
+     * @return The names
+     */
+    private Set<String> getClosure( String strGroupDn )
+    {
+        String strNormalizedDn = normalize( strGroupDn );
+        Set<String> setNames = _mapClosures.get( strNormalizedDn );
+
+        if ( setNames != null )
+        {
+            return setNames;
+        }
+
+        setNames = new HashSet<String>(  );
+
+        Set<String> setVisited = new HashSet<String>(  );
+        Deque<String> stack = new ArrayDeque<String>(  );
+        stack.push( strGroupDn );
+
+        while ( !stack.isEmpty(  ) )
+        {
+            String strDn = stack.pop(  );
+            String strKey = normalize( strDn );
+
+            if ( !setVisited.add( strKey ) )
+            {
+                continue;
+            }
+
+            Group group = _mapGroups.get( strKey );
+
+            if ( group == null )
+            {
+                // A group out of the search base : only its own name is known
+                setNames.add( getFirstRdnValue( strDn ) );
+
+                continue;
+            }
+
+            setNames.add( group.getName(  ) );
+
+            for ( String strParentDn : group.getParentDns(  ) )
+            {
+                stack.push( strParentDn );
+            }
+        }
+
+        setNames = Collections.unmodifiableSet( setNames );
+        _mapClosures.putIfAbsent( strNormalizedDn, setNames );
+
+        return setNames;
+    }
+
+    /**
+     * Normalize a DN so that two spellings of a DN are equal : types and
+     * values are lower cased and the spaces around separators are removed
+     * @param strDn The DN
+     * @return The normalized DN
+     */
+    static String normalize( String strDn )
+    {
+        try
+        {
+            LdapName name = new LdapName( strDn );
+            StringBuilder sbDn = new StringBuilder( strDn.length(  ) );
+
+            for ( int i = name.size(  ) - 1; i >= 0; i-- )
+            {
+                Rdn rdn = name.getRdn( i );
+
+                if ( sbDn.length(  ) > 0 )
+                {
+                    sbDn.append( SEPARATOR_RDN );
+                }
+
+                sbDn.append( rdn.getType(  ) ).append( SEPARATOR_TYPE_VALUE )
+                    .append( Rdn.escapeValue( rdn.getValue(  ) ) );
+            }
+
+            return sbDn.toString(  ).toLowerCase( Locale.ROOT );
+        }
+        catch ( InvalidNameException e )
+        {
+            return strDn.trim(  ).toLowerCase( Locale.ROOT );
+        }
+    }
+
+    /**
+     * Get the value of the first RDN of a DN, ie the name of an entry
+     * @param strDn The DN
+     * @return The value of the first RDN, or the DN if it can not be parsed
+     */
+    static String getFirstRdnValue( String strDn )
+    {
+        try
+        {
+            LdapName name = new LdapName( strDn );
+
+            return name.isEmpty(  ) ? strDn : String.valueOf( name.getRdn( name.size(  ) - 1 ).getValue(  ) );
+        }
+        catch ( InvalidNameException e )
+        {
+            return strDn;
+        }
+    }
+
+    /**
+     * A group of the graph
+     */
+    static final class Group
+    {
+        private final String _strName;
+        private final String[] _parentDns;
+
+        /**
+         * Creates a new group
+         * @param strName The name of the group
+         * @param parentDns The DN of the groups this group is a direct member
+         *            of
+         */
+        Group( String strName, String[] parentDns )
+        {
+            _strName = strName;
+            _parentDns = parentDns;
+        }
+
+        /**
+         * Get the name of the group
+         * @return The name
+         */
+        String getName(  )
+        {
+            return _strName;
+        }
+
+        /**
+         * Get the DN of the groups this group is a direct member of
+         * @return The DN of the parent groups
+         */
+        String[] getParentDns(  )
+        {
+            return _parentDns;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.naming.NamingException;
+
+
+/**
+ * Groups and roles of the users. The memberOf attribute is read with the
+ * other attributes of a user, and resolved against an in-memory graph of the
+ * groups refreshed periodically, so that nested groups cost no search.<br>
+ * Cached users keep the DN of their direct groups : their groups are resolved
+ * again against the current graph each time they are read from the cache.
+ */
+public final class LdapGroupService
+{
+    private static final LdapGroupService _singleton = new LdapGroupService(  );
+    private final AtomicBoolean _bLoading = new AtomicBoolean(  );
+    private volatile LdapGroupGraph _graph = LdapGroupGraph.empty(  );
+    private volatile LdapBrowser _ldapBrowser;
+
+    /**
+     * Private constructor
+     */
+    private LdapGroupService(  )
+    {
+    }
+
+    /**
+     * Get the instance of the service
+     * @return The instance of the service
+     */
+    public static LdapGroupService getInstance(  )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Set the groups of a user, and its roles if the groups are set as roles,
+     * from the DN of its direct groups. Until the graph is read, each DN
+     * stands for a single group named by its first RDN.
+     * @param user The user
+     */
+    public void assignGroups( LDAPUser user )
+    {
+        LdapLookupPlan plan = getLDAPBrowser(  ).getLookupPlan(  );
+
+        if ( !plan.isGroupsEnabled(  ) )
+        {
+            return;
+        }
+
+        Set<String> setGroups = getGraph(  ).getGroupNames( user.getMemberOf(  ) );
+        user.setGroups( setGroups );
+
+        if ( plan.isGroupsAsRoles(  ) )
+        {
+            user.setRoles( setGroups );
+        }
+    }
+
+    /**
+     * Get the graph of the groups. The graph is read when the plugin starts
+     * and by the group graph daemon only : if it can not be read, it is read
+     * again at the next run of the daemon, so that a failing search is not
+     * retried by each lookup.
+     * @return The current graph
+     */
+    public LdapGroupGraph getGraph(  )
+    {
+        return _graph;
+    }
+
+    /**
+     * Read the graph of the groups from the LDAP and replace the current one.
+     * The users of the replica that belong to groups are built again with
+     * their groups resolved against the new graph, and replace the previous
+     * users, which are never modified while request threads may read them.
+     * The graph is read in the background lane of the bulkhead.
+     * @return The number of groups read
+     * @throws NamingException If the groups can not be read
+     */
+    public int refresh(  ) throws NamingException
+    {
+        if ( !_bLoading.compareAndSet( false, true ) )
+        {
+            return _graph.getSize(  );
+        }
+
+        LdapBulkhead.Lane previousLane = LdapBulkhead.enterLane( LdapBulkhead.Lane.BACKGROUND );
+
+        try
+        {
+            LdapBrowser ldapBrowser = getLDAPBrowser(  );
+            LdapLookupPlan plan = ldapBrowser.getLookupPlan(  );
+            LdapUserReplica replica = ldapBrowser.getReplica(  );
+            _graph = ldapBrowser.searchGroupGraph(  );
+
+            for ( LDAPUser user : replica.getUsers(  ).values(  ) )
+            {
+                if ( !user.getMemberOf(  ).isEmpty(  ) )
+                {
+                    replica.replaceUser( user, LdapUserRecord.create( plan, user ).toUser(  ) );
+                }
+            }
+
+            return _graph.getSize(  );
+        }
+        finally
+        {
+            LdapBulkhead.restoreLane( previousLane );
+            _bLoading.set( false );
+        }
+    }
+
+    /**
+     * Read the graph of the groups in the background, unless it is being read
+     */
+    public void refreshInBackground(  )
+    {
+        if ( _bLoading.get(  ) )
+        {
+            return;
+        }
+
+        try
+        {
+            LdapTaskExecutor.getInstance(  ).getExecutor(  ).execute( new Runnable(  )
+                {
+                    @Override
+                    public void run(  )
+                    {
+                        try
+                        {
+                            refresh(  );
+                        }
+                        catch ( NamingException e )
+                        {
+                            LdapUtil.logError( "Error while reading the ldap groups", e );
+                        }
+                    }
+                } );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            AppLogService.error( "Unable to read the ldap groups : " + e.getMessage(  ) );
+        }
+    }
+
+    /**
+     * Set the LDAP browser, instead of the bean of the Spring context
+     * @param ldapBrowser The LDAP browser
+     */
+    void setLDAPBrowser( LdapBrowser ldapBrowser )
+    {
+        _ldapBrowser = ldapBrowser;
+    }
+
+    /**
+     * Get the LDAP browser
+     * @return The LDAP browser
+     */
+    private LdapBrowser getLDAPBrowser(  )
+    {
+        if ( _ldapBrowser == null )
+        {
+            _ldapBrowser = SpringContextService.getBean( LdapBrowser.BEAN_NAME );
+        }
+
+        return _ldapBrowser;
+    }
+}
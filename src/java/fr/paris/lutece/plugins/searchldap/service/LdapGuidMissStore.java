@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Compact store of guids that were not found in the LDAP. Each guid made of
+ * 40 alphanumeric characters is packed into four longs (6 bits per character)
+ * and kept in an open addressing table, so that a miss costs 32 bytes instead
+ * of a cache element with two strings.<br>
+ * Expiry is time sliced: guids are added to the current generation, and every
+ * half time to live the current generation becomes the previous one while the
+ * previous one is dropped. A guid is thus forgotten between half its time to
+ * live and its time to live after it was added. A generation that becomes full
+ * is rotated early.
+ */
+public class LdapGuidMissStore
+{
+    /**
+     * Length of the guids that can be stored
+     */
+    public static final int GUID_LENGTH = 40;
+    private static final int CHARS_PER_WORD = 10;
+    private static final int WORDS_PER_GUID = GUID_LENGTH / CHARS_PER_WORD;
+    private static final int BITS_PER_CHAR = 6;
+    private static final long CHAR_MASK = ( 1L << BITS_PER_CHAR ) - 1;
+    private static final int NB_DIGITS = 10;
+    private static final int NB_LETTERS = 26;
+
+    // Packed words use 60 bits, so a negative first word can not be a guid
+    private static final long TOMBSTONE = -1L;
+    private static final int MIN_CAPACITY = 16;
+    private final int _nCapacity;
+    private final long _lSliceDuration;
+    private Generation _currentGeneration;
+    private Generation _previousGeneration;
+    private long _lSliceStart;
+
+    /**
+     * Creates a new store
+     * @param nCapacity The number of slots of each generation. It is rounded
+     *            up to a power of two. Each generation holds up to three
+     *            quarters of its slots.
+     * @param lTimeToLive The time to live of the guids, in milliseconds
+     */
+    public LdapGuidMissStore( int nCapacity, long lTimeToLive )
+    {
+        _nCapacity = Integer.highestOneBit( Math.max( MIN_CAPACITY, nCapacity ) - 1 ) << 1;
+        _lSliceDuration = Math.max( 1L, lTimeToLive / 2 );
+        _currentGeneration = new Generation( _nCapacity );
+        _previousGeneration = new Generation( _nCapacity );
+        _lSliceStart = System.currentTimeMillis(  );
+    }
+
+    /**
+     * Check if a guid can be stored, ie if it is made of exactly 40
+     * alphanumeric characters
+     * @param strGuid The guid
+     * @return True if the guid can be stored, false otherwise
+     */
+    public static boolean isStorable( String strGuid )
+    {
+        if ( ( strGuid == null ) || ( strGuid.length(  ) != GUID_LENGTH ) )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < GUID_LENGTH; i++ )
+        {
+            if ( encode( strGuid.charAt( i ) ) == 0 )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if a guid is in the store
+     * @param strGuid The guid. It must be storable.
+     * @return True if the guid is in the store and has not expired
+     */
+    public synchronized boolean contains( String strGuid )
+    {
+        long[] key = pack( strGuid );
+        rotate( System.currentTimeMillis(  ) );
+
+        return ( _currentGeneration.indexOf( key ) >= 0 ) || ( _previousGeneration.indexOf( key ) >= 0 );
+    }
+
+    /**
+     * Add a guid to the store
+     * @param strGuid The guid. It must be storable.
+     */
+    public synchronized void add( String strGuid )
+    {
+        long[] key = pack( strGuid );
+        rotate( System.currentTimeMillis(  ) );
+
+        if ( _currentGeneration.indexOf( key ) >= 0 )
+        {
+            return;
+        }
+
+        if ( _currentGeneration.isFull(  ) )
+        {
+            nextGeneration(  );
+        }
+
+        _currentGeneration.insert( key );
+    }
+
+    /**
+     * Add a guid that must be forgotten before a given time, such as a guid
+     * read from a snapshot. The guid is put in the generation that is dropped
+     * last before this time.
+     * @param strGuid The guid. It must be storable.
+     * @param lExpiry The time in milliseconds before which the guid must be
+     *            forgotten
+     * @return True if the guid was added, false if every generation outlives
+     *         the expiry or if the generation is full
+     */
+    public synchronized boolean add( String strGuid, long lExpiry )
+    {
+        long[] key = pack( strGuid );
+        rotate( System.currentTimeMillis(  ) );
+
+        if ( ( _currentGeneration.indexOf( key ) >= 0 ) || ( _previousGeneration.indexOf( key ) >= 0 ) )
+        {
+            return true;
+        }
+
+        Generation generation;
+
+        if ( lExpiry >= ( _lSliceStart + ( 2 * _lSliceDuration ) ) )
+        {
+            generation = _currentGeneration;
+        }
+        else if ( lExpiry >= ( _lSliceStart + _lSliceDuration ) )
+        {
+            generation = _previousGeneration;
+        }
+        else
+        {
+            return false;
+        }
+
+        if ( generation.isFull(  ) )
+        {
+            return false;
+        }
+
+        generation.insert( key );
+
+        return true;
+    }
+
+    /**
+     * Remove a guid from the store
+     * @param strGuid The guid. It must be storable.
+     */
+    public synchronized void remove( String strGuid )
+    {
+        long[] key = pack( strGuid );
+        _currentGeneration.remove( key );
+        _previousGeneration.remove( key );
+    }
+
+    /**
+     * Remove every guid from the store
+     */
+    public synchronized void clear(  )
+    {
+        _currentGeneration.clear(  );
+        _previousGeneration.clear(  );
+        _lSliceStart = System.currentTimeMillis(  );
+    }
+
+    /**
+     * Get the number of guids in the store, including guids that are about to
+     * expire
+     * @return The number of guids
+     */
+    public synchronized int size(  )
+    {
+        return _currentGeneration._nSize + _previousGeneration._nSize;
+    }
+
+    /**
+     * Get the guids of the store, including guids that are about to expire
+     * @return The guids
+     */
+    public synchronized List<String> getGuids(  )
+    {
+        List<String> listGuids = new ArrayList<String>( size(  ) );
+        _previousGeneration.addGuids( listGuids );
+        _currentGeneration.addGuids( listGuids );
+
+        return listGuids;
+    }
+
+    /**
+     * Get the guids of the store with the time at which each one is forgotten
+     * at the latest, ie the time at which its generation is dropped
+     * @return The expiry times in milliseconds, by guid
+     */
+    public synchronized Map<String, Long> getGuidExpiries(  )
+    {
+        rotate( System.currentTimeMillis(  ) );
+
+        Map<String, Long> mapExpiries = new LinkedHashMap<String, Long>( size(  ) );
+        addExpiries( mapExpiries, _previousGeneration, _lSliceStart + _lSliceDuration );
+        addExpiries( mapExpiries, _currentGeneration, _lSliceStart + ( 2 * _lSliceDuration ) );
+
+        return mapExpiries;
+    }
+
+    /**
+     * Get the memory used by the tables of the store
+     * @return The size of the tables in bytes
+     */
+    public long getMemorySize(  )
+    {
+        return 2L * _nCapacity * WORDS_PER_GUID * Long.SIZE / Byte.SIZE;
+    }
+
+    /**
+     * Add the guids of a generation with its expiry time to a map
+     * @param mapExpiries The map
+     * @param generation The generation
+     * @param lExpiry The time at which the generation is dropped
+     */
+    private static void addExpiries( Map<String, Long> mapExpiries, Generation generation, long lExpiry )
+    {
+        List<String> listGuids = new ArrayList<String>( generation._nSize );
+        generation.addGuids( listGuids );
+
+        for ( String strGuid : listGuids )
+        {
+            mapExpiries.put( strGuid, lExpiry );
+        }
+    }
+
+    /**
+     * Drop the expired generations
+     * @param lNow The current time in milliseconds
+     */
+    private void rotate( long lNow )
+    {
+        long lElapsed = lNow - _lSliceStart;
+
+        if ( lElapsed >= ( 2 * _lSliceDuration ) )
+        {
+            clear(  );
+        }
+        else if ( lElapsed >= _lSliceDuration )
+        {
+            nextGeneration(  );
+        }
+    }
+
+    /**
+     * Make the current generation the previous one and start an empty
+     * current generation, reusing the table of the dropped generation
+     */
+    private void nextGeneration(  )
+    {
+        Generation dropped = _previousGeneration;
+        dropped.clear(  );
+        _previousGeneration = _currentGeneration;
+        _currentGeneration = dropped;
+        _lSliceStart = System.currentTimeMillis(  );
+    }
+
+    /**
+     * Pack a guid into four longs
+     * @param strGuid The guid
+     * @return The packed guid
+     */
+    private static long[] pack( String strGuid )
+    {
+        long[] key = new long[WORDS_PER_GUID];
+
+        for ( int i = 0; i < GUID_LENGTH; i++ )
+        {
+            key[i / CHARS_PER_WORD] = ( key[i / CHARS_PER_WORD] << BITS_PER_CHAR ) | encode( strGuid.charAt( i ) );
+        }
+
+        return key;
+    }
+
+    /**
+     * Encode an alphanumeric character on 6 bits
+     * @param c The character
+     * @return The code of the character between 1 and 62, or 0 if the
+     *         character is not alphanumeric
+     */
+    private static int encode( char c )
+    {
+        if ( ( c >= '0' ) && ( c <= '9' ) )
+        {
+            return 1 + ( c - '0' );
+        }
+
+        if ( ( c >= 'A' ) && ( c <= 'Z' ) )
+        {
+            return 1 + NB_DIGITS + ( c - 'A' );
+        }
+
+        if ( ( c >= 'a' ) && ( c <= 'z' ) )
+        {
+            return 1 + NB_DIGITS + NB_LETTERS + ( c - 'a' );
+        }
+
+        return 0;
+    }
+
+    /**
+     * Decode a character encoded by {@link #encode(char)}
+     * @param nCode The code
+     * @return The character
+     */
+    private static char decode( int nCode )
+    {
+        if ( nCode <= NB_DIGITS )
+        {
+            return (char) ( ( '0' + nCode ) - 1 );
+        }
+
+        if ( nCode <= ( NB_DIGITS + NB_LETTERS ) )
+        {
+            return (char) ( ( 'A' + nCode ) - 1 - NB_DIGITS );
+        }
+
+        return (char) ( ( 'a' + nCode ) - 1 - NB_DIGITS - NB_LETTERS );
+    }
+
+    /**
+     * Unpack a guid packed by {@link #pack(String)}
+     * @param keys The table holding the packed guid
+     * @param nOffset The offset of the first word of the guid
+     * @return The guid
+     */
+    private static String unpack( long[] keys, int nOffset )
+    {
+        char[] guid = new char[GUID_LENGTH];
+
+        for ( int i = 0; i < GUID_LENGTH; i++ )
+        {
+            int nShift = BITS_PER_CHAR * ( CHARS_PER_WORD - 1 - ( i % CHARS_PER_WORD ) );
+            guid[i] = decode( (int) ( ( keys[nOffset + ( i / CHARS_PER_WORD )] >>> nShift ) & CHAR_MASK ) );
+        }
+
+        return new String( guid );
+    }
+
+    /**
+     * Open addressing table with linear probing. Slot i uses the words 4i to
+     * 4i+3, an empty slot has a first word equal to 0.
+     */
+    private static final class Generation
+    {
+        private final long[] _keys;
+        private final int _nMask;
+        private final int _nMaxSize;
+        private int _nSize;
+        private int _nUsedSlots;
+
+        /**
+         * Creates a new generation
+         * @param nCapacity The number of slots, a power of two
+         */
+        Generation( int nCapacity )
+        {
+            _keys = new long[nCapacity * WORDS_PER_GUID];
+            _nMask = nCapacity - 1;
+            _nMaxSize = ( nCapacity / 4 ) * 3;
+        }
+
+        /**
+         * Check if the generation reached its maximum load, tombstones
+         * included
+         * @return True if no guid can be added
+         */
+        boolean isFull(  )
+        {
+            return _nUsedSlots >= _nMaxSize;
+        }
+
+        /**
+         * Find the slot of a guid
+         * @param key The packed guid
+         * @return The slot, or -1 if the guid is not in this generation
+         */
+        int indexOf( long[] key )
+        {
+            int nSlot = hash( key ) & _nMask;
+
+            while ( _keys[nSlot * WORDS_PER_GUID] != 0 )
+            {
+                if ( matches( nSlot, key ) )
+                {
+                    return nSlot;
+                }
+
+                nSlot = ( nSlot + 1 ) & _nMask;
+            }
+
+            return -1;
+        }
+
+        /**
+         * Insert a guid that is not in this generation
+         * @param key The packed guid
+         */
+        void insert( long[] key )
+        {
+            int nSlot = hash( key ) & _nMask;
+
+            while ( ( _keys[nSlot * WORDS_PER_GUID] != 0 ) && ( _keys[nSlot * WORDS_PER_GUID] != TOMBSTONE ) )
+            {
+                nSlot = ( nSlot + 1 ) & _nMask;
+            }
+
+            if ( _keys[nSlot * WORDS_PER_GUID] == 0 )
+            {
+                _nUsedSlots++;
+            }
+
+            System.arraycopy( key, 0, _keys, nSlot * WORDS_PER_GUID, WORDS_PER_GUID );
+            _nSize++;
+        }
+
+        /**
+         * Remove a guid. Its slot becomes a tombstone so that probing goes on
+         * past it.
+         * @param key The packed guid
+         */
+        void remove( long[] key )
+        {
+            int nSlot = indexOf( key );
+
+            if ( nSlot >= 0 )
+            {
+                _keys[nSlot * WORDS_PER_GUID] = TOMBSTONE;
+                _nSize--;
+            }
+        }
+
+        /**
+         * Add the guids of this generation to a list
+         * @param listGuids The list
+         */
+        void addGuids( List<String> listGuids )
+        {
+            for ( int nOffset = 0; nOffset < _keys.length; nOffset += WORDS_PER_GUID )
+            {
+                if ( ( _keys[nOffset] != 0 ) && ( _keys[nOffset] != TOMBSTONE ) )
+                {
+                    listGuids.add( unpack( _keys, nOffset ) );
+                }
+            }
+        }
+
+        /**
+         * Remove every guid
+         */
+        void clear(  )
+        {
+            Arrays.fill( _keys, 0L );
+            _nSize = 0;
+            _nUsedSlots = 0;
+        }
+
+        /**
+         * Check if a slot holds a guid
+         * @param nSlot The slot
+         * @param key The packed guid
+         * @return True if the slot holds the guid
+         */
+        private boolean matches( int nSlot, long[] key )
+        {
+            int nOffset = nSlot * WORDS_PER_GUID;
+
+            for ( int i = 0; i < WORDS_PER_GUID; i++ )
+            {
+                if ( _keys[nOffset + i] != key[i] )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Hash a packed guid
+         * @param key The packed guid
+         * @return The hash
+         */
+        private static int hash( long[] key )
+        {
+            long lHash = key[0];
+
+            for ( int i = 1; i < WORDS_PER_GUID; i++ )
+            {
+                lHash = ( lHash * 31 ) + key[i];
+            }
+
+            // Finalizer of MurmurHash3 to spread the bits
+            lHash ^= ( lHash >>> 33 );
+            lHash *= 0xff51afd7ed558ccdL;
+            lHash ^= ( lHash >>> 33 );
+            lHash *= 0xc4ceb9fe1a85ec53L;
+            lHash ^= ( lHash >>> 33 );
+
+            return (int) lHash;
+        }
+    }
+}
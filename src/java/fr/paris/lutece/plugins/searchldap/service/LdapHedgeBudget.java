@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Budget of the hedged requests. Each hedged operation earns a fraction of a
+ * hedge and each hedge spends a whole one, so that the extra requests sent to
+ * the directory stay below this fraction of the operations, with a small burst
+ * allowed. When the directory slows down as a whole, the budget is quickly
+ * spent and operations are no longer hedged, instead of doubling the load of
+ * an overloaded directory.
+ */
+public class LdapHedgeBudget
+{
+    private static final long UNIT = 1000L;
+    private static final long PERCENT = 100L;
+    private final long _lEarned;
+    private final long _lMax;
+    private final AtomicLong _lBalance;
+
+    /**
+     * Creates a new budget, full
+     * @param nPercent The maximum number of hedges per hundred operations
+     * @param nBurst The maximum number of hedges that can be saved
+     */
+    public LdapHedgeBudget( int nPercent, int nBurst )
+    {
+        _lEarned = ( UNIT * Math.max( 0, nPercent ) ) / PERCENT;
+        _lMax = UNIT * Math.max( 1, nBurst );
+        _lBalance = new AtomicLong( _lMax );
+    }
+
+    /**
+     * Earn the share of a hedged operation
+     */
+    public void deposit(  )
+    {
+        long lBalance;
+
+        do
+        {
+            lBalance = _lBalance.get(  );
+        }
+        while ( ( lBalance < _lMax ) && !_lBalance.compareAndSet( lBalance, Math.min( _lMax, lBalance + _lEarned ) ) );
+    }
+
+    /**
+     * Spend a hedge
+     * @return True if the budget allowed the hedge
+     */
+    public boolean tryWithdraw(  )
+    {
+        long lBalance;
+
+        do
+        {
+            lBalance = _lBalance.get(  );
+
+            if ( lBalance < UNIT )
+            {
+                return false;
+            }
+        }
+        while ( !_lBalance.compareAndSet( lBalance, lBalance - UNIT ) );
+
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+
+/**
+ * Latencies of the recent operations, for decisions that must follow the
+ * current latency of the servers, such as the hedge delay. Latencies are
+ * recorded in the histogram of the current period, which becomes the previous
+ * one when the period ends. Percentiles are computed over the previous and the
+ * current periods, so that latencies older than two periods are forgotten.
+ */
+public class LdapLatencyWindow
+{
+    private final long _lPeriod;
+    private volatile LdapLatencyHistogram _current = new LdapLatencyHistogram(  );
+    private volatile LdapLatencyHistogram _previous = new LdapLatencyHistogram(  );
+    private volatile long _lPeriodEnd;
+
+    /**
+     * Creates an empty window
+     * @param lPeriod The duration of a period in milliseconds
+     */
+    public LdapLatencyWindow( long lPeriod )
+    {
+        _lPeriod = Math.max( 1L, lPeriod );
+        _lPeriodEnd = System.currentTimeMillis(  ) + _lPeriod;
+    }
+
+    /**
+     * Record a latency
+     * @param lNanos The latency in nanoseconds
+     */
+    public void record( long lNanos )
+    {
+        rotate(  );
+        _current.record( lNanos );
+    }
+
+    /**
+     * Get the number of latencies of the previous and current periods
+     * @return The number of latencies
+     */
+    public long getCount(  )
+    {
+        rotate(  );
+
+        return _previous.getCount(  ) + _current.getCount(  );
+    }
+
+    /**
+     * Get a percentile of the latencies of the previous and current periods
+     * @param dPercentile The percentile, between 0 and 100
+     * @return The latency in milliseconds, or 0 if nothing was recorded
+     */
+    public double getPercentileMillis( double dPercentile )
+    {
+        rotate(  );
+
+        return LdapLatencyHistogram.getPercentileMillis( dPercentile, _previous, _current );
+    }
+
+    /**
+     * Start a new period if the current one ended
+     */
+    private void rotate(  )
+    {
+        long lNow = System.currentTimeMillis(  );
+
+        if ( lNow < _lPeriodEnd )
+        {
+            return;
+        }
+
+        synchronized ( this )
+        {
+            if ( lNow < _lPeriodEnd )
+            {
+                return;
+            }
+
+            // After a whole period without any latency, the current period is too old to be kept
+            _previous = ( lNow < ( _lPeriodEnd + _lPeriod ) ) ? _current : new LdapLatencyHistogram(  );
+            _current = new LdapLatencyHistogram(  );
+            _lPeriodEnd = lNow + _lPeriod;
+        }
+    }
+}
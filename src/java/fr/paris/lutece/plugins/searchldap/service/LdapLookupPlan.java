@@ -0,0 +1,876 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.naming.directory.InvalidSearchFilterException;
+import javax.naming.directory.SearchControls;
+
+
+/**
+ * Immutable plan of a user lookup, built once from the properties : the
+ * connection parameters, the compiled guid regular expression, the guid
+ * search filter split around its parameter, the search controls and the
+ * mapping of LDAP attributes to Lutece user attributes.
+ */
+public final class LdapLookupPlan
+{
+    // ldap
+    private static final String PROPERTY_INITIAL_CONTEXT_PROVIDER = "searchldap.ldap.initialContextProvider";
+    private static final String PROPERTY_PROVIDER_URL = "searchldap.ldap.connectionUrl";
+    private static final String PROPERTY_BIND_DN = "searchldap.ldap.connectionName";
+    private static final String PROPERTY_BIND_PASSWORD = "searchldap.ldap.connectionPassword";
+    private static final String PROPERTY_USER_DN_SEARCH_BASE = "searchldap.ldap.userBase";
+    private static final String PROPERTY_USER_DN_SEARCH_FILTER_BY_GUID = "searchldap.ldap.userSearch.guid";
+    private static final String PROPERTY_USER_SUBTREE = "searchldap.ldap.userSubtree";
+    private static final String PROPERTY_DN_ATTRIBUTE_GUID = "searchldap.ldap.dn.attributeName.guid";
+    private static final String PROPERTY_DN_ATTRIBUTE_LIST = "searchldap.ldap.dn.attributeName.list";
+    private static final String PROPERTY_DN_ATTRIBUTE_EMAIL = "searchldap.ldap.dn.attributeName.email";
+    private static final String PROPERTY_DN_ATTRIBUTE_PREFIXE = "searchldap.ldap.dn.attributeName.";
+    private static final String PROPERTY_LUTECE_USER_ATTRIBUTE_PROFIXE = "searchldap.luteceuser.attribute.";
+    private static final String PROPERTY_INTERNED_ATTRIBUTES = "searchldap.cache.internedAttributes";
+    private static final String PROPERTY_LUTECE_USER_ATTRIBUTE_EMAIL = "searchldap.luteceuser.attribute.email";
+    private static final String PROPERTY_GUID_REGEX = "searchldap.guid.regularexpression";
+    private static final String PROPERTY_USER_DN_SEARCH_FILTER_ALL = "searchldap.ldap.userSearch.all";
+    private static final String PROPERTY_BATCH_CHUNK_SIZE = "searchldap.ldap.batch.chunkSize";
+    private static final String PROPERTY_REPLICA_ENABLED = "searchldap.replica.enabled";
+    private static final String PROPERTY_REPLICA_FALLBACK = "searchldap.replica.fallbackToLiveSearch";
+    private static final String PROPERTY_REPLICA_PAGE_SIZE = "searchldap.replica.pageSize";
+    private static final String PROPERTY_REPLICA_ATTRIBUTE_MODIFY_TIMESTAMP = "searchldap.replica.attributeName.modifyTimestamp";
+    private static final String PROPERTY_REPLICA_FULL_SYNCHRONIZATION_INTERVAL = "searchldap.replica.fullSynchronizationInterval";
+    private static final String PROPERTY_SEARCH_PAGE_SIZE = "searchldap.ldap.search.pageSize";
+    private static final String PROPERTY_SEARCH_MAX_RESULTS = "searchldap.ldap.search.maxResults";
+    private static final String PROPERTY_INDEX_ENABLED = "searchldap.index.enabled";
+    private static final String PROPERTY_INDEX_ATTRIBUTES = "searchldap.index.attributes";
+    private static final String PROPERTY_INDEX_CAPACITY = "searchldap.index.capacity";
+    private static final String PROPERTY_EXPORT_PAGE_SIZE = "searchldap.export.pageSize";
+    private static final String PROPERTY_GROUPS_ENABLED = "searchldap.groups.enabled";
+    private static final String PROPERTY_GROUPS_AS_ROLES = "searchldap.groups.setRoles";
+    private static final String PROPERTY_DN_ATTRIBUTE_MEMBER_OF = "searchldap.ldap.dn.attributeName.memberOf";
+    private static final String PROPERTY_GROUP_DN_SEARCH_BASE = "searchldap.ldap.groupBase";
+    private static final String PROPERTY_GROUP_DN_SEARCH_FILTER_ALL = "searchldap.ldap.groupSearch.all";
+    private static final String PROPERTY_GROUP_ATTRIBUTE_NAME = "searchldap.ldap.group.attributeName.name";
+    private static final String DEFAULT_ATTRIBUTE_MEMBER_OF = "memberOf";
+    private static final String DEFAULT_GROUP_SEARCH_FILTER_ALL = "(|(objectClass=groupOfNames)(objectClass=groupOfUniqueNames)(objectClass=group))";
+    private static final String DEFAULT_GROUP_ATTRIBUTE_NAME = "cn";
+    private static final String DEFAULT_ATTRIBUTE_MODIFY_TIMESTAMP = "modifyTimestamp";
+    private static final String DEFAULT_INDEX_ATTRIBUTES = "user.name.family,user.name.given,user.business-info.online.email";
+    private static final int DEFAULT_SEARCH_PAGE_SIZE = 100;
+    private static final int DEFAULT_SEARCH_MAX_RESULTS = 1000;
+    private static final int DEFAULT_INDEX_CAPACITY = 100000;
+    private static final String DEFAULT_INTERNED_ATTRIBUTES = "user.name.family,user.name.given";
+    private static final int DEFAULT_REPLICA_FULL_SYNCHRONIZATION_INTERVAL = 86400;
+    private static final long MILLISECONDS_PER_SECOND = 1000L;
+    private static final int DEFAULT_BATCH_CHUNK_SIZE = 50;
+    private static final int DEFAULT_REPLICA_PAGE_SIZE = 500;
+    private static final int DEFAULT_EXPORT_PAGE_SIZE = 500;
+    private static final String FILTER_PRESENT = "=*";
+    private static final String FILTER_EQUAL = "=";
+    private static final String FILTER_ANY = "*";
+    private static final String CONSTANT_COMMA = ",";
+    private static final String FILTER_PARAMETER = "{0}";
+    private static final String FILTER_PREFIX = "(";
+    private static final String FILTER_OR_PREFIX = "(|";
+    private static final String FILTER_AND_PREFIX = "(&";
+    private static final String FILTER_GREATER_OR_EQUAL = ">=";
+    private static final String FILTER_SUFFIX = ")";
+    private final String _strInitialContextProvider;
+    private final String _strProviderUrl;
+    private final List<String> _listProviderUrls;
+    private final String _strBindDn;
+    private final String _strBindPassword;
+    private final String _strUserSearchBase;
+    private final String[] _guidFilterParts;
+    private final String _strAllUsersFilter;
+    private final boolean _bReplicaEnabled;
+    private final boolean _bReplicaFallback;
+    private final int _nReplicaPageSize;
+    private final int _nExportPageSize;
+    private final String _strModifyTimestampAttribute;
+    private final long _lReplicaFullSynchronizationInterval;
+    private final SearchControls _pagedSearchControls;
+    private final Pattern _guidPattern;
+    private final int _nBatchChunkSize;
+    private final SearchControls _userSearchControls;
+    private final SearchControls _batchSearchControls;
+    private final String _strGuidAttribute;
+    private final String _strEmailAttribute;
+    private final String _strEmailLuteceUserAttribute;
+    private final String[] _ldapAttributes;
+    private final String[] _luteceUserAttributes;
+    private final boolean[] _internedAttributes;
+    private final int _nSearchPageSize;
+    private final int _nSearchMaxResults;
+    private final boolean _bIndexEnabled;
+    private final String[] _indexedAttributes;
+    private final int _nIndexCapacity;
+    private final String _strMemberOfAttribute;
+    private final boolean _bGroupsAsRoles;
+    private final String _strGroupSearchBase;
+    private final String _strGroupSearchFilter;
+    private final String _strGroupNameAttribute;
+    private final SearchControls _groupSearchControls;
+
+    /**
+     * Creates a new plan from the properties
+     */
+    private LdapLookupPlan(  )
+    {
+        _strInitialContextProvider = AppPropertiesService.getProperty( PROPERTY_INITIAL_CONTEXT_PROVIDER );
+        _strProviderUrl = AppPropertiesService.getProperty( PROPERTY_PROVIDER_URL );
+        _listProviderUrls = Collections.unmodifiableList( Arrays.asList( StringUtils.split(
+                        StringUtils.defaultString( _strProviderUrl ) ) ) );
+        _strBindDn = AppPropertiesService.getProperty( PROPERTY_BIND_DN );
+        _strBindPassword = AppPropertiesService.getProperty( PROPERTY_BIND_PASSWORD );
+        _strUserSearchBase = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_BASE );
+        _guidFilterParts = splitFilter( AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_FILTER_BY_GUID ) );
+
+        String strRegEx = AppPropertiesService.getProperty( PROPERTY_GUID_REGEX );
+        _guidPattern = StringUtils.isEmpty( strRegEx ) ? null : Pattern.compile( strRegEx );
+        _nBatchChunkSize = Math.max( 1,
+                AppPropertiesService.getPropertyInt( PROPERTY_BATCH_CHUNK_SIZE, DEFAULT_BATCH_CHUNK_SIZE ) );
+
+        _strGuidAttribute = AppPropertiesService.getProperty( PROPERTY_DN_ATTRIBUTE_GUID );
+        _strEmailAttribute = AppPropertiesService.getProperty( PROPERTY_DN_ATTRIBUTE_EMAIL );
+        _strEmailLuteceUserAttribute = AppPropertiesService.getProperty( PROPERTY_LUTECE_USER_ATTRIBUTE_EMAIL );
+        _strMemberOfAttribute = AppPropertiesService.getPropertyBoolean( PROPERTY_GROUPS_ENABLED, false )
+            ? AppPropertiesService.getProperty( PROPERTY_DN_ATTRIBUTE_MEMBER_OF, DEFAULT_ATTRIBUTE_MEMBER_OF ) : null;
+        _bGroupsAsRoles = AppPropertiesService.getPropertyBoolean( PROPERTY_GROUPS_AS_ROLES, false );
+
+        String strGroupSearchBase = AppPropertiesService.getProperty( PROPERTY_GROUP_DN_SEARCH_BASE );
+        _strGroupSearchBase = StringUtils.isNotEmpty( strGroupSearchBase ) ? strGroupSearchBase : _strUserSearchBase;
+        _strGroupSearchFilter = AppPropertiesService.getProperty( PROPERTY_GROUP_DN_SEARCH_FILTER_ALL,
+                DEFAULT_GROUP_SEARCH_FILTER_ALL );
+        _strGroupNameAttribute = AppPropertiesService.getProperty( PROPERTY_GROUP_ATTRIBUTE_NAME,
+                DEFAULT_GROUP_ATTRIBUTE_NAME );
+        _groupSearchControls = new SearchControls( SearchControls.SUBTREE_SCOPE, 0, 0,
+                ( _strMemberOfAttribute == null ) ? new String[] { _strGroupNameAttribute }
+                                                  : new String[] { _strGroupNameAttribute, _strMemberOfAttribute },
+                false, false );
+
+        List<String> listLdapAttributes = new ArrayList<String>(  );
+        List<String> listLuteceUserAttributes = new ArrayList<String>(  );
+        String strListAttributes = AppPropertiesService.getProperty( PROPERTY_DN_ATTRIBUTE_LIST );
+
+        if ( StringUtils.isNotEmpty( strListAttributes ) )
+        {
+            for ( String strAttribute : strListAttributes.split( CONSTANT_COMMA ) )
+            {
+                String strLdapAttribute = AppPropertiesService.getProperty( PROPERTY_DN_ATTRIBUTE_PREFIXE +
+                        strAttribute );
+                String strLuteceUserAttribute = AppPropertiesService.getProperty( PROPERTY_LUTECE_USER_ATTRIBUTE_PROFIXE +
+                        strAttribute );
+
+                if ( StringUtils.isNotEmpty( strLdapAttribute ) && StringUtils.isNotEmpty( strLuteceUserAttribute ) &&
+                        !listLdapAttributes.contains( strLdapAttribute ) )
+                {
+                    listLdapAttributes.add( strLdapAttribute );
+                    listLuteceUserAttributes.add( strLuteceUserAttribute );
+                }
+            }
+        }
+
+        _ldapAttributes = listLdapAttributes.toArray( new String[listLdapAttributes.size(  )] );
+        _luteceUserAttributes = listLuteceUserAttributes.toArray( new String[listLuteceUserAttributes.size(  )] );
+
+        List<String> listInternedAttributes = Arrays.asList( AppPropertiesService.getProperty( 
+                    PROPERTY_INTERNED_ATTRIBUTES, DEFAULT_INTERNED_ATTRIBUTES ).split( CONSTANT_COMMA ) );
+        _internedAttributes = new boolean[_luteceUserAttributes.length];
+
+        for ( int i = 0; i < _luteceUserAttributes.length; i++ )
+        {
+            _internedAttributes[i] = listInternedAttributes.contains( _luteceUserAttributes[i] );
+        }
+
+        int nSearchScope = Boolean.parseBoolean( AppPropertiesService.getProperty( PROPERTY_USER_SUBTREE ) )
+            ? SearchControls.SUBTREE_SCOPE : SearchControls.ONELEVEL_SCOPE;
+        String[] returningAttributes = getReturningAttributes(  );
+        _userSearchControls = new SearchControls( nSearchScope, 1, 0, returningAttributes, false, false );
+        _batchSearchControls = new SearchControls( nSearchScope, _nBatchChunkSize, 0, returningAttributes, false,
+                false );
+        _strModifyTimestampAttribute = AppPropertiesService.getProperty( PROPERTY_REPLICA_ATTRIBUTE_MODIFY_TIMESTAMP,
+                DEFAULT_ATTRIBUTE_MODIFY_TIMESTAMP );
+        _lReplicaFullSynchronizationInterval = AppPropertiesService.getPropertyInt( PROPERTY_REPLICA_FULL_SYNCHRONIZATION_INTERVAL,
+                DEFAULT_REPLICA_FULL_SYNCHRONIZATION_INTERVAL ) * MILLISECONDS_PER_SECOND;
+
+        // Operational attributes such as the modification timestamp are only returned when requested
+        String[] pagedReturningAttributes = new String[returningAttributes.length + 1];
+        System.arraycopy( returningAttributes, 0, pagedReturningAttributes, 0, returningAttributes.length );
+        pagedReturningAttributes[returningAttributes.length] = _strModifyTimestampAttribute;
+        _pagedSearchControls = new SearchControls( nSearchScope, 0, 0, pagedReturningAttributes, false, false );
+
+        String strAllUsersFilter = AppPropertiesService.getProperty( PROPERTY_USER_DN_SEARCH_FILTER_ALL );
+        _strAllUsersFilter = StringUtils.isNotEmpty( strAllUsersFilter ) ? strAllUsersFilter
+                                                                         : ( FILTER_PREFIX + _strGuidAttribute +
+            FILTER_PRESENT + FILTER_SUFFIX );
+        _bReplicaEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_REPLICA_ENABLED, false );
+        _bReplicaFallback = AppPropertiesService.getPropertyBoolean( PROPERTY_REPLICA_FALLBACK, true );
+        _nReplicaPageSize = Math.max( 1,
+                AppPropertiesService.getPropertyInt( PROPERTY_REPLICA_PAGE_SIZE, DEFAULT_REPLICA_PAGE_SIZE ) );
+        _nExportPageSize = Math.max( 1,
+                AppPropertiesService.getPropertyInt( PROPERTY_EXPORT_PAGE_SIZE, DEFAULT_EXPORT_PAGE_SIZE ) );
+        _nSearchPageSize = Math.max( 1,
+                AppPropertiesService.getPropertyInt( PROPERTY_SEARCH_PAGE_SIZE, DEFAULT_SEARCH_PAGE_SIZE ) );
+        _nSearchMaxResults = Math.max( 1,
+                AppPropertiesService.getPropertyInt( PROPERTY_SEARCH_MAX_RESULTS, DEFAULT_SEARCH_MAX_RESULTS ) );
+        _bIndexEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_INDEX_ENABLED, _bReplicaEnabled );
+        _indexedAttributes = AppPropertiesService.getProperty( PROPERTY_INDEX_ATTRIBUTES, DEFAULT_INDEX_ATTRIBUTES )
+                                                 .split( CONSTANT_COMMA );
+        _nIndexCapacity = Math.max( 1,
+                AppPropertiesService.getPropertyInt( PROPERTY_INDEX_CAPACITY, DEFAULT_INDEX_CAPACITY ) );
+    }
+
+    /**
+     * Build a plan from the current properties
+     * @return The plan
+     */
+    public static LdapLookupPlan load(  )
+    {
+        return new LdapLookupPlan(  );
+    }
+
+    /**
+     * Check if a name matches the guid regular expression
+     * @param strName The name
+     * @return True if no regular expression is configured or if the name
+     *         matches it
+     */
+    public boolean isValidGuid( String strName )
+    {
+        return ( _guidPattern == null ) || _guidPattern.matcher( strName ).matches(  );
+    }
+
+    /**
+     * Get the filter to search a user by guid
+     * @param strGuid The guid
+     * @return The search filter
+     */
+    public String getGuidFilter( String strGuid )
+    {
+        StringBuilder sbFilter = new StringBuilder(  );
+        appendGuidFilter( sbFilter, strGuid );
+
+        return sbFilter.toString(  );
+    }
+
+    /**
+     * Get a filter that matches any of the given guids
+     * @param listGuids The guids
+     * @return The search filter
+     */
+    public String getGuidsFilter( List<String> listGuids )
+    {
+        if ( listGuids.size(  ) == 1 )
+        {
+            return getGuidFilter( listGuids.get( 0 ) );
+        }
+
+        StringBuilder sbFilter = new StringBuilder( FILTER_OR_PREFIX );
+
+        for ( String strGuid : listGuids )
+        {
+            appendGuidFilter( sbFilter, strGuid );
+        }
+
+        sbFilter.append( FILTER_SUFFIX );
+
+        return sbFilter.toString(  );
+    }
+
+    /**
+     * Get a filter matching the users whose attributes have the given values
+     * @param mapCriteria The values, associated with the name of the Lutece
+     *            user attribute they are compared to
+     * @param bPrefixMatch True to match the attributes starting with the
+     *            values, false to match the attributes equal to the values
+     * @return The search filter
+     * @throws InvalidSearchFilterException If there is no criteria or if an
+     *             attribute is not mapped to a LDAP attribute
+     */
+    public String getAttributesFilter( Map<String, String> mapCriteria, boolean bPrefixMatch )
+        throws InvalidSearchFilterException
+    {
+        if ( mapCriteria.isEmpty(  ) )
+        {
+            throw new InvalidSearchFilterException( "A search by attribute needs at least one criteria" );
+        }
+
+        StringBuilder sbFilter = new StringBuilder( FILTER_AND_PREFIX );
+        sbFilter.append( _strAllUsersFilter );
+
+        for ( Map.Entry<String, String> criteria : mapCriteria.entrySet(  ) )
+        {
+            String strLdapAttribute = getLdapAttribute( criteria.getKey(  ) );
+
+            if ( strLdapAttribute == null )
+            {
+                throw new InvalidSearchFilterException( "Attribute " + criteria.getKey(  ) +
+                    " is not mapped to a LDAP attribute" );
+            }
+
+            sbFilter.append( FILTER_PREFIX ).append( strLdapAttribute ).append( FILTER_EQUAL );
+            LdapUtil.appendEscapedFilterValue( sbFilter, StringUtils.defaultString( criteria.getValue(  ) ) );
+
+            if ( bPrefixMatch )
+            {
+                sbFilter.append( FILTER_ANY );
+            }
+
+            sbFilter.append( FILTER_SUFFIX );
+        }
+
+        sbFilter.append( FILTER_SUFFIX );
+
+        return sbFilter.toString(  );
+    }
+
+    /**
+     * Get the LDAP attribute mapped to a Lutece user attribute
+     * @param strLuteceUserAttribute The name of the Lutece user attribute
+     * @return The name of the LDAP attribute, or null if the attribute is not
+     *         mapped
+     */
+    public String getLdapAttribute( String strLuteceUserAttribute )
+    {
+        if ( ( strLuteceUserAttribute != null ) && strLuteceUserAttribute.equals( _strEmailLuteceUserAttribute ) )
+        {
+            return _strEmailAttribute;
+        }
+
+        for ( int i = 0; i < _luteceUserAttributes.length; i++ )
+        {
+            if ( _luteceUserAttributes[i].equals( strLuteceUserAttribute ) )
+            {
+                return _ldapAttributes[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the controls of a search by attribute
+     * @param nCountLimit The maximum number of entries returned by the server
+     * @return New search controls
+     */
+    public SearchControls getAttributeSearchControls( int nCountLimit )
+    {
+        return new SearchControls( _userSearchControls.getSearchScope(  ), nCountLimit, 0,
+            _userSearchControls.getReturningAttributes(  ), false, false );
+    }
+
+    /**
+     * Get the number of users per page, and per batch, of an export
+     * @return The page size
+     */
+    public int getExportPageSize(  )
+    {
+        return _nExportPageSize;
+    }
+
+    /**
+     * Get the number of entries per page of a search by attribute
+     * @return The page size
+     */
+    public int getSearchPageSize(  )
+    {
+        return _nSearchPageSize;
+    }
+
+    /**
+     * Get the maximum number of users returned by a search by attribute
+     * @return The maximum number of users
+     */
+    public int getSearchMaxResults(  )
+    {
+        return _nSearchMaxResults;
+    }
+
+    /**
+     * Check if the known users are indexed by the start of their names
+     * @return True if the index is enabled
+     */
+    public boolean isIndexEnabled(  )
+    {
+        return _bIndexEnabled;
+    }
+
+    /**
+     * Get the Lutece user attributes of the index of the known users
+     * @return The attributes
+     */
+    public String[] getIndexedAttributes(  )
+    {
+        return _indexedAttributes.clone(  );
+    }
+
+    /**
+     * Get the maximum number of users of the index of the known users
+     * @return The capacity of the index
+     */
+    public int getIndexCapacity(  )
+    {
+        return _nIndexCapacity;
+    }
+
+    /**
+     * Get the initial context provider
+     * @return The initial context provider
+     */
+    public String getInitialContextProvider(  )
+    {
+        return _strInitialContextProvider;
+    }
+
+    /**
+     * Get the provider url
+     * @return The provider URL
+     */
+    public String getProviderUrl(  )
+    {
+        return _strProviderUrl;
+    }
+
+    /**
+     * Get the URLs of the servers listed in the provider URL, separated by
+     * spaces
+     * @return The URLs of the servers
+     */
+    public List<String> getProviderUrls(  )
+    {
+        return _listProviderUrls;
+    }
+
+    /**
+     * get the bind dn
+     * @return the user name to access the LDAP
+     */
+    public String getBindDn(  )
+    {
+        return _strBindDn;
+    }
+
+    /**
+     * Get the bind password
+     * @return The password to access the LDAP
+     */
+    public String getBindPassword(  )
+    {
+        return _strBindPassword;
+    }
+
+    /**
+     * Get the base user dn
+     * @return The DN search base
+     */
+    public String getUserSearchBase(  )
+    {
+        return _strUserSearchBase;
+    }
+
+    /**
+     * Get the maximum number of guids to search with a single search
+     * @return The chunk size
+     */
+    public int getBatchChunkSize(  )
+    {
+        return _nBatchChunkSize;
+    }
+
+    /**
+     * Get the controls of a search by guid. The returned controls are shared
+     * and must not be modified.
+     * @return The search controls
+     */
+    public SearchControls getUserSearchControls(  )
+    {
+        return _userSearchControls;
+    }
+
+    /**
+     * Get the controls of a search by guid with a time limit. The server
+     * counts time limits in whole seconds and the provider truncates them, so
+     * the limit is rounded up to the next second : a limit under a second
+     * would otherwise be sent as 0, which means no limit.
+     * @param nTimeLimit The time limit of the search, in milliseconds
+     * @return New search controls
+     */
+    public SearchControls getUserSearchControls( int nTimeLimit )
+    {
+        long lTimeLimit = nTimeLimit;
+
+        if ( lTimeLimit > 0 )
+        {
+            lTimeLimit = Math.min( Integer.MAX_VALUE,
+                    ( ( lTimeLimit + MILLISECONDS_PER_SECOND ) - 1 ) / MILLISECONDS_PER_SECOND * MILLISECONDS_PER_SECOND );
+        }
+
+        return new SearchControls( _userSearchControls.getSearchScope(  ), _userSearchControls.getCountLimit(  ),
+            (int) lTimeLimit, _userSearchControls.getReturningAttributes(  ), false, false );
+    }
+
+    /**
+     * Get the controls of a search of a chunk of guids. The returned controls
+     * are shared and must not be modified.
+     * @return The search controls
+     */
+    public SearchControls getBatchSearchControls(  )
+    {
+        return _batchSearchControls;
+    }
+
+    /**
+     * Get the controls of a paged search over the users. The returned
+     * controls are shared and must not be modified.
+     * @return The search controls
+     */
+    public SearchControls getPagedSearchControls(  )
+    {
+        return _pagedSearchControls;
+    }
+
+    /**
+     * Get the filter matching every user
+     * @return The search filter
+     */
+    public String getAllUsersFilter(  )
+    {
+        return _strAllUsersFilter;
+    }
+
+    /**
+     * Get a filter matching the users modified since a given time
+     * @param strTimestamp The time in generalized time format
+     * @return The search filter
+     */
+    public String getUsersModifiedSinceFilter( String strTimestamp )
+    {
+        StringBuilder sbFilter = new StringBuilder( FILTER_AND_PREFIX );
+        sbFilter.append( _strAllUsersFilter ).append( FILTER_PREFIX ).append( _strModifyTimestampAttribute )
+                .append( FILTER_GREATER_OR_EQUAL );
+        LdapUtil.appendEscapedFilterValue( sbFilter, strTimestamp );
+        sbFilter.append( FILTER_SUFFIX ).append( FILTER_SUFFIX );
+
+        return sbFilter.toString(  );
+    }
+
+    /**
+     * Get the LDAP attribute holding the modification timestamp of entries
+     * @return The modification timestamp attribute
+     */
+    public String getModifyTimestampAttribute(  )
+    {
+        return _strModifyTimestampAttribute;
+    }
+
+    /**
+     * Get the interval between two full synchronizations of the replica.
+     * Incremental synchronizations do not see deleted users, so a full
+     * synchronization is run regularly.
+     * @return The interval in milliseconds
+     */
+    public long getReplicaFullSynchronizationInterval(  )
+    {
+        return _lReplicaFullSynchronizationInterval;
+    }
+
+    /**
+     * Check if lookups are answered by the local replica of the users
+     * @return True if the replica is enabled
+     */
+    public boolean isReplicaEnabled(  )
+    {
+        return _bReplicaEnabled;
+    }
+
+    /**
+     * Check if users that are not in the replica are searched in the LDAP
+     * @return True if a miss of the replica falls back to a LDAP search
+     */
+    public boolean isReplicaFallbackEnabled(  )
+    {
+        return _bReplicaFallback;
+    }
+
+    /**
+     * Get the number of entries per page when the replica is synchronized
+     * @return The page size
+     */
+    public int getReplicaPageSize(  )
+    {
+        return _nReplicaPageSize;
+    }
+
+    /**
+     * Get the LDAP attribute holding the guid
+     * @return The guid attribute
+     */
+    public String getGuidAttribute(  )
+    {
+        return _strGuidAttribute;
+    }
+
+    /**
+     * Get the LDAP attribute holding the email
+     * @return The email attribute
+     */
+    public String getEmailAttribute(  )
+    {
+        return _strEmailAttribute;
+    }
+
+    /**
+     * Get the Lutece user attribute holding the email
+     * @return The email attribute of Lutece users
+     */
+    public String getEmailLuteceUserAttribute(  )
+    {
+        return _strEmailLuteceUserAttribute;
+    }
+
+    /**
+     * Get the number of mapped attributes
+     * @return The number of mapped attributes
+     */
+    public int getMappedAttributeCount(  )
+    {
+        return _ldapAttributes.length;
+    }
+
+    /**
+     * Get the LDAP attribute of a mapped attribute
+     * @param nIndex The index of the mapped attribute
+     * @return The LDAP attribute
+     */
+    public String getLdapAttribute( int nIndex )
+    {
+        return _ldapAttributes[nIndex];
+    }
+
+    /**
+     * Get the Lutece user attribute of a mapped attribute
+     * @param nIndex The index of the mapped attribute
+     * @return The Lutece user attribute
+     */
+    public String getLuteceUserAttribute( int nIndex )
+    {
+        return _luteceUserAttributes[nIndex];
+    }
+
+    /**
+     * Check if the groups of the users are read
+     * @return True if the groups are read
+     */
+    public boolean isGroupsEnabled(  )
+    {
+        return _strMemberOfAttribute != null;
+    }
+
+    /**
+     * Get the LDAP attribute holding the DN of the groups of an entry, on
+     * users and on nested groups
+     * @return The attribute, or null if the groups are not read
+     */
+    public String getMemberOfAttribute(  )
+    {
+        return _strMemberOfAttribute;
+    }
+
+    /**
+     * Check if the names of the groups of a user are also its roles
+     * @return True if the groups are set as roles
+     */
+    public boolean isGroupsAsRoles(  )
+    {
+        return _bGroupsAsRoles;
+    }
+
+    /**
+     * Get the base of the search of the groups
+     * @return The group search base
+     */
+    public String getGroupSearchBase(  )
+    {
+        return _strGroupSearchBase;
+    }
+
+    /**
+     * Get the filter matching every group
+     * @return The search filter
+     */
+    public String getGroupSearchFilter(  )
+    {
+        return _strGroupSearchFilter;
+    }
+
+    /**
+     * Get the LDAP attribute holding the name of a group
+     * @return The group name attribute
+     */
+    public String getGroupNameAttribute(  )
+    {
+        return _strGroupNameAttribute;
+    }
+
+    /**
+     * Get the controls of the paged search of the groups. The returned
+     * controls are shared and must not be modified.
+     * @return The search controls
+     */
+    public SearchControls getGroupSearchControls(  )
+    {
+        return _groupSearchControls;
+    }
+
+    /**
+     * Get the Lutece user attributes of the mapped attributes. The array is
+     * shared by the compact records of the users and must not be modified.
+     * @return The Lutece user attributes, in the order of the mapping
+     */
+    String[] getLuteceUserAttributes(  )
+    {
+        return _luteceUserAttributes;
+    }
+
+    /**
+     * Get the mapped attributes whose values are shared by the compact
+     * records of the users. The array is shared and must not be modified.
+     * @return True at the index of each mapped attribute whose values are
+     *         interned, in the order of the mapping
+     */
+    boolean[] getInternedAttributes(  )
+    {
+        return _internedAttributes;
+    }
+
+    /**
+     * Get a hash of the attribute mapping and of the user base. Data built
+     * with a plan that has another hash must not be reused.
+     * @return The hash
+     */
+    public int getMappingHash(  )
+    {
+        int nHash = String.valueOf( _strUserSearchBase ).hashCode(  );
+        nHash = ( 31 * nHash ) + String.valueOf( _strGuidAttribute ).hashCode(  );
+        nHash = ( 31 * nHash ) + String.valueOf( _strEmailAttribute ).hashCode(  );
+        nHash = ( 31 * nHash ) + String.valueOf( _strEmailLuteceUserAttribute ).hashCode(  );
+        nHash = ( 31 * nHash ) + Arrays.hashCode( _ldapAttributes );
+        nHash = ( 31 * nHash ) + Arrays.hashCode( _luteceUserAttributes );
+        nHash = ( 31 * nHash ) + String.valueOf( _strMemberOfAttribute ).hashCode(  );
+
+        return nHash;
+    }
+
+    /**
+     * Get the LDAP attributes to fetch : the guid, the email and the mapped
+     * attributes
+     * @return The attributes
+     */
+    private String[] getReturningAttributes(  )
+    {
+        Set<String> setAttributes = new LinkedHashSet<String>(  );
+
+        if ( StringUtils.isNotEmpty( _strGuidAttribute ) )
+        {
+            setAttributes.add( _strGuidAttribute );
+        }
+
+        if ( StringUtils.isNotEmpty( _strEmailAttribute ) )
+        {
+            setAttributes.add( _strEmailAttribute );
+        }
+
+        for ( String strLdapAttribute : _ldapAttributes )
+        {
+            setAttributes.add( strLdapAttribute );
+        }
+
+        if ( _strMemberOfAttribute != null )
+        {
+            setAttributes.add( _strMemberOfAttribute );
+        }
+
+        return setAttributes.toArray( new String[setAttributes.size(  )] );
+    }
+
+    /**
+     * Append the filter of a guid to a filter being built
+     * @param sbFilter The filter being built
+     * @param strGuid The guid
+     */
+    private void appendGuidFilter( StringBuilder sbFilter, String strGuid )
+    {
+        sbFilter.append( _guidFilterParts[0] );
+
+        for ( int i = 1; i < _guidFilterParts.length; i++ )
+        {
+            LdapUtil.appendEscapedFilterValue( sbFilter, strGuid );
+            sbFilter.append( _guidFilterParts[i] );
+        }
+    }
+
+    /**
+     * Split a filter around its parameter
+     * @param strFilter The filter
+     * @return The parts of the filter, in order
+     */
+    private static String[] splitFilter( String strFilter )
+    {
+        List<String> listParts = new ArrayList<String>(  );
+        String strRemaining = StringUtils.isEmpty( strFilter ) ? StringUtils.EMPTY : strFilter;
+        int nIndex;
+
+        while ( ( nIndex = strRemaining.indexOf( FILTER_PARAMETER ) ) >= 0 )
+        {
+            listParts.add( strRemaining.substring( 0, nIndex ) );
+            strRemaining = strRemaining.substring( nIndex + FILTER_PARAMETER.length(  ) );
+        }
+
+        listParts.add( strRemaining );
+
+        return listParts.toArray( new String[listParts.size(  )] );
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+
+/**
+ * Counters and latency histograms of the lookup pipeline. Recording is lock
+ * free so that it can be done on every lookup.
+ */
+public final class LdapMetrics
+{
+    /**
+     * Timed stage of a lookup
+     */
+    public enum Stage
+    {
+        /** Whole lookup of a user by the browser */
+        LOOKUP,
+        /** Borrow of a bound context from the pool of a server */
+        CONTEXT,
+        /** LDAP search request */
+        SEARCH,
+        /** Read of the search results, including their mapping */
+        ITERATION,
+        /** Mapping of an entry to a user */
+        MAPPING,
+        /** Attempt of a hedged operation on a server, until its result */
+        HEDGED_ATTEMPT;
+    }
+
+    /**
+     * Counted event
+     */
+    public enum Counter
+    {
+        /** Lookup answered by the cache of users */
+        USER_CACHE_HIT,
+        /** Lookup not answered by the cache of users */
+        USER_CACHE_MISS,
+        /** Lookup answered by the cache of users not found */
+        NOT_FOUND_CACHE_HIT,
+        /** Lookup not answered by the cache of users not found */
+        NOT_FOUND_CACHE_MISS,
+        /** Name rejected by the guid regular expression */
+        INVALID_GUID,
+        /** Name looked up through the user provider, alone or in a batch */
+        LOOKUP_REQUEST,
+        /** Operation sent to an LDAP server, failovers included */
+        LDAP_OPERATION,
+        /** Lookup answered by the shared cache tier */
+        SHARED_CACHE_HIT,
+        /** Lookup not answered by the shared cache tier */
+        SHARED_CACHE_MISS,
+        /** Invalidation received from the invalidation bus */
+        INVALIDATION_RECEIVED,
+        /** Interactive operation rejected by the bulkhead */
+        INTERACTIVE_REJECTED,
+        /** Background operation rejected by the bulkhead */
+        BACKGROUND_REJECTED,
+        /** Background operation delayed by the rate limit */
+        BACKGROUND_THROTTLED,
+        /** Hedge sent to a second server */
+        HEDGE_SENT,
+        /** Hedged operation answered first by its hedge */
+        HEDGE_WON,
+        /** Hedge not sent because the hedge budget was spent */
+        HEDGE_BUDGET_EXHAUSTED,
+        /** Hedge not sent because no permit of the bulkhead or no thread was free */
+        HEDGE_SKIPPED;
+    }
+
+    /**
+     * Type of error of an LDAP operation
+     */
+    public enum ErrorType
+    {
+        /** The server could not be reached */
+        COMMUNICATION,
+        /** The server or its pool of contexts was unavailable */
+        SERVICE_UNAVAILABLE,
+        /** Every server had its circuit open */
+        CIRCUIT_OPEN,
+        /** The operation exceeded its time limit */
+        TIME_LIMIT,
+        /** The operation was interrupted */
+        INTERRUPTED,
+        /** Any other LDAP error */
+        NAMING,
+        /** Unexpected error */
+        RUNTIME;
+    }
+
+    private static final LdapMetrics _singleton = new LdapMetrics(  );
+    private final Map<Stage, LdapLatencyHistogram> _mapHistograms = new EnumMap<Stage, LdapLatencyHistogram>( Stage.class );
+    private final Map<Counter, LongAdder> _mapCounters = new EnumMap<Counter, LongAdder>( Counter.class );
+    private final Map<ErrorType, LongAdder> _mapErrors = new EnumMap<ErrorType, LongAdder>( ErrorType.class );
+
+    /**
+     * Creates the metrics. Maps are filled once and only read afterwards.
+     */
+    private LdapMetrics(  )
+    {
+        for ( Stage stage : Stage.values(  ) )
+        {
+            _mapHistograms.put( stage, new LdapLatencyHistogram(  ) );
+        }
+
+        for ( Counter counter : Counter.values(  ) )
+        {
+            _mapCounters.put( counter, new LongAdder(  ) );
+        }
+
+        for ( ErrorType errorType : ErrorType.values(  ) )
+        {
+            _mapErrors.put( errorType, new LongAdder(  ) );
+        }
+    }
+
+    /**
+     * Get the instance of the metrics
+     * @return The instance
+     */
+    public static LdapMetrics getInstance(  )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Start timing a stage
+     * @return The start time to give to {@link #recordStage(Stage, long)}
+     */
+    public long startTimer(  )
+    {
+        return System.nanoTime(  );
+    }
+
+    /**
+     * Record the duration of a stage
+     * @param stage The stage
+     * @param lStart The start time returned by {@link #startTimer()}
+     * @return The end time, which may be used as the start time of the next
+     *         stage
+     */
+    public long recordStage( Stage stage, long lStart )
+    {
+        long lEnd = System.nanoTime(  );
+        _mapHistograms.get( stage ).record( lEnd - lStart );
+
+        return lEnd;
+    }
+
+    /**
+     * Record a duration of a stage
+     * @param stage The stage
+     * @param lNanos The duration in nanoseconds
+     */
+    public void recordDuration( Stage stage, long lNanos )
+    {
+        _mapHistograms.get( stage ).record( lNanos );
+    }
+
+    /**
+     * Count an event
+     * @param counter The counter of the event
+     */
+    public void increment( Counter counter )
+    {
+        _mapCounters.get( counter ).increment(  );
+    }
+
+    /**
+     * Count several events
+     * @param counter The counter of the events
+     * @param lCount The number of events
+     */
+    public void add( Counter counter, long lCount )
+    {
+        _mapCounters.get( counter ).add( lCount );
+    }
+
+    /**
+     * Count an error of an LDAP operation
+     * @param e The error
+     */
+    public void recordError( Throwable e )
+    {
+        _mapErrors.get( getErrorType( e ) ).increment(  );
+    }
+
+    /**
+     * Count an error of a given type
+     * @param errorType The type of the error
+     */
+    public void recordError( ErrorType errorType )
+    {
+        _mapErrors.get( errorType ).increment(  );
+    }
+
+    /**
+     * Get the histogram of a stage
+     * @param stage The stage
+     * @return The histogram
+     */
+    public LdapLatencyHistogram getHistogram( Stage stage )
+    {
+        return _mapHistograms.get( stage );
+    }
+
+    /**
+     * Get the value of a counter
+     * @param counter The counter
+     * @return The number of events
+     */
+    public long getCount( Counter counter )
+    {
+        return _mapCounters.get( counter ).sum(  );
+    }
+
+    /**
+     * Get the average number of LDAP operations per name looked up. Lookups
+     * answered by a cache or the replica lower the ratio, failovers and
+     * searches of the synchronizations raise it.
+     * @return The number of operations per lookup, or 0 if nothing was looked
+     *         up
+     */
+    public double getLdapOperationsPerLookup(  )
+    {
+        long lLookups = getCount( Counter.LOOKUP_REQUEST );
+
+        return ( lLookups == 0L ) ? 0d : ( (double) getCount( Counter.LDAP_OPERATION ) / lLookups );
+    }
+
+    /**
+     * Get the number of errors of a type
+     * @param errorType The type of error
+     * @return The number of errors
+     */
+    public long getErrorCount( ErrorType errorType )
+    {
+        return _mapErrors.get( errorType ).sum(  );
+    }
+
+    /**
+     * Reset every counter and histogram
+     */
+    public void reset(  )
+    {
+        for ( LdapLatencyHistogram histogram : _mapHistograms.values(  ) )
+        {
+            histogram.reset(  );
+        }
+
+        for ( LongAdder counter : _mapCounters.values(  ) )
+        {
+            counter.reset(  );
+        }
+
+        for ( LongAdder error : _mapErrors.values(  ) )
+        {
+            error.reset(  );
+        }
+    }
+
+    /**
+     * Get the type of an error
+     * @param e The error
+     * @return The type of the error
+     */
+    private static ErrorType getErrorType( Throwable e )
+    {
+        if ( LdapUtil.isCommunicationError( e ) )
+        {
+            return ErrorType.COMMUNICATION;
+        }
+
+        if ( e instanceof ServiceUnavailableException )
+        {
+            return ErrorType.SERVICE_UNAVAILABLE;
+        }
+
+        if ( e instanceof TimeLimitExceededException )
+        {
+            return ErrorType.TIME_LIMIT;
+        }
+
+        if ( e instanceof InterruptedNamingException )
+        {
+            return ErrorType.INTERRUPTED;
+        }
+
+        return ( e instanceof NamingException ) ? ErrorType.NAMING : ErrorType.RUNTIME;
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+
+/**
+ * MBean publishing the metrics of the lookup pipeline. For each stage, the
+ * count, the mean, the median, the 99th percentile and the maximum of the
+ * latencies are published in milliseconds, followed by the counters, the
+ * number of LDAP operations per lookup, the churn of the contexts of the
+ * pools, the counters of the coalescing of concurrent lookups, the operations
+ * in progress and waiting in each lane of the bulkhead and the number of
+ * errors of each type.
+ */
+public class LdapMetricsDynamicMBean implements DynamicMBean
+{
+    /**
+     * Name of the MBean
+     */
+    public static final String OBJECT_NAME = "fr.paris.lutece.plugins.searchldap:type=LdapMetrics";
+    private static final String OPERATION_RESET = "reset";
+    private static final String SUFFIX_COUNT = "Count";
+    private static final String SUFFIX_MEAN = "MeanMillis";
+    private static final String SUFFIX_P50 = "P50Millis";
+    private static final String SUFFIX_P99 = "P99Millis";
+    private static final String SUFFIX_MAX = "MaxMillis";
+    private static final String PREFIX_ERRORS = "Errors";
+    private static final String PREFIX_BULKHEAD = "Bulkhead";
+    private static final String SUFFIX_ACTIVE = "ActiveCount";
+    private static final String SUFFIX_WAITING = "WaitingCount";
+    private static final String ATTRIBUTE_OPERATIONS_PER_LOOKUP = "LdapOperationsPerLookup";
+    private static final String ATTRIBUTE_CONTEXTS_OPEN = "ContextsOpenCount";
+    private static final String ATTRIBUTE_CONTEXTS_CREATED = "ContextsCreatedCount";
+    private static final String ATTRIBUTE_CONTEXTS_DESTROYED = "ContextsDestroyedCount";
+    private static final String ATTRIBUTE_COALESCING_LOOKUPS = "CoalescingLookupsCount";
+    private static final String ATTRIBUTE_COALESCING_COALESCED = "CoalescingCoalescedCount";
+    private static final String ATTRIBUTE_COALESCING_TIMEOUTS = "CoalescingTimeoutsCount";
+    private static final String ATTRIBUTE_COALESCING_ERRORS = "CoalescingErrorsCount";
+    private static final String ATTRIBUTE_COALESCING_IN_FLIGHT = "CoalescingInFlightCount";
+    private static final double PERCENTILE_50 = 50d;
+    private static final double PERCENTILE_99 = 99d;
+    private final LdapMetrics _metrics;
+    private final Map<String, AttributeReader> _mapAttributes = new LinkedHashMap<String, AttributeReader>(  );
+    private final MBeanInfo _info;
+
+    /**
+     * Creates the MBean
+     * @param metrics The metrics to publish
+     */
+    public LdapMetricsDynamicMBean( LdapMetrics metrics )
+    {
+        _metrics = metrics;
+
+        List<MBeanAttributeInfo> listAttributes = new ArrayList<MBeanAttributeInfo>(  );
+
+        for ( final LdapMetrics.Stage stage : LdapMetrics.Stage.values(  ) )
+        {
+            String strStage = toCamelCase( stage.name(  ) );
+            addAttribute( listAttributes, strStage + SUFFIX_COUNT, Long.class,
+                "Number of " + strStage + " stages", new AttributeReader(  )
+                {
+                    @Override
+                    public Object read(  )
+                    {
+                        return _metrics.getHistogram( stage ).getCount(  );
+                    }
+                } );
+            addAttribute( listAttributes, strStage + SUFFIX_MEAN, Double.class,
+                "Mean latency of the " + strStage + " stage", new AttributeReader(  )
+                {
+                    @Override
+                    public Object read(  )
+                    {
+                        return _metrics.getHistogram( stage ).getMeanMillis(  );
+                    }
+                } );
+            addAttribute( listAttributes, strStage + SUFFIX_P50, Double.class,
+                "Median latency of the " + strStage + " stage", new AttributeReader(  )
+                {
+                    @Override
+                    public Object read(  )
+                    {
+                        return _metrics.getHistogram( stage ).getPercentileMillis( PERCENTILE_50 );
+                    }
+                } );
+            addAttribute( listAttributes, strStage + SUFFIX_P99, Double.class,
+                "99th percentile of the latency of the " + strStage + " stage", new AttributeReader(  )
+                {
+                    @Override
+                    public Object read(  )
+                    {
+                        return _metrics.getHistogram( stage ).getPercentileMillis( PERCENTILE_99 );
+                    }
+                } );
+            addAttribute( listAttributes, strStage + SUFFIX_MAX, Double.class,
+                "Maximum latency of the " + strStage + " stage", new AttributeReader(  )
+                {
+                    @Override
+                    public Object read(  )
+                    {
+                        return _metrics.getHistogram( stage ).getMaxMillis(  );
+                    }
+                } );
+        }
+
+        for ( final LdapMetrics.Counter counter : LdapMetrics.Counter.values(  ) )
+        {
+            addAttribute( listAttributes, toCamelCase( counter.name(  ) ) + SUFFIX_COUNT, Long.class,
+                "Number of " + counter.name(  ) + " events", new AttributeReader(  )
+                {
+                    @Override
+                    public Object read(  )
+                    {
+                        return _metrics.getCount( counter );
+                    }
+                } );
+        }
+
+        addAttribute( listAttributes, ATTRIBUTE_OPERATIONS_PER_LOOKUP, Double.class,
+            "Average number of LDAP operations per name looked up", new AttributeReader(  )
+            {
+                @Override
+                public Object read(  )
+                {
+                    return _metrics.getLdapOperationsPerLookup(  );
+                }
+            } );
+        addAttribute( listAttributes, ATTRIBUTE_CONTEXTS_OPEN, Long.class,
+            "Number of contexts currently opened by the pools", new AttributeReader(  )
+            {
+                @Override
+                public Object read(  )
+                {
+                    long lCount = 0L;
+
+                    for ( LdapContextPool pool : LdapUtil.getContextPools(  ) )
+                    {
+                        lCount += pool.getOpenCount(  );
+                    }
+
+                    return lCount;
+                }
+            } );
+        addAttribute( listAttributes, ATTRIBUTE_CONTEXTS_CREATED, Long.class,
+            "Number of contexts created by the current pools", new AttributeReader(  )
+            {
+                @Override
+                public Object read(  )
+                {
+                    long lCount = 0L;
+
+                    for ( LdapContextPool pool : LdapUtil.getContextPools(  ) )
+                    {
+                        lCount += pool.getCreatedCount(  );
+                    }
+
+                    return lCount;
+                }
+            } );
+        addAttribute( listAttributes, ATTRIBUTE_CONTEXTS_DESTROYED, Long.class,
+            "Number of contexts closed by the current pools", new AttributeReader(  )
+            {
+                @Override
+                public Object read(  )
+                {
+                    long lCount = 0L;
+
+                    for ( LdapContextPool pool : LdapUtil.getContextPools(  ) )
+                    {
+                        lCount += pool.getDestroyedCount(  );
+                    }
+
+                    return lCount;
+                }
+            } );
+
+        addAttribute( listAttributes, ATTRIBUTE_COALESCING_LOOKUPS, Long.class,
+            "Number of lookups run by the coalescer", new AttributeReader(  )
+            {
+                @Override
+                public Object read(  )
+                {
+                    return getLookupCoalescer(  ).getLookupCount(  );
+                }
+            } );
+        addAttribute( listAttributes, ATTRIBUTE_COALESCING_COALESCED, Long.class,
+            "Number of calls that waited for the lookup of another caller", new AttributeReader(  )
+            {
+                @Override
+                public Object read(  )
+                {
+                    return getLookupCoalescer(  ).getCoalescedCount(  );
+                }
+            } );
+        addAttribute( listAttributes, ATTRIBUTE_COALESCING_TIMEOUTS, Long.class,
+            "Number of coalesced calls that gave up waiting", new AttributeReader(  )
+            {
+                @Override
+                public Object read(  )
+                {
+                    return getLookupCoalescer(  ).getTimeoutCount(  );
+                }
+            } );
+        addAttribute( listAttributes, ATTRIBUTE_COALESCING_ERRORS, Long.class,
+            "Number of coalesced calls that received an error", new AttributeReader(  )
+            {
+                @Override
+                public Object read(  )
+                {
+                    return getLookupCoalescer(  ).getErrorCount(  );
+                }
+            } );
+        addAttribute( listAttributes, ATTRIBUTE_COALESCING_IN_FLIGHT, Integer.class,
+            "Number of lookups currently run by the coalescer", new AttributeReader(  )
+            {
+                @Override
+                public Object read(  )
+                {
+                    return getLookupCoalescer(  ).getInFlightCount(  );
+                }
+            } );
+
+        for ( final LdapBulkhead.Lane lane : LdapBulkhead.Lane.values(  ) )
+        {
+            String strLane = toCamelCase( lane.name(  ) );
+            addAttribute( listAttributes, PREFIX_BULKHEAD + strLane + SUFFIX_ACTIVE, Integer.class,
+                "Number of " + lane.name(  ) + " operations in progress", new AttributeReader(  )
+                {
+                    @Override
+                    public Object read(  )
+                    {
+                        return LdapBulkhead.getInstance(  ).getActiveCount( lane );
+                    }
+                } );
+            addAttribute( listAttributes, PREFIX_BULKHEAD + strLane + SUFFIX_WAITING, Integer.class,
+                "Number of " + lane.name(  ) + " operations waiting for a permit", new AttributeReader(  )
+                {
+                    @Override
+                    public Object read(  )
+                    {
+                        return LdapBulkhead.getInstance(  ).getWaitingCount( lane );
+                    }
+                } );
+        }
+
+        for ( final LdapMetrics.ErrorType errorType : LdapMetrics.ErrorType.values(  ) )
+        {
+            addAttribute( listAttributes, PREFIX_ERRORS + toCamelCase( errorType.name(  ) ), Long.class,
+                "Number of " + errorType.name(  ) + " errors", new AttributeReader(  )
+                {
+                    @Override
+                    public Object read(  )
+                    {
+                        return _metrics.getErrorCount( errorType );
+                    }
+                } );
+        }
+
+        MBeanOperationInfo reset = new MBeanOperationInfo( OPERATION_RESET, "Reset every metric",
+                new MBeanParameterInfo[0], Void.TYPE.getName(  ), MBeanOperationInfo.ACTION );
+
+        _info = new MBeanInfo( getClass(  ).getName(  ), "Metrics of the LDAP lookups",
+                listAttributes.toArray( new MBeanAttributeInfo[listAttributes.size(  )] ), null,
+                new MBeanOperationInfo[] { reset }, null );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getAttribute( String strAttribute ) throws AttributeNotFoundException
+    {
+        AttributeReader reader = _mapAttributes.get( strAttribute );
+
+        if ( reader == null )
+        {
+            throw new AttributeNotFoundException( strAttribute );
+        }
+
+        return reader.read(  );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAttribute( Attribute attribute ) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException( "Attribute " + attribute.getName(  ) + " is read only" );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AttributeList getAttributes( String[] attributes )
+    {
+        AttributeList list = new AttributeList(  );
+
+        for ( String strAttribute : attributes )
+        {
+            AttributeReader reader = _mapAttributes.get( strAttribute );
+
+            if ( reader != null )
+            {
+                list.add( new Attribute( strAttribute, reader.read(  ) ) );
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AttributeList setAttributes( AttributeList attributes )
+    {
+        return new AttributeList(  );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke( String strActionName, Object[] params, String[] signature )
+        throws ReflectionException
+    {
+        if ( OPERATION_RESET.equals( strActionName ) )
+        {
+            _metrics.reset(  );
+
+            return null;
+        }
+
+        throw new ReflectionException( new NoSuchMethodException( strActionName ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MBeanInfo getMBeanInfo(  )
+    {
+        return _info;
+    }
+
+    /**
+     * Declare an attribute
+     * @param listAttributes The list of the attribute descriptions
+     * @param strName The name of the attribute
+     * @param type The type of the attribute
+     * @param strDescription The description of the attribute
+     * @param reader The reader of the value of the attribute
+     */
+    private void addAttribute( List<MBeanAttributeInfo> listAttributes, String strName, Class<?> type,
+        String strDescription, AttributeReader reader )
+    {
+        listAttributes.add( new MBeanAttributeInfo( strName, type.getName(  ), strDescription, true, false, false ) );
+        _mapAttributes.put( strName, reader );
+    }
+
+    /**
+     * Get the coalescer of the lookups of the user provider
+     * @return The coalescer
+     */
+    private static LdapUserLookupCoalescer getLookupCoalescer(  )
+    {
+        LDAPLuteceUserProviderService provider = SpringContextService.getBean( LDAPLuteceUserProviderService.BEAN_NAME );
+
+        return provider.getLookupCoalescer(  );
+    }
+
+    /**
+     * Convert the name of a constant to camel case, for instance
+     * USER_CACHE_HIT to UserCacheHit
+     * @param strConstant The name of the constant
+     * @return The name in camel case
+     */
+    private static String toCamelCase( String strConstant )
+    {
+        StringBuilder sbName = new StringBuilder(  );
+
+        for ( String strWord : strConstant.split( "_" ) )
+        {
+            sbName.append( strWord.charAt( 0 ) ).append( strWord.substring( 1 ).toLowerCase( Locale.ENGLISH ) );
+        }
+
+        return sbName.toString(  );
+    }
+
+    /**
+     * Reader of the value of an attribute
+     */
+    private interface AttributeReader
+    {
+        /**
+         * Read the value
+         * @return The value
+         */
+        Object read(  );
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+
+/**
+ * Search split into pages with the paged results control (RFC 2696). Each
+ * page is read entirely before the next one is requested, so that at most one
+ * page of results is held in memory.
+ */
+public class LdapPagedSearch
+{
+    private final LdapContext _context;
+    private final String _strSearchBase;
+    private final String _strFilter;
+    private final SearchControls _searchControls;
+    private final int _nPageSize;
+    private byte[] _cookie;
+    private boolean _bStarted;
+
+    /**
+     * Creates a new paged search
+     * @param context The context to search with. It must be a LDAP context,
+     *            and must not be used for anything else until the search is
+     *            closed.
+     * @param strSearchBase The search base
+     * @param strFilter The search filter
+     * @param searchControls The search controls
+     * @param nPageSize The number of entries per page
+     * @param cookie The cookie of a previous search to resume it, or null to
+     *            start from the first page
+     * @throws NamingException If the context does not support controls
+     */
+    public LdapPagedSearch( DirContext context, String strSearchBase, String strFilter,
+        SearchControls searchControls, int nPageSize, byte[] cookie )
+        throws NamingException
+    {
+        if ( !( context instanceof LdapContext ) )
+        {
+            throw new OperationNotSupportedException( "Paged searches require a LDAP context" );
+        }
+
+        _context = (LdapContext) context;
+        _strSearchBase = strSearchBase;
+        _strFilter = strFilter;
+        _searchControls = searchControls;
+        _nPageSize = nPageSize;
+        _cookie = cookie;
+        _bStarted = ( cookie != null );
+    }
+
+    /**
+     * Check if there are pages left to read
+     * @return True if the next call to {@link #nextPage()} may return entries
+     */
+    public boolean hasMorePages(  )
+    {
+        return !_bStarted || ( ( _cookie != null ) && ( _cookie.length > 0 ) );
+    }
+
+    /**
+     * Read the next page
+     * @return The entries of the page
+     * @throws NamingException If the search fails
+     */
+    public List<SearchResult> nextPage(  ) throws NamingException
+    {
+        List<SearchResult> listResults = new ArrayList<SearchResult>( _nPageSize );
+        NamingEnumeration<SearchResult> results = null;
+
+        if ( _bStarted )
+        {
+            // The first page is covered by the permit of the operation
+            LdapBulkhead.getInstance(  ).throttle(  );
+        }
+
+        setPagedResultsControl( _nPageSize );
+        _bStarted = true;
+        _cookie = null;
+
+        try
+        {
+            results = _context.search( _strSearchBase, _strFilter, _searchControls );
+
+            while ( results.hasMore(  ) )
+            {
+                listResults.add( results.next(  ) );
+            }
+        }
+        catch ( SizeLimitExceededException e )
+        {
+            // The count limit of the search controls is reached : this page is the last one
+            if ( results != null )
+            {
+                results.close(  );
+            }
+
+            return listResults;
+        }
+        catch ( NamingException e )
+        {
+            closeResults( results, e );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            closeResults( results, e );
+            throw e;
+        }
+
+        results.close(  );
+
+        Control[] responseControls = _context.getResponseControls(  );
+
+        if ( responseControls != null )
+        {
+            for ( Control control : responseControls )
+            {
+                if ( control instanceof PagedResultsResponseControl )
+                {
+                    _cookie = ( (PagedResultsResponseControl) control ).getCookie(  );
+                }
+            }
+        }
+
+        return listResults;
+    }
+
+    /**
+     * Close the results of a search that failed, without masking its error
+     * @param results The results, or null if the search did not start
+     * @param error The error of the search, to which an error of the closing
+     *            is added as a suppressed exception
+     */
+    private static void closeResults( NamingEnumeration<SearchResult> results, Exception error )
+    {
+        if ( results == null )
+        {
+            return;
+        }
+
+        try
+        {
+            results.close(  );
+        }
+        catch ( NamingException e )
+        {
+            error.addSuppressed( e );
+        }
+    }
+
+    /**
+     * Get the cookie returned with the last page. It can be given to a new
+     * search to resume after this page, as long as the server still knows it.
+     * @return The cookie, or null if the last page was read
+     */
+    public byte[] getCookie(  )
+    {
+        return _cookie;
+    }
+
+    /**
+     * Start the search again from the first page, for instance when the
+     * server refused the cookie the search was resumed from
+     */
+    public void restart(  )
+    {
+        _cookie = null;
+        _bStarted = false;
+    }
+
+    /**
+     * Abandon the search on the server if pages are left, so that the server
+     * frees the state of the search, then close it. The cookie of the search
+     * can not be used afterwards.
+     * @throws NamingException If the search can not be abandoned or if the
+     *             controls can not be reset
+     */
+    public void abandon(  ) throws NamingException
+    {
+        try
+        {
+            if ( _bStarted && ( _cookie != null ) && ( _cookie.length > 0 ) )
+            {
+                // A page size of 0 with the cookie of the search abandons it (RFC 2696)
+                setPagedResultsControl( 0 );
+                _cookie = null;
+                _context.search( _strSearchBase, _strFilter, _searchControls ).close(  );
+            }
+        }
+        finally
+        {
+            close(  );
+        }
+    }
+
+    /**
+     * Remove the paged results control from the context so that it can be
+     * used again for other searches
+     * @throws NamingException If the controls can not be reset
+     */
+    public void close(  ) throws NamingException
+    {
+        _context.setRequestControls( null );
+    }
+
+    /**
+     * Set the paged results control of the next request on the context
+     * @param nPageSize The page size, 0 to abandon the search
+     * @throws NamingException If the control can not be set
+     */
+    private void setPagedResultsControl( int nPageSize )
+        throws NamingException
+    {
+        try
+        {
+            _context.setRequestControls( new Control[] { new PagedResultsControl( nPageSize, _cookie, Control.CRITICAL ) } );
+        }
+        catch ( IOException e )
+        {
+            NamingException exception = new NamingException( "Unable to encode the paged results control" );
+            exception.setRootCause( e );
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Rate limiter spacing operations evenly. Each operation reserves the next
+ * free slot, so that callers are served in the order of their arrival, and
+ * waits until its slot. An operation whose slot is later than its maximum wait
+ * does not reserve it and is rejected.
+ */
+public class LdapRateLimiter
+{
+    private final long _lInterval;
+    private long _lNextFree;
+
+    /**
+     * Creates a new rate limiter
+     * @param nRate The maximum number of operations per second, at least 1
+     */
+    public LdapRateLimiter( int nRate )
+    {
+        _lInterval = TimeUnit.SECONDS.toNanos( 1 ) / Math.max( 1, nRate );
+        _lNextFree = System.nanoTime(  );
+    }
+
+    /**
+     * Wait for the next free slot
+     * @param lMaxWait The maximum wait in milliseconds
+     * @return The wait in milliseconds, or -1 if the next free slot is later
+     *         than the maximum wait
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public long acquire( long lMaxWait ) throws InterruptedException
+    {
+        long lNow = System.nanoTime(  );
+        long lWait;
+
+        synchronized ( this )
+        {
+            long lSlot = Math.max( _lNextFree, lNow );
+            lWait = lSlot - lNow;
+
+            if ( lWait > TimeUnit.MILLISECONDS.toNanos( lMaxWait ) )
+            {
+                return -1L;
+            }
+
+            _lNextFree = lSlot + _lInterval;
+        }
+
+        if ( lWait > 0 )
+        {
+            TimeUnit.NANOSECONDS.sleep( lWait );
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis( lWait );
+    }
+}
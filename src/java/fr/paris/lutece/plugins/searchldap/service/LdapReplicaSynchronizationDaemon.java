@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.daemon.Daemon;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import javax.naming.NamingException;
+
+
+/**
+ * Daemon that keeps the local replica of the users up to date
+ */
+public class LdapReplicaSynchronizationDaemon extends Daemon
+{
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run(  )
+    {
+        LdapBrowser ldapBrowser = SpringContextService.getBean( LdapBrowser.BEAN_NAME );
+
+        if ( !ldapBrowser.getLookupPlan(  ).isReplicaEnabled(  ) )
+        {
+            setLastRunLogs( "The ldap replica is disabled" );
+
+            return;
+        }
+
+        try
+        {
+            int nUsers = ldapBrowser.synchronizeReplicaChanges(  );
+            LdapUserReplica replica = ldapBrowser.getReplica(  );
+
+            if ( nUsers < 0 )
+            {
+                setLastRunLogs( "A synchronization of the ldap replica is already running" );
+            }
+            else
+            {
+                setLastRunLogs( "Users loaded or changed : " + nUsers + ", users in replica : " +
+                    replica.getSize(  ) + ", high water mark : " + replica.getHighWaterMark(  ) + ", duration : " +
+                    replica.getLastSynchronizationDuration(  ) + " ms" );
+            }
+        }
+        catch ( NamingException e )
+        {
+            AppLogService.error( "Error while synchronizing the ldap replica ", e );
+            setLastRunLogs( "Error while synchronizing the ldap replica : " + e.getMessage(  ) );
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * LDAP server of a router, with its pool of contexts, its health state and its
+ * latency statistics
+ */
+public class LdapServer
+{
+    /**
+     * Latency of a request whose duration does not reflect the server
+     */
+    static final long UNKNOWN_LATENCY = -1L;
+    private static final double EWMA_WEIGHT = 0.2d;
+    private final String _strUrl;
+    private final LdapContextPool _pool;
+    private final AtomicInteger _nOutstandingRequests = new AtomicInteger(  );
+    private final AtomicLong _lRequestCount = new AtomicLong(  );
+    private final AtomicLong _lErrorCount = new AtomicLong(  );
+    private final LdapCircuitBreaker _circuitBreaker;
+    private volatile double _dLatency;
+
+    /**
+     * Creates a new server
+     * @param strUrl The URL of the server
+     * @param pool The pool of contexts bound to the server
+     * @param circuitBreaker The circuit breaker of the server
+     */
+    public LdapServer( String strUrl, LdapContextPool pool, LdapCircuitBreaker circuitBreaker )
+    {
+        _strUrl = strUrl;
+        _pool = pool;
+        _circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Get the URL of the server
+     * @return The URL
+     */
+    public String getUrl(  )
+    {
+        return _strUrl;
+    }
+
+    /**
+     * Get the pool of contexts bound to the server
+     * @return The pool
+     */
+    public LdapContextPool getPool(  )
+    {
+        return _pool;
+    }
+
+    /**
+     * Get the circuit breaker of the server
+     * @return The circuit breaker
+     */
+    public LdapCircuitBreaker getCircuitBreaker(  )
+    {
+        return _circuitBreaker;
+    }
+
+    /**
+     * Check if the server may be used
+     * @param lNow The current time in milliseconds
+     * @return False if the circuit of the server is open, true otherwise
+     */
+    public boolean isAvailable( long lNow )
+    {
+        return _circuitBreaker.isRequestAllowed( lNow );
+    }
+
+    /**
+     * Get the score of the server. The server with the lowest score is
+     * selected : the score grows with the latency and with the number of
+     * requests in progress.
+     * @return The score
+     */
+    public double getScore(  )
+    {
+        return ( _dLatency + 1d ) * ( _nOutstandingRequests.get(  ) + 1 );
+    }
+
+    /**
+     * Mark the beginning of a request
+     * @return True if the request may be sent, false if the circuit of the
+     *         server is open
+     */
+    boolean startRequest(  )
+    {
+        if ( !_circuitBreaker.tryAcquirePermission(  ) )
+        {
+            return false;
+        }
+
+        _nOutstandingRequests.incrementAndGet(  );
+        _lRequestCount.incrementAndGet(  );
+
+        return true;
+    }
+
+    /**
+     * Mark the end of a request answered by the server
+     * @param lLatency The duration of the request in milliseconds, or
+     *            {@link #UNKNOWN_LATENCY}
+     */
+    void endRequest( long lLatency )
+    {
+        _nOutstandingRequests.decrementAndGet(  );
+        _circuitBreaker.onSuccess(  );
+
+        if ( lLatency == UNKNOWN_LATENCY )
+        {
+            return;
+        }
+
+        // Concurrent updates may lose a sample, which is acceptable for an average
+        _dLatency = ( _dLatency == 0d ) ? lLatency : ( ( EWMA_WEIGHT * lLatency ) +
+            ( ( 1d - EWMA_WEIGHT ) * _dLatency ) );
+    }
+
+    /**
+     * Mark the failure of a request because the server could not be reached
+     */
+    void failRequest(  )
+    {
+        _nOutstandingRequests.decrementAndGet(  );
+        _lErrorCount.incrementAndGet(  );
+        _circuitBreaker.onFailure(  );
+    }
+
+    /**
+     * Mark the end of a request that failed for a reason unrelated to the
+     * health of the server
+     */
+    void abortRequest(  )
+    {
+        _nOutstandingRequests.decrementAndGet(  );
+        _circuitBreaker.onAbort(  );
+    }
+
+    /**
+     * Get the average latency of the server
+     * @return The exponentially weighted moving average of the latency, in
+     *         milliseconds
+     */
+    public double getLatency(  )
+    {
+        return _dLatency;
+    }
+
+    /**
+     * Get the number of requests in progress
+     * @return The number of requests
+     */
+    public int getOutstandingRequestCount(  )
+    {
+        return _nOutstandingRequests.get(  );
+    }
+
+    /**
+     * Get the number of requests sent to the server
+     * @return The number of requests
+     */
+    public long getRequestCount(  )
+    {
+        return _lRequestCount.get(  );
+    }
+
+    /**
+     * Get the number of requests that failed because the server could not be
+     * reached
+     * @return The number of errors
+     */
+    public long getErrorCount(  )
+    {
+        return _lErrorCount.get(  );
+    }
+}
@@ -0,0 +1,854 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.DirContext;
+
+
+/**
+ * Router of LDAP operations between the servers of the connection URL. Each
+ * operation is sent to the available server with the lowest latency weighted
+ * by its number of requests in progress. When a server can not be reached,
+ * the operation is run again on the next server. Servers whose circuit breaker
+ * is open are not selected, and operations fail immediately when every
+ * circuit is open. Every operation first takes a permit of the bulkhead in
+ * the lane of the calling thread. Operations run with
+ * {@link #executeHedged(LdapOperation, long)} may also be sent to a second
+ * server when the first one is slow to answer.
+ */
+public class LdapServerRouter
+{
+    /**
+     * Deadline of an operation that may wait as long as the pools allow
+     */
+    public static final long NO_DEADLINE = 0L;
+    private static final String PROPERTY_FAILURE_THRESHOLD = "searchldap.ldap.circuitBreaker.failureThreshold";
+    private static final String PROPERTY_OPEN_DURATION = "searchldap.ldap.circuitBreaker.openDuration";
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final int DEFAULT_OPEN_DURATION = 30000;
+    private static final String PROPERTY_HEDGING_ENABLED = "searchldap.hedging.enabled";
+    private static final String PROPERTY_HEDGING_PERCENTILE = "searchldap.hedging.percentile";
+    private static final String PROPERTY_HEDGING_MIN_DELAY = "searchldap.hedging.minDelay";
+    private static final String PROPERTY_HEDGING_DEFAULT_DELAY = "searchldap.hedging.defaultDelay";
+    private static final String PROPERTY_HEDGING_WINDOW = "searchldap.hedging.window";
+    private static final String PROPERTY_HEDGING_BUDGET_PERCENT = "searchldap.hedging.budget.percent";
+    private static final String PROPERTY_HEDGING_BUDGET_BURST = "searchldap.hedging.budget.burst";
+    private static final int DEFAULT_HEDGING_PERCENTILE = 95;
+    private static final int DEFAULT_HEDGING_MIN_DELAY = 10;
+    private static final int DEFAULT_HEDGING_DEFAULT_DELAY = 100;
+    private static final int DEFAULT_HEDGING_WINDOW = 60;
+    private static final int DEFAULT_HEDGING_BUDGET_PERCENT = 5;
+    private static final int DEFAULT_HEDGING_BUDGET_BURST = 10;
+
+    // Number of latencies recorded before the percentile is trusted as the hedge delay
+    private static final long HEDGING_MIN_SAMPLES = 100L;
+    private final List<LdapServer> _listServers;
+    private final boolean _bHedgingEnabled;
+    private final double _dHedgingPercentile;
+    private final long _lHedgingMinDelay;
+    private final long _lHedgingDefaultDelay;
+    private final LdapHedgeBudget _hedgeBudget;
+    private final LdapLatencyWindow _hedgedLatencies;
+
+    /**
+     * Creates a router for the servers of a lookup plan
+     * @param plan The lookup plan
+     */
+    public LdapServerRouter( LdapLookupPlan plan )
+    {
+        this( createServers( plan ) );
+    }
+
+    /**
+     * Creates a router for a list of servers
+     * @param listServers The servers, in the order of the connection URL
+     */
+    LdapServerRouter( List<LdapServer> listServers )
+    {
+        _listServers = Collections.unmodifiableList( new ArrayList<LdapServer>( listServers ) );
+        _bHedgingEnabled = AppPropertiesService.getPropertyBoolean( PROPERTY_HEDGING_ENABLED, false );
+        _dHedgingPercentile = AppPropertiesService.getPropertyInt( PROPERTY_HEDGING_PERCENTILE,
+                DEFAULT_HEDGING_PERCENTILE );
+        _lHedgingMinDelay = AppPropertiesService.getPropertyInt( PROPERTY_HEDGING_MIN_DELAY,
+                DEFAULT_HEDGING_MIN_DELAY );
+        _lHedgingDefaultDelay = AppPropertiesService.getPropertyInt( PROPERTY_HEDGING_DEFAULT_DELAY,
+                DEFAULT_HEDGING_DEFAULT_DELAY );
+        _hedgeBudget = new LdapHedgeBudget( AppPropertiesService.getPropertyInt( PROPERTY_HEDGING_BUDGET_PERCENT,
+                    DEFAULT_HEDGING_BUDGET_PERCENT ),
+                AppPropertiesService.getPropertyInt( PROPERTY_HEDGING_BUDGET_BURST, DEFAULT_HEDGING_BUDGET_BURST ) );
+        _hedgedLatencies = new LdapLatencyWindow( TimeUnit.SECONDS.toMillis( 
+                    AppPropertiesService.getPropertyInt( PROPERTY_HEDGING_WINDOW, DEFAULT_HEDGING_WINDOW ) ) );
+    }
+
+    /**
+     * Create the servers of a lookup plan
+     * @param plan The lookup plan
+     * @return The servers, in the order of the connection URL
+     */
+    private static List<LdapServer> createServers( LdapLookupPlan plan )
+    {
+        List<LdapServer> listServers = new ArrayList<LdapServer>(  );
+        int nFailureThreshold = AppPropertiesService.getPropertyInt( PROPERTY_FAILURE_THRESHOLD,
+                DEFAULT_FAILURE_THRESHOLD );
+        int nOpenDuration = AppPropertiesService.getPropertyInt( PROPERTY_OPEN_DURATION, DEFAULT_OPEN_DURATION );
+
+        for ( String strUrl : plan.getProviderUrls(  ) )
+        {
+            listServers.add( new LdapServer( strUrl,
+                    LdapUtil.getContextPool( plan.getInitialContextProvider(  ), strUrl, plan.getBindDn(  ),
+                        plan.getBindPassword(  ) ), new LdapCircuitBreaker( nFailureThreshold, nOpenDuration ) ) );
+        }
+
+        return listServers;
+    }
+
+    /**
+     * Run an operation on the best available server
+     * @param <T> The type of the result
+     * @param operation The operation
+     * @return The result of the operation
+     * @throws NamingException If the operation fails on every server, or for
+     *             a reason unrelated to the availability of the server
+     */
+    public <T> T execute( LdapOperation<T> operation ) throws NamingException
+    {
+        return execute( operation, NO_DEADLINE );
+    }
+
+    /**
+     * Run an operation on the best available server before a deadline. The
+     * operation may be run on several servers if the first ones can not be
+     * reached, so it must not have side effects besides its result.
+     * @param <T> The type of the result
+     * @param operation The operation
+     * @param lDeadline The time in milliseconds after which no server is
+     *            tried anymore, or {@link #NO_DEADLINE}
+     * @return The result of the operation
+     * @throws NamingException If the operation fails on every server, or for
+     *             a reason unrelated to the availability of the server. A
+     *             {@link ServiceUnavailableException} is thrown without
+     *             waiting if the circuit of every server is open, and
+     *             when no permit of the bulkhead is available in time.
+     */
+    public <T> T execute( LdapOperation<T> operation, long lDeadline )
+        throws NamingException
+    {
+        List<LdapServer> listTriedServers = new ArrayList<LdapServer>( _listServers.size(  ) );
+        NamingException lastException = null;
+        LdapBulkhead.Permit permit = LdapBulkhead.getInstance(  ).acquire( lDeadline );
+
+        try
+        {
+            while ( true )
+            {
+                LdapContextLease lease = lease( listTriedServers, lDeadline, lastException, true );
+
+                try
+                {
+                    T result = operation.execute( lease.getContext(  ) );
+                    lease.release(  );
+
+                    return result;
+                }
+                catch ( NamingException e )
+                {
+                    lease.fail( e );
+
+                    if ( !LdapUtil.isCommunicationError( e ) && !( e instanceof ServiceUnavailableException ) )
+                    {
+                        throw e;
+                    }
+
+                    lastException = e;
+                }
+                catch ( RuntimeException e )
+                {
+                    lease.fail( e );
+                    throw e;
+                }
+            }
+        }
+        finally
+        {
+            permit.release(  );
+        }
+    }
+
+    /**
+     * Run an operation on the best available server, and send it to a second
+     * server if the first one did not answer within the hedge delay. The
+     * first answer is returned and the other attempt is cancelled : its thread
+     * is interrupted and its context closed. The hedge delay is a percentile
+     * of the latencies of the recent attempts, and the hedges are limited by
+     * the hedge budget. Each attempt takes its own permit of the bulkhead : the
+     * hedge is only sent if a permit and a thread of the executor are free
+     * right away. The operation is run as with
+     * {@link #execute(LdapOperation, long)} if hedging is disabled or if a
+     * single server is configured.
+     * @param <T> The type of the result
+     * @param operation The operation, which must not have side effects
+     *            besides its result since it may run on two servers at once
+     * @param lDeadline The time in milliseconds after which no answer is
+     *            waited for, or {@link #NO_DEADLINE}
+     * @return The result of the operation
+     * @throws NamingException If the operation fails on every server, or for
+     *             a reason unrelated to the availability of the server, or if
+     *             the deadline is reached
+     */
+    public <T> T executeHedged( LdapOperation<T> operation, long lDeadline )
+        throws NamingException
+    {
+        if ( !_bHedgingEnabled || ( _listServers.size(  ) < 2 ) )
+        {
+            return execute( operation, lDeadline );
+        }
+
+        LdapMetrics metrics = LdapMetrics.getInstance(  );
+        List<LdapServer> listTriedServers = new ArrayList<LdapServer>( _listServers.size(  ) );
+        List<HedgedAttempt<T>> listAttempts = new ArrayList<HedgedAttempt<T>>( _listServers.size(  ) );
+        BlockingQueue<HedgedAttempt<T>> queueAnswers = new LinkedBlockingQueue<HedgedAttempt<T>>(  );
+
+        try
+        {
+            _hedgeBudget.deposit(  );
+            startAttempt( operation, listTriedServers, lDeadline, null,
+                LdapBulkhead.getInstance(  ).acquire( lDeadline ), false, listAttempts, queueAnswers );
+
+            long lHedgeTime = System.currentTimeMillis(  ) + getHedgeDelay(  );
+            boolean bHedgePending = true;
+            HedgedAttempt<T> hedge = null;
+            int nPending = 1;
+
+            while ( true )
+            {
+                long lWakeUp = lDeadline;
+
+                if ( bHedgePending && ( ( lDeadline == NO_DEADLINE ) || ( lHedgeTime < lDeadline ) ) )
+                {
+                    lWakeUp = lHedgeTime;
+                }
+
+                HedgedAttempt<T> attempt = pollAnswer( queueAnswers, lWakeUp );
+
+                if ( attempt == null )
+                {
+                    if ( ( lDeadline != NO_DEADLINE ) && ( System.currentTimeMillis(  ) >= lDeadline ) )
+                    {
+                        metrics.recordError( LdapMetrics.ErrorType.TIME_LIMIT );
+                        throw new TimeLimitExceededException( "Deadline reached before the LDAP servers answered" );
+                    }
+
+                    bHedgePending = false;
+                    hedge = startHedge( operation, listTriedServers, lDeadline, listAttempts, queueAnswers );
+
+                    if ( hedge != null )
+                    {
+                        nPending++;
+                    }
+
+                    continue;
+                }
+
+                nPending--;
+
+                if ( !attempt.isUnavailable(  ) )
+                {
+                    if ( attempt == hedge )
+                    {
+                        metrics.increment( LdapMetrics.Counter.HEDGE_WON );
+                    }
+
+                    return attempt.getResult(  );
+                }
+
+                // The server of the attempt can not be reached : fail over to the next one, as execute does
+                try
+                {
+                    startAttempt( operation, listTriedServers, lDeadline, attempt.getError(  ),
+                        LdapBulkhead.getInstance(  ).acquire( lDeadline ), false, listAttempts, queueAnswers );
+                    nPending++;
+                }
+                catch ( NamingException e )
+                {
+                    if ( nPending == 0 )
+                    {
+                        throw e;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            for ( HedgedAttempt<T> attempt : listAttempts )
+            {
+                attempt.cancel(  );
+            }
+        }
+    }
+
+    /**
+     * Borrow a context from the best available server, for operations that
+     * can not be expressed as a single {@link LdapOperation}, such as a search
+     * read page by page by the caller. The operations run with the lease are
+     * not retried on another server. The permit of the bulkhead is held until
+     * the lease ends.
+     * @param lDeadline The time in milliseconds after which no server is
+     *            tried anymore, or {@link #NO_DEADLINE}
+     * @return The lease, which must be ended by the caller
+     * @throws NamingException If no server can lend a context, or if no
+     *             permit of the bulkhead is available in time
+     */
+    public LdapContextLease lease( long lDeadline ) throws NamingException
+    {
+        LdapBulkhead.Permit permit = LdapBulkhead.getInstance(  ).acquire( lDeadline );
+
+        try
+        {
+            LdapContextLease lease = lease( new ArrayList<LdapServer>( _listServers.size(  ) ), lDeadline, null, false );
+            lease.setPermit( permit );
+
+            return lease;
+        }
+        catch ( NamingException e )
+        {
+            permit.release(  );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            permit.release(  );
+            throw e;
+        }
+    }
+
+    /**
+     * Get the servers of the router
+     * @return The servers, in the order of the connection URL
+     */
+    public List<LdapServer> getServers(  )
+    {
+        return _listServers;
+    }
+
+    /**
+     * Borrow a context from the best available server that was not tried yet
+     * @param listTriedServers The servers already tried, to which the
+     *            selected servers are added
+     * @param lDeadline The time in milliseconds after which no server is
+     *            tried anymore, or {@link #NO_DEADLINE}
+     * @param previousException The error of the previous server, or null
+     * @param bTimed True if the duration of the lease is the latency of the
+     *            server
+     * @return The lease
+     * @throws NamingException If no server can lend a context
+     */
+    private LdapContextLease lease( List<LdapServer> listTriedServers, long lDeadline,
+        NamingException previousException, boolean bTimed )
+        throws NamingException
+    {
+        LdapMetrics metrics = LdapMetrics.getInstance(  );
+        NamingException lastException = previousException;
+        LdapServer server;
+
+        while ( ( server = selectServer( listTriedServers ) ) != null )
+        {
+            listTriedServers.add( server );
+
+            long lMaxWait = Long.MAX_VALUE;
+
+            if ( lDeadline != NO_DEADLINE )
+            {
+                lMaxWait = lDeadline - System.currentTimeMillis(  );
+
+                if ( lMaxWait <= 0 )
+                {
+                    metrics.recordError( LdapMetrics.ErrorType.TIME_LIMIT );
+                    throw new TimeLimitExceededException( "Deadline reached before running the LDAP operation" );
+                }
+            }
+
+            if ( !server.startRequest(  ) )
+            {
+                // The probe of a half open circuit is already in progress
+                continue;
+            }
+
+            metrics.increment( LdapMetrics.Counter.LDAP_OPERATION );
+
+            long lBorrowStart = metrics.startTimer(  );
+
+            try
+            {
+                DirContext context = server.getPool(  ).borrow( lMaxWait );
+                metrics.recordStage( LdapMetrics.Stage.CONTEXT, lBorrowStart );
+
+                return new LdapContextLease( server, context, bTimed );
+            }
+            catch ( ServiceUnavailableException e )
+            {
+                metrics.recordError( e );
+                // The pool of the server is exhausted : the server itself may be healthy
+                server.abortRequest(  );
+                lastException = e;
+            }
+            catch ( NamingException e )
+            {
+                metrics.recordError( e );
+
+                if ( !LdapUtil.isCommunicationError( e ) )
+                {
+                    server.abortRequest(  );
+                    throw e;
+                }
+
+                server.failRequest(  );
+                lastException = e;
+                AppLogService.error( "LDAP server " + server.getUrl(  ) + " can not be reached : " + e.getMessage(  ) );
+            }
+            catch ( RuntimeException e )
+            {
+                metrics.recordError( e );
+                server.abortRequest(  );
+                throw e;
+            }
+        }
+
+        if ( lastException == null )
+        {
+            metrics.recordError( LdapMetrics.ErrorType.CIRCUIT_OPEN );
+            throw new ServiceUnavailableException( _listServers.isEmpty(  ) ? "No LDAP server is configured"
+                                                                             : "The circuit of every LDAP server is open" );
+        }
+
+        throw lastException;
+    }
+
+    /**
+     * Get the delay after which a hedged operation is sent to a second server
+     * @return The delay in milliseconds
+     */
+    private long getHedgeDelay(  )
+    {
+        if ( _hedgedLatencies.getCount(  ) < HEDGING_MIN_SAMPLES )
+        {
+            return _lHedgingDefaultDelay;
+        }
+
+        return Math.max( _lHedgingMinDelay,
+            (long) Math.ceil( _hedgedLatencies.getPercentileMillis( _dHedgingPercentile ) ) );
+    }
+
+    /**
+     * Borrow a context from the best available server that was not tried yet
+     * and run an attempt of a hedged operation with it. The attempt runs on
+     * the executor of the plugin. If the executor is saturated, the first
+     * attempt and the failovers run in the calling thread, which would wait
+     * for them anyway, and the hedges are not sent.
+     * @param <T> The type of the result
+     * @param operation The operation
+     * @param listTriedServers The servers already tried
+     * @param lDeadline The time in milliseconds after which no server is
+     *            tried anymore, or {@link #NO_DEADLINE}
+     * @param previousException The error of the previous server, or null
+     * @param permit The permit of the bulkhead of the attempt, released when
+     *            the attempt ends
+     * @param bHedge True if the attempt is a hedge
+     * @param listAttempts The attempts of the operation, to which the new one
+     *            is added
+     * @param queueAnswers The queue to which the attempt is added once it has
+     *            its answer
+     * @return The attempt, or null if the attempt is a hedge and no thread of
+     *         the executor is free
+     * @throws NamingException If no server can lend a context
+     */
+    private <T> HedgedAttempt<T> startAttempt( LdapOperation<T> operation, List<LdapServer> listTriedServers,
+        long lDeadline, NamingException previousException, LdapBulkhead.Permit permit, boolean bHedge,
+        List<HedgedAttempt<T>> listAttempts, BlockingQueue<HedgedAttempt<T>> queueAnswers )
+        throws NamingException
+    {
+        LdapContextLease lease;
+
+        try
+        {
+            lease = lease( listTriedServers, lDeadline, previousException, true );
+        }
+        catch ( NamingException e )
+        {
+            permit.release(  );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            permit.release(  );
+            throw e;
+        }
+
+        lease.setPermit( permit );
+
+        HedgedAttempt<T> attempt = new HedgedAttempt<T>( lease, operation, queueAnswers, _hedgedLatencies );
+
+        try
+        {
+            LdapTaskExecutor.getInstance(  ).getExecutor(  ).execute( attempt );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            if ( bHedge )
+            {
+                lease.cancel(  );
+
+                return null;
+            }
+
+            attempt.run(  );
+        }
+
+        listAttempts.add( attempt );
+
+        return attempt;
+    }
+
+    /**
+     * Send a hedged operation to a second server, if the hedge budget allows
+     * it, if a server that was not tried yet is available and if a permit of
+     * the bulkhead and a thread of the executor are free
+     * @param <T> The type of the result
+     * @param operation The operation
+     * @param listTriedServers The servers already tried
+     * @param lDeadline The time in milliseconds after which no server is
+     *            tried anymore, or {@link #NO_DEADLINE}
+     * @param listAttempts The attempts of the operation
+     * @param queueAnswers The queue of the answers
+     * @return The attempt of the hedge, or null if no hedge was sent
+     */
+    private <T> HedgedAttempt<T> startHedge( LdapOperation<T> operation, List<LdapServer> listTriedServers,
+        long lDeadline, List<HedgedAttempt<T>> listAttempts, BlockingQueue<HedgedAttempt<T>> queueAnswers )
+    {
+        if ( selectServer( listTriedServers ) == null )
+        {
+            return null;
+        }
+
+        LdapMetrics metrics = LdapMetrics.getInstance(  );
+        LdapBulkhead.Permit permit;
+
+        try
+        {
+            permit = LdapBulkhead.getInstance(  ).tryAcquire(  );
+        }
+        catch ( InterruptedNamingException e )
+        {
+            return null;
+        }
+
+        if ( permit == null )
+        {
+            metrics.increment( LdapMetrics.Counter.HEDGE_SKIPPED );
+
+            return null;
+        }
+
+        if ( !_hedgeBudget.tryWithdraw(  ) )
+        {
+            permit.release(  );
+            metrics.increment( LdapMetrics.Counter.HEDGE_BUDGET_EXHAUSTED );
+
+            return null;
+        }
+
+        // The hedge is worth sending only if the pool of its server lends a context quickly
+        long lHedgeDeadline = System.currentTimeMillis(  ) + getHedgeDelay(  );
+
+        if ( ( lDeadline != NO_DEADLINE ) && ( lDeadline < lHedgeDeadline ) )
+        {
+            lHedgeDeadline = lDeadline;
+        }
+
+        HedgedAttempt<T> hedge;
+
+        try
+        {
+            hedge = startAttempt( operation, listTriedServers, lHedgeDeadline, null, permit, true, listAttempts,
+                    queueAnswers );
+        }
+        catch ( NamingException e )
+        {
+            return null;
+        }
+
+        metrics.increment( ( hedge != null ) ? LdapMetrics.Counter.HEDGE_SENT : LdapMetrics.Counter.HEDGE_SKIPPED );
+
+        return hedge;
+    }
+
+    /**
+     * Wait for the next answer of the attempts of a hedged operation
+     * @param <T> The type of the result
+     * @param queueAnswers The queue of the answers
+     * @param lWakeUp The time in milliseconds after which the wait ends, or
+     *            {@link #NO_DEADLINE}
+     * @return The attempt that answered, or null if the wake up time was
+     *         reached
+     * @throws InterruptedNamingException If the thread is interrupted
+     */
+    private static <T> HedgedAttempt<T> pollAnswer( BlockingQueue<HedgedAttempt<T>> queueAnswers, long lWakeUp )
+        throws InterruptedNamingException
+    {
+        try
+        {
+            if ( lWakeUp == NO_DEADLINE )
+            {
+                return queueAnswers.take(  );
+            }
+
+            return queueAnswers.poll( Math.max( 0L, lWakeUp - System.currentTimeMillis(  ) ), TimeUnit.MILLISECONDS );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+
+            InterruptedNamingException ex = new InterruptedNamingException( "Interrupted while waiting for the LDAP servers" );
+            ex.setRootCause( e );
+            throw ex;
+        }
+    }
+
+    /**
+     * Select the server to send the next operation to
+     * @param listExcludedServers The servers already tried for the operation
+     * @return The server, or null if every available server was tried
+     */
+    private LdapServer selectServer( List<LdapServer> listExcludedServers )
+    {
+        long lNow = System.currentTimeMillis(  );
+        LdapServer bestServer = null;
+
+        for ( LdapServer server : _listServers )
+        {
+            if ( !listExcludedServers.contains( server ) && server.isAvailable( lNow ) &&
+                    ( ( bestServer == null ) || ( server.getScore(  ) < bestServer.getScore(  ) ) ) )
+            {
+                bestServer = server;
+            }
+        }
+
+        return bestServer;
+    }
+
+    /**
+     * Attempt of a hedged operation on a server. The attempt ends the lease of
+     * its context, and is added to the queue of the answers once it has its
+     * result or its error.
+     * @param <T> The type of the result
+     */
+    private static final class HedgedAttempt<T> implements Runnable
+    {
+        private final LdapContextLease _lease;
+        private final LdapOperation<T> _operation;
+        private final BlockingQueue<HedgedAttempt<T>> _queueAnswers;
+        private final LdapLatencyWindow _latencies;
+        private Thread _thread;
+        private boolean _bCancelled;
+        private T _result;
+        private NamingException _namingException;
+        private RuntimeException _runtimeException;
+
+        /**
+         * Creates an attempt
+         * @param lease The lease of the context of the server
+         * @param operation The operation
+         * @param queueAnswers The queue of the answers
+         * @param latencies The recent latencies of the attempts, to which the
+         *            latency of this attempt is added
+         */
+        HedgedAttempt( LdapContextLease lease, LdapOperation<T> operation,
+            BlockingQueue<HedgedAttempt<T>> queueAnswers, LdapLatencyWindow latencies )
+        {
+            _lease = lease;
+            _operation = operation;
+            _queueAnswers = queueAnswers;
+            _latencies = latencies;
+        }
+
+        /**
+         * Run the operation
+         */
+        @Override
+        public void run(  )
+        {
+            synchronized ( this )
+            {
+                if ( _bCancelled )
+                {
+                    _lease.abort(  );
+
+                    return;
+                }
+
+                _thread = Thread.currentThread(  );
+            }
+
+            LdapMetrics metrics = LdapMetrics.getInstance(  );
+            long lStart = metrics.startTimer(  );
+
+            try
+            {
+                _result = _operation.execute( _lease.getContext(  ) );
+                _lease.release(  );
+                _latencies.record( metrics.recordStage( LdapMetrics.Stage.HEDGED_ATTEMPT, lStart ) - lStart );
+            }
+            catch ( NamingException e )
+            {
+                _namingException = e;
+                end( e );
+            }
+            catch ( RuntimeException e )
+            {
+                _runtimeException = e;
+                end( e );
+            }
+            finally
+            {
+                synchronized ( this )
+                {
+                    _thread = null;
+
+                    if ( _bCancelled )
+                    {
+                        // The interruption of a cancelled attempt must not leak to the next task of the thread
+                        Thread.interrupted(  );
+                    }
+                }
+
+                _queueAnswers.offer( this );
+            }
+        }
+
+        /**
+         * Cancel the attempt if it is still running. Its thread is interrupted
+         * so that the operation stops waiting for the server.
+         */
+        void cancel(  )
+        {
+            synchronized ( this )
+            {
+                _bCancelled = true;
+
+                if ( _thread != null )
+                {
+                    _thread.interrupt(  );
+                }
+            }
+        }
+
+        /**
+         * Check if the attempt failed because its server could not be reached
+         * @return True if the server could not be reached
+         */
+        boolean isUnavailable(  )
+        {
+            return LdapUtil.isCommunicationError( _namingException ) ||
+            ( _namingException instanceof ServiceUnavailableException );
+        }
+
+        /**
+         * Get the error of the attempt
+         * @return The error, or null if the attempt did not fail with an LDAP
+         *         error
+         */
+        NamingException getError(  )
+        {
+            return _namingException;
+        }
+
+        /**
+         * Get the result of the attempt
+         * @return The result
+         * @throws NamingException The error of the attempt
+         */
+        T getResult(  ) throws NamingException
+        {
+            if ( _namingException != null )
+            {
+                throw _namingException;
+            }
+
+            if ( _runtimeException != null )
+            {
+                throw _runtimeException;
+            }
+
+            return _result;
+        }
+
+        /**
+         * End the lease after an error. The context of a cancelled attempt is
+         * closed without counting the error against its server.
+         * @param e The error
+         */
+        private void end( Exception e )
+        {
+            boolean bCancelled;
+
+            synchronized ( this )
+            {
+                bCancelled = _bCancelled;
+            }
+
+            if ( bCancelled )
+            {
+                _lease.abort(  );
+            }
+            else
+            {
+                _lease.fail( e );
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.security.LuteceUser;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Last known version of the users found in the LDAP, served when the LDAP can
+ * not be searched. The store keeps the most recently used users up to its
+ * capacity.
+ */
+public class LdapStaleUserStore
+{
+    private static final String PROPERTY_CAPACITY = "searchldap.staleUsers.capacity";
+    private static final int DEFAULT_CAPACITY = 10000;
+    private static final float LOAD_FACTOR = 0.75f;
+    private final int _nCapacity;
+    private final Map<String, LuteceUser> _mapUsers;
+    private long _lServedCount;
+
+    /**
+     * Creates a store with the capacity read from the properties. A capacity
+     * of 0 disables the store.
+     */
+    public LdapStaleUserStore(  )
+    {
+        this( AppPropertiesService.getPropertyInt( PROPERTY_CAPACITY, DEFAULT_CAPACITY ) );
+    }
+
+    /**
+     * Creates a store
+     * @param nCapacity The maximum number of users. A capacity of 0 disables
+     *            the store.
+     */
+    public LdapStaleUserStore( int nCapacity )
+    {
+        _nCapacity = Math.max( 0, nCapacity );
+        _mapUsers = new LinkedHashMap<String, LuteceUser>( 16, LOAD_FACTOR, true )
+                {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry( Map.Entry<String, LuteceUser> eldest )
+                    {
+                        return size(  ) > _nCapacity;
+                    }
+                };
+    }
+
+    /**
+     * Store the last known version of a user
+     * @param user The user
+     */
+    public synchronized void putUser( LuteceUser user )
+    {
+        if ( ( _nCapacity > 0 ) && ( user != null ) && ( user.getName(  ) != null ) )
+        {
+            _mapUsers.put( user.getName(  ), user );
+        }
+    }
+
+    /**
+     * Remove a user, for instance because it was not found in the LDAP
+     * anymore
+     * @param strName The name of the user
+     */
+    public synchronized void removeUser( String strName )
+    {
+        _mapUsers.remove( strName );
+    }
+
+    /**
+     * Get the last known version of a user, to serve it instead of an error
+     * @param strName The name of the user
+     * @return The user, or null if the user is not known
+     */
+    public synchronized LuteceUser getUser( String strName )
+    {
+        LuteceUser user = _mapUsers.get( strName );
+
+        if ( user != null )
+        {
+            _lServedCount++;
+        }
+
+        return user;
+    }
+
+    /**
+     * Remove every user
+     */
+    public synchronized void clear(  )
+    {
+        _mapUsers.clear(  );
+    }
+
+    /**
+     * Get the number of users in the store
+     * @return The number of users
+     */
+    public synchronized int getSize(  )
+    {
+        return _mapUsers.size(  );
+    }
+
+    /**
+     * Get the number of stale users served instead of an error
+     * @return The number of users served
+     */
+    public synchronized long getServedCount(  )
+    {
+        return _lServedCount;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Pool of the attribute values of the cached users, so that a value shared by
+ * many users, such as a family name or a group, is held once. The pool is a
+ * table of a fixed number of slots, indexed by the hash of the values : a
+ * value missing from the pool replaces the value of its slot, so that the
+ * values seen often stay in the pool while the values seen once are evicted,
+ * and the pool never grows beyond its slots.
+ */
+public final class LdapStringInterner
+{
+    private static final String PROPERTY_CAPACITY = "searchldap.cache.internedValues.capacity";
+    private static final int DEFAULT_CAPACITY = 65536;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final LdapStringInterner _singleton = new LdapStringInterner( AppPropertiesService.getPropertyInt( 
+                PROPERTY_CAPACITY, DEFAULT_CAPACITY ) );
+    private final AtomicReferenceArray<String> _values;
+    private final AtomicInteger _nSize = new AtomicInteger(  );
+
+    /**
+     * Creates a new pool
+     * @param nCapacity The number of slots, rounded up to a power of two. 0
+     *            disables the pool.
+     */
+    public LdapStringInterner( int nCapacity )
+    {
+        int nSlots = 0;
+
+        if ( nCapacity > 0 )
+        {
+            nSlots = Integer.highestOneBit( Math.min( nCapacity, MAX_CAPACITY ) );
+
+            if ( nSlots < nCapacity )
+            {
+                nSlots <<= 1;
+            }
+        }
+
+        _values = new AtomicReferenceArray<String>( nSlots );
+    }
+
+    /**
+     * Get the pool of the attribute values of the cached users
+     * @return The pool
+     */
+    public static LdapStringInterner getInstance(  )
+    {
+        return _singleton;
+    }
+
+    /**
+     * Get the instance of a value held by the pool. A value missing from the
+     * pool takes the slot of the value it collides with.
+     * @param strValue The value, may be null
+     * @return The instance held by the pool, or the value itself if it was
+     *         not in the pool
+     */
+    public String intern( String strValue )
+    {
+        if ( ( strValue == null ) || ( _values.length(  ) == 0 ) )
+        {
+            return strValue;
+        }
+
+        int nHash = strValue.hashCode(  );
+        int nSlot = ( nHash ^ ( nHash >>> 16 ) ) & ( _values.length(  ) - 1 );
+        String strInterned = _values.get( nSlot );
+
+        if ( strValue.equals( strInterned ) )
+        {
+            return strInterned;
+        }
+
+        if ( strInterned == null )
+        {
+            if ( _values.compareAndSet( nSlot, null, strValue ) )
+            {
+                _nSize.incrementAndGet(  );
+            }
+        }
+        else
+        {
+            _values.set( nSlot, strValue );
+        }
+
+        return strValue;
+    }
+
+    /**
+     * Get the number of values of the pool
+     * @return The number of values
+     */
+    public int getSize(  )
+    {
+        return _nSize.get(  );
+    }
+
+    /**
+     * Remove every value from the pool
+     */
+    public void clear(  )
+    {
+        for ( int i = 0; i < _values.length(  ); i++ )
+        {
+            if ( _values.getAndSet( i, null ) != null )
+            {
+                _nSize.decrementAndGet(  );
+            }
+        }
+    }
+}
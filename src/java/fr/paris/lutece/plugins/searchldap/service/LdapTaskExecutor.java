@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Executors running LDAP operations in the background. Operations run on
+ * virtual threads when the runtime supports them and they are enabled, on a
+ * bounded pool of threads otherwise.
+ */
+public final class LdapTaskExecutor
+{
+    private static final String PROPERTY_THREADS = "searchldap.async.threads";
+    private static final String PROPERTY_QUEUE_SIZE = "searchldap.async.queueSize";
+    private static final String PROPERTY_USE_VIRTUAL_THREADS = "searchldap.async.useVirtualThreads";
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+    private static final String METHOD_NEW_VIRTUAL_THREAD_EXECUTOR = "newVirtualThreadPerTaskExecutor";
+    private static final String THREAD_NAME_PREFIX = "searchldap-async-";
+    private static final String THREAD_NAME_SCHEDULER = "searchldap-scheduler";
+    private static final long SHUTDOWN_TIMEOUT = 5000L;
+    private static final LdapTaskExecutor _instance = new LdapTaskExecutor(  );
+    private final ExecutorService _executor;
+    private final ScheduledExecutorService _scheduler;
+
+    /**
+     * Private constructor
+     */
+    private LdapTaskExecutor(  )
+    {
+        ExecutorService executor = null;
+
+        if ( AppPropertiesService.getPropertyBoolean( PROPERTY_USE_VIRTUAL_THREADS, true ) )
+        {
+            executor = createVirtualThreadExecutor(  );
+        }
+
+        if ( executor == null )
+        {
+            int nThreads = Math.max( 1, AppPropertiesService.getPropertyInt( PROPERTY_THREADS, DEFAULT_THREADS ) );
+            executor = new ThreadPoolExecutor( nThreads, nThreads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>( Math.max( 1,
+                            AppPropertiesService.getPropertyInt( PROPERTY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE ) ) ),
+                    new DaemonThreadFactory( THREAD_NAME_PREFIX ) );
+            ( (ThreadPoolExecutor) executor ).allowCoreThreadTimeOut( true );
+        }
+
+        _executor = executor;
+        _scheduler = Executors.newSingleThreadScheduledExecutor( new DaemonThreadFactory( THREAD_NAME_SCHEDULER ) );
+    }
+
+    /**
+     * Get the instance of this service
+     * @return The instance of this service
+     */
+    public static LdapTaskExecutor getInstance(  )
+    {
+        return _instance;
+    }
+
+    /**
+     * Get the executor running LDAP operations
+     * @return The executor
+     */
+    public ExecutorService getExecutor(  )
+    {
+        return _executor;
+    }
+
+    /**
+     * Get the scheduler used for deadlines and delayed tasks. Scheduled tasks
+     * must be short and must not access the LDAP.
+     * @return The scheduler
+     */
+    public ScheduledExecutorService getScheduler(  )
+    {
+        return _scheduler;
+    }
+
+    /**
+     * Stop the executors : the running operations are interrupted and the
+     * waiting ones are dropped. The executors can not be used afterwards.
+     */
+    public void shutdown(  )
+    {
+        _executor.shutdownNow(  );
+        _scheduler.shutdownNow(  );
+
+        try
+        {
+            if ( !_executor.awaitTermination( SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS ) ||
+                    !_scheduler.awaitTermination( SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS ) )
+            {
+                AppLogService.error( "Search LDAP plugin : background LDAP operations still running after " +
+                    SHUTDOWN_TIMEOUT + " ms" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+        }
+    }
+
+    /**
+     * Create an executor starting a virtual thread per task
+     * @return The executor, or null if the runtime does not support virtual
+     *         threads
+     */
+    private static ExecutorService createVirtualThreadExecutor(  )
+    {
+        try
+        {
+            Method method = Executors.class.getMethod( METHOD_NEW_VIRTUAL_THREAD_EXECUTOR );
+
+            return (ExecutorService) method.invoke( null );
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return null;
+        }
+        catch ( Exception e )
+        {
+            AppLogService.error( "Unable to create virtual thread executor : " + e.getMessage(  ) );
+
+            return null;
+        }
+    }
+
+    /**
+     * Factory of named daemon threads
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String _strNamePrefix;
+        private final AtomicInteger _nThreadCount = new AtomicInteger(  );
+
+        /**
+         * Creates a new factory
+         * @param strNamePrefix The prefix of the name of the threads
+         */
+        DaemonThreadFactory( String strNamePrefix )
+        {
+            _strNamePrefix = strNamePrefix;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread( Runnable runnable )
+        {
+            Thread thread = new Thread( runnable, _strNamePrefix + _nThreadCount.incrementAndGet(  ) );
+            thread.setDaemon( true );
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+import fr.paris.lutece.portal.service.security.SecurityService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Binary codec of the users, more compact and faster than the Java
+ * serialization of {@link LDAPUser}. A user is written as its guid, its email,
+ * a bitmap of the mapped attributes that have a value and these values, in
+ * the order of the mapping of the lookup plan, then the DN of its direct
+ * groups. Strings are written as the
+ * variable length encoding of their UTF-8 length plus one, 0 standing for
+ * null, followed by their bytes.<br>
+ * Users are read from a {@link ByteBuffer} : strings of a heap buffer are
+ * decoded in place, without intermediate copy. Data written with another
+ * version of the codec or another mapping must not be read, which callers
+ * check with the header. Instances are immutable and thread safe.
+ */
+public final class LdapUserCodec
+{
+    /** Version of the encoding, written in the header */
+    public static final int VERSION = 2;
+    private static final int NULL_STRING = 0;
+    private static final int VARINT_MASK = 0x7f;
+    private static final int VARINT_CONTINUATION = 0x80;
+    private static final int VARINT_SHIFT = 7;
+    private static final int BITS_PER_BYTE = 8;
+    private static final Charset CHARSET = Charset.forName( "UTF-8" );
+    private static final ThreadLocal<byte[]> _scratch = new ThreadLocal<byte[]>(  );
+    private final LdapLookupPlan _plan;
+    private final String[] _attributeNames;
+    private final int _nBitmapLength;
+
+    /**
+     * Creates a codec for the mapping of a lookup plan
+     * @param plan The lookup plan
+     */
+    public LdapUserCodec( LdapLookupPlan plan )
+    {
+        _plan = plan;
+        _attributeNames = plan.getLuteceUserAttributes(  );
+        _nBitmapLength = ( _attributeNames.length + BITS_PER_BYTE - 1 ) / BITS_PER_BYTE;
+    }
+
+    /**
+     * Write the header identifying the version of the codec and the mapping
+     * @param out The output
+     * @throws IOException If the header can not be written
+     */
+    public void writeHeader( DataOutput out ) throws IOException
+    {
+        writeVarInt( out, VERSION );
+        out.writeInt( _plan.getMappingHash(  ) );
+        writeVarInt( out, _attributeNames.length );
+    }
+
+    /**
+     * Read a header and check that it matches this codec
+     * @param buffer The buffer
+     * @return True if the data that follows can be read by this codec
+     */
+    public boolean readHeader( ByteBuffer buffer )
+    {
+        return ( readVarInt( buffer ) == VERSION ) && ( buffer.getInt(  ) == _plan.getMappingHash(  ) ) &&
+        ( readVarInt( buffer ) == _attributeNames.length );
+    }
+
+    /**
+     * Write a user
+     * @param out The output
+     * @param user The user
+     * @throws IOException If the user can not be written
+     */
+    public void write( DataOutput out, LDAPUser user ) throws IOException
+    {
+        String[] values = new String[_attributeNames.length];
+        byte[] bitmap = new byte[_nBitmapLength];
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            values[i] = user.getUserInfo( _attributeNames[i] );
+
+            if ( values[i] != null )
+            {
+                bitmap[i / BITS_PER_BYTE] |= ( 1 << ( i % BITS_PER_BYTE ) );
+            }
+        }
+
+        writeString( out, user.getName(  ) );
+        writeString( out, user.getEmail(  ) );
+        out.write( bitmap );
+
+        for ( String strValue : values )
+        {
+            if ( strValue != null )
+            {
+                writeString( out, strValue );
+            }
+        }
+
+        List<String> listMemberOf = user.getMemberOf(  );
+        writeVarInt( out, listMemberOf.size(  ) );
+
+        for ( String strDn : listMemberOf )
+        {
+            writeString( out, strDn );
+        }
+    }
+
+    /**
+     * Read a user
+     * @param buffer The buffer, positioned on the user
+     * @return The user
+     * @throws BufferUnderflowException If the buffer ends before the
+     *             user
+     */
+    public LDAPUser read( ByteBuffer buffer )
+    {
+        String strGuid = readString( buffer );
+        String strEmail = readString( buffer );
+        int nBitmapPosition = buffer.position(  );
+        buffer.position( nBitmapPosition + _nBitmapLength );
+
+        LDAPUser user = new LDAPUser( strGuid, SecurityService.getInstance(  ).getAuthenticationService(  ) );
+        user.setEmail( strEmail );
+        user.setUserInfo( _plan.getEmailLuteceUserAttribute(  ), strEmail );
+
+        for ( int i = 0; i < _attributeNames.length; i++ )
+        {
+            if ( ( buffer.get( nBitmapPosition + ( i / BITS_PER_BYTE ) ) & ( 1 << ( i % BITS_PER_BYTE ) ) ) != 0 )
+            {
+                user.setUserInfo( _attributeNames[i], readString( buffer ) );
+            }
+        }
+
+        int nGroupCount = readVarInt( buffer );
+
+        if ( nGroupCount > 0 )
+        {
+            List<String> listMemberOf = new ArrayList<String>( Math.min( nGroupCount, buffer.remaining(  ) ) );
+
+            for ( int i = 0; i < nGroupCount; i++ )
+            {
+                listMemberOf.add( LdapStringInterner.getInstance(  ).intern( readString( buffer ) ) );
+            }
+
+            user.setMemberOf( listMemberOf );
+            LdapGroupService.getInstance(  ).assignGroups( user );
+        }
+
+        return user;
+    }
+
+    /**
+     * Encode a user with a header, for instance to store it in a shared cache
+     * @param user The user
+     * @return The bytes
+     */
+    public byte[] encode( LDAPUser user )
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(  );
+        DataOutputStream out = new DataOutputStream( bytes );
+
+        try
+        {
+            writeHeader( out );
+            write( out, user );
+            out.flush(  );
+        }
+        catch ( IOException e )
+        {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException( e );
+        }
+
+        return bytes.toByteArray(  );
+    }
+
+    /**
+     * Decode a user encoded by {@link #encode(LDAPUser)}
+     * @param buffer The buffer
+     * @return The user, or null if it was encoded with another version or
+     *         another mapping
+     */
+    public LDAPUser decode( ByteBuffer buffer )
+    {
+        return readHeader( buffer ) ? read( buffer ) : null;
+    }
+
+    /**
+     * Write a string
+     * @param out The output
+     * @param strValue The string, may be null
+     * @throws IOException If the string can not be written
+     */
+    public static void writeString( DataOutput out, String strValue )
+        throws IOException
+    {
+        if ( strValue == null )
+        {
+            writeVarInt( out, NULL_STRING );
+
+            return;
+        }
+
+        byte[] bytes = strValue.getBytes( CHARSET );
+        writeVarInt( out, bytes.length + 1 );
+        out.write( bytes );
+    }
+
+    /**
+     * Read a string written by {@link #writeString(DataOutput, String)}
+     * @param buffer The buffer
+     * @return The string, may be null
+     */
+    public static String readString( ByteBuffer buffer )
+    {
+        int nLength = readVarInt( buffer ) - 1;
+
+        if ( nLength < 0 )
+        {
+            return null;
+        }
+
+        if ( nLength > buffer.remaining(  ) )
+        {
+            throw new BufferUnderflowException(  );
+        }
+
+        int nPosition = buffer.position(  );
+        String strValue;
+
+        if ( buffer.hasArray(  ) )
+        {
+            strValue = new String( buffer.array(  ), buffer.arrayOffset(  ) + nPosition, nLength, CHARSET );
+            buffer.position( nPosition + nLength );
+        }
+        else
+        {
+            byte[] scratch = _scratch.get(  );
+
+            if ( ( scratch == null ) || ( scratch.length < nLength ) )
+            {
+                scratch = new byte[Math.max( nLength, 256 )];
+                _scratch.set( scratch );
+            }
+
+            buffer.get( scratch, 0, nLength );
+            strValue = new String( scratch, 0, nLength, CHARSET );
+        }
+
+        return strValue;
+    }
+
+    /**
+     * Write a positive integer with 7 bits per byte, the high bit of a byte
+     * telling that another byte follows
+     * @param out The output
+     * @param nValue The integer
+     * @throws IOException If the integer can not be written
+     */
+    private static void writeVarInt( DataOutput out, int nValue )
+        throws IOException
+    {
+        int nRemaining = nValue;
+
+        while ( ( nRemaining & ~VARINT_MASK ) != 0 )
+        {
+            out.writeByte( ( nRemaining & VARINT_MASK ) | VARINT_CONTINUATION );
+            nRemaining >>>= VARINT_SHIFT;
+        }
+
+        out.writeByte( nRemaining );
+    }
+
+    /**
+     * Read an integer written by {@link #writeVarInt(DataOutput, int)}
+     * @param buffer The buffer
+     * @return The integer
+     */
+    private static int readVarInt( ByteBuffer buffer )
+    {
+        int nValue = 0;
+        int nShift = 0;
+        byte b;
+
+        do
+        {
+            if ( nShift > ( 4 * VARINT_SHIFT ) )
+            {
+                throw new IllegalArgumentException( "Invalid variable length integer" );
+            }
+
+            b = buffer.get(  );
+            nValue |= ( ( b & VARINT_MASK ) << nShift );
+            nShift += VARINT_SHIFT;
+        }
+        while ( ( b & VARINT_CONTINUATION ) != 0 );
+
+        return nValue;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.security.LuteceUser;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+
+
+/**
+ * Deduplicate concurrent lookups of the same user. The first caller of a key
+ * runs the lookup, callers that arrive while it is running wait for its result
+ * instead of running their own lookup.
+ */
+public class LdapUserLookupCoalescer
+{
+    private final ConcurrentMap<String, FutureTask<LuteceUser>> _mapInFlightLookups = new ConcurrentHashMap<String, FutureTask<LuteceUser>>(  );
+    private final AtomicLong _lLookupCount = new AtomicLong(  );
+    private final AtomicLong _lCoalescedCount = new AtomicLong(  );
+    private final AtomicLong _lTimeoutCount = new AtomicLong(  );
+    private final AtomicLong _lErrorCount = new AtomicLong(  );
+
+    /**
+     * Run a lookup, or wait for the lookup of the same key that is already
+     * running
+     * @param strKey The key of the lookup
+     * @param lookup The lookup to run if no lookup of this key is running
+     * @param lTimeout The maximum time to wait for the result of a running
+     *            lookup, in milliseconds
+     * @return The result of the lookup
+     * @throws NamingException If the lookup failed, or if the result of a
+     *             running lookup was not available in time
+     */
+    public LuteceUser lookup( String strKey, Callable<LuteceUser> lookup, long lTimeout )
+        throws NamingException
+    {
+        FutureTask<LuteceUser> task = new FutureTask<LuteceUser>( lookup );
+        FutureTask<LuteceUser> inFlightTask = _mapInFlightLookups.putIfAbsent( strKey, task );
+
+        if ( inFlightTask == null )
+        {
+            _lLookupCount.incrementAndGet(  );
+
+            try
+            {
+                task.run(  );
+            }
+            finally
+            {
+                _mapInFlightLookups.remove( strKey, task );
+            }
+
+            return getResult( task, lTimeout );
+        }
+
+        _lCoalescedCount.incrementAndGet(  );
+
+        return getResult( inFlightTask, lTimeout );
+    }
+
+    /**
+     * Get the number of lookups that were actually run
+     * @return The number of lookups
+     */
+    public long getLookupCount(  )
+    {
+        return _lLookupCount.get(  );
+    }
+
+    /**
+     * Get the number of calls that waited for the lookup of another caller
+     * instead of running their own
+     * @return The number of coalesced calls
+     */
+    public long getCoalescedCount(  )
+    {
+        return _lCoalescedCount.get(  );
+    }
+
+    /**
+     * Get the number of coalesced calls that gave up waiting
+     * @return The number of timeouts
+     */
+    public long getTimeoutCount(  )
+    {
+        return _lTimeoutCount.get(  );
+    }
+
+    /**
+     * Get the number of calls that received an error
+     * @return The number of errors
+     */
+    public long getErrorCount(  )
+    {
+        return _lErrorCount.get(  );
+    }
+
+    /**
+     * Get the number of lookups currently running
+     * @return The number of running lookups
+     */
+    public int getInFlightCount(  )
+    {
+        return _mapInFlightLookups.size(  );
+    }
+
+    /**
+     * Wait for the result of a lookup
+     * @param task The lookup
+     * @param lTimeout The maximum time to wait, in milliseconds
+     * @return The result of the lookup
+     * @throws NamingException If the lookup failed or timed out
+     */
+    private LuteceUser getResult( FutureTask<LuteceUser> task, long lTimeout )
+        throws NamingException
+    {
+        try
+        {
+            return task.get( lTimeout, TimeUnit.MILLISECONDS );
+        }
+        catch ( TimeoutException e )
+        {
+            _lTimeoutCount.incrementAndGet(  );
+            throw new TimeLimitExceededException( "Timeout while waiting for a concurrent LDAP lookup" );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread(  ).interrupt(  );
+            throw new InterruptedNamingException( "Interrupted while waiting for a concurrent LDAP lookup" );
+        }
+        catch ( ExecutionException e )
+        {
+            _lErrorCount.incrementAndGet(  );
+
+            Throwable cause = e.getCause(  );
+
+            if ( cause instanceof NamingException )
+            {
+                throw (NamingException) cause;
+            }
+
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+
+            NamingException exception = new NamingException( "LDAP lookup failed" );
+            exception.setRootCause( cause );
+            throw exception;
+        }
+    }
+}
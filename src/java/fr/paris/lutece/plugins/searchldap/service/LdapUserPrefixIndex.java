@@ -0,0 +1,617 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import java.text.Normalizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+
+/**
+ * In memory index of the users known by the plugin, to find users by the
+ * start of their names or email. The index is made of an immutable segment,
+ * holding the records of the users sorted by guid, the sorted terms and for
+ * each term the users having it in primitive arrays, and of a small buffer of
+ * the users added or removed since the segment was built. The segment is
+ * rebuilt in the background, merged with the buffer, when the buffer grows
+ * too large. The users are held as compact records and built when found. The
+ * index holds at most the capacity of the lookup plan : the users added once
+ * it is full are not indexed, unless they are already.
+ */
+public class LdapUserPrefixIndex
+{
+    private static final Pattern PATTERN_DIACRITICS = Pattern.compile( "\\p{InCombiningDiacriticalMarks}+" );
+    private static final Pattern PATTERN_SEPARATORS = Pattern.compile( "[^\\p{L}\\p{N}]+" );
+    private static final char MAX_ASCII = 127;
+    private static final int MIN_REBUILD_THRESHOLD = 1000;
+    private static final int REBUILD_THRESHOLD_RATIO = 100;
+    private static final Comparator<LdapUserRecord> GUID_ORDER = new Comparator<LdapUserRecord>(  )
+        {
+            @Override
+            public int compare( LdapUserRecord record1, LdapUserRecord record2 )
+            {
+                return record1.getGuid(  ).compareTo( record2.getGuid(  ) );
+            }
+        };
+
+    private final LdapLookupPlan _plan;
+    private final String[] _indexedAttributes;
+    private final int _nCapacity;
+    private final ConcurrentMap<String, IndexedUser> _mapAddedUsers = new ConcurrentHashMap<String, IndexedUser>(  );
+    private final Set<String> _setRemovedUsers = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>(  ) );
+    private final AtomicBoolean _bRebuilding = new AtomicBoolean(  );
+    private volatile Segment _segment = new Segment( new ArrayList<LdapUserRecord>(  ), new String[0] );
+
+    /**
+     * Creates an empty index
+     * @param plan The lookup plan giving the attributes to index, the
+     *            capacity of the index and the mapping of the records
+     */
+    public LdapUserPrefixIndex( LdapLookupPlan plan )
+    {
+        _plan = plan;
+        _indexedAttributes = plan.getIndexedAttributes(  );
+        _nCapacity = plan.getIndexCapacity(  );
+    }
+
+    /**
+     * Replace the content of the index. Changes made while the new segment is
+     * built stay in the buffer.
+     * @param collectionUsers Every user to index. The users beyond the
+     *            capacity of the index are not indexed.
+     */
+    public void rebuild( Collection<LDAPUser> collectionUsers )
+    {
+        Map<String, IndexedUser> mapAddedUsers = new HashMap<String, IndexedUser>( _mapAddedUsers );
+        Set<String> setRemovedUsers = new HashSet<String>( _setRemovedUsers );
+        List<LdapUserRecord> listRecords = new ArrayList<LdapUserRecord>( Math.min( collectionUsers.size(  ),
+                    _nCapacity ) );
+
+        for ( LDAPUser user : collectionUsers )
+        {
+            if ( listRecords.size(  ) >= _nCapacity )
+            {
+                AppLogService.error( "The ldap user index is full, " + ( collectionUsers.size(  ) - _nCapacity ) +
+                    " users are not indexed" );
+
+                break;
+            }
+
+            if ( user.getName(  ) != null )
+            {
+                listRecords.add( LdapUserRecord.create( _plan, user ) );
+            }
+        }
+
+        Segment segment = new Segment( listRecords, _indexedAttributes );
+
+        synchronized ( this )
+        {
+            _segment = segment;
+            removeChanges( mapAddedUsers, setRemovedUsers );
+        }
+    }
+
+    /**
+     * Add a user to the index, or update it. A new user is not indexed if the
+     * index is full.
+     * @param user The user
+     */
+    public void addUser( LDAPUser user )
+    {
+        String strGuid = user.getName(  );
+
+        if ( ( strGuid == null ) ||
+                ( ( getSize(  ) >= _nCapacity ) && !_mapAddedUsers.containsKey( strGuid ) &&
+                !_segment.contains( strGuid ) ) )
+        {
+            return;
+        }
+
+        LdapUserRecord record = LdapUserRecord.create( _plan, user );
+        _mapAddedUsers.put( strGuid, new IndexedUser( record, getTerms( record, _indexedAttributes ) ) );
+        _setRemovedUsers.remove( strGuid );
+        mergeIfNeeded(  );
+    }
+
+    /**
+     * Remove a user from the index
+     * @param strGuid The guid of the user
+     */
+    public void removeUser( String strGuid )
+    {
+        _mapAddedUsers.remove( strGuid );
+        _setRemovedUsers.add( strGuid );
+        mergeIfNeeded(  );
+    }
+
+    /**
+     * Find the users having a term starting with each word of a query. Users
+     * are ordered by their matching term.
+     * @param strQuery The query, such as the start of a family name or of a
+     *            given name followed by the start of a family name
+     * @param nMaxResults The maximum number of users
+     * @return New users built from the records of the index
+     */
+    public List<LDAPUser> findUsers( String strQuery, int nMaxResults )
+    {
+        List<String> listWords = tokenize( strQuery );
+        List<LDAPUser> listUsers = new ArrayList<LDAPUser>(  );
+
+        if ( listWords.isEmpty(  ) || ( nMaxResults <= 0 ) )
+        {
+            return listUsers;
+        }
+
+        // The longest word has the fewest matching terms
+        String strLookupWord = listWords.get( 0 );
+
+        for ( String strWord : listWords )
+        {
+            if ( strWord.length(  ) > strLookupWord.length(  ) )
+            {
+                strLookupWord = strWord;
+            }
+        }
+
+        Segment segment = _segment;
+        Set<String> setFoundUsers = new HashSet<String>(  );
+        int nTerm = segment.getFirstTerm( strLookupWord );
+
+        while ( ( nTerm < segment._terms.length ) && segment._terms[nTerm].startsWith( strLookupWord ) &&
+                ( listUsers.size(  ) < nMaxResults ) )
+        {
+            for ( int nPosting = segment._postingOffsets[nTerm];
+                    ( nPosting < segment._postingOffsets[nTerm + 1] ) && ( listUsers.size(  ) < nMaxResults );
+                    nPosting++ )
+            {
+                LdapUserRecord record = segment._records[segment._postings[nPosting]];
+                String strGuid = record.getGuid(  );
+
+                // A single word matches the term it was looked up with
+                if ( !_mapAddedUsers.containsKey( strGuid ) && !_setRemovedUsers.contains( strGuid ) &&
+                        setFoundUsers.add( strGuid ) &&
+                        ( ( listWords.size(  ) == 1 ) ||
+                        matches( getTerms( record, _indexedAttributes ), listWords ) ) )
+                {
+                    listUsers.add( record.toUser(  ) );
+                }
+            }
+
+            nTerm++;
+        }
+
+        for ( IndexedUser indexedUser : _mapAddedUsers.values(  ) )
+        {
+            if ( listUsers.size(  ) >= nMaxResults )
+            {
+                break;
+            }
+
+            if ( matches( indexedUser._terms, listWords ) )
+            {
+                listUsers.add( indexedUser._record.toUser(  ) );
+            }
+        }
+
+        return listUsers;
+    }
+
+    /**
+     * Get the number of users of the index
+     * @return The number of users, including the users not merged yet
+     */
+    public int getSize(  )
+    {
+        return _segment._records.length + _mapAddedUsers.size(  );
+    }
+
+    /**
+     * Get the number of distinct terms of the segment
+     * @return The number of terms
+     */
+    public int getTermCount(  )
+    {
+        return _segment._terms.length;
+    }
+
+    /**
+     * Get the number of users added or removed since the segment was built
+     * @return The number of changes
+     */
+    public int getPendingChangeCount(  )
+    {
+        return _mapAddedUsers.size(  ) + _setRemovedUsers.size(  );
+    }
+
+    /**
+     * Check if the terms of a user start with each word
+     * @param terms The terms of the user
+     * @param listWords The words
+     * @return True if every word is the start of a term of the user
+     */
+    private static boolean matches( String[] terms, List<String> listWords )
+    {
+        for ( String strWord : listWords )
+        {
+            boolean bFound = false;
+
+            for ( String strTerm : terms )
+            {
+                if ( strTerm.startsWith( strWord ) )
+                {
+                    bFound = true;
+
+                    break;
+                }
+            }
+
+            if ( !bFound )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Merge the buffer into a new segment in the background once it holds
+     * too many changes
+     */
+    private void mergeIfNeeded(  )
+    {
+        if ( ( getPendingChangeCount(  ) < Math.max( MIN_REBUILD_THRESHOLD,
+                    _segment._records.length / REBUILD_THRESHOLD_RATIO ) ) ||
+                !_bRebuilding.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        try
+        {
+            LdapTaskExecutor.getInstance(  ).getExecutor(  ).execute( new Runnable(  )
+                {
+                    @Override
+                    public void run(  )
+                    {
+                        try
+                        {
+                            merge(  );
+                        }
+                        finally
+                        {
+                            _bRebuilding.set( false );
+                        }
+                    }
+                } );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            _bRebuilding.set( false );
+            AppLogService.error( "Unable to merge the ldap user index : " + e.getMessage(  ) );
+        }
+    }
+
+    /**
+     * Build a new segment from the current segment and the buffer. Changes
+     * made while the segment is built stay in the buffer.
+     */
+    private void merge(  )
+    {
+        Segment segment = _segment;
+        Map<String, IndexedUser> mapAddedUsers = new HashMap<String, IndexedUser>( _mapAddedUsers );
+        Set<String> setRemovedUsers = new HashSet<String>( _setRemovedUsers );
+        Map<String, LdapUserRecord> mapRecords = new HashMap<String, LdapUserRecord>( segment._records.length +
+                mapAddedUsers.size(  ) );
+
+        for ( LdapUserRecord record : segment._records )
+        {
+            if ( !setRemovedUsers.contains( record.getGuid(  ) ) )
+            {
+                mapRecords.put( record.getGuid(  ), record );
+            }
+        }
+
+        for ( IndexedUser indexedUser : mapAddedUsers.values(  ) )
+        {
+            mapRecords.put( indexedUser._record.getGuid(  ), indexedUser._record );
+        }
+
+        Segment newSegment = new Segment( mapRecords.values(  ), _indexedAttributes );
+
+        synchronized ( this )
+        {
+            // A rebuild replaced the segment in the meantime : the changes stay in the buffer
+            if ( _segment == segment )
+            {
+                _segment = newSegment;
+                removeChanges( mapAddedUsers, setRemovedUsers );
+            }
+        }
+    }
+
+    /**
+     * Remove from the buffer the changes a new segment was built with. Changes
+     * made since, including a user added again, stay in the buffer.
+     * @param mapAddedUsers The users added that the segment holds
+     * @param setRemovedUsers The guids of the users removed that the segment
+     *            does not hold
+     */
+    private void removeChanges( Map<String, IndexedUser> mapAddedUsers, Set<String> setRemovedUsers )
+    {
+        for ( Map.Entry<String, IndexedUser> entry : mapAddedUsers.entrySet(  ) )
+        {
+            _mapAddedUsers.remove( entry.getKey(  ), entry.getValue(  ) );
+        }
+
+        _setRemovedUsers.removeAll( setRemovedUsers );
+    }
+
+    /**
+     * Get the terms of a user
+     * @param record The record of the user
+     * @param indexedAttributes The attributes to index
+     * @return The normalized values of the attributes, and each word of these
+     *         values
+     */
+    private static String[] getTerms( LdapUserRecord record, String[] indexedAttributes )
+    {
+        Set<String> setTerms = new LinkedHashSet<String>(  );
+
+        for ( String strAttribute : indexedAttributes )
+        {
+            String strValue = record.getUserInfo( strAttribute );
+
+            if ( strValue != null )
+            {
+                String strNormalized = normalize( strValue );
+
+                if ( !strNormalized.isEmpty(  ) )
+                {
+                    setTerms.add( strNormalized );
+                }
+
+                setTerms.addAll( tokenize( strValue ) );
+            }
+        }
+
+        return setTerms.toArray( new String[setTerms.size(  )] );
+    }
+
+    /**
+     * Split a value into normalized words
+     * @param strValue The value
+     * @return The words
+     */
+    private static List<String> tokenize( String strValue )
+    {
+        List<String> listWords = new ArrayList<String>(  );
+
+        if ( strValue == null )
+        {
+            return listWords;
+        }
+
+        for ( String strWord : PATTERN_SEPARATORS.split( normalize( strValue ) ) )
+        {
+            if ( !strWord.isEmpty(  ) )
+            {
+                listWords.add( strWord );
+            }
+        }
+
+        return listWords;
+    }
+
+    /**
+     * Normalize a value : accents are removed and letters are lower cased
+     * @param strValue The value
+     * @return The normalized value
+     */
+    private static String normalize( String strValue )
+    {
+        String strTrimmed = strValue.trim(  );
+
+        for ( int i = 0; i < strTrimmed.length(  ); i++ )
+        {
+            if ( strTrimmed.charAt( i ) > MAX_ASCII )
+            {
+                return PATTERN_DIACRITICS.matcher( Normalizer.normalize( strTrimmed, Normalizer.Form.NFD ) )
+                                         .replaceAll( "" ).toLowerCase( Locale.ROOT );
+            }
+        }
+
+        return strTrimmed.toLowerCase( Locale.ROOT );
+    }
+
+    /**
+     * User added to the index since the segment was built, with its terms
+     */
+    private static final class IndexedUser
+    {
+        private final LdapUserRecord _record;
+        private final String[] _terms;
+
+        /**
+         * Creates a new indexed user
+         * @param record The record of the user
+         * @param terms The terms of the user
+         */
+        IndexedUser( LdapUserRecord record, String[] terms )
+        {
+            _record = record;
+            _terms = terms;
+        }
+    }
+
+    /**
+     * Immutable segment of the index. The records are sorted by guid. The
+     * users having the term <code>_terms[i]</code> are the users whose
+     * positions are stored in <code>_postings</code> from
+     * <code>_postingOffsets[i]</code> included to
+     * <code>_postingOffsets[i + 1]</code> excluded.
+     */
+    private static final class Segment
+    {
+        private final LdapUserRecord[] _records;
+        private final String[] _terms;
+        private final int[] _postingOffsets;
+        private final int[] _postings;
+
+        /**
+         * Build a segment
+         * @param collectionRecords The records of the users
+         * @param indexedAttributes The attributes to index
+         */
+        Segment( Collection<LdapUserRecord> collectionRecords, String[] indexedAttributes )
+        {
+            _records = collectionRecords.toArray( new LdapUserRecord[collectionRecords.size(  )] );
+            Arrays.sort( _records, GUID_ORDER );
+
+            String[][] userTerms = new String[_records.length][];
+            Map<String, int[]> mapPostings = new HashMap<String, int[]>(  );
+
+            // First pass : count the users of each term
+            for ( int nUser = 0; nUser < _records.length; nUser++ )
+            {
+                userTerms[nUser] = getTerms( _records[nUser], indexedAttributes );
+
+                for ( String strTerm : userTerms[nUser] )
+                {
+                    int[] count = mapPostings.get( strTerm );
+
+                    if ( count == null )
+                    {
+                        mapPostings.put( strTerm, new int[] { 1 } );
+                    }
+                    else
+                    {
+                        count[0]++;
+                    }
+                }
+            }
+
+            _terms = mapPostings.keySet(  ).toArray( new String[mapPostings.size(  )] );
+            Arrays.sort( _terms );
+            _postingOffsets = new int[_terms.length + 1];
+
+            Map<String, Integer> mapTermIndexes = new HashMap<String, Integer>( _terms.length * 2 );
+
+            for ( int i = 0; i < _terms.length; i++ )
+            {
+                _postingOffsets[i + 1] = _postingOffsets[i] + mapPostings.get( _terms[i] )[0];
+                mapTermIndexes.put( _terms[i], i );
+            }
+
+            // Second pass : fill the postings
+            _postings = new int[_postingOffsets[_terms.length]];
+
+            int[] nextPostings = Arrays.copyOf( _postingOffsets, _terms.length );
+
+            for ( int nUser = 0; nUser < _records.length; nUser++ )
+            {
+                for ( String strTerm : userTerms[nUser] )
+                {
+                    _postings[nextPostings[mapTermIndexes.get( strTerm )]++] = nUser;
+                }
+            }
+        }
+
+        /**
+         * Get the first term greater than or equal to a prefix
+         * @param strPrefix The prefix
+         * @return The index of the term, or the number of terms if every term
+         *         is lower than the prefix
+         */
+        int getFirstTerm( String strPrefix )
+        {
+            int nIndex = Arrays.binarySearch( _terms, strPrefix );
+
+            return ( nIndex >= 0 ) ? nIndex : ( -nIndex - 1 );
+        }
+
+        /**
+         * Check if the segment holds a user
+         * @param strGuid The guid of the user
+         * @return True if the segment holds the user
+         */
+        boolean contains( String strGuid )
+        {
+            int nLow = 0;
+            int nHigh = _records.length - 1;
+
+            while ( nLow <= nHigh )
+            {
+                int nMiddle = ( nLow + nHigh ) >>> 1;
+                int nComparison = _records[nMiddle].getGuid(  ).compareTo( strGuid );
+
+                if ( nComparison == 0 )
+                {
+                    return true;
+                }
+
+                if ( nComparison < 0 )
+                {
+                    nLow = nMiddle + 1;
+                }
+                else
+                {
+                    nHigh = nMiddle - 1;
+                }
+            }
+
+            return false;
+        }
+    }
+}
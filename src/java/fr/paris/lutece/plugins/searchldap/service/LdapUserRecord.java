@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+import fr.paris.lutece.portal.service.security.SecurityService;
+
+import java.io.Serializable;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Compact form of a cached user. The values of the mapped attributes are held
+ * in a flat array in the order of the mapping of the lookup plan, whose array
+ * of attribute names is shared by every record built with the plan, and the
+ * values of the attributes shared by many users, such as the family names,
+ * are interned. A {@link LDAPUser} is built from the record
+ * when a caller needs one. The record keeps the DN of the direct groups of
+ * the user, resolved against the current group graph when the user is built.
+ */
+public final class LdapUserRecord implements Serializable
+{
+    private static final long serialVersionUID = 3204865412871960325L;
+    private static final String[] NO_GROUPS = new String[0];
+    private final String _strGuid;
+    private final String _strEmail;
+    private final String _strEmailAttribute;
+    private final String[] _attributeNames;
+    private final String[] _values;
+    private final String[] _memberOf;
+
+    /**
+     * Creates a new record
+     * @param strGuid The guid of the user
+     * @param strEmail The email of the user
+     * @param strEmailAttribute The Lutece user attribute holding the email
+     * @param attributeNames The Lutece user attributes of the values
+     * @param values The values of the attributes, null for a value not set
+     * @param memberOf The DN of the direct groups of the user
+     */
+    private LdapUserRecord( String strGuid, String strEmail, String strEmailAttribute, String[] attributeNames,
+        String[] values, String[] memberOf )
+    {
+        _strGuid = strGuid;
+        _strEmail = strEmail;
+        _strEmailAttribute = strEmailAttribute;
+        _attributeNames = attributeNames;
+        _values = values;
+        _memberOf = memberOf;
+    }
+
+    /**
+     * Create the record of a user
+     * @param plan The lookup plan whose mapping the user was built with
+     * @param user The user
+     * @return The record
+     */
+    public static LdapUserRecord create( LdapLookupPlan plan, LDAPUser user )
+    {
+        LdapStringInterner interner = LdapStringInterner.getInstance(  );
+        String[] attributeNames = plan.getLuteceUserAttributes(  );
+        boolean[] internedAttributes = plan.getInternedAttributes(  );
+        String[] values = new String[attributeNames.length];
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            String strValue = user.getUserInfo( attributeNames[i] );
+            values[i] = internedAttributes[i] ? interner.intern( strValue ) : strValue;
+        }
+
+        List<String> listMemberOf = user.getMemberOf(  );
+        String[] memberOf = listMemberOf.isEmpty(  ) ? NO_GROUPS : new String[listMemberOf.size(  )];
+
+        for ( int i = 0; i < memberOf.length; i++ )
+        {
+            memberOf[i] = interner.intern( listMemberOf.get( i ) );
+        }
+
+        return new LdapUserRecord( user.getName(  ), user.getEmail(  ), plan.getEmailLuteceUserAttribute(  ),
+            attributeNames, values, memberOf );
+    }
+
+    /**
+     * Get the guid of the user
+     * @return The guid
+     */
+    public String getGuid(  )
+    {
+        return _strGuid;
+    }
+
+    /**
+     * Get the value of a Lutece user attribute of the user, as set on the
+     * users built from the record
+     * @param strAttribute The Lutece user attribute
+     * @return The value, or null if the attribute is not set
+     */
+    public String getUserInfo( String strAttribute )
+    {
+        for ( int i = 0; i < _values.length; i++ )
+        {
+            if ( ( _values[i] != null ) && _attributeNames[i].equals( strAttribute ) )
+            {
+                return _values[i];
+            }
+        }
+
+        return strAttribute.equals( _strEmailAttribute ) ? _strEmail : null;
+    }
+
+    /**
+     * Build the user
+     * @return A new user
+     */
+    public LDAPUser toUser(  )
+    {
+        LDAPUser user = new LDAPUser( _strGuid, SecurityService.getInstance(  ).getAuthenticationService(  ) );
+        user.setEmail( _strEmail );
+        user.setUserInfo( _strEmailAttribute, _strEmail );
+
+        for ( int i = 0; i < _values.length; i++ )
+        {
+            if ( _values[i] != null )
+            {
+                user.setUserInfo( _attributeNames[i], _values[i] );
+            }
+        }
+
+        if ( _memberOf.length > 0 )
+        {
+            user.setMemberOf( Arrays.asList( _memberOf ) );
+            LdapGroupService.getInstance(  ).assignGroups( user );
+        }
+
+        return user;
+    }
+}
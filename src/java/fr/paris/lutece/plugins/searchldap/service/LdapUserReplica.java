@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Local replica of the users of the LDAP, indexed by guid. A full
+ * synchronization replaces the index as a whole, so that readers never wait
+ * for it. An incremental synchronization updates the entries that changed
+ * since the high water mark of the previous synchronization in place.
+ */
+public class LdapUserReplica
+{
+    private final AtomicBoolean _bSynchronizing = new AtomicBoolean(  );
+    private final AtomicLong _lDeltaCount = new AtomicLong(  );
+    private final AtomicLong _lDeltaEntryCount = new AtomicLong(  );
+    private volatile ConcurrentMap<String, LDAPUser> _mapUsers;
+    private volatile String _strHighWaterMark;
+    private volatile long _lLastSynchronization;
+    private volatile long _lLastFullSynchronization;
+    private volatile long _lLastSynchronizationDuration;
+    private volatile int _nLastDeltaSize;
+
+    /**
+     * Check if a synchronization completed, ie if the replica can answer
+     * lookups
+     * @return True if the replica is loaded
+     */
+    public boolean isLoaded(  )
+    {
+        return _mapUsers != null;
+    }
+
+    /**
+     * Get a user of the replica
+     * @param strGuid The guid of the user
+     * @return The user, or null if the user is not in the replica or if the
+     *         replica is not loaded
+     */
+    public LDAPUser getUser( String strGuid )
+    {
+        Map<String, LDAPUser> mapUsers = _mapUsers;
+
+        return ( mapUsers == null ) ? null : mapUsers.get( strGuid );
+    }
+
+    /**
+     * Get the users of the replica
+     * @return An unmodifiable view of the users indexed by guid
+     */
+    public Map<String, LDAPUser> getUsers(  )
+    {
+        Map<String, LDAPUser> mapUsers = _mapUsers;
+
+        return ( mapUsers == null ) ? Collections.<String, LDAPUser>emptyMap(  ) : Collections.unmodifiableMap( mapUsers );
+    }
+
+    /**
+     * Get the number of users of the replica
+     * @return The number of users
+     */
+    public int getSize(  )
+    {
+        Map<String, LDAPUser> mapUsers = _mapUsers;
+
+        return ( mapUsers == null ) ? 0 : mapUsers.size(  );
+    }
+
+    /**
+     * Replace a user of the replica, unless it was replaced or removed in the
+     * meantime
+     * @param user The current user
+     * @param newUser The new user, with the same guid
+     * @return True if the user was replaced
+     */
+    boolean replaceUser( LDAPUser user, LDAPUser newUser )
+    {
+        ConcurrentMap<String, LDAPUser> mapUsers = _mapUsers;
+
+        return ( mapUsers != null ) && mapUsers.replace( user.getName(  ), user, newUser );
+    }
+
+    /**
+     * Remove a user from the replica, until a synchronization reads it again
+     * @param strGuid The guid of the user
+     */
+    void removeUser( String strGuid )
+    {
+        ConcurrentMap<String, LDAPUser> mapUsers = _mapUsers;
+
+        if ( mapUsers != null )
+        {
+            mapUsers.remove( strGuid );
+        }
+    }
+
+    /**
+     * Remove every user from the replica, which is no more loaded until the
+     * next full synchronization
+     */
+    void clear(  )
+    {
+        _mapUsers = null;
+        _strHighWaterMark = null;
+    }
+
+    /**
+     * Mark the beginning of a synchronization
+     * @return True if the caller must run the synchronization, false if a
+     *         synchronization is already running
+     */
+    boolean startSynchronization(  )
+    {
+        return _bSynchronizing.compareAndSet( false, true );
+    }
+
+    /**
+     * Mark the end of a full synchronization. The users replace the current
+     * index if the synchronization succeeded.
+     * @param mapUsers The users indexed by guid, or null if the
+     *            synchronization failed
+     * @param strHighWaterMark The greatest modification timestamp of the
+     *            users, or null if it is unknown
+     * @param lStart The time at which the synchronization started
+     */
+    void endSynchronization( ConcurrentMap<String, LDAPUser> mapUsers, String strHighWaterMark, long lStart )
+    {
+        if ( mapUsers != null )
+        {
+            _mapUsers = mapUsers;
+            _strHighWaterMark = strHighWaterMark;
+            _lLastSynchronization = lStart;
+            _lLastFullSynchronization = lStart;
+            _lLastSynchronizationDuration = System.currentTimeMillis(  ) - lStart;
+        }
+
+        _bSynchronizing.set( false );
+    }
+
+    /**
+     * Mark the end of an incremental synchronization. The changed users are
+     * applied to the current index if the synchronization succeeded.
+     * @param mapChangedUsers The users that changed indexed by guid, or null
+     *            if the synchronization failed
+     * @param strHighWaterMark The greatest modification timestamp of the
+     *            changed users, or null if no user changed
+     * @param lStart The time at which the synchronization started
+     */
+    void endIncrementalSynchronization( Map<String, LDAPUser> mapChangedUsers, String strHighWaterMark, long lStart )
+    {
+        ConcurrentMap<String, LDAPUser> mapUsers = _mapUsers;
+
+        if ( ( mapChangedUsers != null ) && ( mapUsers != null ) )
+        {
+            mapUsers.putAll( mapChangedUsers );
+
+            if ( ( strHighWaterMark != null ) &&
+                    ( ( _strHighWaterMark == null ) || ( strHighWaterMark.compareTo( _strHighWaterMark ) > 0 ) ) )
+            {
+                _strHighWaterMark = strHighWaterMark;
+            }
+
+            _nLastDeltaSize = mapChangedUsers.size(  );
+            _lDeltaCount.incrementAndGet(  );
+            _lDeltaEntryCount.addAndGet( mapChangedUsers.size(  ) );
+            _lLastSynchronization = lStart;
+            _lLastSynchronizationDuration = System.currentTimeMillis(  ) - lStart;
+        }
+
+        _bSynchronizing.set( false );
+    }
+
+    /**
+     * Check if a synchronization is running
+     * @return True if a synchronization is running
+     */
+    public boolean isSynchronizing(  )
+    {
+        return _bSynchronizing.get(  );
+    }
+
+    /**
+     * Get the greatest modification timestamp of the users of the replica
+     * @return The timestamp in generalized time format, or null if it is
+     *         unknown
+     */
+    public String getHighWaterMark(  )
+    {
+        return _strHighWaterMark;
+    }
+
+    /**
+     * Get the time at which the last successful synchronization started
+     * @return The time in milliseconds, or 0 if the replica was never loaded
+     */
+    public long getLastSynchronization(  )
+    {
+        return _lLastSynchronization;
+    }
+
+    /**
+     * Get the time at which the last successful full synchronization started
+     * @return The time in milliseconds, or 0 if the replica was never loaded
+     */
+    public long getLastFullSynchronization(  )
+    {
+        return _lLastFullSynchronization;
+    }
+
+    /**
+     * Get the duration of the last successful synchronization
+     * @return The duration in milliseconds
+     */
+    public long getLastSynchronizationDuration(  )
+    {
+        return _lLastSynchronizationDuration;
+    }
+
+    /**
+     * Get the lag of the replica, ie the time elapsed since the beginning of
+     * the last successful synchronization
+     * @return The lag in milliseconds, or -1 if the replica was never loaded
+     */
+    public long getLag(  )
+    {
+        long lLastSynchronization = _lLastSynchronization;
+
+        return ( lLastSynchronization == 0 ) ? ( -1 ) : ( System.currentTimeMillis(  ) - lLastSynchronization );
+    }
+
+    /**
+     * Get the number of users changed by the last incremental
+     * synchronization
+     * @return The number of users
+     */
+    public int getLastDeltaSize(  )
+    {
+        return _nLastDeltaSize;
+    }
+
+    /**
+     * Get the number of incremental synchronizations applied
+     * @return The number of incremental synchronizations
+     */
+    public long getDeltaCount(  )
+    {
+        return _lDeltaCount.get(  );
+    }
+
+    /**
+     * Get the number of users changed by all the incremental
+     * synchronizations
+     * @return The number of users
+     */
+    public long getDeltaEntryCount(  )
+    {
+        return _lDeltaEntryCount.get(  );
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Snapshot of the users found in the LDAP and of the users not found, written
+ * periodically to a binary file and read at plugin initialization so that
+ * the first lookups after a restart are answered locally.<br>
+ * The file starts with a magic number, the version of the format and the
+ * header of the {@link LdapUserCodec} the users are written with. A snapshot
+ * written with another version, another codec or another mapping is ignored.
+ * <br>
+ * The users not found are written with the time at which they expire, so that
+ * a restart does not extend their time to live. The users whose expiry is not
+ * known or can not be kept are searched again in the background.
+ */
+public final class LdapUserSnapshotService
+{
+    private static final String PROPERTY_ENABLED = "searchldap.snapshot.enabled";
+    private static final String PROPERTY_FILE = "searchldap.snapshot.file";
+    private static final String PROPERTY_STORE_USERS_NOT_FOUND_IN_CACHE = "searchldap.cache.storeUsersNotFoundInCache";
+    private static final String DEFAULT_FILE = "/WEB-INF/plugins/searchldap/searchldap_users.snapshot";
+    private static final String SUFFIX_TEMPORARY_FILE = ".tmp";
+    private static final int MAGIC = 0x534c4450;
+    private static final int VERSION = 3;
+    private static final long UNKNOWN_EXPIRY = 0L;
+    private static final LdapUserSnapshotService _instance = new LdapUserSnapshotService(  );
+
+    /**
+     * Private constructor
+     */
+    private LdapUserSnapshotService(  )
+    {
+    }
+
+    /**
+     * Get the instance of this service
+     * @return The instance of this service
+     */
+    public static LdapUserSnapshotService getInstance(  )
+    {
+        return _instance;
+    }
+
+    /**
+     * Check if snapshots are enabled
+     * @return True if snapshots are enabled
+     */
+    public boolean isEnabled(  )
+    {
+        return AppPropertiesService.getPropertyBoolean( PROPERTY_ENABLED, false );
+    }
+
+    /**
+     * Write the users of the user cache, and the users not found, to the
+     * snapshot file. When the replica is enabled, the users it holds are not
+     * written : the replica loads them again from the LDAP, and writing the
+     * whole user base at each snapshot would be wasted. The file is written
+     * to a temporary file first and then moved, so that a snapshot is never
+     * read half written.
+     * @return The number of users written
+     * @throws IOException If the file can not be written
+     */
+    public int writeSnapshot(  ) throws IOException
+    {
+        LdapBrowser ldapBrowser = getLDAPBrowser(  );
+        LdapLookupPlan plan = ldapBrowser.getLookupPlan(  );
+        LdapUserReplica replica = plan.isReplicaEnabled(  ) ? ldapBrowser.getReplica(  ) : null;
+        Map<String, LDAPUser> mapUsers = new LinkedHashMap<String, LDAPUser>(  );
+
+        for ( LDAPUser user : LDAPUserCacheService.getService(  ).getUsers(  ) )
+        {
+            if ( ( replica == null ) || ( replica.getUser( user.getName(  ) ) == null ) )
+            {
+                mapUsers.put( user.getName(  ), user );
+            }
+        }
+
+        Map<String, Long> mapUserNamesNotFound = LDAPUserNotFoundCacheService.getService(  )
+                                                                             .getUserNamesNotFoundExpiries(  );
+        File file = getFile(  );
+        File fileTemporary = new File( file.getPath(  ) + SUFFIX_TEMPORARY_FILE );
+        file.getParentFile(  ).mkdirs(  );
+
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( fileTemporary ) ) );
+
+        try
+        {
+            LdapUserCodec codec = new LdapUserCodec( plan );
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            codec.writeHeader( out );
+            out.writeLong( System.currentTimeMillis(  ) );
+            out.writeInt( mapUsers.size(  ) );
+
+            for ( LDAPUser user : mapUsers.values(  ) )
+            {
+                codec.write( out, user );
+            }
+
+            out.writeInt( mapUserNamesNotFound.size(  ) );
+
+            for ( Map.Entry<String, Long> entry : mapUserNamesNotFound.entrySet(  ) )
+            {
+                LdapUserCodec.writeString( out, entry.getKey(  ) );
+                out.writeLong( entry.getValue(  ) );
+            }
+        }
+        finally
+        {
+            out.close(  );
+        }
+
+        Files.move( fileTemporary.toPath(  ), file.toPath(  ), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE );
+
+        return mapUsers.size(  );
+    }
+
+    /**
+     * Read the snapshot file, if it exists and matches the current
+     * configuration, into the user cache and the not found cache. A refresh of
+     * the loaded users, and a search of the users not found that could not be
+     * loaded, is then started in the background.
+     * @return The number of users loaded
+     */
+    public int loadSnapshot(  )
+    {
+        File file = getFile(  );
+
+        if ( !file.isFile(  ) )
+        {
+            return 0;
+        }
+
+        LdapBrowser ldapBrowser = getLDAPBrowser(  );
+        LdapLookupPlan plan = ldapBrowser.getLookupPlan(  );
+        List<String> listGuids;
+        List<String> listNamesToCheck = new ArrayList<String>(  );
+
+        try
+        {
+            RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+
+            try
+            {
+                FileChannel channel = randomAccessFile.getChannel(  );
+                MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size(  ) );
+                listGuids = readSnapshot( buffer, ldapBrowser, plan, listNamesToCheck );
+            }
+            finally
+            {
+                randomAccessFile.close(  );
+            }
+        }
+        catch ( IOException e )
+        {
+            AppLogService.error( "Unable to read the ldap user snapshot " + file.getPath(  ) + " : " + e.getMessage(  ) );
+
+            return 0;
+        }
+        catch ( RuntimeException e )
+        {
+            // BufferUnderflowException or invalid data : the file is corrupted
+            AppLogService.error( "Invalid ldap user snapshot " + file.getPath(  ), e );
+
+            return 0;
+        }
+
+        if ( listGuids == null )
+        {
+            AppLogService.info( "The ldap user snapshot " + file.getPath(  ) +
+                " was written with another configuration and is ignored" );
+
+            return 0;
+        }
+
+        List<String> listGuidsToRefresh = new ArrayList<String>( listGuids );
+        listGuidsToRefresh.addAll( listNamesToCheck );
+        LdapCacheWarmupService.getInstance(  ).warmUpInBackground( listGuidsToRefresh );
+
+        return listGuids.size(  );
+    }
+
+    /**
+     * Read a snapshot
+     * @param buffer The content of the snapshot file
+     * @param ldapBrowser The LDAP browser
+     * @param plan The lookup plan
+     * @param listNamesToCheck The list to which the names of the users not
+     *            found that must be searched again are added
+     * @return The guids of the users loaded, or null if the snapshot does not
+     *         match the format or the configuration
+     */
+    private List<String> readSnapshot( ByteBuffer buffer, LdapBrowser ldapBrowser, LdapLookupPlan plan,
+        List<String> listNamesToCheck )
+    {
+        LdapUserCodec codec = new LdapUserCodec( plan );
+
+        if ( ( buffer.getInt(  ) != MAGIC ) || ( buffer.getInt(  ) != VERSION ) || !codec.readHeader( buffer ) )
+        {
+            return null;
+        }
+
+        buffer.getLong(  );
+
+        int nUserCount = buffer.getInt(  );
+        List<String> listGuids = new ArrayList<String>( nUserCount );
+
+        for ( int nUser = 0; nUser < nUserCount; nUser++ )
+        {
+            LDAPUser user = codec.read( buffer );
+            LDAPUserCacheService.getService(  ).putUser( user );
+            ldapBrowser.indexUser( user );
+            listGuids.add( user.getName(  ) );
+        }
+
+        int nNotFoundCount = buffer.getInt(  );
+        boolean bStoreUsersNotFound = Boolean.parseBoolean( AppPropertiesService.getProperty( 
+                    PROPERTY_STORE_USERS_NOT_FOUND_IN_CACHE ) );
+
+        long lNow = System.currentTimeMillis(  );
+
+        for ( int i = 0; i < nNotFoundCount; i++ )
+        {
+            String strUserName = LdapUserCodec.readString( buffer );
+            long lExpiry = buffer.getLong(  );
+
+            if ( !bStoreUsersNotFound || ( ( lExpiry != UNKNOWN_EXPIRY ) && ( lExpiry <= lNow ) ) )
+            {
+                continue;
+            }
+
+            if ( ( lExpiry == UNKNOWN_EXPIRY ) ||
+                    !LDAPUserNotFoundCacheService.getService(  ).putUserNotFound( strUserName, lExpiry ) )
+            {
+                listNamesToCheck.add( strUserName );
+            }
+        }
+
+        return listGuids;
+    }
+
+    /**
+     * Get the snapshot file
+     * @return The file
+     */
+    private File getFile(  )
+    {
+        return new File( AppPathService.getAbsolutePathFromRelativePath( AppPropertiesService.getProperty( 
+                    PROPERTY_FILE, DEFAULT_FILE ) ) );
+    }
+
+    /**
+     * Get the LDAP browser
+     * @return The LDAP browser
+     */
+    private LdapBrowser getLDAPBrowser(  )
+    {
+        return SpringContextService.getBean( LdapBrowser.BEAN_NAME );
+    }
+}
@@ -33,11 +33,27 @@
  */
 package fr.paris.lutece.plugins.searchldap.service;
 
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
@@ -49,6 +65,23 @@ import javax.naming.directory.SearchResult;
  */
 public final class LdapUtil
 {
+    private static final String PROPERTY_CONNECT_TIMEOUT = "searchldap.ldap.connectTimeout";
+    private static final String PROPERTY_READ_TIMEOUT = "searchldap.ldap.readTimeout";
+    private static final String ENV_CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+    private static final String ENV_READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+
+    // Messages of the plain naming exceptions raised by JNDI when the connection fails during a request
+    private static final String MESSAGE_READ_TIMEOUT = "LDAP response read timed out";
+    private static final String MESSAGE_CONNECTION_CLOSED = "LDAP connection has been closed";
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    private static final int DEFAULT_READ_TIMEOUT = 30000;
+    private static final String CONSTANT_POOL_KEY_SEPARATOR = "|";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final ConcurrentMap<String, LdapContextPool> _mapPools = new ConcurrentHashMap<String, LdapContextPool>(  );
+
+    // Digest of the password the contexts of each pool are bound with
+    private static final ConcurrentMap<String, String> _mapPoolCredentials = new ConcurrentHashMap<String, String>(  );
+
     /**
      * Constructeur
      */
@@ -69,16 +102,114 @@ public final class LdapUtil
     public static DirContext getContext( String strLDAPContext, String strLDAPUrl, String strAdminDN,
         String strAdminPassword ) throws NamingException
     {
-        Hashtable<String, String> env = new Hashtable<String, String>(  );
+        DirContext context = new InitialDirContext( getEnvironment( strLDAPContext, strLDAPUrl, strAdminDN,
+                    strAdminPassword ) );
 
-        env.put( Context.INITIAL_CONTEXT_FACTORY, strLDAPContext );
-        env.put( Context.PROVIDER_URL, strLDAPUrl );
-        env.put( Context.SECURITY_PRINCIPAL, strAdminDN );
-        env.put( Context.SECURITY_CREDENTIALS, strAdminPassword );
+        return context;
+    }
+
+    /**
+     * Get the pool of contexts bound with the given parameters. The pool is
+     * created on first use. When the password changed, for instance after a
+     * rotation of the credentials followed by a reload of the lookup plan, the
+     * pool bound with the previous password is closed and replaced.
+     * @param strLDAPContext the ldap context
+     * @param strLDAPUrl the ldap url
+     * @param strAdminDN the admin dn
+     * @param strAdminPassword the admin password
+     * @return The pool
+     */
+    public static LdapContextPool getContextPool( String strLDAPContext, String strLDAPUrl, String strAdminDN,
+        String strAdminPassword )
+    {
+        String strKey = strLDAPContext + CONSTANT_POOL_KEY_SEPARATOR + strLDAPUrl + CONSTANT_POOL_KEY_SEPARATOR +
+            strAdminDN;
+        String strCredentials = getDigest( strAdminPassword );
+        LdapContextPool pool = _mapPools.get( strKey );
+
+        if ( ( pool == null ) || !strCredentials.equals( _mapPoolCredentials.get( strKey ) ) )
+        {
+            synchronized ( _mapPools )
+            {
+                pool = _mapPools.get( strKey );
 
-        DirContext context = new InitialDirContext( env );
+                if ( ( pool != null ) && !strCredentials.equals( _mapPoolCredentials.get( strKey ) ) )
+                {
+                    AppLogService.info( "The password of " + strAdminDN + " changed : the pool of " + strLDAPUrl +
+                        " is closed" );
+                    pool.close(  );
+                    pool = null;
+                }
 
-        return context;
+                if ( pool == null )
+                {
+                    pool = new LdapContextPool( strLDAPUrl,
+                            getEnvironment( strLDAPContext, strLDAPUrl, strAdminDN, strAdminPassword ),
+                            LdapContextPoolConfig.load(  ) );
+                    _mapPoolCredentials.put( strKey, strCredentials );
+                    _mapPools.put( strKey, pool );
+                }
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Get every context pool created so far
+     * @return The pools
+     */
+    public static Collection<LdapContextPool> getContextPools(  )
+    {
+        return Collections.unmodifiableCollection( _mapPools.values(  ) );
+    }
+
+    /**
+     * Close every context pool. Pools are created again on next use with the
+     * current configuration.
+     */
+    public static void closeContextPools(  )
+    {
+        synchronized ( _mapPools )
+        {
+            for ( LdapContextPool pool : _mapPools.values(  ) )
+            {
+                pool.close(  );
+            }
+
+            _mapPools.clear(  );
+            _mapPoolCredentials.clear(  );
+        }
+    }
+
+    /**
+     * Get the digest of a password, so that the password itself is not kept
+     * to detect its changes
+     * @param strPassword The password, or null
+     * @return The digest in hexadecimal
+     */
+    private static String getDigest( String strPassword )
+    {
+        String strValue = ( strPassword == null ) ? "" : strPassword;
+
+        try
+        {
+            byte[] digest = MessageDigest.getInstance( DIGEST_ALGORITHM )
+                                         .digest( strValue.getBytes( StandardCharsets.UTF_8 ) );
+            StringBuilder sbDigest = new StringBuilder( digest.length * 2 );
+
+            for ( byte b : digest )
+            {
+                sbDigest.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+            }
+
+            return sbDigest.toString(  );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException( e );
+        }
     }
 
     /**
@@ -109,14 +240,7 @@ public final class LdapUtil
     {
         DirContext context = null;
 
-        Hashtable<String, String> env = new Hashtable<String, String>(  );
-
-        env.put( Context.INITIAL_CONTEXT_FACTORY, strLDAPContext );
-        env.put( Context.PROVIDER_URL, strLDAPUrl );
-        env.put( Context.SECURITY_PRINCIPAL, strDN );
-        env.put( Context.SECURITY_CREDENTIALS, strPassword );
-
-        context = new InitialDirContext( env );
+        context = new InitialDirContext( getEnvironment( strLDAPContext, strLDAPUrl, strDN, strPassword ) );
 
         return context;
     }
@@ -138,4 +262,140 @@ public final class LdapUtil
 
         return enumeration;
     }
+
+    /**
+     * Append a value to a search filter, escaping the characters that have a
+     * special meaning in filters as specified by RFC 4515
+     * @param sbFilter The filter being built
+     * @param strValue The value
+     */
+    public static void appendEscapedFilterValue( StringBuilder sbFilter, String strValue )
+    {
+        for ( int i = 0; i < strValue.length(  ); i++ )
+        {
+            char c = strValue.charAt( i );
+
+            switch ( c )
+            {
+                case '\\':
+                    sbFilter.append( "\\5c" );
+
+                    break;
+
+                case '*':
+                    sbFilter.append( "\\2a" );
+
+                    break;
+
+                case '(':
+                    sbFilter.append( "\\28" );
+
+                    break;
+
+                case ')':
+                    sbFilter.append( "\\29" );
+
+                    break;
+
+                case '\u0000':
+                    sbFilter.append( "\\00" );
+
+                    break;
+
+                default:
+                    sbFilter.append( c );
+            }
+        }
+    }
+
+    /**
+     * Log an error of the LDAP. Communication errors and unavailable servers
+     * are logged without their stack trace, which tells nothing more than
+     * the message during an outage.
+     * @param strMessage The message
+     * @param e The error
+     */
+    public static void logError( String strMessage, NamingException e )
+    {
+        if ( isCommunicationError( e ) || ( e instanceof ServiceUnavailableException ) )
+        {
+            AppLogService.error( strMessage + " : " + e.getMessage(  ) );
+        }
+        else
+        {
+            AppLogService.error( strMessage, e );
+        }
+    }
+
+    /**
+     * Check if an error means that the server could not be reached or did
+     * not answer. Besides {@link CommunicationException}, JNDI reports a read
+     * timeout and a connection closed during a request as a plain
+     * {@link NamingException}, recognized by its message or by its I/O root
+     * cause.
+     * @param e The error
+     * @return True if the error is a communication failure
+     */
+    public static boolean isCommunicationError( Throwable e )
+    {
+        if ( e instanceof CommunicationException )
+        {
+            return true;
+        }
+
+        if ( ( e == null ) || ( e.getClass(  ) != NamingException.class ) )
+        {
+            return false;
+        }
+
+        String strMessage = e.getMessage(  );
+
+        if ( ( strMessage != null ) &&
+                ( strMessage.startsWith( MESSAGE_READ_TIMEOUT ) || strMessage.startsWith( MESSAGE_CONNECTION_CLOSED ) ) )
+        {
+            return true;
+        }
+
+        return ( (NamingException) e ).getRootCause(  ) instanceof IOException;
+    }
+
+    /**
+     * Check if an error means that no LDAP server could answer the operation
+     * : a communication error, or a {@link ServiceUnavailableException}
+     * raised when the circuit of every server is open or when the bulkhead or
+     * the pools are saturated. Other errors, such as an invalid filter, a
+     * failed bind or a deadline reached, are errors of the operation itself.
+     * @param e The error
+     * @return True if no server could answer
+     */
+    public static boolean isUnavailabilityError( Throwable e )
+    {
+        return ( e instanceof ServiceUnavailableException ) || isCommunicationError( e );
+    }
+
+    /**
+     * Build the environment of a context. Connections and reads that take
+     * longer than the configured timeouts fail with a communication error.
+     * @param strLDAPContext the ldap context
+     * @param strLDAPUrl the ldap url
+     * @param strDN the dn
+     * @param strPassword the password
+     * @return The environment
+     */
+    private static Hashtable<String, String> getEnvironment( String strLDAPContext, String strLDAPUrl, String strDN,
+        String strPassword )
+    {
+        Hashtable<String, String> env = new Hashtable<String, String>(  );
+
+        env.put( Context.INITIAL_CONTEXT_FACTORY, strLDAPContext );
+        env.put( Context.PROVIDER_URL, strLDAPUrl );
+        env.put( Context.SECURITY_PRINCIPAL, strDN );
+        env.put( Context.SECURITY_CREDENTIALS, strPassword );
+        env.put( ENV_CONNECT_TIMEOUT,
+            AppPropertiesService.getProperty( PROPERTY_CONNECT_TIMEOUT, String.valueOf( DEFAULT_CONNECT_TIMEOUT ) ) );
+        env.put( ENV_READ_TIMEOUT,
+            AppPropertiesService.getProperty( PROPERTY_READ_TIMEOUT, String.valueOf( DEFAULT_READ_TIMEOUT ) ) );
+
+        return env;
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Invalidation bus of a single node : invalidations are delivered
+ * synchronously to the listeners of this process. Several nodes can be
+ * simulated in a process by registering their listeners on the same bus.
+ */
+public class LoopbackLdapInvalidationBus implements ILdapInvalidationBus
+{
+    private final List<ILdapInvalidationListener> _listListeners = new CopyOnWriteArrayList<ILdapInvalidationListener>(  );
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publishUserInvalidated( String strGuid )
+    {
+        for ( ILdapInvalidationListener listener : _listListeners )
+        {
+            try
+            {
+                listener.userInvalidated( strGuid );
+            }
+            catch ( RuntimeException e )
+            {
+                AppLogService.error( "Error while delivering the invalidation of ldap user '" + strGuid + "'", e );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publishAllUsersInvalidated(  )
+    {
+        for ( ILdapInvalidationListener listener : _listListeners )
+        {
+            try
+            {
+                listener.allUsersInvalidated(  );
+            }
+            catch ( RuntimeException e )
+            {
+                AppLogService.error( "Error while delivering the invalidation of every ldap user", e );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addListener( ILdapInvalidationListener listener )
+    {
+        _listListeners.add( listener );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeListener( ILdapInvalidationListener listener )
+    {
+        _listListeners.remove( listener );
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.init.ShutdownServiceManager;
+import fr.paris.lutece.portal.service.plugin.PluginDefaultImplementation;
+import fr.paris.lutece.portal.service.spring.SpringContextService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Search LDAP plugin
+ */
+public class SearchLdapPlugin extends PluginDefaultImplementation
+{
+    private static final String PROPERTY_METRICS_JMX_ENABLED = "searchldap.metrics.jmx.enabled";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(  )
+    {
+        super.init(  );
+
+        ShutdownServiceManager.registerShutdownService( new SearchLdapShutdownService(  ) );
+        LdapBulkhead.init(  );
+        LdapCacheCoherenceService.getInstance(  ).init(  );
+
+        if ( ( (LdapBrowser) SpringContextService.getBean( LdapBrowser.BEAN_NAME ) ).getLookupPlan(  ).isGroupsEnabled(  ) )
+        {
+            LdapGroupService.getInstance(  ).refreshInBackground(  );
+        }
+
+        LdapUserSnapshotService snapshotService = LdapUserSnapshotService.getInstance(  );
+
+        if ( snapshotService.isEnabled(  ) )
+        {
+            try
+            {
+                int nUsers = snapshotService.loadSnapshot(  );
+                AppLogService.info( "Search LDAP plugin : " + nUsers + " users loaded from the snapshot" );
+            }
+            catch ( RuntimeException e )
+            {
+                AppLogService.error( "Search LDAP plugin : unable to load the user snapshot", e );
+            }
+        }
+
+        LdapCacheWarmupService warmupService = LdapCacheWarmupService.getInstance(  );
+
+        if ( warmupService.isEnabled(  ) )
+        {
+            try
+            {
+                int nUsers = warmupService.warmUp( warmupService.getConfiguredGuids(  ),
+                        warmupService.getStartupTimeout(  ) * 1000L );
+                AppLogService.info( "Search LDAP plugin : " + nUsers + " users found by the warm-up" );
+            }
+            catch ( RuntimeException e )
+            {
+                AppLogService.error( "Search LDAP plugin : unable to warm up the caches", e );
+            }
+        }
+
+        if ( AppPropertiesService.getPropertyBoolean( PROPERTY_METRICS_JMX_ENABLED, false ) )
+        {
+            registerMetricsMBean(  );
+        }
+    }
+
+    /**
+     * Publish the metrics of the lookups in the platform MBean server. A
+     * MBean left by a previous deployment of the webapp is replaced.
+     */
+    private void registerMetricsMBean(  )
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer(  );
+            ObjectName name = new ObjectName( LdapMetricsDynamicMBean.OBJECT_NAME );
+
+            if ( server.isRegistered( name ) )
+            {
+                server.unregisterMBean( name );
+            }
+
+            server.registerMBean( new LdapMetricsDynamicMBean( LdapMetrics.getInstance(  ) ), name );
+        }
+        catch ( JMException e )
+        {
+            AppLogService.error( "Search LDAP plugin : unable to register the metrics MBean", e );
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.init.ShutdownService;
+import fr.paris.lutece.portal.service.util.AppLogService;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Shutdown service of the plugin : stops the executors of the background
+ * LDAP operations, which interrupts the operations in progress, including
+ * the asynchronous work started by the daemons, closes the LDAP contexts of
+ * the pools, stops their background task and unregisters the metrics MBean,
+ * so that nothing of the plugin keeps the class loader of the webapp once it
+ * is stopped. A daemon searching the LDAP when the webapp stops fails as soon
+ * as its context is closed.
+ */
+public class SearchLdapShutdownService implements ShutdownService
+{
+    private static final String NAME = "Search LDAP context pools";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName(  )
+    {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(  )
+    {
+        LdapTaskExecutor.getInstance(  ).shutdown(  );
+        LdapUtil.closeContextPools(  );
+        LdapContextPool.shutdownMaintenance(  );
+        unregisterMetricsMBean(  );
+    }
+
+    /**
+     * Unregister the metrics MBean from the platform MBean server, if it was
+     * registered
+     */
+    private static void unregisterMetricsMBean(  )
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer(  );
+            ObjectName name = new ObjectName( LdapMetricsDynamicMBean.OBJECT_NAME );
+
+            if ( server.isRegistered( name ) )
+            {
+                server.unregisterMBean( name );
+            }
+        }
+        catch ( JMException e )
+        {
+            AppLogService.error( "Search LDAP plugin : unable to unregister the metrics MBean", e );
+        }
+    }
+}
@@ -1,3 +1,6 @@
 INSERT INTO core_datastore (entity_key, entity_value) VALUES ('core.cache.status.LdapUserNotFoundCacheService.enabled', '1');
 INSERT INTO core_datastore (entity_key, entity_value) VALUES ('core.cache.status.LdapUserNotFoundCacheService.maxElementsInMemory', '200');
 INSERT INTO core_datastore (entity_key, entity_value) VALUES ('core.cache.status.LdapUserNotFoundCacheService.timeToLiveSeconds', '43200');
+INSERT INTO core_datastore (entity_key, entity_value) VALUES ('core.cache.status.LdapUserCacheService.enabled', '1');
+INSERT INTO core_datastore (entity_key, entity_value) VALUES ('core.cache.status.LdapUserCacheService.maxElementsInMemory', '10000');
+INSERT INTO core_datastore (entity_key, entity_value) VALUES ('core.cache.status.LdapUserCacheService.timeToLiveSeconds', '3600');
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+
+/**
+ * Tests of the export of the users
+ */
+public class LdapBrowserExportTest
+{
+    private static final int USER_COUNT = 25;
+    private static final int PAGE_SIZE = 10;
+    private static final String PROPERTY_PAGE_SIZE = "searchldap.export.pageSize";
+    private LdapTestContext _context;
+
+    /**
+     * Start the directory
+     * @throws Exception If the directory can not be started
+     */
+    @Before
+    public void setUp(  ) throws Exception
+    {
+        Properties overrides = new Properties(  );
+        overrides.setProperty( PROPERTY_PAGE_SIZE, Integer.toString( PAGE_SIZE ) );
+        _context = new LdapTestContext( new LdapTestDirectory( USER_COUNT ), overrides );
+    }
+
+    /**
+     * Stop the directory
+     */
+    @After
+    public void tearDown(  )
+    {
+        _context.close(  );
+    }
+
+    /**
+     * Every user is exported page by page
+     * @throws Exception If the export fails
+     */
+    @Test
+    public void testExport(  ) throws Exception
+    {
+        CollectingConsumer consumer = new CollectingConsumer( Integer.MAX_VALUE );
+
+        assertEquals( USER_COUNT, _context.getLDAPBrowser(  ).exportUsers( consumer, null ) );
+        assertEquals( USER_COUNT, consumer.getGuids(  ).size(  ) );
+        assertEquals( 3, consumer.getBatchCount(  ) );
+    }
+
+    /**
+     * A cookie refused by the server restarts the export from the first user
+     * @throws Exception If the export fails
+     */
+    @Test
+    public void testRefusedCookieRestartsExport(  ) throws Exception
+    {
+        CollectingConsumer consumer = new CollectingConsumer( Integer.MAX_VALUE );
+        byte[] cookie = "not a cookie".getBytes( StandardCharsets.US_ASCII );
+
+        assertEquals( USER_COUNT, _context.getLDAPBrowser(  ).exportUsers( consumer, cookie ) );
+        assertEquals( USER_COUNT, consumer.getGuids(  ).size(  ) );
+        assertEquals( 0, getServer(  ).getErrorCount(  ) );
+    }
+
+    /**
+     * An error of the consumer is given back to the caller, and neither
+     * counts against the server nor closes the context
+     * @throws Exception If the export fails
+     */
+    @Test
+    public void testConsumerErrorReleasesContext(  ) throws Exception
+    {
+        final IllegalStateException error = new IllegalStateException( "consumer error" );
+        LdapServer server = getServer(  );
+
+        try
+        {
+            _context.getLDAPBrowser(  ).exportUsers( new ILdapUserBatchConsumer(  )
+                {
+                    @Override
+                    public boolean accept( List<LDAPUser> listUsers, byte[] resumeCookie )
+                    {
+                        throw error;
+                    }
+                }, null );
+            fail( "The error of the consumer should be thrown" );
+        }
+        catch ( IllegalStateException e )
+        {
+            assertSame( error, e );
+        }
+
+        assertEquals( 0, server.getErrorCount(  ) );
+        assertEquals( 0, server.getOutstandingRequestCount(  ) );
+        assertEquals( 0, server.getPool(  ).getDestroyedCount(  ) );
+        assertEquals( 0, server.getPool(  ).getActiveCount(  ) );
+    }
+
+    /**
+     * An export stopped by the consumer can be resumed from the cookie of its
+     * last batch
+     * @throws Exception If the export fails
+     */
+    @Test
+    public void testResume(  ) throws Exception
+    {
+        CollectingConsumer firstConsumer = new CollectingConsumer( 1 );
+        _context.getLDAPBrowser(  ).exportUsers( firstConsumer, null );
+        assertNotNull( firstConsumer.getLastCookie(  ) );
+
+        CollectingConsumer secondConsumer = new CollectingConsumer( Integer.MAX_VALUE );
+        _context.getLDAPBrowser(  ).exportUsers( secondConsumer, firstConsumer.getLastCookie(  ) );
+
+        Set<String> setGuids = new HashSet<String>( firstConsumer.getGuids(  ) );
+        setGuids.addAll( secondConsumer.getGuids(  ) );
+        assertEquals( USER_COUNT, setGuids.size(  ) );
+    }
+
+    /**
+     * Get the only server of the router
+     * @return The server
+     */
+    private LdapServer getServer(  )
+    {
+        return _context.getLDAPBrowser(  ).getRouter(  ).getServers(  ).get( 0 );
+    }
+
+    /**
+     * Consumer collecting the guids of the users
+     */
+    private static final class CollectingConsumer implements ILdapUserBatchConsumer
+    {
+        private final List<String> _listGuids = new ArrayList<String>(  );
+        private final int _nMaxBatches;
+        private int _nBatchCount;
+        private byte[] _lastCookie;
+
+        /**
+         * Creates a new consumer
+         * @param nMaxBatches The number of batches after which the export is
+         *            stopped
+         */
+        CollectingConsumer( int nMaxBatches )
+        {
+            _nMaxBatches = nMaxBatches;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean accept( List<LDAPUser> listUsers, byte[] resumeCookie )
+        {
+            for ( LDAPUser user : listUsers )
+            {
+                _listGuids.add( user.getName(  ) );
+            }
+
+            _lastCookie = resumeCookie;
+            _nBatchCount++;
+
+            return _nBatchCount < _nMaxBatches;
+        }
+
+        /**
+         * Get the guids of the users received
+         * @return The guids
+         */
+        List<String> getGuids(  )
+        {
+            return _listGuids;
+        }
+
+        /**
+         * Get the number of batches received
+         * @return The number of batches
+         */
+        int getBatchCount(  )
+        {
+            return _nBatchCount;
+        }
+
+        /**
+         * Get the cookie of the last batch received
+         * @return The cookie
+         */
+        byte[] getLastCookie(  )
+        {
+            return _lastCookie;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+
+/**
+ * Tests of the searches of users by attribute value
+ */
+public class LdapBrowserSearchTest
+{
+    private static final int USER_COUNT = 25;
+    private static final int PAGE_SIZE = 10;
+    private static final String PROPERTY_PAGE_SIZE = "searchldap.ldap.search.pageSize";
+    private static final String ATTRIBUTE_FAMILY_NAME = "user.name.family";
+    private static final String PREFIX_FAMILY_NAME = "Family";
+    private LdapTestContext _context;
+
+    /**
+     * Start the directory
+     * @throws Exception If the directory can not be started
+     */
+    @Before
+    public void setUp(  ) throws Exception
+    {
+        Properties overrides = new Properties(  );
+        overrides.setProperty( PROPERTY_PAGE_SIZE, Integer.toString( PAGE_SIZE ) );
+        _context = new LdapTestContext( new LdapTestDirectory( USER_COUNT ), overrides );
+    }
+
+    /**
+     * Stop the directory
+     */
+    @After
+    public void tearDown(  )
+    {
+        _context.close(  );
+    }
+
+    /**
+     * Every matching user is given to the consumer page by page, without
+     * cookie
+     * @throws Exception If the search fails
+     */
+    @Test
+    public void testSearch(  ) throws Exception
+    {
+        CollectingConsumer consumer = new CollectingConsumer( Integer.MAX_VALUE );
+
+        assertEquals( USER_COUNT, _context.getLDAPBrowser(  ).searchUsers( getCriteria(  ), true, 0, consumer ) );
+        assertEquals( USER_COUNT, consumer.getUsers(  ).size(  ) );
+        assertEquals( 3, consumer.getBatchCount(  ) );
+        assertNull( consumer.getLastCookie(  ) );
+        assertReleased(  );
+    }
+
+    /**
+     * The search stops at the maximum number of users
+     * @throws Exception If the search fails
+     */
+    @Test
+    public void testMaxResults(  ) throws Exception
+    {
+        CollectingConsumer consumer = new CollectingConsumer( Integer.MAX_VALUE );
+
+        assertEquals( 15, _context.getLDAPBrowser(  ).searchUsers( getCriteria(  ), true, 15, consumer ) );
+        assertEquals( 15, consumer.getUsers(  ).size(  ) );
+        assertReleased(  );
+    }
+
+    /**
+     * A search stopped by the consumer is abandoned on the server and gives
+     * its context back
+     * @throws Exception If the search fails
+     */
+    @Test
+    public void testStopAbandonsSearch(  ) throws Exception
+    {
+        CollectingConsumer consumer = new CollectingConsumer( 1 );
+        long lSearchCount = _context.getDirectory(  ).getSearchCount(  );
+
+        assertEquals( PAGE_SIZE, _context.getLDAPBrowser(  ).searchUsers( getCriteria(  ), true, 0, consumer ) );
+        assertEquals( 1, consumer.getBatchCount(  ) );
+        // The first page and the request abandoning the search
+        assertEquals( lSearchCount + 2, _context.getDirectory(  ).getSearchCount(  ) );
+        assertReleased(  );
+    }
+
+    /**
+     * An error of the consumer is given back to the caller and the context is
+     * given back to its pool
+     * @throws Exception If the search fails
+     */
+    @Test
+    public void testConsumerErrorReleasesContext(  ) throws Exception
+    {
+        final IllegalStateException error = new IllegalStateException( "consumer error" );
+
+        try
+        {
+            _context.getLDAPBrowser(  ).searchUsers( getCriteria(  ), true, 0,
+                new ILdapUserBatchConsumer(  )
+                {
+                    @Override
+                    public boolean accept( List<LDAPUser> listUsers, byte[] resumeCookie )
+                    {
+                        throw error;
+                    }
+                } );
+            fail( "The error of the consumer should be thrown" );
+        }
+        catch ( IllegalStateException e )
+        {
+            assertSame( error, e );
+        }
+
+        assertReleased(  );
+    }
+
+    /**
+     * Get the criteria matching every user
+     * @return The criteria
+     */
+    private static Map<String, String> getCriteria(  )
+    {
+        return Collections.singletonMap( ATTRIBUTE_FAMILY_NAME, PREFIX_FAMILY_NAME );
+    }
+
+    /**
+     * Check that the context of the search was given back to its pool without
+     * counting an error against the server
+     */
+    private void assertReleased(  )
+    {
+        LdapServer server = _context.getLDAPBrowser(  ).getRouter(  ).getServers(  ).get( 0 );
+
+        assertEquals( 0, server.getErrorCount(  ) );
+        assertEquals( 0, server.getOutstandingRequestCount(  ) );
+        assertEquals( 0, server.getPool(  ).getDestroyedCount(  ) );
+        assertEquals( 0, server.getPool(  ).getActiveCount(  ) );
+    }
+
+    /**
+     * Consumer collecting the users
+     */
+    private static final class CollectingConsumer implements ILdapUserBatchConsumer
+    {
+        private final List<LDAPUser> _listUsers = new ArrayList<LDAPUser>(  );
+        private final int _nMaxBatches;
+        private int _nBatchCount;
+        private byte[] _lastCookie;
+
+        /**
+         * Creates a new consumer
+         * @param nMaxBatches The number of batches after which the search is
+         *            stopped
+         */
+        CollectingConsumer( int nMaxBatches )
+        {
+            _nMaxBatches = nMaxBatches;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean accept( List<LDAPUser> listUsers, byte[] resumeCookie )
+        {
+            _listUsers.addAll( listUsers );
+            _lastCookie = resumeCookie;
+            _nBatchCount++;
+
+            return _nBatchCount < _nMaxBatches;
+        }
+
+        /**
+         * Get the users received
+         * @return The users
+         */
+        List<LDAPUser> getUsers(  )
+        {
+            return _listUsers;
+        }
+
+        /**
+         * Get the number of batches received
+         * @return The number of batches
+         */
+        int getBatchCount(  )
+        {
+            return _nBatchCount;
+        }
+
+        /**
+         * Get the cookie of the last batch received
+         * @return The cookie
+         */
+        byte[] getLastCookie(  )
+        {
+            return _lastCookie;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Tests of the states of the circuit breaker of a LDAP server
+ */
+public class LdapCircuitBreakerTest
+{
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long LONG_OPEN_DURATION = 3600000L;
+    private static final int THREAD_COUNT = 8;
+
+    /**
+     * The circuit opens after the consecutive failures only, and rejects the
+     * requests while it is open
+     */
+    @Test
+    public void testOpenAfterThreshold(  )
+    {
+        LdapCircuitBreaker breaker = new LdapCircuitBreaker( FAILURE_THRESHOLD, LONG_OPEN_DURATION );
+
+        breaker.onFailure(  );
+        breaker.onFailure(  );
+        breaker.onSuccess(  );
+        assertEquals( 0, breaker.getConsecutiveFailureCount(  ) );
+
+        for ( int i = 1; i < FAILURE_THRESHOLD; i++ )
+        {
+            breaker.onFailure(  );
+            assertEquals( LdapCircuitBreaker.State.CLOSED, breaker.getState(  ) );
+            assertTrue( breaker.tryAcquirePermission(  ) );
+        }
+
+        breaker.onFailure(  );
+        assertEquals( LdapCircuitBreaker.State.OPEN, breaker.getState(  ) );
+        assertEquals( 1L, breaker.getOpenCount(  ) );
+        assertFalse( breaker.isRequestAllowed( System.currentTimeMillis(  ) ) );
+        assertTrue( breaker.isRequestAllowed( System.currentTimeMillis(  ) + LONG_OPEN_DURATION ) );
+        assertFalse( breaker.tryAcquirePermission(  ) );
+        assertFalse( breaker.tryAcquirePermission(  ) );
+        assertEquals( 2L, breaker.getRejectedCount(  ) );
+        assertEquals( LdapCircuitBreaker.State.OPEN, breaker.getState(  ) );
+    }
+
+    /**
+     * Once the open duration elapsed, a single request probes the server and
+     * its outcome closes or opens again the circuit
+     */
+    @Test
+    public void testHalfOpenProbe(  )
+    {
+        LdapCircuitBreaker breaker = openedBreaker(  );
+
+        assertTrue( breaker.isRequestAllowed( System.currentTimeMillis(  ) ) );
+        assertTrue( breaker.tryAcquirePermission(  ) );
+        assertEquals( LdapCircuitBreaker.State.HALF_OPEN, breaker.getState(  ) );
+
+        // The other requests are rejected while the probe is pending
+        assertFalse( breaker.isRequestAllowed( System.currentTimeMillis(  ) ) );
+        assertFalse( breaker.tryAcquirePermission(  ) );
+        assertEquals( 1L, breaker.getRejectedCount(  ) );
+
+        // A failed probe opens the circuit again at once
+        breaker.onFailure(  );
+        assertEquals( LdapCircuitBreaker.State.OPEN, breaker.getState(  ) );
+        assertEquals( 2L, breaker.getOpenCount(  ) );
+
+        assertTrue( breaker.tryAcquirePermission(  ) );
+        breaker.onSuccess(  );
+        assertEquals( LdapCircuitBreaker.State.CLOSED, breaker.getState(  ) );
+        assertEquals( 0, breaker.getConsecutiveFailureCount(  ) );
+        assertTrue( breaker.tryAcquirePermission(  ) );
+        assertTrue( breaker.tryAcquirePermission(  ) );
+    }
+
+    /**
+     * An aborted probe gives the probe back without counting a failure, so
+     * that the next request probes the server
+     */
+    @Test
+    public void testAbortedProbe(  )
+    {
+        LdapCircuitBreaker breaker = openedBreaker(  );
+        int nFailures = breaker.getConsecutiveFailureCount(  );
+
+        assertTrue( breaker.tryAcquirePermission(  ) );
+        breaker.onAbort(  );
+        assertEquals( LdapCircuitBreaker.State.OPEN, breaker.getState(  ) );
+        assertEquals( nFailures, breaker.getConsecutiveFailureCount(  ) );
+        assertEquals( 1L, breaker.getOpenCount(  ) );
+
+        assertTrue( breaker.tryAcquirePermission(  ) );
+        assertEquals( LdapCircuitBreaker.State.HALF_OPEN, breaker.getState(  ) );
+        assertFalse( breaker.tryAcquirePermission(  ) );
+
+        // An abort of a request of a closed circuit changes nothing
+        breaker.onSuccess(  );
+        breaker.onAbort(  );
+        assertEquals( LdapCircuitBreaker.State.CLOSED, breaker.getState(  ) );
+    }
+
+    /**
+     * Concurrent requests elect a single probe
+     * @throws InterruptedException If the test is interrupted
+     */
+    @Test( timeout = 10000L )
+    public void testSingleConcurrentProbe(  ) throws InterruptedException
+    {
+        final LdapCircuitBreaker breaker = openedBreaker(  );
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch end = new CountDownLatch( THREAD_COUNT );
+        final AtomicInteger nPermissions = new AtomicInteger(  );
+
+        for ( int i = 0; i < THREAD_COUNT; i++ )
+        {
+            new Thread( new Runnable(  )
+                {
+                    @Override
+                    public void run(  )
+                    {
+                        try
+                        {
+                            start.await(  );
+
+                            if ( breaker.tryAcquirePermission(  ) )
+                            {
+                                nPermissions.incrementAndGet(  );
+                            }
+                        }
+                        catch ( InterruptedException e )
+                        {
+                            Thread.currentThread(  ).interrupt(  );
+                        }
+                        finally
+                        {
+                            end.countDown(  );
+                        }
+                    }
+                } ).start(  );
+        }
+
+        start.countDown(  );
+        end.await(  );
+
+        assertEquals( 1, nPermissions.get(  ) );
+        assertEquals( THREAD_COUNT - 1, breaker.getRejectedCount(  ) );
+        assertEquals( LdapCircuitBreaker.State.HALF_OPEN, breaker.getState(  ) );
+    }
+
+    /**
+     * Get a circuit opened by failures, whose open duration already elapsed
+     * @return The circuit breaker
+     */
+    private static LdapCircuitBreaker openedBreaker(  )
+    {
+        LdapCircuitBreaker breaker = new LdapCircuitBreaker( FAILURE_THRESHOLD, 0L );
+
+        for ( int i = 0; i < FAILURE_THRESHOLD; i++ )
+        {
+            breaker.onFailure(  );
+        }
+
+        assertEquals( LdapCircuitBreaker.State.OPEN, breaker.getState(  ) );
+
+        return breaker;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/**
+ * Tests of the graph of the nested LDAP groups
+ */
+public class LdapGroupGraphTest
+{
+    private static final String GROUP_BASE = ",ou=groups,dc=lutece,dc=fr";
+    private static final String DN_A = "cn=A" + GROUP_BASE;
+    private static final String DN_B = "cn=B" + GROUP_BASE;
+    private static final String DN_C = "cn=C" + GROUP_BASE;
+    private static final String DN_D = "cn=D" + GROUP_BASE;
+    private static final String DN_OUTSIDE = "cn=Outside,ou=other,dc=lutece,dc=fr";
+    private static final long LOAD_TIME = 1000L;
+
+    /**
+     * The spellings of a DN that differ by the case, the spaces around the
+     * separators or the escaping of the values are normalized to the same DN
+     */
+    @Test
+    public void testNormalize(  )
+    {
+        String strNormalized = "cn=admins,ou=groups,dc=lutece,dc=fr";
+
+        assertEquals( strNormalized, LdapGroupGraph.normalize( "cn=admins,ou=groups,dc=lutece,dc=fr" ) );
+        assertEquals( strNormalized, LdapGroupGraph.normalize( "CN=Admins,OU=Groups,DC=Lutece,DC=FR" ) );
+        assertEquals( strNormalized, LdapGroupGraph.normalize( "cn = Admins , ou=groups,  dc=lutece ,dc=fr" ) );
+        assertEquals( strNormalized, LdapGroupGraph.normalize( "cn=\\41dmins,ou=groups,dc=lutece,dc=fr" ) );
+
+        // The escaped separators stay escaped, whatever their spelling
+        assertEquals( "cn=a\\,b" + GROUP_BASE, LdapGroupGraph.normalize( "cn=A\\,B" + GROUP_BASE ) );
+        assertEquals( "cn=a\\,b" + GROUP_BASE, LdapGroupGraph.normalize( "cn=A\\2cB" + GROUP_BASE ) );
+        assertFalse( LdapGroupGraph.normalize( "cn=A\\,B" + GROUP_BASE ).equals( LdapGroupGraph.normalize( 
+                    "cn=A,cn=B" + GROUP_BASE ) ) );
+
+        // A value that is not a DN is only trimmed and lower cased
+        assertEquals( "not a dn", LdapGroupGraph.normalize( " Not A DN " ) );
+    }
+
+    /**
+     * The name of a group is the value of the first RDN of its DN
+     */
+    @Test
+    public void testFirstRdnValue(  )
+    {
+        assertEquals( "Admins", LdapGroupGraph.getFirstRdnValue( "CN=Admins,OU=Groups,DC=Lutece,DC=FR" ) );
+        assertEquals( "A,B", LdapGroupGraph.getFirstRdnValue( "cn=A\\2cB" + GROUP_BASE ) );
+        assertEquals( "", LdapGroupGraph.getFirstRdnValue( "" ) );
+        assertEquals( "Not A DN", LdapGroupGraph.getFirstRdnValue( "Not A DN" ) );
+    }
+
+    /**
+     * The groups of a user are its groups and the groups they are nested in,
+     * the groups out of the graph being named by their DN
+     */
+    @Test
+    public void testNestedGroups(  )
+    {
+        Map<String, LdapGroupGraph.Group> mapGroups = new HashMap<String, LdapGroupGraph.Group>(  );
+        addGroup( mapGroups, DN_A, "Group A", DN_B );
+        addGroup( mapGroups, DN_B, "Group B", DN_C, DN_OUTSIDE );
+        addGroup( mapGroups, DN_C, "Group C" );
+        addGroup( mapGroups, DN_D, "Group D", DN_C );
+
+        LdapGroupGraph graph = new LdapGroupGraph( mapGroups, LOAD_TIME );
+
+        assertTrue( graph.isLoaded(  ) );
+        assertEquals( LOAD_TIME, graph.getLoadTime(  ) );
+        assertEquals( 4, graph.getSize(  ) );
+        assertEquals( names( "Group A", "Group B", "Group C", "Outside" ),
+            graph.getGroupNames( Collections.singletonList( DN_A ) ) );
+        assertEquals( names( "Group C", "Group D" ), graph.getGroupNames( Collections.singletonList( DN_D ) ) );
+        assertEquals( names( "Group A", "Group B", "Group C", "Group D", "Outside" ),
+            graph.getGroupNames( Arrays.asList( DN_D, DN_A ) ) );
+        assertEquals( names( "Unknown" ), graph.getGroupNames( Collections.singletonList( "cn=Unknown" + GROUP_BASE ) ) );
+        assertTrue( graph.getGroupNames( Collections.<String>emptyList(  ) ).isEmpty(  ) );
+    }
+
+    /**
+     * The DN of the memberOf attributes and of the parent groups are matched
+     * whatever their spelling, and the closure of a group is computed once
+     */
+    @Test
+    public void testDnSpellings(  )
+    {
+        Map<String, LdapGroupGraph.Group> mapGroups = new HashMap<String, LdapGroupGraph.Group>(  );
+        addGroup( mapGroups, DN_A, "Group A", "CN=B , OU=Groups,DC=Lutece,DC=FR" );
+        addGroup( mapGroups, DN_B, "Group B" );
+
+        LdapGroupGraph graph = new LdapGroupGraph( mapGroups, LOAD_TIME );
+        Set<String> setNames = graph.getGroupNames( Collections.singletonList( "cn=a,OU=GROUPS,dc=lutece,dc=fr" ) );
+
+        assertEquals( names( "Group A", "Group B" ), setNames );
+        assertEquals( setNames, graph.getGroupNames( Collections.singletonList( DN_A ) ) );
+        assertEquals( names( "Group B" ), graph.getGroupNames( Collections.singletonList( "Cn=b" + GROUP_BASE ) ) );
+    }
+
+    /**
+     * The cycles between groups, including a group member of itself, end the
+     * walk of the graph instead of looping
+     */
+    @Test( timeout = 10000L )
+    public void testCycles(  )
+    {
+        Map<String, LdapGroupGraph.Group> mapGroups = new HashMap<String, LdapGroupGraph.Group>(  );
+        addGroup( mapGroups, DN_A, "Group A", DN_B );
+        addGroup( mapGroups, DN_B, "Group B", DN_C );
+
+        // The cycle is closed with another spelling of the DN
+        addGroup( mapGroups, DN_C, "Group C", "CN=A" + GROUP_BASE.toUpperCase(  ) );
+        addGroup( mapGroups, DN_D, "Group D", DN_D, DN_A );
+
+        LdapGroupGraph graph = new LdapGroupGraph( mapGroups, LOAD_TIME );
+        Set<String> setCycle = names( "Group A", "Group B", "Group C" );
+
+        assertEquals( setCycle, graph.getGroupNames( Collections.singletonList( DN_A ) ) );
+        assertEquals( setCycle, graph.getGroupNames( Collections.singletonList( DN_B ) ) );
+        assertEquals( setCycle, graph.getGroupNames( Collections.singletonList( DN_C ) ) );
+        assertEquals( names( "Group A", "Group B", "Group C", "Group D" ),
+            graph.getGroupNames( Collections.singletonList( DN_D ) ) );
+    }
+
+    /**
+     * The empty graph names each group by the first RDN of its DN
+     */
+    @Test
+    public void testEmptyGraph(  )
+    {
+        LdapGroupGraph graph = LdapGroupGraph.empty(  );
+
+        assertSame( graph, LdapGroupGraph.empty(  ) );
+        assertFalse( graph.isLoaded(  ) );
+        assertEquals( 0, graph.getSize(  ) );
+        assertEquals( names( "A", "B" ), graph.getGroupNames( Arrays.asList( DN_B, DN_A, "CN=A" + GROUP_BASE ) ) );
+    }
+
+    /**
+     * Add a group to the groups of a graph
+     * @param mapGroups The groups indexed by normalized DN
+     * @param strDn The DN of the group
+     * @param strName The name of the group
+     * @param parentDns The DN of the groups the group is a direct member of
+     */
+    private static void addGroup( Map<String, LdapGroupGraph.Group> mapGroups, String strDn, String strName,
+        String... parentDns )
+    {
+        mapGroups.put( LdapGroupGraph.normalize( strDn ), new LdapGroupGraph.Group( strName, parentDns ) );
+    }
+
+    /**
+     * Get a set of group names
+     * @param names The names
+     * @return The sorted set of the names
+     */
+    private static Set<String> names( String... names )
+    {
+        return new TreeSet<String>( Arrays.asList( names ) );
+    }
+}
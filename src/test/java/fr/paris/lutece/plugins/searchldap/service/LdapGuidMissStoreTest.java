@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Tests of the compact store of the guids not found
+ */
+public class LdapGuidMissStoreTest
+{
+    private static final int CAPACITY = 16;
+
+    // A generation of 16 slots holds 12 guids
+    private static final int GENERATION_SIZE = 12;
+    private static final long TIME_TO_LIVE = 3600000L;
+    private static final long SHORT_TIME_TO_LIVE = 400L;
+    private static final String[] GUIDS = 
+        {
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcd", "efghijklmnopqrstuvwxyz0123456789ABCDEFGH",
+            "0000000000000000000000000000000000000000", "zzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzz",
+            "9Zz09Zz09Zz09Zz09Zz09Zz09Zz09Zz09Zz09Zz0"
+        };
+
+    /**
+     * Only guids made of 40 alphanumeric characters can be stored
+     */
+    @Test
+    public void testIsStorable(  )
+    {
+        for ( String strGuid : GUIDS )
+        {
+            assertTrue( LdapGuidMissStore.isStorable( strGuid ) );
+        }
+
+        assertFalse( LdapGuidMissStore.isStorable( null ) );
+        assertFalse( LdapGuidMissStore.isStorable( GUIDS[0].substring( 1 ) ) );
+        assertFalse( LdapGuidMissStore.isStorable( GUIDS[0] + "e" ) );
+        assertFalse( LdapGuidMissStore.isStorable( GUIDS[0].replace( 'a', '-' ) ) );
+        assertFalse( LdapGuidMissStore.isStorable( GUIDS[0].replace( 'a', '\u00e9' ) ) );
+    }
+
+    /**
+     * The guids are unpacked as they were packed, for every character class
+     * and for the lowest and highest codes
+     */
+    @Test
+    public void testPacking(  )
+    {
+        LdapGuidMissStore store = new LdapGuidMissStore( CAPACITY, TIME_TO_LIVE );
+
+        for ( String strGuid : GUIDS )
+        {
+            store.add( strGuid );
+        }
+
+        assertEquals( new HashSet<String>( Arrays.asList( GUIDS ) ), new HashSet<String>( store.getGuids(  ) ) );
+        assertFalse( store.contains( GUIDS[0].replace( 'd', 'e' ) ) );
+    }
+
+    /**
+     * A removed guid leaves a tombstone : the guids probed past it are still
+     * found, its slot is reused and the size only counts the guids
+     */
+    @Test
+    public void testTombstones(  )
+    {
+        LdapGuidMissStore store = new LdapGuidMissStore( CAPACITY, TIME_TO_LIVE );
+        int nCount = ( 2 * GENERATION_SIZE ) / 3;
+
+        for ( int i = 0; i < nCount; i++ )
+        {
+            store.add( getGuid( i ) );
+        }
+
+        for ( int i = 0; i < nCount; i += 2 )
+        {
+            store.remove( getGuid( i ) );
+        }
+
+        assertEquals( nCount / 2, store.size(  ) );
+
+        for ( int i = 0; i < nCount; i++ )
+        {
+            assertEquals( ( i % 2 ) == 1, store.contains( getGuid( i ) ) );
+        }
+
+        for ( int i = 0; i < nCount; i += 2 )
+        {
+            store.add( getGuid( i ) );
+        }
+
+        assertEquals( nCount, store.size(  ) );
+
+        // The removed guids went back into their tombstones : the first generation is only dropped by the second
+        // rotation, after 2 * GENERATION_SIZE guids in all
+        for ( int i = nCount; i < ( 2 * GENERATION_SIZE ); i++ )
+        {
+            store.add( getGuid( i ) );
+        }
+
+        for ( int i = 0; i < ( 2 * GENERATION_SIZE ); i++ )
+        {
+            assertTrue( store.contains( getGuid( i ) ) );
+        }
+    }
+
+    /**
+     * A full generation is rotated early : the guids it holds are kept in the
+     * previous generation until the next rotation
+     */
+    @Test
+    public void testRotationWhenFull(  )
+    {
+        LdapGuidMissStore store = new LdapGuidMissStore( CAPACITY, TIME_TO_LIVE );
+
+        for ( int i = 0; i <= ( 2 * GENERATION_SIZE ); i++ )
+        {
+            store.add( getGuid( i ) );
+        }
+
+        for ( int i = 0; i <= ( 2 * GENERATION_SIZE ); i++ )
+        {
+            assertEquals( i >= GENERATION_SIZE, store.contains( getGuid( i ) ) );
+        }
+
+        assertEquals( GENERATION_SIZE + 1, store.size(  ) );
+    }
+
+    /**
+     * A guid is kept for half its time to live at least, and forgotten after
+     * its time to live
+     * @throws InterruptedException If the test is interrupted
+     */
+    @Test
+    public void testRotationOverTime(  ) throws InterruptedException
+    {
+        LdapGuidMissStore store = new LdapGuidMissStore( CAPACITY, SHORT_TIME_TO_LIVE );
+        store.add( GUIDS[0] );
+
+        Thread.sleep( ( SHORT_TIME_TO_LIVE / 2 ) + 50 );
+        assertTrue( store.contains( GUIDS[0] ) );
+
+        Thread.sleep( ( SHORT_TIME_TO_LIVE / 2 ) + 50 );
+        assertFalse( store.contains( GUIDS[0] ) );
+        assertEquals( 0, store.size(  ) );
+    }
+
+    /**
+     * A guid added with an expiry is put in the generation dropped last
+     * before the expiry, or not added if every generation outlives it
+     */
+    @Test
+    public void testExpiries(  )
+    {
+        LdapGuidMissStore store = new LdapGuidMissStore( CAPACITY, TIME_TO_LIVE );
+        long lNow = System.currentTimeMillis(  );
+
+        assertTrue( store.add( GUIDS[0], lNow + TIME_TO_LIVE + 1000 ) );
+        assertTrue( store.add( GUIDS[1], lNow + ( ( 3 * TIME_TO_LIVE ) / 4 ) ) );
+        assertFalse( store.add( GUIDS[2], lNow + ( TIME_TO_LIVE / 4 ) ) );
+        assertFalse( store.contains( GUIDS[2] ) );
+
+        Map<String, Long> mapExpiries = store.getGuidExpiries(  );
+        Set<String> setGuids = new HashSet<String>( Arrays.asList( GUIDS[0], GUIDS[1] ) );
+        assertEquals( setGuids, mapExpiries.keySet(  ) );
+        assertTrue( mapExpiries.get( GUIDS[0] ) <= ( lNow + TIME_TO_LIVE + 1000 ) );
+        assertTrue( mapExpiries.get( GUIDS[0] ) >= ( lNow + TIME_TO_LIVE ) );
+        assertTrue( mapExpiries.get( GUIDS[1] ) <= ( lNow + ( ( 3 * TIME_TO_LIVE ) / 4 ) ) );
+        assertTrue( mapExpiries.get( GUIDS[1] ) >= ( lNow + ( TIME_TO_LIVE / 2 ) ) );
+    }
+
+    /**
+     * Get a storable guid
+     * @param nGuid The number of the guid
+     * @return The guid
+     */
+    private static String getGuid( int nGuid )
+    {
+        return String.format( "guid%036d", nGuid );
+    }
+}
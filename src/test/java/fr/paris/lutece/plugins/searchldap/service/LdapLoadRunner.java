@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Load and soak test of the user provider. Hundreds of threads look up a mix
+ * of known, unknown and malformed GUIDs through
+ * {@link LDAPLuteceUserProviderService} against an in-process directory into
+ * which latency and faults are injected. The throughput, the percentiles of
+ * the latency, the LDAP operations per lookup, the errors, the churn of the
+ * connections and the heap are reported at each interval and at the end of
+ * the run.<br>
+ * The run is configured with the <code>searchldap.load.*</code> system
+ * properties. The other <code>searchldap.*</code> system properties override
+ * the properties of the plugin, for instance
+ * <code>-Dsearchldap.ldap.pool.maxSize=20</code>.
+ */
+public final class LdapLoadRunner
+{
+    private static final String PREFIX_PLUGIN = "searchldap.";
+    private static final String PREFIX_LOAD = "searchldap.load.";
+    private static final String PROPERTY_THREADS = "searchldap.load.threads";
+    private static final String PROPERTY_DURATION = "searchldap.load.duration";
+    private static final String PROPERTY_REPORT_INTERVAL = "searchldap.load.reportInterval";
+    private static final String PROPERTY_USERS = "searchldap.load.users";
+    private static final String PROPERTY_KNOWN_PERCENT = "searchldap.load.knownPercent";
+    private static final String PROPERTY_MALFORMED_PERCENT = "searchldap.load.malformedPercent";
+    private static final String PROPERTY_MIN_LATENCY = "searchldap.load.latency.min";
+    private static final String PROPERTY_MAX_LATENCY = "searchldap.load.latency.max";
+    private static final String PROPERTY_ERROR_RATE = "searchldap.load.errorRate";
+    private static final String PROPERTY_STALL_RATE = "searchldap.load.stallRate";
+    private static final String PROPERTY_STALL_DURATION = "searchldap.load.stallDuration";
+    private static final String PROPERTY_DISCONNECT_INTERVAL = "searchldap.load.disconnectInterval";
+    private static final String PROPERTY_SEED = "searchldap.load.seed";
+    private static final String PROPERTY_READ_TIMEOUT = "searchldap.ldap.readTimeout";
+    private static final int DEFAULT_THREADS = 500;
+    private static final int DEFAULT_DURATION = 300;
+    private static final int DEFAULT_REPORT_INTERVAL = 10;
+    private static final int DEFAULT_USERS = 50000;
+    private static final int DEFAULT_KNOWN_PERCENT = 80;
+    private static final int DEFAULT_MALFORMED_PERCENT = 5;
+    private static final long DEFAULT_MIN_LATENCY = 1L;
+    private static final long DEFAULT_MAX_LATENCY = 5L;
+    private static final double DEFAULT_ERROR_RATE = 0.001d;
+    private static final double DEFAULT_STALL_RATE = 0.0005d;
+    private static final long DEFAULT_STALL_DURATION = 2000L;
+    private static final int DEFAULT_DISCONNECT_INTERVAL = 60;
+    private static final long DEFAULT_SEED = 42L;
+    private static final String DEFAULT_READ_TIMEOUT = "1000";
+    private static final int PERCENT = 100;
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024L;
+    private static final double[] PERCENTILES = { 50d, 90d, 99d, 99.9d };
+    private static final String[] PERCENTILE_LABELS = { "p50", "p90", "p99", "p99.9" };
+    private final LdapTestContext _context;
+    private final int _nThreads;
+    private final int _nUserCount;
+    private final int _nKnownPercent;
+    private final int _nMalformedPercent;
+    private final long _lSeed;
+    private final AtomicReference<LdapLatencyHistogram> _intervalHistogram = new AtomicReference<LdapLatencyHistogram>( new LdapLatencyHistogram(  ) );
+    private final LdapLatencyHistogram _totalHistogram = new LdapLatencyHistogram(  );
+    private final AtomicLong _lFoundCount = new AtomicLong(  );
+    private final AtomicLong _lNotFoundCount = new AtomicLong(  );
+    private final AtomicLong _lKnownNotFoundCount = new AtomicLong(  );
+    private final AtomicLong _lExceptionCount = new AtomicLong(  );
+    private final MemoryMXBean _memory = ManagementFactory.getMemoryMXBean(  );
+    private volatile boolean _bStopped;
+    private Snapshot _lastSnapshot;
+
+    /**
+     * Creates a new run
+     * @param context The services of the plugin and the directory
+     */
+    private LdapLoadRunner( LdapTestContext context )
+    {
+        _context = context;
+        _nThreads = Integer.getInteger( PROPERTY_THREADS, DEFAULT_THREADS );
+        _nUserCount = context.getDirectory(  ).getUserCount(  );
+        _nKnownPercent = Integer.getInteger( PROPERTY_KNOWN_PERCENT, DEFAULT_KNOWN_PERCENT );
+        _nMalformedPercent = Integer.getInteger( PROPERTY_MALFORMED_PERCENT, DEFAULT_MALFORMED_PERCENT );
+        _lSeed = Long.getLong( PROPERTY_SEED, DEFAULT_SEED );
+    }
+
+    /**
+     * Run the load test
+     * @param args The arguments, unused
+     * @throws Exception If the directory or the plugin can not be started
+     */
+    public static void main( String[] args ) throws Exception
+    {
+        LdapTestDirectory directory = new LdapTestDirectory( Integer.getInteger( PROPERTY_USERS, DEFAULT_USERS ) );
+        LdapTestContext context = new LdapTestContext( directory, getPluginProperties(  ) );
+
+        try
+        {
+            directory.setLatency( Long.getLong( PROPERTY_MIN_LATENCY, DEFAULT_MIN_LATENCY ),
+                Long.getLong( PROPERTY_MAX_LATENCY, DEFAULT_MAX_LATENCY ) );
+            directory.setErrorRate( getDouble( PROPERTY_ERROR_RATE, DEFAULT_ERROR_RATE ) );
+            directory.setStallRate( getDouble( PROPERTY_STALL_RATE, DEFAULT_STALL_RATE ),
+                Long.getLong( PROPERTY_STALL_DURATION, DEFAULT_STALL_DURATION ) );
+            new LdapLoadRunner( context ).run( Integer.getInteger( PROPERTY_DURATION, DEFAULT_DURATION ),
+                Integer.getInteger( PROPERTY_REPORT_INTERVAL, DEFAULT_REPORT_INTERVAL ),
+                Integer.getInteger( PROPERTY_DISCONNECT_INTERVAL, DEFAULT_DISCONNECT_INTERVAL ) );
+        }
+        finally
+        {
+            context.close(  );
+        }
+    }
+
+    /**
+     * Run the lookups and report the measures
+     * @param nDuration The duration of the run in seconds
+     * @param nReportInterval The interval between the reports in seconds
+     * @param nDisconnectInterval The interval between the closings of every
+     *            connection by the directory in seconds, or 0 to keep them
+     * @throws InterruptedException If the thread is interrupted
+     */
+    private void run( int nDuration, int nReportInterval, int nDisconnectInterval )
+        throws InterruptedException
+    {
+        System.out.println( "Looking up " + _nThreads + " names at once among " + _nUserCount + " users for " +
+            nDuration + " s : " + _nKnownPercent + "% known, " + _nMalformedPercent + "% malformed" );
+
+        long lBaseHeap = getHeapAfterGc(  );
+        long lStart = System.nanoTime(  );
+        _lastSnapshot = new Snapshot( lStart );
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(  );
+        scheduler.scheduleAtFixedRate( new Runnable(  )
+            {
+                @Override
+                public void run(  )
+                {
+                    report(  );
+                }
+            }, nReportInterval, nReportInterval, TimeUnit.SECONDS );
+
+        if ( nDisconnectInterval > 0 )
+        {
+            scheduler.scheduleAtFixedRate( new Runnable(  )
+                {
+                    @Override
+                    public void run(  )
+                    {
+                        _context.getDirectory(  ).closeAllConnections(  );
+                    }
+                }, nDisconnectInterval, nDisconnectInterval, TimeUnit.SECONDS );
+        }
+
+        List<Thread> listThreads = new ArrayList<Thread>( _nThreads );
+
+        for ( int i = 0; i < _nThreads; i++ )
+        {
+            Thread thread = new Thread( new Worker( new Random( _lSeed + i ) ), "searchldap-load-" + i );
+            thread.start(  );
+            listThreads.add( thread );
+        }
+
+        Thread.sleep( TimeUnit.SECONDS.toMillis( nDuration ) );
+        _bStopped = true;
+
+        for ( Thread thread : listThreads )
+        {
+            thread.join(  );
+        }
+
+        scheduler.shutdownNow(  );
+        report(  );
+        printSummary( System.nanoTime(  ) - lStart, lBaseHeap );
+    }
+
+    /**
+     * Look up a name and record the latency and the outcome
+     * @param random The generator of the calling thread
+     */
+    private void lookup( Random random )
+    {
+        int nKind = random.nextInt( PERCENT );
+        int nUser = random.nextInt( _nUserCount );
+        boolean bKnown = nKind < _nKnownPercent;
+        String strName;
+
+        if ( bKnown )
+        {
+            strName = LdapTestDirectory.getGuid( nUser );
+        }
+        else if ( nKind < ( PERCENT - _nMalformedPercent ) )
+        {
+            strName = LdapTestContext.getUnknownGuid( nUser );
+        }
+        else
+        {
+            strName = LdapTestContext.getMalformedGuid( nUser );
+        }
+
+        long lStart = System.nanoTime(  );
+
+        try
+        {
+            if ( _context.getUserProvider(  ).getLuteceUserFromName( strName ) != null )
+            {
+                _lFoundCount.incrementAndGet(  );
+            }
+            else
+            {
+                _lNotFoundCount.incrementAndGet(  );
+
+                if ( bKnown )
+                {
+                    _lKnownNotFoundCount.incrementAndGet(  );
+                }
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            _lExceptionCount.incrementAndGet(  );
+        }
+
+        long lLatency = System.nanoTime(  ) - lStart;
+        _intervalHistogram.get(  ).record( lLatency );
+        _totalHistogram.record( lLatency );
+    }
+
+    /**
+     * Print the measures of the last interval
+     */
+    private synchronized void report(  )
+    {
+        LdapLatencyHistogram histogram = _intervalHistogram.getAndSet( new LdapLatencyHistogram(  ) );
+        Snapshot snapshot = new Snapshot( System.nanoTime(  ) );
+        Snapshot last = _lastSnapshot;
+        _lastSnapshot = snapshot;
+
+        double dSeconds = ( snapshot._lTime - last._lTime ) / (double) TimeUnit.SECONDS.toNanos( 1 );
+        long lLookups = snapshot._lLookups - last._lLookups;
+
+        System.out.println( String.format(
+                "%8.0f lookups/s %s | ldap ops/lookup %.3f, searches/lookup %.3f | errors : communication %d, unavailable %d, circuit open %d, rejected %d, known not found %d, exceptions %d | not found cache %d hits, %d misses | contexts %d open, %d created, %d destroyed | heap %d MB",
+                lLookups / dSeconds, formatLatencies( histogram ),
+                ratio( snapshot._lLdapOperations - last._lLdapOperations, lLookups ),
+                ratio( snapshot._lSearches - last._lSearches, lLookups ),
+                snapshot._lCommunicationErrors - last._lCommunicationErrors,
+                snapshot._lUnavailableErrors - last._lUnavailableErrors,
+                snapshot._lCircuitOpenErrors - last._lCircuitOpenErrors, snapshot._lRejected - last._lRejected,
+                snapshot._lKnownNotFound - last._lKnownNotFound, snapshot._lExceptions - last._lExceptions,
+                snapshot._lNotFoundCacheHits - last._lNotFoundCacheHits,
+                snapshot._lNotFoundCacheMisses - last._lNotFoundCacheMisses, snapshot._nOpenContexts,
+                snapshot._lCreatedContexts - last._lCreatedContexts,
+                snapshot._lDestroyedContexts - last._lDestroyedContexts,
+                _memory.getHeapMemoryUsage(  ).getUsed(  ) / BYTES_PER_MEGABYTE ) );
+    }
+
+    /**
+     * Print the measures of the whole run
+     * @param lElapsed The duration of the run in nanoseconds
+     * @param lBaseHeap The heap used before the run, in bytes
+     */
+    private void printSummary( long lElapsed, long lBaseHeap )
+    {
+        LdapMetrics metrics = LdapMetrics.getInstance(  );
+        long lLookups = _totalHistogram.getCount(  );
+        long lHeap = getHeapAfterGc(  );
+
+        System.out.println( "Summary" );
+        System.out.println( String.format( "  lookups            %d in %.1f s, %.0f lookups/s", lLookups,
+                lElapsed / (double) TimeUnit.SECONDS.toNanos( 1 ),
+                lLookups / ( lElapsed / (double) TimeUnit.SECONDS.toNanos( 1 ) ) ) );
+        System.out.println( "  latency            " + formatLatencies( _totalHistogram ) );
+        System.out.println( String.format( "  outcome            %d found, %d not found (%d known), %d exceptions",
+                _lFoundCount.get(  ), _lNotFoundCount.get(  ), _lKnownNotFoundCount.get(  ),
+                _lExceptionCount.get(  ) ) );
+        System.out.println( String.format( "  ldap ops/lookup    %.3f (directory searches/lookup %.3f)",
+                metrics.getLdapOperationsPerLookup(  ), ratio( _context.getDirectory(  ).getSearchCount(  ), lLookups ) ) );
+        System.out.println( String.format( "  faults injected    %d", _context.getDirectory(  ).getFaultCount(  ) ) );
+
+        for ( LdapMetrics.ErrorType errorType : LdapMetrics.ErrorType.values(  ) )
+        {
+            System.out.println( String.format( "  errors %-11s %d", errorType.name(  ).toLowerCase(  ),
+                    metrics.getErrorCount( errorType ) ) );
+        }
+
+        for ( LdapMetrics.Counter counter : LdapMetrics.Counter.values(  ) )
+        {
+            System.out.println( String.format( "  %-26s %d", counter.name(  ).toLowerCase(  ),
+                    metrics.getCount( counter ) ) );
+        }
+
+        System.out.println( String.format( "  heap after gc      %d MB before, %d MB after, growth %d MB",
+                lBaseHeap / BYTES_PER_MEGABYTE, lHeap / BYTES_PER_MEGABYTE,
+                ( lHeap - lBaseHeap ) / BYTES_PER_MEGABYTE ) );
+    }
+
+    /**
+     * Format the percentiles of a histogram
+     * @param histogram The histogram
+     * @return The percentiles and the maximum in milliseconds
+     */
+    private static String formatLatencies( LdapLatencyHistogram histogram )
+    {
+        StringBuilder sbLatencies = new StringBuilder(  );
+
+        for ( int i = 0; i < PERCENTILES.length; i++ )
+        {
+            sbLatencies.append( String.format( "%s %.2f ms, ", PERCENTILE_LABELS[i],
+                    histogram.getPercentileMillis( PERCENTILES[i] ) ) );
+        }
+
+        return sbLatencies.append( String.format( "max %.2f ms", histogram.getMaxMillis(  ) ) ).toString(  );
+    }
+
+    /**
+     * Divide two counts
+     * @param lCount The dividend
+     * @param lTotal The divisor
+     * @return The ratio, or 0 if the divisor is 0
+     */
+    private static double ratio( long lCount, long lTotal )
+    {
+        return ( lTotal == 0L ) ? 0d : ( lCount / (double) lTotal );
+    }
+
+    /**
+     * Get the heap used after a garbage collection
+     * @return The heap used in bytes
+     */
+    private long getHeapAfterGc(  )
+    {
+        System.gc(  );
+
+        return _memory.getHeapMemoryUsage(  ).getUsed(  );
+    }
+
+    /**
+     * Get the properties of the plugin overridden by the system properties
+     * @return The properties
+     */
+    private static Properties getPluginProperties(  )
+    {
+        Properties properties = new Properties(  );
+
+        // Stalls of the directory must exceed the read timeout to fail the searches
+        properties.setProperty( PROPERTY_READ_TIMEOUT, DEFAULT_READ_TIMEOUT );
+
+        for ( Map.Entry<Object, Object> entry : System.getProperties(  ).entrySet(  ) )
+        {
+            String strKey = entry.getKey(  ).toString(  );
+
+            if ( strKey.startsWith( PREFIX_PLUGIN ) && !strKey.startsWith( PREFIX_LOAD ) )
+            {
+                properties.setProperty( strKey, entry.getValue(  ).toString(  ) );
+            }
+        }
+
+        return properties;
+    }
+
+    /**
+     * Get a decimal system property
+     * @param strKey The key of the property
+     * @param dDefault The default value
+     * @return The value of the property, or the default value
+     */
+    private static double getDouble( String strKey, double dDefault )
+    {
+        String strValue = System.getProperty( strKey );
+
+        return ( strValue == null ) ? dDefault : Double.parseDouble( strValue );
+    }
+
+    /**
+     * Thread looking up names until the end of the run
+     */
+    private final class Worker implements Runnable
+    {
+        private final Random _random;
+
+        /**
+         * Creates a new worker
+         * @param random The generator of the names
+         */
+        Worker( Random random )
+        {
+            _random = random;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run(  )
+        {
+            while ( !_bStopped )
+            {
+                lookup( _random );
+            }
+        }
+    }
+
+    /**
+     * Counters of the plugin, of the directory and of the run at a given time
+     */
+    private final class Snapshot
+    {
+        private final long _lTime;
+        private final long _lLookups;
+        private final long _lLdapOperations;
+        private final long _lSearches;
+        private final long _lCommunicationErrors;
+        private final long _lUnavailableErrors;
+        private final long _lCircuitOpenErrors;
+        private final long _lRejected;
+        private final long _lKnownNotFound;
+        private final long _lExceptions;
+        private final long _lNotFoundCacheHits;
+        private final long _lNotFoundCacheMisses;
+        private final int _nOpenContexts;
+        private final long _lCreatedContexts;
+        private final long _lDestroyedContexts;
+
+        /**
+         * Take a snapshot
+         * @param lTime The time of the snapshot in nanoseconds
+         */
+        Snapshot( long lTime )
+        {
+            LdapMetrics metrics = LdapMetrics.getInstance(  );
+            int nOpenContexts = 0;
+            long lCreatedContexts = 0L;
+            long lDestroyedContexts = 0L;
+
+            for ( LdapContextPool pool : LdapUtil.getContextPools(  ) )
+            {
+                nOpenContexts += pool.getOpenCount(  );
+                lCreatedContexts += pool.getCreatedCount(  );
+                lDestroyedContexts += pool.getDestroyedCount(  );
+            }
+
+            _lTime = lTime;
+            _lLookups = metrics.getCount( LdapMetrics.Counter.LOOKUP_REQUEST );
+            _lLdapOperations = metrics.getCount( LdapMetrics.Counter.LDAP_OPERATION );
+            _lSearches = _context.getDirectory(  ).getSearchCount(  );
+            _lCommunicationErrors = metrics.getErrorCount( LdapMetrics.ErrorType.COMMUNICATION );
+            _lUnavailableErrors = metrics.getErrorCount( LdapMetrics.ErrorType.SERVICE_UNAVAILABLE );
+            _lCircuitOpenErrors = metrics.getErrorCount( LdapMetrics.ErrorType.CIRCUIT_OPEN );
+            _lRejected = metrics.getCount( LdapMetrics.Counter.INTERACTIVE_REJECTED );
+            _lKnownNotFound = _lKnownNotFoundCount.get(  );
+            _lExceptions = _lExceptionCount.get(  );
+            _lNotFoundCacheHits = metrics.getCount( LdapMetrics.Counter.NOT_FOUND_CACHE_HIT );
+            _lNotFoundCacheMisses = metrics.getCount( LdapMetrics.Counter.NOT_FOUND_CACHE_MISS );
+            _nOpenContexts = nOpenContexts;
+            _lCreatedContexts = lCreatedContexts;
+            _lDestroyedContexts = lDestroyedContexts;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.security.LuteceUser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+
+
+/**
+ * Benchmark of the lookups of users against an in-process directory, for
+ * users found, users not found, names rejected by the regular expression of
+ * the GUID and the mapping of the attributes. The lookups of the browser
+ * always search the directory, those of the user provider go through its
+ * caches.<br>
+ * The directory runs in the forked virtual machine and the names are drawn
+ * from seeded generators, so the results can be reproduced offline. The main
+ * method runs the benchmark for each of the thread counts of the
+ * {@value #PROPERTY_THREADS} system property and writes the results in
+ * {@value #PATH_RESULTS}.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class LdapLookupBenchmark
+{
+    private static final String PROPERTY_THREADS = "searchldap.benchmark.threads";
+    private static final String DEFAULT_THREADS = "1,4,16";
+    private static final String PATH_RESULTS = "target/jmh/";
+    private static final long SEED = 42L;
+    private static final String ATTRIBUTE_EMAIL = "mail";
+    private static final String ATTRIBUTE_FAMILY = "sn";
+    private static final String ATTRIBUTE_GIVEN = "givenName";
+
+    /**
+     * Number of users of the directory
+     */
+    @Param( { "10000" } )
+    public int _nUserCount;
+    private LdapTestContext _context;
+    private LdapLookupPlan _plan;
+    private BasicAttributes _attributes;
+
+    /**
+     * Start the directory and fill the caches of the user provider
+     * @throws Exception If the directory can not be started
+     */
+    @Setup( Level.Trial )
+    public void setUp(  ) throws Exception
+    {
+        _context = new LdapTestContext( new LdapTestDirectory( _nUserCount ), new Properties(  ) );
+        _plan = _context.getLDAPBrowser(  ).getLookupPlan(  );
+
+        for ( int i = 0; i < _nUserCount; i++ )
+        {
+            _context.getUserProvider(  ).getLuteceUserFromName( LdapTestDirectory.getGuid( i ) );
+            _context.getUserProvider(  ).getLuteceUserFromName( LdapTestContext.getUnknownGuid( i ) );
+        }
+
+        String strGuid = LdapTestDirectory.getGuid( 0 );
+        _attributes = new BasicAttributes( true );
+        _attributes.put( LdapTestDirectory.ATTRIBUTE_GUID, strGuid );
+        _attributes.put( ATTRIBUTE_EMAIL, "user0@lutece.fr" );
+        _attributes.put( ATTRIBUTE_FAMILY, "Family0" );
+        _attributes.put( ATTRIBUTE_GIVEN, "Given0" );
+    }
+
+    /**
+     * Stop the directory
+     */
+    @TearDown( Level.Trial )
+    public void tearDown(  )
+    {
+        _context.close(  );
+    }
+
+    /**
+     * Search a user of the directory with the browser
+     * @param names The names of the thread
+     * @return The user
+     */
+    @Benchmark
+    public LuteceUser browserHit( Names names )
+    {
+        return _context.getLDAPBrowser(  ).getUserPublicData( names.nextKnownGuid( _nUserCount ) );
+    }
+
+    /**
+     * Search a user missing from the directory with the browser
+     * @param names The names of the thread
+     * @return Null
+     */
+    @Benchmark
+    public LuteceUser browserMiss( Names names )
+    {
+        return _context.getLDAPBrowser(  ).getUserPublicData( names.nextUnknownGuid( _nUserCount ) );
+    }
+
+    /**
+     * Look up a user of the directory with the user provider
+     * @param names The names of the thread
+     * @return The user
+     */
+    @Benchmark
+    public LuteceUser providerHit( Names names )
+    {
+        return _context.getUserProvider(  ).getLuteceUserFromName( names.nextKnownGuid( _nUserCount ) );
+    }
+
+    /**
+     * Look up a user missing from the directory with the user provider
+     * @param names The names of the thread
+     * @return Null
+     */
+    @Benchmark
+    public LuteceUser providerMiss( Names names )
+    {
+        return _context.getUserProvider(  ).getLuteceUserFromName( names.nextUnknownGuid( _nUserCount ) );
+    }
+
+    /**
+     * Look up a name rejected by the regular expression of the GUID with the
+     * user provider
+     * @param names The names of the thread
+     * @return Null
+     */
+    @Benchmark
+    public LuteceUser providerRegexReject( Names names )
+    {
+        return _context.getUserProvider(  ).getLuteceUserFromName( names.nextMalformedGuid( _nUserCount ) );
+    }
+
+    /**
+     * Map the attributes of an entry to a user
+     * @return The user
+     * @throws NamingException If an attribute can not be read
+     */
+    @Benchmark
+    public LuteceUser attributeMapping(  ) throws NamingException
+    {
+        return _context.getLDAPBrowser(  ).createUser( _plan, _attributes );
+    }
+
+    /**
+     * Run the benchmark for each thread count
+     * @param args The arguments, unused
+     * @throws Exception If the benchmark fails
+     */
+    public static void main( String[] args ) throws Exception
+    {
+        new File( PATH_RESULTS ).mkdirs(  );
+
+        for ( String strThreads : System.getProperty( PROPERTY_THREADS, DEFAULT_THREADS ).split( "," ) )
+        {
+            int nThreads = Integer.parseInt( strThreads.trim(  ) );
+            new Runner( new OptionsBuilder(  ).include( LdapLookupBenchmark.class.getName(  ) ).threads( nThreads )
+                                              .resultFormat( ResultFormatType.JSON )
+                                              .result( PATH_RESULTS + "lookup-" + nThreads + "-threads.json" ).build(  ) ).run(  );
+        }
+    }
+
+    /**
+     * Names looked up by a thread, drawn from a generator seeded by the index
+     * of the thread
+     */
+    @State( Scope.Thread )
+    public static class Names
+    {
+        private Random _random;
+
+        /**
+         * Seed the generator
+         * @param params The parameters of the thread
+         */
+        @Setup( Level.Trial )
+        public void setUp( ThreadParams params )
+        {
+            _random = new Random( SEED + params.getThreadIndex(  ) );
+        }
+
+        /**
+         * Get the GUID of a user of the directory
+         * @param nUserCount The number of users
+         * @return The GUID
+         */
+        String nextKnownGuid( int nUserCount )
+        {
+            return LdapTestDirectory.getGuid( _random.nextInt( nUserCount ) );
+        }
+
+        /**
+         * Get the GUID of a user missing from the directory
+         * @param nUserCount The number of users
+         * @return The GUID
+         */
+        String nextUnknownGuid( int nUserCount )
+        {
+            return LdapTestContext.getUnknownGuid( _random.nextInt( nUserCount ) );
+        }
+
+        /**
+         * Get a name rejected by the regular expression of the GUID
+         * @param nUserCount The number of users
+         * @return The name
+         */
+        String nextMalformedGuid( int nUserCount )
+        {
+            return LdapTestContext.getMalformedGuid( _random.nextInt( nUserCount ) );
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.naming.directory.InvalidSearchFilterException;
+
+
+/**
+ * Tests of the search filters built by the lookup plan
+ */
+public class LdapLookupPlanTest
+{
+    private static final String PROPERTY_GUID_FILTER = "searchldap.ldap.userSearch.guid";
+    private static final String PROPERTY_ALL_USERS_FILTER = "searchldap.ldap.userSearch.all";
+    private static final String ALL_USERS_FILTER = "(mdpwssoGUID=*)";
+    private static final String ATTRIBUTE_FAMILY = "user.name.family";
+    private static final String ATTRIBUTE_GIVEN = "user.name.given";
+
+    // Every character escaped by RFC 4515, between plain characters
+    private static final String SPECIAL_VALUE = "a\\b*c(d)e\u0000f";
+    private static final String ESCAPED_VALUE = "a\\5cb\\2ac\\28d\\29e\\00f";
+    private static LdapLookupPlan _plan;
+
+    /**
+     * Load the lookup plan of the default properties
+     * @throws Exception If the properties can not be loaded
+     */
+    @BeforeClass
+    public static void setUpPlan(  ) throws Exception
+    {
+        _plan = loadPlan( "(mdpwssoGUID={0})" );
+    }
+
+    /**
+     * The special characters of a guid are escaped
+     */
+    @Test
+    public void testGuidFilterEscaping(  )
+    {
+        assertEquals( "(mdpwssoGUID=guid)", _plan.getGuidFilter( "guid" ) );
+        assertEquals( "(mdpwssoGUID=" + ESCAPED_VALUE + ")", _plan.getGuidFilter( SPECIAL_VALUE ) );
+        assertEquals( "(mdpwssoGUID=\\2a)", _plan.getGuidFilter( "*" ) );
+
+        // A value can not close the filter to inject another one
+        assertEquals( "(mdpwssoGUID=\\29\\28uid=\\2a)", _plan.getGuidFilter( ")(uid=*" ) );
+    }
+
+    /**
+     * A single guid is searched with the plain filter, several guids with a
+     * disjunction of the filters
+     */
+    @Test
+    public void testGuidsFilter(  )
+    {
+        assertEquals( "(mdpwssoGUID=guid1)", _plan.getGuidsFilter( Collections.singletonList( "guid1" ) ) );
+        assertEquals( "(|(mdpwssoGUID=guid1)(mdpwssoGUID=" + ESCAPED_VALUE + "))",
+            _plan.getGuidsFilter( Arrays.asList( "guid1", SPECIAL_VALUE ) ) );
+    }
+
+    /**
+     * The values of the attributes are escaped, before the wildcard of a
+     * prefix match
+     * @throws InvalidSearchFilterException If the filter can not be built
+     */
+    @Test
+    public void testAttributesFilterEscaping(  ) throws InvalidSearchFilterException
+    {
+        Map<String, String> mapCriteria = new LinkedHashMap<String, String>(  );
+        mapCriteria.put( ATTRIBUTE_FAMILY, SPECIAL_VALUE );
+
+        assertEquals( "(&" + ALL_USERS_FILTER + "(sn=" + ESCAPED_VALUE + "))",
+            _plan.getAttributesFilter( mapCriteria, false ) );
+        assertEquals( "(&" + ALL_USERS_FILTER + "(sn=" + ESCAPED_VALUE + "*))",
+            _plan.getAttributesFilter( mapCriteria, true ) );
+
+        mapCriteria.put( ATTRIBUTE_GIVEN, "*" );
+        assertEquals( "(&" + ALL_USERS_FILTER + "(sn=" + ESCAPED_VALUE + "*)(givenName=\\2a*))",
+            _plan.getAttributesFilter( mapCriteria, true ) );
+    }
+
+    /**
+     * A search by attribute without criteria or on an attribute that is not
+     * mapped is rejected
+     */
+    @Test
+    public void testAttributesFilterRejected(  )
+    {
+        Map<String, String> mapCriteria = new LinkedHashMap<String, String>(  );
+
+        try
+        {
+            _plan.getAttributesFilter( mapCriteria, false );
+            fail( "A search without criteria must be rejected" );
+        }
+        catch ( InvalidSearchFilterException e )
+        {
+            // Expected
+        }
+
+        mapCriteria.put( "user.unknown", "value" );
+
+        try
+        {
+            _plan.getAttributesFilter( mapCriteria, false );
+            fail( "A search on an attribute that is not mapped must be rejected" );
+        }
+        catch ( InvalidSearchFilterException e )
+        {
+            // Expected
+        }
+    }
+
+    /**
+     * Every occurrence of the parameter of the guid filter is replaced, at the
+     * start, in the middle and at the end of the filter
+     * @throws Exception If the properties can not be loaded
+     */
+    @Test
+    public void testGuidFilterSplit(  ) throws Exception
+    {
+        assertEquals( "(|(uid=a\\2a)(cn=a\\2a))", loadPlan( "(|(uid={0})(cn={0}))" ).getGuidFilter( "a*" ) );
+        assertEquals( "a\\2a(uid=a\\2a)a\\2a", loadPlan( "{0}(uid={0}){0}" ).getGuidFilter( "a*" ) );
+        assertEquals( "a\\2aa\\2a", loadPlan( "{0}{0}" ).getGuidFilter( "a*" ) );
+        assertEquals( "a\\2a", loadPlan( "{0}" ).getGuidFilter( "a*" ) );
+
+        // A filter without parameter is left as is
+        assertEquals( "(uid=fixed)", loadPlan( "(uid=fixed)" ).getGuidFilter( "a*" ) );
+
+        // The other braces are not parameters
+        assertEquals( "(uid={1}a\\2a{)", loadPlan( "(uid={1}{0}{)" ).getGuidFilter( "a*" ) );
+    }
+
+    /**
+     * Load a lookup plan with a given guid filter
+     * @param strGuidFilter The guid filter
+     * @return The plan
+     * @throws Exception If the properties can not be loaded
+     */
+    private static LdapLookupPlan loadPlan( String strGuidFilter )
+        throws Exception
+    {
+        Properties properties = new Properties(  );
+        properties.setProperty( PROPERTY_GUID_FILTER, strGuidFilter );
+        properties.setProperty( PROPERTY_ALL_USERS_FILTER, ALL_USERS_FILTER );
+        LdapTestEnvironment.init( properties );
+
+        return LdapLookupPlan.load(  );
+    }
+}
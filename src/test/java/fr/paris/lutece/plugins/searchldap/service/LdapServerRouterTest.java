@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Properties;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+
+/**
+ * Tests of the routing of the operations when a server does not answer
+ */
+public class LdapServerRouterTest
+{
+    private static final String INITIAL_CONTEXT_FACTORY = "com.sun.jndi.ldap.LdapCtxFactory";
+    private static final String ENV_CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+    private static final String ENV_READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+    private static final long CONNECT_TIMEOUT = 1000L;
+    private static final long READ_TIMEOUT = 300L;
+    private static final int FAILURE_THRESHOLD = 2;
+    private static final int OPEN_DURATION = 60000;
+    private static final int USER_COUNT = 10;
+    private static final String PROPERTY_HEDGING_ENABLED = "searchldap.hedging.enabled";
+    private static final String PROPERTY_BULKHEAD_ENABLED = "searchldap.bulkhead.enabled";
+    private static final String PROPERTY_INTERACTIVE_MAX_CONCURRENT = "searchldap.bulkhead.interactive.maxConcurrent";
+    private static final String PROPERTY_BACKGROUND_MAX_CONCURRENT = "searchldap.bulkhead.background.maxConcurrent";
+    private HangingServer _hangingServer;
+    private LdapTestDirectory _directory;
+    private List<LdapServer> _listServers = new ArrayList<LdapServer>(  );
+
+    /**
+     * Initialize the properties
+     * @throws Exception If the properties can not be initialized
+     */
+    @BeforeClass
+    public static void initEnvironment(  ) throws Exception
+    {
+        LdapTestEnvironment.init( new Properties(  ) );
+    }
+
+    /**
+     * Start the servers
+     * @throws Exception If a server can not be started
+     */
+    @Before
+    public void setUp(  ) throws Exception
+    {
+        _hangingServer = new HangingServer(  );
+        _directory = new LdapTestDirectory( USER_COUNT );
+    }
+
+    /**
+     * Stop the servers
+     * @throws Exception If a server can not be stopped
+     */
+    @After
+    public void tearDown(  ) throws Exception
+    {
+        LdapTestEnvironment.init( new Properties(  ) );
+        LdapBulkhead.init(  );
+
+        for ( LdapServer server : _listServers )
+        {
+            server.getPool(  ).close(  );
+        }
+
+        _directory.shutdown(  );
+        _hangingServer.close(  );
+    }
+
+    /**
+     * Read timeouts of a server that accepts connections but never answers
+     * count against its health, close its contexts and open its circuit
+     * @throws Exception If the test fails
+     */
+    @Test
+    public void testReadTimeoutOpensCircuit(  ) throws Exception
+    {
+        LdapServer server = createServer( _hangingServer.getUrl(  ) );
+        LdapServerRouter router = new LdapServerRouter( Collections.singletonList( server ) );
+
+        for ( int i = 0; i < FAILURE_THRESHOLD; i++ )
+        {
+            try
+            {
+                router.execute( new GuidSearch( LdapTestDirectory.getGuid( i ) ) );
+                fail( "The search on a server that does not answer should fail" );
+            }
+            catch ( NamingException e )
+            {
+                assertTrue( "Not a communication error : " + e, LdapUtil.isCommunicationError( e ) );
+            }
+        }
+
+        assertEquals( LdapCircuitBreaker.State.OPEN, server.getCircuitBreaker(  ).getState(  ) );
+        assertEquals( FAILURE_THRESHOLD, server.getErrorCount(  ) );
+        assertEquals( 0, server.getPool(  ).getOpenCount(  ) );
+        assertEquals( 0, server.getOutstandingRequestCount(  ) );
+
+        long lStart = System.currentTimeMillis(  );
+
+        try
+        {
+            router.execute( new GuidSearch( LdapTestDirectory.getGuid( 0 ) ) );
+            fail( "The search should fail while the circuit is open" );
+        }
+        catch ( ServiceUnavailableException e )
+        {
+            assertTrue( ( System.currentTimeMillis(  ) - lStart ) < READ_TIMEOUT );
+        }
+    }
+
+    /**
+     * Operations sent to a server that does not answer are run again on the
+     * next server until its circuit opens
+     * @throws Exception If the test fails
+     */
+    @Test
+    public void testReadTimeoutFailsOver(  ) throws Exception
+    {
+        LdapServer hangingServer = createServer( _hangingServer.getUrl(  ) );
+        LdapServer server = createServer( _directory.getUrl(  ) );
+        LdapServerRouter router = new LdapServerRouter( Arrays.asList( hangingServer, server ) );
+
+        for ( int i = 0; i < FAILURE_THRESHOLD; i++ )
+        {
+            String strGuid = LdapTestDirectory.getGuid( i );
+            assertEquals( strGuid, router.execute( new GuidSearch( strGuid ) ) );
+        }
+
+        assertEquals( LdapCircuitBreaker.State.OPEN, hangingServer.getCircuitBreaker(  ).getState(  ) );
+        assertEquals( LdapCircuitBreaker.State.CLOSED, server.getCircuitBreaker(  ).getState(  ) );
+        assertEquals( FAILURE_THRESHOLD, server.getRequestCount(  ) );
+        assertEquals( 0, server.getErrorCount(  ) );
+
+        String strGuid = LdapTestDirectory.getGuid( FAILURE_THRESHOLD );
+        long lStart = System.currentTimeMillis(  );
+        assertEquals( strGuid, router.execute( new GuidSearch( strGuid ) ) );
+        assertTrue( ( System.currentTimeMillis(  ) - lStart ) < READ_TIMEOUT );
+        assertEquals( FAILURE_THRESHOLD, hangingServer.getRequestCount(  ) );
+    }
+
+    /**
+     * A hedge takes its own permit of the bulkhead, and the first answer is
+     * returned while the first attempt still waits for its server
+     * @throws Exception If the test fails
+     */
+    @Test
+    public void testHedgeTakesItsOwnPermit(  ) throws Exception
+    {
+        initHedging(  );
+
+        LdapServerRouter router = new LdapServerRouter( Arrays.asList( createServer( _hangingServer.getUrl(  ) ),
+                    createServer( _directory.getUrl(  ) ) ) );
+        LdapMetrics metrics = LdapMetrics.getInstance(  );
+        long lHedgesSent = metrics.getCount( LdapMetrics.Counter.HEDGE_SENT );
+        String strGuid = LdapTestDirectory.getGuid( 0 );
+        long lStart = System.currentTimeMillis(  );
+
+        assertEquals( strGuid, router.executeHedged( new GuidSearch( strGuid ), LdapServerRouter.NO_DEADLINE ) );
+        assertTrue( ( System.currentTimeMillis(  ) - lStart ) < READ_TIMEOUT );
+        assertEquals( lHedgesSent + 1, metrics.getCount( LdapMetrics.Counter.HEDGE_SENT ) );
+    }
+
+    /**
+     * No hedge is sent when no permit of the bulkhead is free : the operation
+     * fails over once the first server timed out
+     * @throws Exception If the test fails
+     */
+    @Test
+    public void testHedgeSkippedWithoutPermit(  ) throws Exception
+    {
+        initHedging(  );
+
+        LdapServerRouter router = new LdapServerRouter( Arrays.asList( createServer( _hangingServer.getUrl(  ) ),
+                    createServer( _directory.getUrl(  ) ) ) );
+        LdapMetrics metrics = LdapMetrics.getInstance(  );
+        long lHedgesSent = metrics.getCount( LdapMetrics.Counter.HEDGE_SENT );
+        long lHedgesSkipped = metrics.getCount( LdapMetrics.Counter.HEDGE_SKIPPED );
+        LdapBulkhead.Permit permit = LdapBulkhead.getInstance(  ).acquire( LdapServerRouter.NO_DEADLINE );
+
+        try
+        {
+            String strGuid = LdapTestDirectory.getGuid( 0 );
+            long lStart = System.currentTimeMillis(  );
+
+            assertEquals( strGuid, router.executeHedged( new GuidSearch( strGuid ), LdapServerRouter.NO_DEADLINE ) );
+            assertTrue( ( System.currentTimeMillis(  ) - lStart ) >= READ_TIMEOUT );
+            assertEquals( lHedgesSent, metrics.getCount( LdapMetrics.Counter.HEDGE_SENT ) );
+            assertEquals( lHedgesSkipped + 1, metrics.getCount( LdapMetrics.Counter.HEDGE_SKIPPED ) );
+        }
+        finally
+        {
+            permit.release(  );
+        }
+    }
+
+    /**
+     * Enable the hedging, with two permits in the bulkhead
+     * @throws Exception If the properties can not be initialized
+     */
+    private static void initHedging(  ) throws Exception
+    {
+        Properties properties = new Properties(  );
+        properties.setProperty( PROPERTY_HEDGING_ENABLED, Boolean.TRUE.toString(  ) );
+        properties.setProperty( PROPERTY_BULKHEAD_ENABLED, Boolean.TRUE.toString(  ) );
+        properties.setProperty( PROPERTY_INTERACTIVE_MAX_CONCURRENT, "1" );
+        properties.setProperty( PROPERTY_BACKGROUND_MAX_CONCURRENT, "1" );
+        LdapTestEnvironment.init( properties );
+        LdapBulkhead.init(  );
+    }
+
+    /**
+     * Create a server with a short read timeout
+     * @param strUrl The URL of the server
+     * @return The server
+     */
+    private LdapServer createServer( String strUrl )
+    {
+        Hashtable<String, String> env = new Hashtable<String, String>(  );
+        env.put( Context.INITIAL_CONTEXT_FACTORY, INITIAL_CONTEXT_FACTORY );
+        env.put( Context.PROVIDER_URL, strUrl );
+        env.put( ENV_CONNECT_TIMEOUT, String.valueOf( CONNECT_TIMEOUT ) );
+        env.put( ENV_READ_TIMEOUT, String.valueOf( READ_TIMEOUT ) );
+
+        LdapContextPoolConfig config = new LdapContextPoolConfig( 0, 2, CONNECT_TIMEOUT, OPEN_DURATION,
+                OPEN_DURATION, OPEN_DURATION, false );
+        LdapServer server = new LdapServer( strUrl, new LdapContextPool( strUrl, env, config ),
+                new LdapCircuitBreaker( FAILURE_THRESHOLD, OPEN_DURATION ) );
+        _listServers.add( server );
+
+        return server;
+    }
+
+    /**
+     * Search of a user by GUID, returning the GUID found
+     */
+    private static class GuidSearch implements LdapOperation<String>
+    {
+        private final String _strGuid;
+
+        /**
+         * Creates a new search
+         * @param strGuid The GUID of the user
+         */
+        GuidSearch( String strGuid )
+        {
+            _strGuid = strGuid;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String execute( DirContext context ) throws NamingException
+        {
+            SearchControls controls = new SearchControls(  );
+            controls.setSearchScope( SearchControls.ONELEVEL_SCOPE );
+            controls.setReturningAttributes( new String[] { LdapTestDirectory.ATTRIBUTE_GUID } );
+
+            NamingEnumeration<SearchResult> results = context.search( LdapTestDirectory.USER_BASE_DN,
+                    "(" + LdapTestDirectory.ATTRIBUTE_GUID + "={0})", new Object[] { _strGuid }, controls );
+
+            try
+            {
+                return results.hasMore(  )
+                ? (String) results.next(  ).getAttributes(  ).get( LdapTestDirectory.ATTRIBUTE_GUID ).get(  ) : null;
+            }
+            finally
+            {
+                results.close(  );
+            }
+        }
+    }
+
+    /**
+     * Server that accepts connections and never answers
+     */
+    private static class HangingServer implements Runnable
+    {
+        private final ServerSocket _serverSocket;
+        private final List<Socket> _listSockets = Collections.synchronizedList( new ArrayList<Socket>(  ) );
+
+        /**
+         * Creates and starts the server on a free port of the loopback
+         * interface
+         * @throws IOException If the server can not be started
+         */
+        HangingServer(  ) throws IOException
+        {
+            _serverSocket = new ServerSocket( 0, 0, InetAddress.getLoopbackAddress(  ) );
+
+            Thread thread = new Thread( this, "searchldap-hanging-server" );
+            thread.setDaemon( true );
+            thread.start(  );
+        }
+
+        /**
+         * Accept the connections and keep them open
+         */
+        @Override
+        public void run(  )
+        {
+            try
+            {
+                while ( true )
+                {
+                    _listSockets.add( _serverSocket.accept(  ) );
+                }
+            }
+            catch ( IOException e )
+            {
+                // The server is closed
+            }
+        }
+
+        /**
+         * Get the URL of the server
+         * @return The URL
+         */
+        String getUrl(  )
+        {
+            return "ldap://127.0.0.1:" + _serverSocket.getLocalPort(  ) + "/";
+        }
+
+        /**
+         * Close the server and its connections
+         * @throws IOException If the server can not be closed
+         */
+        void close(  ) throws IOException
+        {
+            _serverSocket.close(  );
+
+            synchronized ( _listSockets )
+            {
+                for ( Socket socket : _listSockets )
+                {
+                    socket.close(  );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.init.LuteceInitException;
+
+import java.io.IOException;
+
+import java.util.Properties;
+
+
+/**
+ * Services of the plugin wired to a test directory without the Spring
+ * context, as the benchmarks and load tests use them. The properties service
+ * is initialized with the properties of the plugin pointing to the directory,
+ * so the context must be created before the services of the plugin are first
+ * used.
+ */
+public class LdapTestContext
+{
+    private static final String GUID_FORMAT = "%s%034d";
+    private static final String PREFIX_UNKNOWN = "absent";
+    private static final String PREFIX_MALFORMED = "guid-";
+    private final LdapTestDirectory _directory;
+    private final LdapBrowser _ldapBrowser;
+    private final LDAPLuteceUserProviderService _userProvider;
+
+    /**
+     * Creates a new context
+     * @param directory The directory
+     * @param overrides The properties of the plugin to override
+     * @throws IOException If the configuration can not be written
+     * @throws LuteceInitException If the properties can not be loaded
+     */
+    public LdapTestContext( LdapTestDirectory directory, Properties overrides )
+        throws IOException, LuteceInitException
+    {
+        Properties properties = directory.getProperties(  );
+        properties.putAll( overrides );
+        LdapTestEnvironment.init( properties );
+        LdapBulkhead.init(  );
+
+        _directory = directory;
+        _ldapBrowser = new LdapBrowser(  );
+        _userProvider = new LDAPLuteceUserProviderService(  );
+        _userProvider.setLDAPBrowser( _ldapBrowser );
+        LDAPUserCacheService.getService(  ).setLDAPBrowser( _ldapBrowser );
+        LdapGroupService.getInstance(  ).setLDAPBrowser( _ldapBrowser );
+        LdapCacheCoherenceService.getInstance(  ).setLDAPBrowser( _ldapBrowser );
+        LdapCacheCoherenceService.getInstance(  ).initialize( null, null );
+    }
+
+    /**
+     * Get the GUID of a user that is not in the directory
+     * @param nUser The number of the user
+     * @return A valid GUID, 40 characters long
+     */
+    public static String getUnknownGuid( int nUser )
+    {
+        return String.format( GUID_FORMAT, PREFIX_UNKNOWN, nUser );
+    }
+
+    /**
+     * Get a name that is not a valid GUID
+     * @param nUser The number of the user
+     * @return The name
+     */
+    public static String getMalformedGuid( int nUser )
+    {
+        return PREFIX_MALFORMED + nUser;
+    }
+
+    /**
+     * Get the directory
+     * @return The directory
+     */
+    public LdapTestDirectory getDirectory(  )
+    {
+        return _directory;
+    }
+
+    /**
+     * Get the LDAP browser
+     * @return The LDAP browser
+     */
+    public LdapBrowser getLDAPBrowser(  )
+    {
+        return _ldapBrowser;
+    }
+
+    /**
+     * Get the user provider
+     * @return The user provider
+     */
+    public LDAPLuteceUserProviderService getUserProvider(  )
+    {
+        return _userProvider;
+    }
+
+    /**
+     * Close the contexts of the plugin and stop the directory
+     */
+    public void close(  )
+    {
+        LdapUtil.closeContextPools(  );
+        LdapContextPool.shutdownMaintenance(  );
+        _directory.shutdown(  );
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.schema.Schema;
+
+import java.net.InetAddress;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * In-process LDAP directory holding generated users, identified by a 40
+ * characters GUID as in the directory of the Mairie de Paris. The directory
+ * listens on a free port of the loopback interface and needs no network
+ * access.<br>
+ * Latency and faults can be injected in the searches : errors returned by the
+ * directory, searches that stall longer than the read timeout of the plugin,
+ * and connections closed by the directory.
+ */
+public class LdapTestDirectory
+{
+    /**
+     * Base of the directory
+     */
+    public static final String BASE_DN = "dc=lutece,dc=fr";
+
+    /**
+     * Base of the users
+     */
+    public static final String USER_BASE_DN = "ou=people," + BASE_DN;
+
+    /**
+     * Attribute holding the GUID of the users
+     */
+    public static final String ATTRIBUTE_GUID = "mdpwssoGUID";
+    private static final String LISTENER_NAME = "searchldap";
+    private static final String GUID_PREFIX = "lutece";
+    private static final String GUID_FORMAT = "%s%034d";
+    private static final String ATTRIBUTE_OBJECT_CLASS = "objectClass";
+    private static final String OBJECT_CLASS_USER = "mdpwssoUser";
+    private static final String SCHEMA_GUID_ATTRIBUTE_TYPE = "( mdpwssoGUID-oid NAME '" + ATTRIBUTE_GUID +
+        "' EQUALITY caseIgnoreMatch SUBSTR caseIgnoreSubstringsMatch" +
+        " SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 SINGLE-VALUE )";
+    private static final String SCHEMA_USER_OBJECT_CLASS = "( mdpwssoUser-oid NAME '" + OBJECT_CLASS_USER +
+        "' SUP top AUXILIARY MUST " + ATTRIBUTE_GUID + " )";
+    private final FaultInjector _faultInjector = new FaultInjector(  );
+    private final InMemoryDirectoryServer _server;
+    private final int _nUserCount;
+
+    /**
+     * Creates and starts a directory
+     * @param nUserCount The number of users
+     * @throws LDAPException If the directory can not be started
+     */
+    public LdapTestDirectory( int nUserCount ) throws LDAPException
+    {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig( BASE_DN );
+
+        config.setSchema( Schema.mergeSchemas( Schema.getDefaultStandardSchema(  ),
+                new Schema( new Entry( "cn=schema", new Attribute( ATTRIBUTE_OBJECT_CLASS, "top", "subschema" ),
+                        new Attribute( Schema.ATTR_ATTRIBUTE_TYPE, SCHEMA_GUID_ATTRIBUTE_TYPE ),
+                        new Attribute( Schema.ATTR_OBJECT_CLASS, SCHEMA_USER_OBJECT_CLASS ) ) ) ) );
+        config.setEqualityIndexAttributes( ATTRIBUTE_GUID );
+        config.setListenerConfigs( InMemoryListenerConfig.createLDAPConfig( LISTENER_NAME,
+                InetAddress.getLoopbackAddress(  ), 0, null ) );
+
+        config.addInMemoryOperationInterceptor( _faultInjector );
+
+        _server = new InMemoryDirectoryServer( config );
+        _nUserCount = nUserCount;
+
+        List<Entry> listEntries = new ArrayList<Entry>( nUserCount + 2 );
+        listEntries.add( new Entry( BASE_DN, new Attribute( ATTRIBUTE_OBJECT_CLASS, "top", "domain" ),
+                new Attribute( "dc", "lutece" ) ) );
+        listEntries.add( new Entry( USER_BASE_DN, new Attribute( ATTRIBUTE_OBJECT_CLASS, "top", "organizationalUnit" ),
+                new Attribute( "ou", "people" ) ) );
+
+        for ( int i = 0; i < nUserCount; i++ )
+        {
+            String strGuid = getGuid( i );
+            listEntries.add( new Entry( ATTRIBUTE_GUID + "=" + strGuid + "," + USER_BASE_DN,
+                    new Attribute( ATTRIBUTE_OBJECT_CLASS, "top", "person", "organizationalPerson", "inetOrgPerson",
+                        OBJECT_CLASS_USER ),
+                    new Attribute( ATTRIBUTE_GUID, strGuid ), new Attribute( "cn", "User " + i ),
+                    new Attribute( "sn", "Family" + i ), new Attribute( "givenName", "Given" + i ),
+                    new Attribute( "mail", "user" + i + "@lutece.fr" ) ) );
+        }
+
+        _server.addEntries( listEntries );
+        _server.startListening(  );
+    }
+
+    /**
+     * Get the GUID of a user
+     * @param nUser The number of the user
+     * @return The GUID, 40 characters long
+     */
+    public static String getGuid( int nUser )
+    {
+        return String.format( GUID_FORMAT, GUID_PREFIX, nUser );
+    }
+
+    /**
+     * Get the number of users
+     * @return The number of users
+     */
+    public int getUserCount(  )
+    {
+        return _nUserCount;
+    }
+
+    /**
+     * Get the URL of the directory
+     * @return The URL
+     */
+    public String getUrl(  )
+    {
+        return "ldap://127.0.0.1:" + _server.getListenPort(  ) + "/";
+    }
+
+    /**
+     * Get the properties of the plugin pointing to this directory
+     * @return The properties
+     */
+    public Properties getProperties(  )
+    {
+        Properties properties = new Properties(  );
+        properties.setProperty( "searchldap.ldap.connectionUrl", getUrl(  ) );
+        properties.setProperty( "searchldap.ldap.userBase", USER_BASE_DN );
+
+        return properties;
+    }
+
+    /**
+     * Set the latency added to every search
+     * @param lMinLatency The minimum latency in milliseconds
+     * @param lMaxLatency The maximum latency in milliseconds
+     */
+    public void setLatency( long lMinLatency, long lMaxLatency )
+    {
+        _faultInjector._lMinLatency = lMinLatency;
+        _faultInjector._lMaxLatency = Math.max( lMinLatency, lMaxLatency );
+    }
+
+    /**
+     * Set the fraction of the searches that fail with the unavailable result
+     * code
+     * @param dErrorRate The fraction, between 0 and 1
+     */
+    public void setErrorRate( double dErrorRate )
+    {
+        _faultInjector._dErrorRate = dErrorRate;
+    }
+
+    /**
+     * Set the fraction of the searches that stall before being answered
+     * @param dStallRate The fraction, between 0 and 1
+     * @param lStallDuration The duration of a stall in milliseconds
+     */
+    public void setStallRate( double dStallRate, long lStallDuration )
+    {
+        _faultInjector._lStallDuration = lStallDuration;
+        _faultInjector._dStallRate = dStallRate;
+    }
+
+    /**
+     * Close every connection to the directory
+     */
+    public void closeAllConnections(  )
+    {
+        _server.closeAllConnections( false );
+    }
+
+    /**
+     * Get the number of searches received by the directory
+     * @return The number of searches
+     */
+    public long getSearchCount(  )
+    {
+        return _faultInjector._lSearchCount.get(  );
+    }
+
+    /**
+     * Get the number of faults injected in the searches
+     * @return The number of errors and stalls
+     */
+    public long getFaultCount(  )
+    {
+        return _faultInjector._lFaultCount.get(  );
+    }
+
+    /**
+     * Stop the directory
+     */
+    public void shutdown(  )
+    {
+        _server.shutDown( true );
+    }
+
+    /**
+     * Interceptor of the searches adding the latency and the faults
+     */
+    private static class FaultInjector extends InMemoryOperationInterceptor
+    {
+        private final AtomicLong _lSearchCount = new AtomicLong(  );
+        private final AtomicLong _lFaultCount = new AtomicLong(  );
+        private volatile long _lMinLatency;
+        private volatile long _lMaxLatency;
+        private volatile double _dErrorRate;
+        private volatile double _dStallRate;
+        private volatile long _lStallDuration;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void processSearchRequest( InMemoryInterceptedSearchRequest request )
+            throws LDAPException
+        {
+            _lSearchCount.incrementAndGet(  );
+
+            Random random = ThreadLocalRandom.current(  );
+            long lDelay = _lMinLatency + ( ( _lMaxLatency > _lMinLatency )
+                ? random.nextInt( (int) ( _lMaxLatency - _lMinLatency + 1 ) ) : 0L );
+
+            if ( random.nextDouble(  ) < _dStallRate )
+            {
+                _lFaultCount.incrementAndGet(  );
+                lDelay += _lStallDuration;
+            }
+
+            sleep( lDelay );
+
+            if ( random.nextDouble(  ) < _dErrorRate )
+            {
+                _lFaultCount.incrementAndGet(  );
+                throw new LDAPException( ResultCode.UNAVAILABLE, "Fault injected by the test directory" );
+            }
+        }
+
+        /**
+         * Sleep before answering
+         * @param lDelay The delay in milliseconds
+         * @throws LDAPException If the thread is interrupted
+         */
+        private static void sleep( long lDelay ) throws LDAPException
+        {
+            if ( lDelay <= 0 )
+            {
+                return;
+            }
+
+            try
+            {
+                Thread.sleep( lDelay );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread(  ).interrupt(  );
+                throw new LDAPException( ResultCode.UNAVAILABLE, e );
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.portal.service.init.LuteceInitException;
+import fr.paris.lutece.portal.service.util.AppPathService;
+import fr.paris.lutece.portal.service.util.AppPropertiesService;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Properties;
+
+
+/**
+ * Environment of the tests and benchmarks : a temporary webapp whose
+ * configuration holds the properties of the plugin, loaded by the properties
+ * service of Lutece. The properties of the plugin are read from the webapp of
+ * the project, and may be overridden, for instance to point to a test
+ * directory.
+ */
+public final class LdapTestEnvironment
+{
+    private static final String PATH_CONF = "/WEB-INF/conf/";
+    private static final String PATH_PLUGINS = "plugins";
+    private static final String PATH_OVERRIDE = "override";
+    private static final String FILE_PLUGIN_PROPERTIES = "webapp/WEB-INF/conf/plugins/searchldap.properties";
+    private static final String FILE_PLUGIN = "searchldap.properties";
+    private static final String[] FILES_CORE = 
+        {
+            "config.properties", "db.properties", "lutece.properties", "search.properties", "daemons.properties",
+            "caches.properties", "editors.properties", "webmaster.properties"
+        };
+    private static final String PREFIX_WEBAPP = "searchldap-webapp";
+
+    /**
+     * Private constructor
+     */
+    private LdapTestEnvironment(  )
+    {
+    }
+
+    /**
+     * Initialize the properties service with the properties of the plugin
+     * @param overrides The properties overriding those of the plugin
+     * @return The root of the temporary webapp
+     * @throws IOException If the webapp can not be written
+     * @throws LuteceInitException If the properties can not be loaded
+     */
+    public static synchronized File init( Properties overrides )
+        throws IOException, LuteceInitException
+    {
+        File webapp = createTempDirectory(  );
+        File conf = new File( webapp, PATH_CONF );
+        File plugins = new File( conf, PATH_PLUGINS );
+
+        if ( !plugins.mkdirs(  ) || !new File( conf, PATH_OVERRIDE ).mkdirs(  ) )
+        {
+            throw new IOException( "Unable to create the configuration in " + conf );
+        }
+
+        for ( String strFile : FILES_CORE )
+        {
+            store( new Properties(  ), new File( conf, strFile ) );
+        }
+
+        Properties properties = new Properties(  );
+        InputStream in = new FileInputStream( FILE_PLUGIN_PROPERTIES );
+
+        try
+        {
+            properties.load( in );
+        }
+        finally
+        {
+            in.close(  );
+        }
+
+        properties.putAll( overrides );
+        store( properties, new File( plugins, FILE_PLUGIN ) );
+
+        AppPathService.init( webapp.getAbsolutePath(  ) );
+        AppPropertiesService.init( PATH_CONF );
+
+        return webapp;
+    }
+
+    /**
+     * Create a temporary directory, deleted when the virtual machine exits
+     * @return The directory
+     * @throws IOException If the directory can not be created
+     */
+    private static File createTempDirectory(  ) throws IOException
+    {
+        File directory = File.createTempFile( PREFIX_WEBAPP, "" );
+
+        if ( !directory.delete(  ) || !directory.mkdir(  ) )
+        {
+            throw new IOException( "Unable to create the directory " + directory );
+        }
+
+        directory.deleteOnExit(  );
+
+        return directory;
+    }
+
+    /**
+     * Write properties to a file
+     * @param properties The properties
+     * @param file The file
+     * @throws IOException If the file can not be written
+     */
+    private static void store( Properties properties, File file )
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+
+        try
+        {
+            properties.store( out, null );
+        }
+        finally
+        {
+            out.close(  );
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmark of the binary codec of the users against the Java serialization
+ * of {@link LDAPUser}, with the mapping of the attributes of the plugin. The
+ * sizes of both encodings are printed when the benchmark starts. The main
+ * method writes the results in {@value #PATH_RESULTS}.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class LdapUserCodecBenchmark
+{
+    private static final String PATH_RESULTS = "target/jmh/";
+    private LdapUserCodec _codec;
+    private LDAPUser _user;
+    private byte[] _encodedUser;
+    private ByteBuffer _directBuffer;
+    private byte[] _serializedUser;
+
+    /**
+     * Create the user and its encodings
+     * @throws Exception If the properties can not be loaded
+     */
+    @Setup( Level.Trial )
+    public void setUp(  ) throws Exception
+    {
+        LdapTestEnvironment.init( new Properties(  ) );
+
+        LdapBrowser ldapBrowser = new LdapBrowser(  );
+        LdapGroupService.getInstance(  ).setLDAPBrowser( ldapBrowser );
+        _codec = new LdapUserCodec( ldapBrowser.getLookupPlan(  ) );
+        _user = ldapBrowser.createUser( LdapTestDirectory.getGuid( 1 ), "user1@lutece.fr",
+                new String[] { "Family1", "Given1" } );
+        _user.setMemberOf( Arrays.asList( "cn=agents,ou=groups,dc=lutece,dc=fr", "cn=paris,ou=groups,dc=lutece,dc=fr" ) );
+        _encodedUser = _codec.encode( _user );
+        _directBuffer = ByteBuffer.allocateDirect( _encodedUser.length );
+        _directBuffer.put( _encodedUser ).flip(  );
+        _serializedUser = serialize(  );
+
+        System.out.println( "Encoded user : " + _encodedUser.length + " bytes with the codec, " +
+            _serializedUser.length + " bytes with the serialization" );
+    }
+
+    /**
+     * Encode the user with the codec
+     * @return The bytes
+     */
+    @Benchmark
+    public byte[] codecEncode(  )
+    {
+        return _codec.encode( _user );
+    }
+
+    /**
+     * Decode the user with the codec from a heap buffer, in place
+     * @return The user
+     */
+    @Benchmark
+    public LDAPUser codecDecodeHeap(  )
+    {
+        return _codec.decode( ByteBuffer.wrap( _encodedUser ) );
+    }
+
+    /**
+     * Decode the user with the codec from a direct buffer, through the
+     * scratch array
+     * @return The user
+     */
+    @Benchmark
+    public LDAPUser codecDecodeDirect(  )
+    {
+        return _codec.decode( _directBuffer.duplicate(  ) );
+    }
+
+    /**
+     * Encode the user with the Java serialization
+     * @return The bytes
+     * @throws IOException If the user can not be serialized
+     */
+    @Benchmark
+    public byte[] serializationEncode(  ) throws IOException
+    {
+        return serialize(  );
+    }
+
+    /**
+     * Decode the user with the Java serialization
+     * @return The user
+     * @throws Exception If the user can not be deserialized
+     */
+    @Benchmark
+    public Object serializationDecode(  ) throws Exception
+    {
+        ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( _serializedUser ) );
+
+        try
+        {
+            return in.readObject(  );
+        }
+        finally
+        {
+            in.close(  );
+        }
+    }
+
+    /**
+     * Run the benchmark
+     * @param args The arguments, unused
+     * @throws Exception If the benchmark fails
+     */
+    public static void main( String[] args ) throws Exception
+    {
+        new File( PATH_RESULTS ).mkdirs(  );
+        new Runner( new OptionsBuilder(  ).include( LdapUserCodecBenchmark.class.getName(  ) )
+                                          .resultFormat( ResultFormatType.JSON ).result( PATH_RESULTS + "codec.json" )
+                                          .build(  ) ).run(  );
+    }
+
+    /**
+     * Serialize the user
+     * @return The bytes
+     * @throws IOException If the user can not be serialized
+     */
+    private byte[] serialize(  ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(  );
+        ObjectOutputStream out = new ObjectOutputStream( bytes );
+        out.writeObject( _user );
+        out.close(  );
+
+        return bytes.toByteArray(  );
+    }
+}
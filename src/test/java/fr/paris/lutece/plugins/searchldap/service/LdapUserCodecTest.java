@@ -0,0 +1,458 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+
+/**
+ * Round trip tests of the binary codec of the users
+ */
+public class LdapUserCodecTest
+{
+    private static final String PROPERTY_ATTRIBUTE_LIST = "searchldap.ldap.dn.attributeName.list";
+    private static final String PROPERTY_LDAP_ATTRIBUTE = "searchldap.ldap.dn.attributeName.";
+    private static final String PROPERTY_LUTECE_USER_ATTRIBUTE = "searchldap.luteceuser.attribute.";
+    private static final String PROPERTY_GROUPS_ENABLED = "searchldap.groups.enabled";
+
+    // More attributes than the bits of a byte, so that the bitmap takes two bytes
+    private static final int ATTRIBUTE_COUNT = 11;
+    private static final String GUID = LdapTestDirectory.getGuid( 1 );
+    private static final String EMAIL = "user1@lutece.fr";
+    private static final String NON_BMP = "\uD83D\uDE00 \uD834\uDD1E \u540D\u524D";
+    private static final int SCRATCH_LENGTH = 256;
+    private static LdapLookupPlan _plan;
+    private static LdapUserCodec _codec;
+
+    /**
+     * Load a lookup plan mapping more than 8 attributes
+     * @throws Exception If the properties can not be loaded
+     */
+    @BeforeClass
+    public static void setUpCodec(  ) throws Exception
+    {
+        _plan = loadPlan( ATTRIBUTE_COUNT, "ldap" );
+        _codec = new LdapUserCodec( _plan );
+        LdapGroupService.getInstance(  ).setLDAPBrowser( new LdapBrowser(  ) );
+    }
+
+    /**
+     * Every attribute, the email and the groups survive a round trip
+     */
+    @Test
+    public void testRoundTrip(  )
+    {
+        LDAPUser user = createUser( GUID, EMAIL );
+
+        for ( int i = 0; i < ATTRIBUTE_COUNT; i++ )
+        {
+            user.setUserInfo( _plan.getLuteceUserAttribute( i ), "value" + i );
+        }
+
+        user.setMemberOf( Arrays.asList( "cn=group1,ou=groups,dc=lutece,dc=fr", "cn=group2,ou=groups,dc=lutece,dc=fr" ) );
+
+        assertUserEquals( user, _codec.decode( ByteBuffer.wrap( _codec.encode( user ) ) ) );
+    }
+
+    /**
+     * The attributes without value are skipped on both bytes of the bitmap
+     */
+    @Test
+    public void testBitmapWithMoreThanEightAttributes(  )
+    {
+        int[] setAttributes = { 0, 7, 8, 10 };
+        LDAPUser user = createUser( GUID, EMAIL );
+
+        for ( int nAttribute : setAttributes )
+        {
+            user.setUserInfo( _plan.getLuteceUserAttribute( nAttribute ), "value" + nAttribute );
+        }
+
+        LDAPUser decodedUser = _codec.decode( ByteBuffer.wrap( _codec.encode( user ) ) );
+        assertUserEquals( user, decodedUser );
+
+        for ( int i = 0; i < ATTRIBUTE_COUNT; i++ )
+        {
+            boolean bSet = Arrays.binarySearch( setAttributes, i ) >= 0;
+            assertEquals( bSet ? ( "value" + i ) : null, decodedUser.getUserInfo( _plan.getLuteceUserAttribute( i ) ) );
+        }
+    }
+
+    /**
+     * Empty strings stay empty and null strings stay null
+     */
+    @Test
+    public void testEmptyAndNullStrings(  )
+    {
+        LDAPUser user = createUser( "", null );
+        user.setUserInfo( _plan.getLuteceUserAttribute( 0 ), "" );
+        user.setUserInfo( _plan.getLuteceUserAttribute( 9 ), "" );
+
+        LDAPUser decodedUser = _codec.decode( ByteBuffer.wrap( _codec.encode( user ) ) );
+        assertUserEquals( user, decodedUser );
+        assertEquals( "", decodedUser.getName(  ) );
+        assertNull( decodedUser.getEmail(  ) );
+        assertEquals( "", decodedUser.getUserInfo( _plan.getLuteceUserAttribute( 9 ) ) );
+        assertNull( decodedUser.getUserInfo( _plan.getLuteceUserAttribute( 1 ) ) );
+    }
+
+    /**
+     * Characters outside of the basic multilingual plane, written as
+     * surrogate pairs in Java and as 4 bytes in UTF-8, survive a round trip
+     * from heap and direct buffers
+     */
+    @Test
+    public void testNonBmpStrings(  )
+    {
+        LDAPUser user = createUser( GUID, NON_BMP + "@lutece.fr" );
+        user.setUserInfo( _plan.getLuteceUserAttribute( 3 ), NON_BMP );
+        user.setUserInfo( _plan.getLuteceUserAttribute( 8 ), "\uD801\uDC37" );
+
+        byte[] bytes = _codec.encode( user );
+        assertUserEquals( user, _codec.decode( ByteBuffer.wrap( bytes ) ) );
+        assertUserEquals( user, _codec.decode( toDirectBuffer( bytes ) ) );
+    }
+
+    /**
+     * Lengths are written on 1, 2 or 3 bytes around the limits of the
+     * variable length integers, and strings are read back from heap and
+     * direct buffers
+     * @throws IOException If a string can not be written
+     */
+    @Test
+    public void testVarIntLengthBoundaries(  ) throws IOException
+    {
+        // The length is written plus one : 126 bytes are written as 127, the largest single byte value
+        int[][] lengths =
+            {
+                { 0, 1 },
+                { 126, 1 },
+                { 127, 2 },
+                { 128, 2 },
+                { 16382, 2 },
+                { 16383, 3 },
+                { 16384, 3 }
+            };
+
+        for ( int[] length : lengths )
+        {
+            String strValue = repeat( 'a', length[0] );
+            byte[] bytes = writeString( strValue );
+            assertEquals( "Encoded size of a string of " + length[0] + " bytes", length[0] + length[1], bytes.length );
+
+            ByteBuffer heapBuffer = ByteBuffer.wrap( bytes );
+            assertEquals( strValue, LdapUserCodec.readString( heapBuffer ) );
+            assertFalse( heapBuffer.hasRemaining(  ) );
+
+            ByteBuffer directBuffer = toDirectBuffer( bytes );
+            assertEquals( strValue, LdapUserCodec.readString( directBuffer ) );
+            assertFalse( directBuffer.hasRemaining(  ) );
+        }
+    }
+
+    /**
+     * Strings of a heap buffer are decoded in place, relative to the offset
+     * of the buffer in its array
+     * @throws IOException If a string can not be written
+     */
+    @Test
+    public void testHeapBufferDecodedInPlace(  ) throws IOException
+    {
+        byte[] encoded = writeString( NON_BMP );
+        int nOffset = 7;
+        byte[] array = new byte[nOffset + encoded.length + 3];
+        System.arraycopy( encoded, 0, array, nOffset, encoded.length );
+
+        ByteBuffer buffer = ByteBuffer.wrap( array, nOffset, encoded.length ).slice(  );
+        assertTrue( buffer.hasArray(  ) );
+        assertEquals( nOffset, buffer.arrayOffset(  ) );
+        assertEquals( NON_BMP, LdapUserCodec.readString( buffer ) );
+        assertEquals( encoded.length, buffer.position(  ) );
+
+        LDAPUser user = createUser( GUID, EMAIL );
+        user.setUserInfo( _plan.getLuteceUserAttribute( 2 ), NON_BMP );
+
+        byte[] bytes = _codec.encode( user );
+        array = new byte[nOffset + bytes.length];
+        System.arraycopy( bytes, 0, array, nOffset, bytes.length );
+        assertUserEquals( user, _codec.decode( ByteBuffer.wrap( array, nOffset, bytes.length ).slice(  ) ) );
+    }
+
+    /**
+     * Strings of a direct buffer are copied through the scratch array of the
+     * thread, which grows for strings longer than its initial size and is
+     * reused for the following shorter strings
+     * @throws IOException If a string can not be written
+     */
+    @Test
+    public void testDirectBufferThroughScratchArray(  ) throws IOException
+    {
+        String[] values =
+            {
+                "short", repeat( 'b', SCRATCH_LENGTH ), repeat( 'c', SCRATCH_LENGTH + 1 ), NON_BMP,
+                repeat( 'd', 16384 ), "tail"
+            };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(  );
+        DataOutputStream out = new DataOutputStream( bytes );
+
+        for ( String strValue : values )
+        {
+            LdapUserCodec.writeString( out, strValue );
+        }
+
+        ByteBuffer buffer = toDirectBuffer( bytes.toByteArray(  ) );
+        assertFalse( buffer.hasArray(  ) );
+
+        for ( String strValue : values )
+        {
+            assertEquals( strValue, LdapUserCodec.readString( buffer ) );
+        }
+
+        assertFalse( buffer.hasRemaining(  ) );
+    }
+
+    /**
+     * Users written one after the other after a single header are read
+     * back in order
+     * @throws IOException If a user can not be written
+     */
+    @Test
+    public void testStreamOfUsers(  ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(  );
+        DataOutputStream out = new DataOutputStream( bytes );
+        LDAPUser[] users = new LDAPUser[20];
+        _codec.writeHeader( out );
+
+        for ( int i = 0; i < users.length; i++ )
+        {
+            users[i] = createUser( LdapTestDirectory.getGuid( i ), "user" + i + "@lutece.fr" );
+            users[i].setUserInfo( _plan.getLuteceUserAttribute( i % ATTRIBUTE_COUNT ), "value" + i );
+            _codec.write( out, users[i] );
+        }
+
+        ByteBuffer buffer = toDirectBuffer( bytes.toByteArray(  ) );
+        assertTrue( _codec.readHeader( buffer ) );
+
+        for ( LDAPUser user : users )
+        {
+            assertUserEquals( user, _codec.read( buffer ) );
+        }
+
+        assertFalse( buffer.hasRemaining(  ) );
+    }
+
+    /**
+     * Data written with another version of the codec is refused
+     */
+    @Test
+    public void testRefusesOtherVersion(  )
+    {
+        byte[] bytes = _codec.encode( createUser( GUID, EMAIL ) );
+        assertNotNull( _codec.decode( ByteBuffer.wrap( bytes ) ) );
+
+        // The version is the first byte of the header
+        bytes[0] = (byte) ( LdapUserCodec.VERSION + 1 );
+        assertNull( _codec.decode( ByteBuffer.wrap( bytes ) ) );
+    }
+
+    /**
+     * Data written with another mapping is refused, whether the number of
+     * attributes or only their names differ
+     * @throws Exception If the properties can not be loaded
+     */
+    @Test
+    public void testRefusesOtherMapping(  ) throws Exception
+    {
+        LDAPUser user = createUser( GUID, EMAIL );
+        user.setUserInfo( _plan.getLuteceUserAttribute( 0 ), "value0" );
+
+        byte[] bytes = _codec.encode( user );
+        LdapLookupPlan renamedPlan = loadPlan( ATTRIBUTE_COUNT, "other" );
+        LdapLookupPlan shorterPlan = loadPlan( ATTRIBUTE_COUNT - 1, "ldap" );
+
+        assertFalse( renamedPlan.getMappingHash(  ) == _plan.getMappingHash(  ) );
+        assertNull( new LdapUserCodec( renamedPlan ).decode( ByteBuffer.wrap( bytes ) ) );
+        assertNull( new LdapUserCodec( shorterPlan ).decode( ByteBuffer.wrap( bytes ) ) );
+        assertUserEquals( user, new LdapUserCodec( loadPlan( ATTRIBUTE_COUNT, "ldap" ) ).decode( ByteBuffer.wrap( bytes ) ) );
+    }
+
+    /**
+     * Truncated data can not be read
+     */
+    @Test
+    public void testTruncatedData(  )
+    {
+        LDAPUser user = createUser( GUID, EMAIL );
+        user.setUserInfo( _plan.getLuteceUserAttribute( 10 ), "value10" );
+
+        byte[] bytes = _codec.encode( user );
+
+        try
+        {
+            _codec.decode( ByteBuffer.wrap( Arrays.copyOf( bytes, bytes.length - 4 ) ) );
+            fail( "Truncated data should not be read" );
+        }
+        catch ( BufferUnderflowException e )
+        {
+            // Expected
+        }
+    }
+
+    /**
+     * Load a lookup plan
+     * @param nAttributeCount The number of mapped attributes
+     * @param strLdapPrefix The prefix of the names of the LDAP attributes
+     * @return The lookup plan
+     * @throws Exception If the properties can not be loaded
+     */
+    private static LdapLookupPlan loadPlan( int nAttributeCount, String strLdapPrefix )
+        throws Exception
+    {
+        Properties properties = new Properties(  );
+        StringBuilder sbAttributes = new StringBuilder(  );
+
+        for ( int i = 0; i < nAttributeCount; i++ )
+        {
+            String strAttribute = "attribute" + i;
+            sbAttributes.append( ( i == 0 ) ? "" : "," ).append( strAttribute );
+            properties.setProperty( PROPERTY_LDAP_ATTRIBUTE + strAttribute, strLdapPrefix + i );
+            properties.setProperty( PROPERTY_LUTECE_USER_ATTRIBUTE + strAttribute, "user.attribute" + i );
+        }
+
+        properties.setProperty( PROPERTY_ATTRIBUTE_LIST, sbAttributes.toString(  ) );
+        properties.setProperty( PROPERTY_GROUPS_ENABLED, Boolean.FALSE.toString(  ) );
+        LdapTestEnvironment.init( properties );
+
+        return LdapLookupPlan.load(  );
+    }
+
+    /**
+     * Create a user
+     * @param strGuid The guid
+     * @param strEmail The email
+     * @return The user
+     */
+    private static LDAPUser createUser( String strGuid, String strEmail )
+    {
+        LDAPUser user = new LDAPUser( strGuid, null );
+        user.setEmail( strEmail );
+        user.setUserInfo( _plan.getEmailLuteceUserAttribute(  ), strEmail );
+
+        return user;
+    }
+
+    /**
+     * Check that a decoded user matches the encoded one
+     * @param expected The encoded user
+     * @param actual The decoded user
+     */
+    private static void assertUserEquals( LDAPUser expected, LDAPUser actual )
+    {
+        assertNotNull( actual );
+        assertEquals( expected.getName(  ), actual.getName(  ) );
+        assertEquals( expected.getEmail(  ), actual.getEmail(  ) );
+        assertEquals( expected.getMemberOf(  ), actual.getMemberOf(  ) );
+
+        for ( int i = 0; i < ATTRIBUTE_COUNT; i++ )
+        {
+            String strAttribute = _plan.getLuteceUserAttribute( i );
+            assertEquals( strAttribute, expected.getUserInfo( strAttribute ), actual.getUserInfo( strAttribute ) );
+        }
+    }
+
+    /**
+     * Write a string with the codec
+     * @param strValue The string
+     * @return The bytes
+     * @throws IOException If the string can not be written
+     */
+    private static byte[] writeString( String strValue ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(  );
+        DataOutputStream out = new DataOutputStream( bytes );
+        LdapUserCodec.writeString( out, strValue );
+        out.flush(  );
+
+        return bytes.toByteArray(  );
+    }
+
+    /**
+     * Copy bytes to a direct buffer
+     * @param bytes The bytes
+     * @return The buffer, positioned on the first byte
+     */
+    private static ByteBuffer toDirectBuffer( byte[] bytes )
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect( bytes.length );
+        buffer.put( bytes );
+        buffer.flip(  );
+
+        return buffer;
+    }
+
+    /**
+     * Build a string repeating a character
+     * @param c The character
+     * @param nCount The number of characters
+     * @return The string
+     */
+    private static String repeat( char c, int nCount )
+    {
+        char[] chars = new char[nCount];
+        Arrays.fill( chars, c );
+
+        return new String( chars );
+    }
+}
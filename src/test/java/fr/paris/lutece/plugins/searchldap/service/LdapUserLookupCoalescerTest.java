@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2002-2017, Mairie de Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.plugins.searchldap.service;
+
+import fr.paris.lutece.plugins.searchldap.business.LDAPUser;
+import fr.paris.lutece.portal.service.security.LuteceUser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+
+
+/**
+ * Tests of the deduplication of the concurrent lookups of a user
+ */
+public class LdapUserLookupCoalescerTest
+{
+    private static final String KEY = LdapTestDirectory.getGuid( 1 );
+    private static final long TIMEOUT = 10000L;
+    private static final long SHORT_TIMEOUT = 100L;
+    private LdapUserLookupCoalescer _coalescer;
+    private ExecutorService _executor;
+
+    /**
+     * Create the coalescer and the threads of the leading lookups
+     */
+    @Before
+    public void setUp(  )
+    {
+        _coalescer = new LdapUserLookupCoalescer(  );
+        _executor = Executors.newCachedThreadPool(  );
+    }
+
+    /**
+     * Stop the threads of the leading lookups
+     */
+    @After
+    public void tearDown(  )
+    {
+        _executor.shutdownNow(  );
+    }
+
+    /**
+     * A call that arrives while a lookup of the same key is running receives
+     * its result without running its own lookup
+     * @throws Exception If the lookup fails
+     */
+    @Test( timeout = 20000L )
+    public void testCoalescedLookup(  ) throws Exception
+    {
+        LDAPUser user = new LDAPUser( KEY, null );
+        BlockingLookup leadingLookup = new BlockingLookup( user, null );
+        Future<LuteceUser> leader = startLeader( leadingLookup );
+
+        Future<LuteceUser> follower = _executor.submit( new Callable<LuteceUser>(  )
+                {
+                    @Override
+                    public LuteceUser call(  ) throws NamingException
+                    {
+                        return _coalescer.lookup( KEY, new FailingLookup(  ), TIMEOUT );
+                    }
+                } );
+
+        waitForCoalescedCount( 1L );
+        leadingLookup.release(  );
+
+        assertSame( user, leader.get(  ) );
+        assertSame( user, follower.get(  ) );
+        assertEquals( 1L, _coalescer.getLookupCount(  ) );
+        assertEquals( 1L, _coalescer.getCoalescedCount(  ) );
+        assertEquals( 0, _coalescer.getInFlightCount(  ) );
+    }
+
+    /**
+     * A call that waits too long for the running lookup fails with a time
+     * limit error, without affecting the running lookup
+     * @throws Exception If the lookup fails
+     */
+    @Test( timeout = 20000L )
+    public void testTimeout(  ) throws Exception
+    {
+        LDAPUser user = new LDAPUser( KEY, null );
+        BlockingLookup leadingLookup = new BlockingLookup( user, null );
+        Future<LuteceUser> leader = startLeader( leadingLookup );
+
+        try
+        {
+            _coalescer.lookup( KEY, new FailingLookup(  ), SHORT_TIMEOUT );
+            fail( "The call must give up waiting for the running lookup" );
+        }
+        catch ( TimeLimitExceededException e )
+        {
+            // Expected
+        }
+
+        assertEquals( 1L, _coalescer.getTimeoutCount(  ) );
+        assertEquals( 1, _coalescer.getInFlightCount(  ) );
+
+        leadingLookup.release(  );
+        assertSame( user, leader.get(  ) );
+        assertEquals( 1L, _coalescer.getTimeoutCount(  ) );
+        assertEquals( 0L, _coalescer.getErrorCount(  ) );
+    }
+
+    /**
+     * The LDAP error of the running lookup is thrown to every call waiting
+     * for it, and the next call runs a new lookup
+     * @throws Exception If the test fails
+     */
+    @Test( timeout = 20000L )
+    public void testNamingErrorPropagation(  ) throws Exception
+    {
+        NamingException error = new CommunicationException( "Server down" );
+        BlockingLookup leadingLookup = new BlockingLookup( null, error );
+        Future<LuteceUser> leader = startLeader( leadingLookup );
+
+        Future<LuteceUser> follower = _executor.submit( new Callable<LuteceUser>(  )
+                {
+                    @Override
+                    public LuteceUser call(  ) throws NamingException
+                    {
+                        return _coalescer.lookup( KEY, new FailingLookup(  ), TIMEOUT );
+                    }
+                } );
+
+        waitForCoalescedCount( 1L );
+        leadingLookup.release(  );
+
+        assertSame( error, getCause( leader ) );
+        assertSame( error, getCause( follower ) );
+        assertEquals( 2L, _coalescer.getErrorCount(  ) );
+        assertEquals( 0, _coalescer.getInFlightCount(  ) );
+
+        // The failed lookup is not kept : the next call runs its own lookup
+        LDAPUser user = new LDAPUser( KEY, null );
+        assertSame( user, _coalescer.lookup( KEY, new BlockingLookup( user, null ).release(  ), TIMEOUT ) );
+        assertEquals( 2L, _coalescer.getLookupCount(  ) );
+    }
+
+    /**
+     * The runtime exceptions are thrown as is, the other checked exceptions
+     * are wrapped in a LDAP error
+     * @throws Exception If the test fails
+     */
+    @Test
+    public void testOtherErrorPropagation(  ) throws Exception
+    {
+        IllegalStateException runtimeError = new IllegalStateException( "Bug" );
+
+        try
+        {
+            _coalescer.lookup( KEY, new BlockingLookup( null, runtimeError ).release(  ), TIMEOUT );
+            fail( "The runtime exception must be thrown" );
+        }
+        catch ( IllegalStateException e )
+        {
+            assertSame( runtimeError, e );
+        }
+
+        IOException checkedError = new IOException( "I/O" );
+
+        try
+        {
+            _coalescer.lookup( KEY, new BlockingLookup( null, checkedError ).release(  ), TIMEOUT );
+            fail( "The checked exception must be wrapped" );
+        }
+        catch ( NamingException e )
+        {
+            assertSame( checkedError, e.getRootCause(  ) );
+        }
+
+        assertEquals( 2L, _coalescer.getErrorCount(  ) );
+        assertEquals( 0, _coalescer.getInFlightCount(  ) );
+    }
+
+    /**
+     * A call interrupted while waiting for the running lookup fails with an
+     * interruption error and keeps the interrupted status of its thread
+     * @throws Exception If the test fails
+     */
+    @Test( timeout = 20000L )
+    public void testInterruptedWait(  ) throws Exception
+    {
+        BlockingLookup leadingLookup = new BlockingLookup( new LDAPUser( KEY, null ), null );
+        Future<LuteceUser> leader = startLeader( leadingLookup );
+
+        Thread.currentThread(  ).interrupt(  );
+
+        try
+        {
+            _coalescer.lookup( KEY, new FailingLookup(  ), TIMEOUT );
+            fail( "The interrupted call must fail" );
+        }
+        catch ( InterruptedNamingException e )
+        {
+            assertTrue( Thread.interrupted(  ) );
+        }
+
+        leadingLookup.release(  );
+        leader.get(  );
+    }
+
+    /**
+     * Start a lookup in another thread, and wait until it runs
+     * @param lookup The lookup
+     * @return The result of the call
+     * @throws InterruptedException If the test is interrupted
+     */
+    private Future<LuteceUser> startLeader( final BlockingLookup lookup )
+        throws InterruptedException
+    {
+        Future<LuteceUser> leader = _executor.submit( new Callable<LuteceUser>(  )
+                {
+                    @Override
+                    public LuteceUser call(  ) throws NamingException
+                    {
+                        return _coalescer.lookup( KEY, lookup, TIMEOUT );
+                    }
+                } );
+
+        lookup.awaitStart(  );
+
+        return leader;
+    }
+
+    /**
+     * Wait until a number of calls joined the running lookup
+     * @param lCount The number of calls
+     * @throws InterruptedException If the test is interrupted
+     */
+    private void waitForCoalescedCount( long lCount ) throws InterruptedException
+    {
+        while ( _coalescer.getCoalescedCount(  ) < lCount )
+        {
+            Thread.sleep( 1L );
+        }
+    }
+
+    /**
+     * Get the exception thrown by a call
+     * @param future The result of the call
+     * @return The exception
+     * @throws InterruptedException If the test is interrupted
+     */
+    private static Throwable getCause( Future<LuteceUser> future )
+        throws InterruptedException
+    {
+        try
+        {
+            future.get(  );
+            fail( "The call must fail" );
+
+            return null;
+        }
+        catch ( ExecutionException e )
+        {
+            return e.getCause(  );
+        }
+    }
+
+    /**
+     * A lookup that waits to be released before returning its user or
+     * throwing its error
+     */
+    private static final class BlockingLookup implements Callable<LuteceUser>
+    {
+        private final CountDownLatch _started = new CountDownLatch( 1 );
+        private final CountDownLatch _released = new CountDownLatch( 1 );
+        private final LuteceUser _user;
+        private final Exception _error;
+
+        /**
+         * Creates a new lookup
+         * @param user The user returned
+         * @param error The error thrown, or null to return the user
+         */
+        BlockingLookup( LuteceUser user, Exception error )
+        {
+            _user = user;
+            _error = error;
+        }
+
+        /**
+         * Let the lookup end
+         * @return This lookup
+         */
+        BlockingLookup release(  )
+        {
+            _released.countDown(  );
+
+            return this;
+        }
+
+        /**
+         * Wait until the lookup runs
+         * @throws InterruptedException If the test is interrupted
+         */
+        void awaitStart(  ) throws InterruptedException
+        {
+            if ( !_started.await( TIMEOUT, TimeUnit.MILLISECONDS ) )
+            {
+                fail( "The lookup did not start" );
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public LuteceUser call(  ) throws Exception
+        {
+            _started.countDown(  );
+            _released.await(  );
+
+            if ( _error != null )
+            {
+                throw _error;
+            }
+
+            return _user;
+        }
+    }
+
+    /**
+     * A lookup that must not run, the call joining a running lookup
+     */
+    private static final class FailingLookup implements Callable<LuteceUser>
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public LuteceUser call(  )
+        {
+            throw new AssertionError( "The lookup must be coalesced" );
+        }
+    }
+}